@@ -0,0 +1,104 @@
+/*
+ * Copyright  2019 - present. IAB Tech Lab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.media.adscert.benchmark;
+
+import net.media.adscert.utils.DigestUtil;
+import net.media.adscert.utils.SignatureUtil;
+import net.media.openrtb3.Context;
+import net.media.openrtb3.Device;
+import net.media.openrtb3.Item;
+import net.media.openrtb3.OpenRTB3_X;
+import net.media.openrtb3.Placement;
+import net.media.openrtb3.Request;
+import net.media.openrtb3.Site;
+import net.media.openrtb3.Source;
+import net.media.openrtb3.Spec;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Collections;
+
+/** Keys and signed requests shared by the benchmarks. */
+public final class BenchmarkFixtures {
+
+  public static final String DOMAIN = "newsite.com";
+  public static final String CERT = "ads.cert";
+  public static final String KEY_URL = "https://www." + DOMAIN + "/" + CERT;
+  public static final String DS_MAP = "domain=&ft=&ip=&tid=&ts=&ua=";
+
+  private BenchmarkFixtures() {}
+
+  /**
+   * Generates a P-256 key pair.
+   *
+   * @return {@link KeyPair}
+   * @throws GeneralSecurityException if the JVM does not support P-256
+   */
+  public static KeyPair generateKeyPair() throws GeneralSecurityException {
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+    generator.initialize(new ECGenParameterSpec("secp256r1"));
+    return generator.generateKeyPair();
+  }
+
+  /**
+   * Builds a display request signed over {@link #DS_MAP} and published under {@link #KEY_URL}.
+   *
+   * @param keyPair key pair signing the request
+   * @param tid transaction id, to tell requests apart
+   * @return signed {@link OpenRTB3_X}
+   * @throws GeneralSecurityException if the request cannot be signed
+   */
+  public static OpenRTB3_X signedRequest(KeyPair keyPair, String tid)
+      throws GeneralSecurityException {
+    Device device = new Device();
+    device.setIp("192.168.1.1");
+    device.setUa(
+        "Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/72.0");
+    Site site = new Site();
+    site.setDomain(DOMAIN);
+    Context context = new Context();
+    context.setSite(site);
+    context.setDevice(device);
+
+    Spec spec = new Spec();
+    spec.setPlacement(new Placement());
+    Item item = new Item();
+    item.setId("1");
+    item.setSpec(spec);
+
+    Source source = new Source();
+    source.setTid(tid);
+    source.setTs((int) System.currentTimeMillis());
+    source.setCert(CERT);
+    source.setDsmap(DS_MAP);
+
+    Request request = new Request();
+    request.setId(tid);
+    request.setSource(source);
+    request.setContext(context);
+    request.setItem(Collections.singletonList(item));
+    OpenRTB3_X openRTB = new OpenRTB3_X();
+    openRTB.setRequest(request);
+
+    String digest = DigestUtil.getDigestFromDsMap(DS_MAP, DigestUtil.getDigestFromDsMap(openRTB));
+    source.setDigest(digest);
+    source.setDs(SignatureUtil.signMessage(keyPair.getPrivate(), digest));
+    return openRTB;
+  }
+}
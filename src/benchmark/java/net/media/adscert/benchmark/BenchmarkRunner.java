@@ -0,0 +1,57 @@
+/*
+ * Copyright  2019 - present. IAB Tech Lab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.media.adscert.benchmark;
+
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the benchmark suite in throughput and average time mode with the gc profiler, once for
+ * every thread count from 1 to N.
+ *
+ * <p>Usage: {@code java -cp target/benchmarks.jar net.media.adscert.benchmark.BenchmarkRunner
+ * [maxThreads] [includeRegex]}. The thread count defaults to the number of processors.
+ */
+public class BenchmarkRunner {
+
+  public static void main(String[] args) throws RunnerException {
+    int maxThreads =
+        args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+    String include = args.length > 1 ? args[1] : BenchmarkRunner.class.getPackage().getName();
+    for (int threads = 1; threads <= maxThreads; threads++) {
+      Options options =
+          new OptionsBuilder()
+              .include(include)
+              .mode(Mode.Throughput)
+              .mode(Mode.AverageTime)
+              .timeUnit(TimeUnit.MICROSECONDS)
+              .threads(threads)
+              .forks(1)
+              .warmupIterations(5)
+              .measurementIterations(5)
+              .addProfiler(GCProfiler.class)
+              .build();
+      new Runner(options).run();
+    }
+  }
+}
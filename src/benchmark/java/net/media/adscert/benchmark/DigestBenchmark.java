@@ -0,0 +1,69 @@
+/*
+ * Copyright  2019 - present. IAB Tech Lab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.media.adscert.benchmark;
+
+import net.media.adscert.utils.DigestUtil;
+import net.media.openrtb3.OpenRTB3_X;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Map;
+
+/** Digest construction from the dsmap of a request. */
+@State(Scope.Benchmark)
+public class DigestBenchmark {
+
+  private OpenRTB3_X openRTB;
+  private Map<String, Object> digestFields;
+
+  @Setup
+  public void setUp() throws GeneralSecurityException {
+    openRTB =
+        BenchmarkFixtures.signedRequest(BenchmarkFixtures.generateKeyPair(), "ABC7E92FBD6A");
+    digestFields = DigestUtil.getDigestFromDsMap(openRTB);
+  }
+
+  @Benchmark
+  public Map<String, Object> fieldsFromRequest() {
+    return DigestUtil.getDigestFromDsMap(openRTB);
+  }
+
+  @Benchmark
+  public String digestFromFields() {
+    return DigestUtil.getDigestFromDsMap(BenchmarkFixtures.DS_MAP, digestFields);
+  }
+
+  @Benchmark
+  public String digestFromRequest() {
+    return DigestUtil.getDigestFromDsMap(
+        openRTB.getRequest().getSource().getDsmap(), DigestUtil.getDigestFromDsMap(openRTB));
+  }
+
+  @Benchmark
+  public String buildDigest() {
+    return DigestUtil.buildDigest(openRTB);
+  }
+
+  @Benchmark
+  public ByteBuffer encodeDigest() {
+    return DigestUtil.encodeDigest(openRTB);
+  }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright  2019 - present. IAB Tech Lab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.media.adscert.benchmark;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import net.media.adscert.cache.DefaultGuavaCacheBuilder;
+import net.media.adscert.cache.VerificationServiceGuavaCache;
+import net.media.adscert.service.FileVerificationService;
+import net.media.adscert.service.VerificationService;
+import net.media.adscert.utils.JacksonObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Offline bulk verification of a file of requests, one JSON per line. Every thread verifies its
+ * own copy of the file, plain and as concatenated gzip members of 100 lines each.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class FileVerificationBenchmark {
+
+  @Param({"1000"})
+  public int requests;
+
+  private final ObjectMapper mapper = JacksonObjectMapper.getMapper();
+  private VerificationService service;
+  private Path inputFile;
+  private Path gzipFile;
+  private Path outputFile;
+
+  @Setup
+  public void setUp() throws Exception {
+    KeyPair keyPair = BenchmarkFixtures.generateKeyPair();
+    LocalKeyServer keyServer = new LocalKeyServer();
+    keyServer.publish(BenchmarkFixtures.KEY_URL, keyPair.getPublic());
+    service =
+        new VerificationServiceGuavaCache(
+            DefaultGuavaCacheBuilder.newBuilder().build(), url -> () -> keyServer.fetch(url));
+
+    inputFile = Files.createTempFile("adscert-benchmark", ".json");
+    outputFile = Files.createTempFile("adscert-benchmark", ".out");
+    try (BufferedWriter writer = Files.newBufferedWriter(inputFile, StandardCharsets.UTF_8)) {
+      for (int i = 0; i < requests; i++) {
+        writer.write(
+            mapper.writeValueAsString(BenchmarkFixtures.signedRequest(keyPair, "tid" + i)));
+        writer.newLine();
+      }
+    }
+    gzipFile = Files.createTempFile("adscert-benchmark", ".json.gz");
+    List<String> lines = Files.readAllLines(inputFile, StandardCharsets.UTF_8);
+    try (OutputStream output = Files.newOutputStream(gzipFile)) {
+      for (int start = 0; start < lines.size(); start += 100) {
+        GZIPOutputStream member = new GZIPOutputStream(output);
+        for (String line : lines.subList(start, Math.min(start + 100, lines.size()))) {
+          member.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        member.finish();
+      }
+    }
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    Files.deleteIfExists(inputFile);
+    Files.deleteIfExists(gzipFile);
+    Files.deleteIfExists(outputFile);
+  }
+
+  @Benchmark
+  public void verify() {
+    FileVerificationService.verify(
+        inputFile.toString(), outputFile.toString(), mapper, service, null);
+  }
+
+  @Benchmark
+  public void verifyParallel() {
+    new FileVerificationService(service)
+        .verifyParallel(inputFile.toString(), outputFile.toString());
+  }
+
+  @Benchmark
+  public void verifyParallelGzip() {
+    new FileVerificationService(service)
+        .verifyParallel(gzipFile.toString(), outputFile.toString());
+  }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright  2019 - present. IAB Tech Lab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.media.adscert.benchmark;
+
+import java.io.FileNotFoundException;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory stand-in for the https servers publishing public keys, so that benchmarks never touch
+ * the network. Every fetch decodes the published key again, as a real fetch would.
+ */
+public class LocalKeyServer {
+
+  private final Map<String, byte[]> publishedKeys = new ConcurrentHashMap<>();
+  private final AtomicLong fetches = new AtomicLong();
+
+  /**
+   * Publishes a key under an url.
+   *
+   * @param url url of the key
+   * @param publicKey {@link PublicKey} served for the url
+   */
+  public void publish(String url, PublicKey publicKey) {
+    publishedKeys.put(url, publicKey.getEncoded());
+  }
+
+  /**
+   * Serves the key published under an url.
+   *
+   * @param url url of the key
+   * @return freshly decoded {@link PublicKey}
+   * @throws FileNotFoundException if no key is published under the url
+   * @throws GeneralSecurityException if the key cannot be decoded
+   */
+  public PublicKey fetch(String url) throws FileNotFoundException, GeneralSecurityException {
+    fetches.incrementAndGet();
+    byte[] encoded = publishedKeys.get(url);
+    if (encoded == null) {
+      throw new FileNotFoundException(url);
+    }
+    return KeyFactory.getInstance("EC").generatePublic(new X509EncodedKeySpec(encoded));
+  }
+
+  public long getFetches() {
+    return fetches.get();
+  }
+}
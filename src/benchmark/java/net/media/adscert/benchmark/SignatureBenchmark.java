@@ -0,0 +1,59 @@
+/*
+ * Copyright  2019 - present. IAB Tech Lab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.media.adscert.benchmark;
+
+import net.media.adscert.crypto.VerifierKey;
+import net.media.adscert.utils.SignatureUtil;
+import net.media.openrtb3.OpenRTB3_X;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.PublicKey;
+
+/** ECDSA verification of a digest, on a plain JCA key and on a cached {@link VerifierKey}. */
+@State(Scope.Benchmark)
+public class SignatureBenchmark {
+
+  private PublicKey publicKey;
+  private PublicKey verifierKey;
+  private String digest;
+  private String signature;
+
+  @Setup
+  public void setUp() throws GeneralSecurityException {
+    KeyPair keyPair = BenchmarkFixtures.generateKeyPair();
+    OpenRTB3_X openRTB = BenchmarkFixtures.signedRequest(keyPair, "ABC7E92FBD6A");
+    publicKey = keyPair.getPublic();
+    verifierKey = VerifierKey.of(publicKey);
+    digest = openRTB.getRequest().getSource().getDigest();
+    signature = openRTB.getRequest().getSource().getDs();
+  }
+
+  @Benchmark
+  public boolean verifySign() throws GeneralSecurityException {
+    return SignatureUtil.verifySign(publicKey, digest, signature);
+  }
+
+  @Benchmark
+  public boolean verifySignWithVerifierKey() throws GeneralSecurityException {
+    return SignatureUtil.verifySign(verifierKey, digest, signature);
+  }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright  2019 - present. IAB Tech Lab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.media.adscert.benchmark;
+
+import com.google.common.cache.Cache;
+import net.media.adscert.cache.DefaultGuavaCacheBuilder;
+import net.media.adscert.cache.DefaultJCacheBuilder;
+import net.media.adscert.cache.VerificationServiceGuavaCache;
+import net.media.adscert.cache.VerificationServiceJCache;
+import net.media.adscert.enums.Result;
+import net.media.adscert.service.VerificationService;
+import net.media.adscert.utils.JacksonObjectMapper;
+import net.media.openrtb3.OpenRTB3_X;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import javax.cache.integration.CacheLoader;
+import javax.cache.integration.CacheLoaderException;
+import java.io.IOException;
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * End to end verification of a request, with keys served by a {@link LocalKeyServer}. The plain
+ * service fetches the key for every request; the cached services fetch it once.
+ */
+@State(Scope.Benchmark)
+public class VerificationServiceBenchmark {
+
+  @Param({"PLAIN", "GUAVA", "JCACHE"})
+  public String service;
+
+  private final LocalKeyServer keyServer = new LocalKeyServer();
+  private VerificationService verificationService;
+  private javax.cache.Cache<String, PublicKey> jCache;
+  private OpenRTB3_X openRTB;
+  private byte[] json;
+
+  @Setup
+  public void setUp() throws Exception {
+    KeyPair keyPair = BenchmarkFixtures.generateKeyPair();
+    keyServer.publish(BenchmarkFixtures.KEY_URL, keyPair.getPublic());
+    openRTB = BenchmarkFixtures.signedRequest(keyPair, "ABC7E92FBD6A");
+    json = JacksonObjectMapper.getMapper().writeValueAsBytes(openRTB);
+
+    switch (service) {
+      case "PLAIN":
+        verificationService =
+            new VerificationService() {
+              @Override
+              public PublicKey getPublicKey(String url) {
+                try {
+                  return keyServer.fetch(url);
+                } catch (Exception e) {
+                  throw new IllegalStateException(e);
+                }
+              }
+            };
+        break;
+      case "GUAVA":
+        Cache<String, PublicKey> guavaCache = DefaultGuavaCacheBuilder.newBuilder().build();
+        verificationService =
+            new VerificationServiceGuavaCache(guavaCache, url -> () -> keyServer.fetch(url));
+        break;
+      case "JCACHE":
+        jCache =
+            DefaultJCacheBuilder.newBuilder()
+                .setCacheLoader(
+                    new CacheLoader<String, PublicKey>() {
+                      @Override
+                      public PublicKey load(String url) throws CacheLoaderException {
+                        try {
+                          return keyServer.fetch(url);
+                        } catch (Exception e) {
+                          throw new CacheLoaderException(e);
+                        }
+                      }
+
+                      @Override
+                      public Map<String, PublicKey> loadAll(Iterable<? extends String> urls)
+                          throws CacheLoaderException {
+                        Map<String, PublicKey> keys = new HashMap<>();
+                        for (String url : urls) {
+                          keys.put(url, load(url));
+                        }
+                        return keys;
+                      }
+                    })
+                .build();
+        verificationService = new VerificationServiceJCache(jCache);
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown service " + service);
+    }
+
+    if (verificationService.verifyRequest(openRTB).getStatus() != Result.Status.SUCCESS) {
+      throw new IllegalStateException("Fixture request does not verify");
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    if (jCache != null) {
+      jCache.getCacheManager().destroyCache(jCache.getName());
+    }
+  }
+
+  @Benchmark
+  public Result verifyRequest() {
+    return verificationService.verifyRequest(openRTB);
+  }
+
+  @Benchmark
+  public Result verifyRequestWithDigest() {
+    return verificationService.verifyRequest(openRTB, true);
+  }
+
+  @Benchmark
+  public Result verifyRawJson() {
+    return verificationService.verifyRequest(json);
+  }
+
+  @Benchmark
+  public Result bindAndVerifyJson() throws IOException {
+    return verificationService.verifyRequest(
+        JacksonObjectMapper.getMapper().readValue(json, OpenRTB3_X.class));
+  }
+}
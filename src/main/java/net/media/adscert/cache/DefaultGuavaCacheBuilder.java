@@ -18,10 +18,24 @@ package net.media.adscert.cache;
 
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.ForwardingLoadingCache;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import net.media.adscert.crypto.VerifierKey;
+import net.media.adscert.fetch.KeyFailureCache;
+import net.media.adscert.fetch.KeyFetcher;
+import net.media.adscert.fetch.SingleFlight;
 
+import java.io.IOException;
 import java.security.PublicKey;
 import java.time.Duration;
 import java.time.temporal.ChronoUnit;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
 
 /**
  * Builder to create a ready-to-use Guava cache.
@@ -34,6 +48,10 @@ public class DefaultGuavaCacheBuilder {
   private Long maximumSize;
   private Duration expireAfterAccess = Duration.of(30, ChronoUnit.DAYS);
   private Duration expireAfterWrite = Duration.of(30, ChronoUnit.DAYS);
+  private Duration refreshAfterWrite;
+  private KeyFetcher keyFetcher = KeyFetcher.getDefault();
+  private KeyFailureCache keyFailureCache = KeyFailureCache.newBuilder().build();
+  private KeySnapshot snapshot;
 
   private DefaultGuavaCacheBuilder() {
     this.maximumSize = 1000L;
@@ -83,17 +101,192 @@ public class DefaultGuavaCacheBuilder {
     return this;
   }
 
+  /**
+   * Enables refresh-ahead, see {@link CacheBuilder#refreshAfterWrite(Duration)}. Once an entry is
+   * older than the given duration, the next read through {@link VerificationServiceGuavaCache}
+   * starts fetching the key again in the background, while the cached key keeps being served
+   * until the fetched one replaces it. A failed fetch keeps the cached key, which is refreshed
+   * again after another period; the entry is not evicted. A url backing off after a failure is not
+   * fetched, see {@link #setKeyFailureCache(KeyFailureCache)}.
+   *
+   * @param refreshAfterWrite duration after which an entry is refreshed, or null to never
+   *     refresh entries (default)
+   * @return {@link DefaultGuavaCacheBuilder}
+   * @since 1.2
+   */
+  public DefaultGuavaCacheBuilder setRefreshAfterWrite(Duration refreshAfterWrite) {
+    this.refreshAfterWrite = refreshAfterWrite;
+    return this;
+  }
+
+  /**
+   * Sets the fetcher refreshing the entries, see {@link #setRefreshAfterWrite(Duration)}.
+   *
+   * @param keyFetcher {@link KeyFetcher}, {@link KeyFetcher#getDefault()} by default
+   * @return {@link DefaultGuavaCacheBuilder}
+   * @since 1.2
+   */
+  public DefaultGuavaCacheBuilder setKeyFetcher(KeyFetcher keyFetcher) {
+    this.keyFetcher = keyFetcher;
+    return this;
+  }
+
+  /**
+   * Sets where failed fetches of the loader are remembered, see {@link
+   * #setRefreshAfterWrite(Duration)}. While a url is backing off after a failure, its entry is
+   * refreshed without fetching it, and keeps the cached key. A {@link
+   * VerificationServiceGuavaCache} reading the cache remembers its own failed fetches there too.
+   *
+   * @param keyFailureCache {@link KeyFailureCache}, enabled with default settings, or null to
+   *     fetch failing urls on every refresh
+   * @return {@link DefaultGuavaCacheBuilder}
+   * @since 1.2
+   */
+  public DefaultGuavaCacheBuilder setKeyFailureCache(KeyFailureCache keyFailureCache) {
+    this.keyFailureCache = keyFailureCache;
+    return this;
+  }
+
+  /**
+   * Restores the cache from a snapshot, and snapshots it periodically. Entries are restored only
+   * if their {@link #setExpireAfterWrite(Duration)} has not elapsed since they were fetched.
+   *
+   * @param snapshot {@link KeySnapshot}, not attached to another cache, or null for none (default)
+   * @return {@link DefaultGuavaCacheBuilder}
+   * @since 1.2
+   */
+  public DefaultGuavaCacheBuilder setSnapshot(KeySnapshot snapshot) {
+    this.snapshot = snapshot;
+    return this;
+  }
+
   /**
    * Calls {@link CacheBuilder#build()} with the values configured via {@link
-   * DefaultGuavaCacheBuilder}.
+   * DefaultGuavaCacheBuilder}. With {@link #setRefreshAfterWrite(Duration)}, the cache is a {@link
+   * LoadingCache} whose loader refreshes entries without blocking the reads.
    *
    * @return {@link Cache}
    */
   public Cache<String, PublicKey> build() {
-    return CacheBuilder.newBuilder()
-        .maximumSize(this.maximumSize)
-        .expireAfterAccess(this.expireAfterAccess)
-        .expireAfterWrite(this.expireAfterWrite)
-        .build();
+    CacheBuilder<Object, Object> builder =
+        CacheBuilder.newBuilder()
+            .maximumSize(this.maximumSize)
+            .expireAfterAccess(this.expireAfterAccess)
+            .expireAfterWrite(this.expireAfterWrite);
+    Cache<String, PublicKey> cache;
+    if (this.refreshAfterWrite == null) {
+      cache = builder.build();
+    } else {
+      RefreshingKeyLoader loader = new RefreshingKeyLoader(this.keyFetcher, this.keyFailureCache);
+      cache =
+          new RefreshingKeyCache(
+              builder.refreshAfterWrite(this.refreshAfterWrite).build(loader), loader);
+    }
+    if (this.snapshot != null) {
+      this.snapshot.attach(cache, this.expireAfterWrite.toMillis());
+    }
+    return cache;
+  }
+
+  /**
+   * Returns the loader of a cache built with {@link #setRefreshAfterWrite(Duration)}.
+   *
+   * @param cache {@link Cache} of public keys
+   * @return {@link RefreshingKeyLoader}, or null if the cache was not built to refresh its entries
+   */
+  static RefreshingKeyLoader getKeyLoader(Cache<String, PublicKey> cache) {
+    return cache instanceof RefreshingKeyCache ? ((RefreshingKeyCache) cache).loader : null;
+  }
+
+  /** Exposes the loader of the cache to {@link VerificationServiceGuavaCache}. */
+  private static final class RefreshingKeyCache
+      extends ForwardingLoadingCache.SimpleForwardingLoadingCache<String, PublicKey> {
+    private final RefreshingKeyLoader loader;
+
+    private RefreshingKeyCache(
+        LoadingCache<String, PublicKey> delegate, RefreshingKeyLoader loader) {
+      super(delegate);
+      this.loader = loader;
+    }
+  }
+
+  /**
+   * Loads keys through a {@link KeyFetcher}. Reloads only start a fetch, so that a read finding a
+   * stale entry is not blocked by it. Fetches skip the urls backing off after a failure, and are
+   * shared with the concurrent loads of {@link VerificationServiceGuavaCache}.
+   */
+  static final class RefreshingKeyLoader extends CacheLoader<String, PublicKey> {
+    private final KeyFetcher keyFetcher;
+    final KeyFailureCache failures;
+    final SingleFlight<String, PublicKey> loads = new SingleFlight<>();
+
+    private RefreshingKeyLoader(KeyFetcher keyFetcher, KeyFailureCache failures) {
+      this.keyFetcher = keyFetcher;
+      this.failures = failures;
+    }
+
+    @Override
+    public PublicKey load(String url) throws Exception {
+      try {
+        return fetch(url).get();
+      } catch (ExecutionException e) {
+        throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+      }
+    }
+
+    @Override
+    public ListenableFuture<PublicKey> reload(String url, PublicKey oldKey) {
+      SettableFuture<PublicKey> reloaded = SettableFuture.create();
+      fetch(url)
+          .whenComplete(
+              (key, failure) -> {
+                // Writing the old key back extends the entry. An unchanged key keeps the
+                // verifiers prepared on the cached one.
+                if (failure != null || Arrays.equals(key.getEncoded(), oldKey.getEncoded())) {
+                  reloaded.set(oldKey);
+                } else {
+                  reloaded.set(key);
+                }
+              });
+      return reloaded;
+    }
+
+    private CompletableFuture<PublicKey> fetch(String url) {
+      Exception failure = failures == null ? null : failures.getFailure(url);
+      if (failure != null) {
+        CompletableFuture<PublicKey> backingOff = new CompletableFuture<>();
+        backingOff.completeExceptionally(
+            new IOException(
+                "Fetch of "
+                    + url
+                    + " failed, retrying in "
+                    + failures.getRemainingBackoff(url).toMillis()
+                    + " ms",
+                failure));
+        return backingOff;
+      }
+      return loads.loadAsync(
+          url,
+          () ->
+              keyFetcher
+                  .fetchAsync(url)
+                  .<PublicKey>thenApply(VerifierKey::of)
+                  .whenComplete((key, e) -> recordOutcome(url, e)));
+    }
+
+    private void recordOutcome(String url, Throwable failure) {
+      if (failures == null) {
+        return;
+      }
+      Throwable cause =
+          failure instanceof CompletionException && failure.getCause() != null
+              ? failure.getCause()
+              : failure;
+      if (cause == null) {
+        failures.recordSuccess(url);
+      } else if (cause instanceof Exception) {
+        failures.recordFailure(url, (Exception) cause);
+      }
+    }
   }
 }
@@ -16,21 +16,38 @@
 
 package net.media.adscert.cache;
 
-import net.media.adscert.utils.SignatureUtil;
+import net.media.adscert.crypto.VerifierKey;
+import net.media.adscert.fetch.KeyFetcher;
+import net.media.adscert.fetch.SingleFlight;
+import net.media.adscert.utils.DaemonThreadFactory;
 
 import javax.cache.Cache;
 import javax.cache.CacheManager;
 import javax.cache.Caching;
+import javax.cache.configuration.CompleteConfiguration;
+import javax.cache.configuration.Factory;
 import javax.cache.configuration.FactoryBuilder;
+import javax.cache.configuration.MutableCacheEntryListenerConfiguration;
 import javax.cache.configuration.MutableConfiguration;
+import javax.cache.event.CacheEntryEvent;
+import javax.cache.event.CacheEntryExpiredListener;
+import javax.cache.event.CacheEntryRemovedListener;
 import javax.cache.expiry.Duration;
 import javax.cache.expiry.ExpiryPolicy;
 import javax.cache.integration.CacheLoader;
 import javax.cache.integration.CacheLoaderException;
 import javax.cache.spi.CachingProvider;
 import java.security.PublicKey;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -45,6 +62,12 @@ public class DefaultJCacheBuilder {
   private Duration expiryForCreation = new Duration(TimeUnit.DAYS, 30);
   private Duration expiryForUpdate = new Duration(TimeUnit.DAYS, 30);
   private CacheLoader<String, PublicKey> cacheLoader;
+  private KeyFetcher keyFetcher = KeyFetcher.getDefault();
+  private long keyLoadWaitCapMillis = SingleFlight.NO_WAIT_CAP;
+  private String cacheName = "publicKeyCache";
+  private Duration refreshAfterWrite;
+  private Executor refreshExecutor;
+  private KeySnapshot snapshot;
 
   private DefaultJCacheBuilder() {
     this.cacheLoader =
@@ -53,7 +76,7 @@ public class DefaultJCacheBuilder {
           @Override
           public PublicKey load(String url) throws CacheLoaderException {
             try {
-              return SignatureUtil.getPublicKeyFromUrl(url);
+              return keyFetcher.fetch(url);
             } catch (Exception e) {
               throw new CacheLoaderException(e);
             }
@@ -62,14 +85,20 @@ public class DefaultJCacheBuilder {
           @Override
           public Map<String, PublicKey> loadAll(Iterable<? extends String> keys)
               throws CacheLoaderException {
-            Map<String, PublicKey> data = new HashMap<>();
+            // All fetches are started before the first is awaited.
+            Map<String, CompletableFuture<PublicKey>> fetches = new HashMap<>();
             for (String key : keys) {
-              try {
-                data.put(key, SignatureUtil.getPublicKeyFromUrl(key));
-              } catch (Exception ignored) {
-
-              }
+              fetches.put(key, keyFetcher.fetchAsync(key));
             }
+            Map<String, PublicKey> data = new HashMap<>();
+            fetches.forEach(
+                (key, fetch) -> {
+                  try {
+                    data.put(key, fetch.get());
+                  } catch (Exception ignored) {
+
+                  }
+                });
             return data;
           }
         };
@@ -99,6 +128,88 @@ public class DefaultJCacheBuilder {
     return this;
   }
 
+  /**
+   * Sets the fetcher used by the default cache loader. Has no effect on a loader set with {@link
+   * #setCacheLoader(CacheLoader)}.
+   *
+   * @param keyFetcher {@link KeyFetcher}, {@link KeyFetcher#getDefault()} by default
+   * @return {@link DefaultJCacheBuilder}
+   * @since 1.2
+   */
+  public DefaultJCacheBuilder setKeyFetcher(KeyFetcher keyFetcher) {
+    this.keyFetcher = keyFetcher;
+    return this;
+  }
+
+  /**
+   * Bounds the time a read through {@link VerificationServiceJCache} waits for a key which another
+   * read is loading already. Whichever loader is used, only one load per key url is in flight at a
+   * time and concurrent reads of the same key share its outcome. A read giving up fails while the
+   * load goes on.
+   *
+   * @param keyLoadWaitCapMillis cap in milliseconds, or {@link SingleFlight#NO_WAIT_CAP} to wait
+   *     as long as the load takes (default)
+   * @return {@link DefaultJCacheBuilder}
+   * @since 1.2
+   */
+  public DefaultJCacheBuilder setKeyLoadWaitCapMillis(long keyLoadWaitCapMillis) {
+    this.keyLoadWaitCapMillis = keyLoadWaitCapMillis;
+    return this;
+  }
+
+  /**
+   * @param cacheName name of the cache in the default {@link CacheManager}, which must be unique;
+   *     {@code publicKeyCache} by default
+   * @return {@link DefaultJCacheBuilder}
+   * @since 1.2
+   */
+  public DefaultJCacheBuilder setCacheName(String cacheName) {
+    this.cacheName = cacheName;
+    return this;
+  }
+
+  /**
+   * Enables refresh-ahead. Once an entry is older than the given duration, the next read through
+   * {@link VerificationServiceJCache} starts loading the key again in the background, while the
+   * cached key keeps being served until the loaded one replaces it. A failed load keeps the cached
+   * key and restarts its expiry, so the entry is refreshed again after another period instead of
+   * being evicted.
+   *
+   * @param refreshAfterWrite duration after which an entry is refreshed, or null to never refresh
+   *     entries (default)
+   * @return {@link DefaultJCacheBuilder}
+   * @since 1.2
+   */
+  public DefaultJCacheBuilder setRefreshAfterWrite(Duration refreshAfterWrite) {
+    this.refreshAfterWrite = refreshAfterWrite;
+    return this;
+  }
+
+  /**
+   * @param refreshExecutor {@link Executor} running the refreshes, a shared pool of daemon threads
+   *     by default
+   * @return {@link DefaultJCacheBuilder}
+   * @since 1.2
+   */
+  public DefaultJCacheBuilder setRefreshExecutor(Executor refreshExecutor) {
+    this.refreshExecutor = refreshExecutor;
+    return this;
+  }
+
+  /**
+   * Restores the cache from a snapshot, and snapshots it periodically. Entries are restored only
+   * if their {@link #setExpiryForCreation(Duration)} has not elapsed since they were fetched, and
+   * are removed once it has.
+   *
+   * @param snapshot {@link KeySnapshot}, not attached to another cache, or null for none (default)
+   * @return {@link DefaultJCacheBuilder}
+   * @since 1.2
+   */
+  public DefaultJCacheBuilder setSnapshot(KeySnapshot snapshot) {
+    this.snapshot = snapshot;
+    return this;
+  }
+
   public DefaultJCacheBuilder setCacheLoader(CacheLoader<String, PublicKey> loader) {
     this.cacheLoader = loader;
     return this;
@@ -126,14 +237,223 @@ public class DefaultJCacheBuilder {
           }
         };
 
-    final Cache<String, PublicKey> cache =
-        cacheManager.createCache(
-            "publicKeyCache",
-            new MutableConfiguration<String, PublicKey>()
-                .setReadThrough(true)
-                .setExpiryPolicyFactory(new FactoryBuilder.SingletonFactory<>(expiryPolicy))
-                .setCacheLoaderFactory(new FactoryBuilder.SingletonFactory<>(this.cacheLoader)));
+    KeyRefresher refresher =
+        refreshAfterWrite == null || refreshAfterWrite.isEternal()
+            ? null
+            : new KeyRefresher(
+                this.cacheLoader,
+                refreshAfterWrite.getTimeUnit().toNanos(refreshAfterWrite.getDurationAmount()),
+                refreshExecutor != null ? refreshExecutor : RefreshPool.EXECUTOR);
+    // Keys are stored by reference so that the VerifierKey handles, and the verifiers prepared
+    // on them, survive across reads. The cache does not read through: VerificationServiceJCache
+    // loads missing keys itself, so that hits are plain reads taking no lock of the entry.
+    MutableConfiguration<String, PublicKey> configuration =
+        new MutableConfiguration<String, PublicKey>()
+            .setReadThrough(false)
+            .setStoreByValue(false)
+            .setExpiryPolicyFactory(new FactoryBuilder.SingletonFactory<>(expiryPolicy))
+            .setCacheLoaderFactory(
+                new FactoryBuilder.SingletonFactory<>(
+                    new VerifierKeyLoader(this.cacheLoader, keyLoadWaitCapMillis, refresher)));
+    if (refresher != null) {
+      configuration.addCacheEntryListenerConfiguration(
+          new MutableCacheEntryListenerConfiguration<>(
+              new FactoryBuilder.SingletonFactory<>(refresher), null, false, false));
+    }
+    if (snapshot != null) {
+      // Synchronous, so that the snapshot records when the keys were written.
+      configuration.addCacheEntryListenerConfiguration(
+          new MutableCacheEntryListenerConfiguration<>(
+              new FactoryBuilder.SingletonFactory<>(snapshot.newListener()), null, false, true));
+    }
+    final Cache<String, PublicKey> cache = cacheManager.createCache(cacheName, configuration);
+    if (refresher != null) {
+      refresher.cache = cache;
+    }
+    if (snapshot != null) {
+      snapshot.attach(
+          cache,
+          expiryForCreation.isEternal()
+              ? Long.MAX_VALUE
+              : expiryForCreation.getTimeUnit().toMillis(expiryForCreation.getDurationAmount()));
+    }
 
     return cache;
   }
+
+  /**
+   * Returns the refresher of a cache built with {@link #setRefreshAfterWrite(Duration)}.
+   *
+   * @param cache {@link Cache} of public keys
+   * @return {@link KeyRefresher}, or null if the cache was not built to refresh its entries
+   */
+  static KeyRefresher getRefresher(Cache<String, PublicKey> cache) {
+    CacheLoader<String, PublicKey> loader = getCacheLoader(cache);
+    return loader instanceof VerifierKeyLoader ? ((VerifierKeyLoader) loader).refresher : null;
+  }
+
+  /**
+   * Returns the loader of a read-through cache, or of a cache built by {@link
+   * DefaultJCacheBuilder}.
+   *
+   * @param cache {@link Cache} of public keys
+   * @return {@link CacheLoader}, or null if the cache loads no keys
+   */
+  @SuppressWarnings("unchecked")
+  static CacheLoader<String, PublicKey> getCacheLoader(Cache<String, PublicKey> cache) {
+    CompleteConfiguration<?, ?> configuration = cache.getConfiguration(CompleteConfiguration.class);
+    Factory<?> loaderFactory = configuration == null ? null : configuration.getCacheLoaderFactory();
+    Object loader = loaderFactory == null ? null : loaderFactory.create();
+    return isReadThrough(cache) || loader instanceof VerifierKeyLoader
+        ? (CacheLoader<String, PublicKey>) loader
+        : null;
+  }
+
+  /**
+   * Returns whether reading a missing entry loads it.
+   *
+   * @param cache {@link Cache} of public keys
+   * @return true if the cache reads through
+   */
+  static boolean isReadThrough(Cache<String, PublicKey> cache) {
+    CompleteConfiguration<?, ?> configuration = cache.getConfiguration(CompleteConfiguration.class);
+    return configuration != null && configuration.isReadThrough();
+  }
+
+  /**
+   * Wraps every key returned by the configured loader into a {@link VerifierKey}, and coalesces
+   * concurrent loads of the same key which do not go through the cache.
+   */
+  static final class VerifierKeyLoader implements CacheLoader<String, PublicKey> {
+    private final CacheLoader<String, PublicKey> delegate;
+    final long waitCapMillis;
+    private final KeyRefresher refresher;
+    final SingleFlight<String, PublicKey> loads = new SingleFlight<>();
+
+    private VerifierKeyLoader(
+        CacheLoader<String, PublicKey> delegate, long waitCapMillis, KeyRefresher refresher) {
+      this.delegate = delegate;
+      this.waitCapMillis = waitCapMillis;
+      this.refresher = refresher;
+    }
+
+    @Override
+    public PublicKey load(String url) throws CacheLoaderException {
+      try {
+        return loads.load(url, () -> loadKey(url), waitCapMillis);
+      } catch (RuntimeException e) {
+        throw e;
+      } catch (Exception e) {
+        throw new CacheLoaderException(e);
+      }
+    }
+
+    /** Loads a key through the configured loader, without coalescing. */
+    PublicKey loadKey(String url) throws CacheLoaderException {
+      PublicKey key = VerifierKey.of(delegate.load(url));
+      if (refresher != null) {
+        refresher.loaded(url);
+      }
+      return key;
+    }
+
+    @Override
+    public Map<String, PublicKey> loadAll(Iterable<? extends String> keys)
+        throws CacheLoaderException {
+      Map<String, PublicKey> data = delegate.loadAll(keys);
+      if (data == null) {
+        return null;
+      }
+      Map<String, PublicKey> wrapped = new HashMap<>();
+      data.forEach((url, key) -> wrapped.put(url, VerifierKey.of(key)));
+      if (refresher != null) {
+        wrapped.keySet().forEach(refresher::loaded);
+      }
+      return wrapped;
+    }
+  }
+
+  /**
+   * Tracks when entries were loaded, and reloads those read after the refresh duration in the
+   * background. Entries put into the cache directly age from their first read.
+   */
+  static final class KeyRefresher
+      implements CacheEntryExpiredListener<String, PublicKey>,
+          CacheEntryRemovedListener<String, PublicKey> {
+    private final CacheLoader<String, PublicKey> delegate;
+    private final long refreshAfterNanos;
+    private final Executor executor;
+    private final ConcurrentMap<String, Long> loadedAt = new ConcurrentHashMap<>();
+    private final Set<String> refreshing = ConcurrentHashMap.newKeySet();
+    private volatile Cache<String, PublicKey> cache;
+
+    private KeyRefresher(
+        CacheLoader<String, PublicKey> delegate, long refreshAfterNanos, Executor executor) {
+      this.delegate = delegate;
+      this.refreshAfterNanos = refreshAfterNanos;
+      this.executor = executor;
+    }
+
+    private void loaded(String url) {
+      loadedAt.put(url, System.nanoTime());
+    }
+
+    /**
+     * Starts refreshing the entry in the background if it is due, unless a refresh is running.
+     *
+     * @param url url of the public key
+     * @param staleKey key read from the cache
+     */
+    void refreshIfDue(String url, PublicKey staleKey) {
+      long now = System.nanoTime();
+      Long loaded = loadedAt.putIfAbsent(url, now);
+      if (loaded == null || now - loaded < refreshAfterNanos || !refreshing.add(url)) {
+        return;
+      }
+      try {
+        executor.execute(() -> refresh(url, staleKey));
+      } catch (RejectedExecutionException e) {
+        refreshing.remove(url);
+      }
+    }
+
+    private void refresh(String url, PublicKey staleKey) {
+      PublicKey refreshed = staleKey;
+      try {
+        PublicKey key = delegate.load(url);
+        // An unchanged key keeps the verifiers prepared on the cached one.
+        if (key != null && !Arrays.equals(key.getEncoded(), staleKey.getEncoded())) {
+          refreshed = VerifierKey.of(key);
+        }
+      } catch (Exception ignored) {
+        // The stale key is written back below, which extends the entry.
+      }
+      try {
+        loadedAt.put(url, System.nanoTime());
+        // An entry removed meanwhile is not brought back.
+        if (!cache.replace(url, refreshed)) {
+          loadedAt.remove(url);
+        }
+      } finally {
+        refreshing.remove(url);
+      }
+    }
+
+    @Override
+    public void onExpired(Iterable<CacheEntryEvent<? extends String, ? extends PublicKey>> events) {
+      events.forEach(event -> loadedAt.remove(event.getKey()));
+    }
+
+    @Override
+    public void onRemoved(Iterable<CacheEntryEvent<? extends String, ? extends PublicKey>> events) {
+      events.forEach(event -> loadedAt.remove(event.getKey()));
+    }
+  }
+
+  /** Daemon threads refreshing entries, created only once an entry is refreshed. */
+  private static final class RefreshPool {
+
+    private static final Executor EXECUTOR =
+        Executors.newCachedThreadPool(new DaemonThreadFactory("adscert-key-refresh"));
+  }
 }
@@ -0,0 +1,486 @@
+/*
+ * Copyright  2019 - present. IAB Tech Lab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.media.adscert.cache;
+
+import net.media.adscert.crypto.VerifierKey;
+import net.media.adscert.exceptions.ProcessException;
+import net.media.adscert.utils.DaemonThreadFactory;
+
+import javax.cache.event.CacheEntryCreatedListener;
+import javax.cache.event.CacheEntryEvent;
+import javax.cache.event.CacheEntryExpiredListener;
+import javax.cache.event.CacheEntryRemovedListener;
+import javax.cache.event.CacheEntryUpdatedListener;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Snapshots a key cache to a local file, so that a restarted service begins with the keys it had
+ * fetched before.
+ *
+ * <p>A snapshot is attached to a cache by {@link DefaultGuavaCacheBuilder#setSnapshot(KeySnapshot)}
+ * or {@link DefaultJCacheBuilder#setSnapshot(KeySnapshot)}. The cache is then filled from the
+ * file, if it exists, and the file is rewritten every {@link Builder#setInterval(Duration)}.
+ * Each entry of the file holds the key url, the X.509 encoding of the key and the time at which
+ * the key was fetched. Entries older than the time to live of the cache are not restored, and
+ * restored entries are removed once their time to live has elapsed, as if the service had not
+ * been restarted.
+ *
+ * <p>The file is written to a temporary file which is forced to disk and moved over it, so that
+ * it always holds a complete snapshot. It is read through a memory mapping.
+ *
+ * @since 1.2
+ */
+public class KeySnapshot implements Closeable {
+
+  private static final int MAGIC = 0x4144534b;
+  private static final int VERSION = 1;
+  private static final int MAX_FIELD_LENGTH = 0xffff;
+
+  private final Path file;
+  private final long intervalMillis;
+  private final Clock clock;
+  private final ScheduledExecutorService executor;
+
+  private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+  private KeyCache cache;
+  private long timeToLiveMillis;
+  private ScheduledFuture<?> task;
+  private int restoredCount;
+  private volatile Exception lastFailure;
+
+  private KeySnapshot(Builder builder) {
+    this.file = builder.file;
+    this.intervalMillis = builder.interval.toMillis();
+    this.clock = builder.clock;
+    this.executor = builder.executor != null ? builder.executor : SnapshotTimer.EXECUTOR;
+  }
+
+  /**
+   * Constructs a {@link Builder} for creating a {@link KeySnapshot}.
+   *
+   * @param file file holding the snapshot
+   * @return {@link Builder}
+   */
+  public static Builder newBuilder(Path file) {
+    return new Builder(file);
+  }
+
+  public Path getFile() {
+    return file;
+  }
+
+  /** Returns the number of entries restored from the file into the cache. */
+  public synchronized int getRestoredCount() {
+    return restoredCount;
+  }
+
+  /**
+   * Returns the failure of the last read or write of the file, which happen in the background.
+   *
+   * @return failure, or null if the last read or write succeeded
+   */
+  public Exception getLastFailure() {
+    return lastFailure;
+  }
+
+  /**
+   * Removes the restored entries whose time to live has elapsed, and writes the snapshot now.
+   *
+   * @return number of entries written
+   * @throws IOException if the file cannot be written
+   */
+  public synchronized int write() throws IOException {
+    if (cache == null) {
+      throw new ProcessException("Snapshot is not attached to a cache");
+    }
+    long now = clock.millis();
+    cache.synchronize(entries, now);
+    List<Entry> written = new ArrayList<>(entries.size());
+    for (Entry entry : entries.values()) {
+      if (entry.restored && isExpired(entry, now)) {
+        if (entries.remove(entry.url, entry)) {
+          cache.remove(entry.url, entry.key);
+        }
+      } else if (isWritable(entry)) {
+        written.add(entry);
+      }
+    }
+    try {
+      write(file, written);
+      lastFailure = null;
+    } catch (IOException e) {
+      lastFailure = e;
+      throw e;
+    }
+    return written.size();
+  }
+
+  /** Stops the periodic snapshots, and writes a last one if attached to a cache. */
+  @Override
+  public synchronized void close() throws IOException {
+    if (task == null) {
+      return;
+    }
+    task.cancel(false);
+    task = null;
+    write();
+  }
+
+  /** Attaches a Guava cache, which is synchronized with the snapshot before every write. */
+  void attach(com.google.common.cache.Cache<String, PublicKey> guavaCache, long timeToLiveMillis) {
+    attach(
+        new KeyCache() {
+          /** Time of the previous synchronization, before which new entries were not cached. */
+          private long synchronizedAtMillis = clock.millis();
+
+          @Override
+          void synchronize(Map<String, Entry> entries, long now) {
+            // A Guava cache does not tell when an entry was written, so a new entry is taken to be
+            // as old as it can be, to not be restored past its time to live.
+            long fetchedAtMillis = synchronizedAtMillis;
+            Map<String, PublicKey> live = guavaCache.asMap();
+            entries.values().removeIf(entry -> live.get(entry.url) != entry.key);
+            live.forEach(
+                (url, key) ->
+                    entries.computeIfAbsent(url, u -> new Entry(u, key, fetchedAtMillis, false)));
+            synchronizedAtMillis = now;
+          }
+
+          @Override
+          boolean putIfAbsent(String url, PublicKey key) {
+            return guavaCache.asMap().putIfAbsent(url, key) == null;
+          }
+
+          @Override
+          void remove(String url, PublicKey key) {
+            guavaCache.asMap().remove(url, key);
+          }
+        },
+        timeToLiveMillis);
+  }
+
+  /**
+   * Attaches a JCache, whose entries are tracked by the listener from {@link #newListener()}, as
+   * iterating a JCache would count as accessing its entries.
+   */
+  void attach(javax.cache.Cache<String, PublicKey> jcache, long timeToLiveMillis) {
+    attach(
+        new KeyCache() {
+          @Override
+          boolean putIfAbsent(String url, PublicKey key) {
+            return jcache.putIfAbsent(url, key);
+          }
+
+          @Override
+          void remove(String url, PublicKey key) {
+            jcache.remove(url, key);
+          }
+        },
+        timeToLiveMillis);
+  }
+
+  /** Returns a listener keeping the snapshot in step with the entries of a JCache. */
+  Listener newListener() {
+    return new Listener();
+  }
+
+  private synchronized void attach(KeyCache cache, long timeToLiveMillis) {
+    if (this.cache != null) {
+      throw new ProcessException("Snapshot is attached to a cache already");
+    }
+    this.cache = cache;
+    this.timeToLiveMillis = timeToLiveMillis;
+    restore();
+    task =
+        executor.scheduleWithFixedDelay(
+            this::writeInBackground, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  private void restore() {
+    List<Entry> restored;
+    try {
+      restored = read(file);
+    } catch (IOException e) {
+      // The cache starts cold.
+      lastFailure = e;
+      return;
+    }
+    long now = clock.millis();
+    for (Entry entry : restored) {
+      if (isExpired(entry, now)) {
+        continue;
+      }
+      // Tracked first, so that the listener of a JCache keeps the fetch time.
+      entries.put(entry.url, entry);
+      if (cache.putIfAbsent(entry.url, entry.key)) {
+        restoredCount++;
+      } else {
+        entries.remove(entry.url, entry);
+      }
+    }
+  }
+
+  private void writeInBackground() {
+    try {
+      write();
+    } catch (IOException | RuntimeException e) {
+      lastFailure = e;
+    }
+  }
+
+  private static boolean isWritable(Entry entry) {
+    byte[] key = entry.key.getEncoded();
+    return key != null
+        && key.length <= MAX_FIELD_LENGTH
+        && entry.url.getBytes(StandardCharsets.UTF_8).length <= MAX_FIELD_LENGTH;
+  }
+
+  private boolean isExpired(Entry entry, long now) {
+    return now - entry.fetchedAtMillis >= timeToLiveMillis;
+  }
+
+  private static void write(Path file, List<Entry> entries) throws IOException {
+    Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+    try (FileChannel channel =
+        FileChannel.open(
+            temporary,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+      DataOutputStream output =
+          new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+      output.writeInt(MAGIC);
+      output.writeInt(VERSION);
+      output.writeInt(entries.size());
+      for (Entry entry : entries) {
+        byte[] url = entry.url.getBytes(StandardCharsets.UTF_8);
+        byte[] key = entry.key.getEncoded();
+        output.writeLong(entry.fetchedAtMillis);
+        output.writeShort(url.length);
+        output.write(url);
+        output.writeShort(key.length);
+        output.write(key);
+      }
+      output.flush();
+      channel.force(true);
+    }
+    Files.move(
+        temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Reads the entries of a snapshot through a memory mapping of the file. Entries whose key
+   * cannot be decoded are skipped.
+   *
+   * @return entries, none if the file does not exist
+   * @throws IOException if the file cannot be read or is not a snapshot
+   */
+  private static List<Entry> read(Path file) throws IOException {
+    List<Entry> entries = new ArrayList<>();
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (buffer.remaining() < 12 || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+        throw new IOException("Not a key snapshot: " + file);
+      }
+      KeyFactory keyFactory = KeyFactory.getInstance("EC");
+      for (int count = buffer.getInt(); count > 0; count--) {
+        long fetchedAtMillis = buffer.getLong();
+        byte[] url = new byte[buffer.getShort() & MAX_FIELD_LENGTH];
+        buffer.get(url);
+        byte[] key = new byte[buffer.getShort() & MAX_FIELD_LENGTH];
+        buffer.get(key);
+        try {
+          entries.add(
+              new Entry(
+                  new String(url, StandardCharsets.UTF_8),
+                  VerifierKey.of(keyFactory.generatePublic(new X509EncodedKeySpec(key))),
+                  fetchedAtMillis,
+                  true));
+        } catch (GeneralSecurityException e) {
+          // The key is fetched again when needed.
+        }
+      }
+    } catch (NoSuchFileException e) {
+      return entries;
+    } catch (BufferUnderflowException e) {
+      throw new IOException("Truncated key snapshot: " + file, e);
+    } catch (GeneralSecurityException e) {
+      throw new IOException(e);
+    }
+    return entries;
+  }
+
+  /** A key of the cache, and when it was fetched. */
+  private static final class Entry {
+
+    private final String url;
+    private final PublicKey key;
+    private final long fetchedAtMillis;
+    /** Restored from the file, rather than fetched by this process. */
+    private final boolean restored;
+
+    private Entry(String url, PublicKey key, long fetchedAtMillis, boolean restored) {
+      this.url = url;
+      this.key = key;
+      this.fetchedAtMillis = fetchedAtMillis;
+      this.restored = restored;
+    }
+  }
+
+  /** The cache a snapshot is attached to. */
+  private abstract static class KeyCache {
+
+    /** Brings the entries of the snapshot in step with the cache, unless a listener does. */
+    void synchronize(Map<String, Entry> entries, long now) {}
+
+    abstract boolean putIfAbsent(String url, PublicKey key);
+
+    abstract void remove(String url, PublicKey key);
+  }
+
+  /** Tracks the entries of a JCache. */
+  final class Listener
+      implements CacheEntryCreatedListener<String, PublicKey>,
+          CacheEntryUpdatedListener<String, PublicKey>,
+          CacheEntryRemovedListener<String, PublicKey>,
+          CacheEntryExpiredListener<String, PublicKey> {
+
+    private Listener() {}
+
+    @Override
+    public void onCreated(Iterable<CacheEntryEvent<? extends String, ? extends PublicKey>> events) {
+      long now = clock.millis();
+      // A restored entry keeps its fetch time.
+      events.forEach(
+          event ->
+              entries.compute(
+                  event.getKey(),
+                  (url, entry) ->
+                      entry != null && entry.key == event.getValue()
+                          ? entry
+                          : new Entry(url, event.getValue(), now, false)));
+    }
+
+    @Override
+    public void onUpdated(Iterable<CacheEntryEvent<? extends String, ? extends PublicKey>> events) {
+      long now = clock.millis();
+      events.forEach(
+          event ->
+              entries.put(
+                  event.getKey(), new Entry(event.getKey(), event.getValue(), now, false)));
+    }
+
+    @Override
+    public void onRemoved(Iterable<CacheEntryEvent<? extends String, ? extends PublicKey>> events) {
+      events.forEach(event -> entries.remove(event.getKey()));
+    }
+
+    @Override
+    public void onExpired(Iterable<CacheEntryEvent<? extends String, ? extends PublicKey>> events) {
+      events.forEach(event -> entries.remove(event.getKey()));
+    }
+  }
+
+  public static class Builder {
+
+    private final Path file;
+    private Duration interval = Duration.ofMinutes(5);
+    private Clock clock = Clock.systemUTC();
+    private ScheduledExecutorService executor;
+
+    private Builder(Path file) {
+      if (file == null) {
+        throw new ProcessException("Snapshot file cannot be null");
+      }
+      this.file = file;
+    }
+
+    /**
+     * @param interval time between two snapshots, 5 minutes by default
+     * @return {@link Builder}
+     */
+    public Builder setInterval(Duration interval) {
+      if (interval == null || interval.isNegative() || interval.isZero()) {
+        throw new ProcessException("Snapshot interval should be positive");
+      }
+      this.interval = interval;
+      return this;
+    }
+
+    /**
+     * @param clock source of the fetch times, which are compared across restarts; {@link
+     *     Clock#systemUTC()} by default
+     * @return {@link Builder}
+     */
+    public Builder setClock(Clock clock) {
+      if (clock == null) {
+        throw new ProcessException("Clock cannot be null");
+      }
+      this.clock = clock;
+      return this;
+    }
+
+    /**
+     * @param executor {@link ScheduledExecutorService} writing the snapshots, a shared daemon
+     *     thread by default
+     * @return {@link Builder}
+     */
+    public Builder setExecutor(ScheduledExecutorService executor) {
+      this.executor = executor;
+      return this;
+    }
+
+    public KeySnapshot build() {
+      return new KeySnapshot(this);
+    }
+  }
+
+  /** Daemon thread writing the snapshots, created only once a snapshot is attached. */
+  private static final class SnapshotTimer {
+
+    private static final ScheduledExecutorService EXECUTOR =
+        Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("adscert-key-snapshot"));
+  }
+}
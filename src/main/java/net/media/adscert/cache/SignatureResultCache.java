@@ -0,0 +1,233 @@
+/*
+ * Copyright  2019 - present. IAB Tech Lab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.media.adscert.cache;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import net.media.adscert.metrics.MetricsManager;
+
+import java.nio.ByteBuffer;
+import java.security.PublicKey;
+import java.time.Duration;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Bounded cache of signature verification outcomes.
+ *
+ * <p>The same signed request often reaches a verifier several times through different exchanges
+ * and resellers. Entries are keyed by a SHA-256 hash of the key (or its url), the digest and the
+ * digital signature, so a cached outcome is only ever returned for exactly the same input. A
+ * collision resistant hash is used because a forged request colliding with a verified one would
+ * otherwise inherit its outcome. Concurrent verifications of the same input are coalesced so that
+ * only one of them runs. Failures to verify, e.g. a key which cannot be fetched, are not cached.
+ *
+ * <p>An outcome cached against a key url stays valid for that url until the entry expires, even if
+ * the publisher rotates its key in between; the expiry should be kept short.
+ *
+ * @since 1.2
+ */
+public class SignatureResultCache {
+
+  private final Cache<HashCode, Boolean> outcomes;
+
+  /**
+   * Constructs a cache holding at most {@code maximumSize} outcomes for at most {@code
+   * expireAfterWrite}.
+   *
+   * @param maximumSize maximum entries the cache can hold
+   * @param expireAfterWrite duration after which an outcome is verified again
+   */
+  public SignatureResultCache(long maximumSize, Duration expireAfterWrite) {
+    this.outcomes =
+        CacheBuilder.newBuilder()
+            .maximumSize(maximumSize)
+            .expireAfterWrite(expireAfterWrite)
+            .build();
+  }
+
+  /**
+   * Computes the cache key of a verification against a key url.
+   *
+   * @param publicKeyURL url of the public key of the signing authority
+   * @param digest a string with concatenated field and value pairs (f1=v1&amp;f2=v2)
+   * @param ds digital signature in the request
+   * @return cache key
+   */
+  public static HashCode key(String publicKeyURL, String digest, String ds) {
+    return Hashing.sha256()
+        .newHasher()
+        .putByte((byte) 0)
+        .putString(publicKeyURL, UTF_8)
+        .putByte((byte) 0)
+        .putString(digest, UTF_8)
+        .putByte((byte) 0)
+        .putString(ds, UTF_8)
+        .hash();
+  }
+
+  /**
+   * Computes the cache key of a verification against a {@link PublicKey}.
+   *
+   * @param publicKey {@link PublicKey} of the signing authority
+   * @param digest a string with concatenated field and value pairs (f1=v1&amp;f2=v2)
+   * @param ds digital signature in the request
+   * @return cache key
+   */
+  public static HashCode key(PublicKey publicKey, String digest, String ds) {
+    return Hashing.sha256()
+        .newHasher()
+        .putByte((byte) 1)
+        .putBytes(publicKey.getEncoded())
+        .putByte((byte) 0)
+        .putString(digest, UTF_8)
+        .putByte((byte) 0)
+        .putString(ds, UTF_8)
+        .hash();
+  }
+
+  /**
+   * Computes the cache key of a verification against a key url. The positions of the buffers are
+   * left untouched.
+   *
+   * @param publicKeyURL url of the public key of the signing authority
+   * @param digest UTF-8 bytes of the digest between position and limit
+   * @param ds base64 encoded digital signature between position and limit
+   * @return cache key
+   */
+  public static HashCode key(String publicKeyURL, ByteBuffer digest, ByteBuffer ds) {
+    Hasher hasher =
+        Hashing.sha256().newHasher().putByte((byte) 0).putString(publicKeyURL, UTF_8);
+    return putBuffers(hasher, digest, ds);
+  }
+
+  /**
+   * Computes the cache key of a verification against a {@link PublicKey}. The positions of the
+   * buffers are left untouched.
+   *
+   * @param publicKey {@link PublicKey} of the signing authority
+   * @param digest UTF-8 bytes of the digest between position and limit
+   * @param ds base64 encoded digital signature between position and limit
+   * @return cache key
+   */
+  public static HashCode key(PublicKey publicKey, ByteBuffer digest, ByteBuffer ds) {
+    Hasher hasher = Hashing.sha256().newHasher().putByte((byte) 1).putBytes(publicKey.getEncoded());
+    return putBuffers(hasher, digest, ds);
+  }
+
+  /**
+   * Computes the cache key of a verification against a key url. Equal to {@link #key(String,
+   * String, String)} of the decoded digest. The position of the buffer is left untouched.
+   *
+   * @param publicKeyURL url of the public key of the signing authority
+   * @param digest UTF-8 bytes of the digest between position and limit
+   * @param ds digital signature in the request
+   * @return cache key
+   */
+  public static HashCode key(String publicKeyURL, ByteBuffer digest, String ds) {
+    Hasher hasher =
+        Hashing.sha256().newHasher().putByte((byte) 0).putString(publicKeyURL, UTF_8);
+    return putDigest(hasher, digest).putByte((byte) 0).putString(ds, UTF_8).hash();
+  }
+
+  /**
+   * Computes the cache key of a verification against a {@link PublicKey}. Equal to {@link
+   * #key(PublicKey, String, String)} of the decoded digest. The position of the buffer is left
+   * untouched.
+   *
+   * @param publicKey {@link PublicKey} of the signing authority
+   * @param digest UTF-8 bytes of the digest between position and limit
+   * @param ds digital signature in the request
+   * @return cache key
+   */
+  public static HashCode key(PublicKey publicKey, ByteBuffer digest, String ds) {
+    Hasher hasher = Hashing.sha256().newHasher().putByte((byte) 1).putBytes(publicKey.getEncoded());
+    return putDigest(hasher, digest).putByte((byte) 0).putString(ds, UTF_8).hash();
+  }
+
+  private static Hasher putDigest(Hasher hasher, ByteBuffer digest) {
+    int digestPosition = digest.position();
+    hasher.putByte((byte) 0).putBytes(digest);
+    digest.position(digestPosition);
+    return hasher;
+  }
+
+  private static HashCode putBuffers(Hasher hasher, ByteBuffer digest, ByteBuffer ds) {
+    int digestPosition = digest.position();
+    int dsPosition = ds.position();
+    hasher.putByte((byte) 0).putBytes(digest).putByte((byte) 0).putBytes(ds);
+    digest.position(digestPosition);
+    ds.position(dsPosition);
+    return hasher.hash();
+  }
+
+  /**
+   * Returns the cached outcome for the key, or runs the verification and caches its outcome.
+   * Concurrent calls for the same key wait for the running verification instead of starting
+   * their own.
+   *
+   * @param key see {@link #key(String, String, String)}
+   * @param verification the signature verification
+   * @param metricsManager receives {@link MetricsManager#RESULT_CACHE_HITS} and {@link
+   *     MetricsManager#RESULT_CACHE_MISSES}
+   * @return outcome of the verification
+   * @throws Exception thrown by the verification
+   */
+  public boolean verify(HashCode key, Callable<Boolean> verification, MetricsManager metricsManager)
+      throws Exception {
+    Boolean cached = outcomes.getIfPresent(key);
+    if (cached != null) {
+      metricsManager.incrementCounter(MetricsManager.RESULT_CACHE_HITS, 1);
+      return cached;
+    }
+    boolean[] ran = new boolean[1];
+    boolean outcome;
+    try {
+      outcome =
+          outcomes.get(
+              key,
+              () -> {
+                ran[0] = true;
+                return verification.call();
+              });
+    } catch (ExecutionException | UncheckedExecutionException | ExecutionError e) {
+      if (e.getCause() instanceof Exception) {
+        throw (Exception) e.getCause();
+      }
+      throw e;
+    }
+    metricsManager.incrementCounter(
+        ran[0] ? MetricsManager.RESULT_CACHE_MISSES : MetricsManager.RESULT_CACHE_HITS, 1);
+    return outcome;
+  }
+
+  /** Discards all cached outcomes. */
+  public void invalidateAll() {
+    outcomes.invalidateAll();
+  }
+
+  public long size() {
+    return outcomes.size();
+  }
+}
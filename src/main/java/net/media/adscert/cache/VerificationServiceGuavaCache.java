@@ -17,9 +17,13 @@
 package net.media.adscert.cache;
 
 import com.google.common.cache.Cache;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import net.media.adscert.crypto.VerifierKey;
 import net.media.adscert.exceptions.InvalidDataException;
 import net.media.adscert.exceptions.ProcessException;
-import net.media.adscert.utils.SignatureUtil;
+import net.media.adscert.fetch.KeyFailureCache;
+import net.media.adscert.fetch.KeyFetcher;
 import net.media.adscert.metrics.MetricsManager;
 
 import java.security.PublicKey;
@@ -29,11 +33,12 @@ import java.util.function.Function;
 public class VerificationServiceGuavaCache extends VerificationServiceWithCache {
 
   private Cache<String, PublicKey> publicKeyCache;
+  private DefaultGuavaCacheBuilder.RefreshingKeyLoader refreshingLoader;
   private Function<String, Callable<PublicKey>> keyLoader =
       url ->
           () -> {
             try {
-              return SignatureUtil.getPublicKeyFromUrl(url);
+              return keyFetcher.fetch(url);
             } catch (Exception e) {
               throw new InvalidDataException("Unable to fetch key data from url : " + url, e);
             }
@@ -41,25 +46,37 @@ public class VerificationServiceGuavaCache extends VerificationServiceWithCache
 
   public VerificationServiceGuavaCache(Cache<String, PublicKey> publicKeyCache) {
     super();
-    this.publicKeyCache = publicKeyCache;
+    setPublicKeyCache(publicKeyCache);
   }
 
   public VerificationServiceGuavaCache(Cache<String, PublicKey> publicKeyCache, int samplingRate) {
     super(samplingRate, 1000l);
-    this.publicKeyCache = publicKeyCache;
+    setPublicKeyCache(publicKeyCache);
   }
 
   public VerificationServiceGuavaCache(
       Cache<String, PublicKey> publicKeyCache, Function<String, Callable<PublicKey>> keyLoader) {
     super();
-    this.publicKeyCache = publicKeyCache;
+    setPublicKeyCache(publicKeyCache);
     this.keyLoader = keyLoader;
   }
 
+  /**
+   * @param publicKeyCache {@link Cache} of public keys
+   * @param keyFetcher {@link KeyFetcher} loading the keys missing in the cache
+   * @since 1.2
+   */
+  public VerificationServiceGuavaCache(
+      Cache<String, PublicKey> publicKeyCache, KeyFetcher keyFetcher) {
+    super();
+    setPublicKeyCache(publicKeyCache);
+    setKeyFetcher(keyFetcher);
+  }
+
   public VerificationServiceGuavaCache(
       Cache<String, PublicKey> publicKeyCache, MetricsManager metricsManager) {
     super();
-    this.publicKeyCache = publicKeyCache;
+    setPublicKeyCache(publicKeyCache);
     this.metricsManager = metricsManager;
   }
 
@@ -68,7 +85,7 @@ public class VerificationServiceGuavaCache extends VerificationServiceWithCache
       Function<String, Callable<PublicKey>> keyLoader,
       MetricsManager metricsManager) {
     super();
-    this.publicKeyCache = publicKeyCache;
+    setPublicKeyCache(publicKeyCache);
     this.keyLoader = keyLoader;
     this.metricsManager = metricsManager;
   }
@@ -80,17 +97,67 @@ public class VerificationServiceGuavaCache extends VerificationServiceWithCache
       long messageExpiryTimeInMillis,
       MetricsManager metricsManager) {
     super(samplingRate, messageExpiryTimeInMillis);
-    this.publicKeyCache = publicKeyCache;
+    setPublicKeyCache(publicKeyCache);
     this.keyLoader = keyLoader;
     this.metricsManager = metricsManager;
   }
 
+  /**
+   * Reads the given cache. A cache built by {@link DefaultGuavaCacheBuilder} to refresh its
+   * entries shares its {@link KeyFailureCache} with the service, so that
+   * loads and refreshes back off from the same failed urls.
+   */
+  private void setPublicKeyCache(Cache<String, PublicKey> publicKeyCache) {
+    this.publicKeyCache = publicKeyCache;
+    this.refreshingLoader = DefaultGuavaCacheBuilder.getKeyLoader(publicKeyCache);
+    if (this.refreshingLoader != null) {
+      this.keyFailureCache = this.refreshingLoader.failures;
+    }
+  }
+
   @Override
   public PublicKey getPublicKey(String url) throws ProcessException {
     try {
-      return this.publicKeyCache.get(url, keyLoader.apply(url));
+      PublicKey publicKey = this.publicKeyCache.getIfPresent(url);
+      if (publicKey != null) {
+        // A loading cache refreshes a stale entry through its own loader, in the background.
+        return this.publicKeyCache instanceof LoadingCache
+            ? ((LoadingCache<String, PublicKey>) this.publicKeyCache).get(url)
+            : publicKey;
+      }
+      // Loaded outside of the cache, whose own per-key loads would hold the concurrent reads
+      // beyond the key load wait cap.
+      Callable<PublicKey> loader = keyLoader.apply(url);
+      Callable<PublicKey> loadAndCache =
+          () -> {
+            PublicKey key = VerifierKey.of(loader.call());
+            if (key == null) {
+              throw new CacheLoader.InvalidCacheLoadException("No key loaded for " + url);
+            }
+            this.publicKeyCache.put(url, key);
+            return key;
+          };
+      // Shared with the refreshes of a cache built by DefaultGuavaCacheBuilder.
+      return refreshingLoader == null
+          ? loadPublicKey(url, loadAndCache)
+          : loadPublicKey(url, loadAndCache, refreshingLoader.loads, keyLoadWaitCapMillis);
     } catch (Exception e) {
       throw new ProcessException(e);
     }
   }
+
+  @Override
+  protected PublicKey getPublicKeyIfPresent(String url) {
+    PublicKey publicKey = this.publicKeyCache.getIfPresent(url);
+    if (publicKey != null && this.publicKeyCache instanceof LoadingCache) {
+      try {
+        // Starts refreshing the entry if it is stale.
+        return ((LoadingCache<String, PublicKey>) this.publicKeyCache).getUnchecked(url);
+      } catch (RuntimeException e) {
+        // The entry was evicted since, and loading it again failed.
+        return publicKey;
+      }
+    }
+    return publicKey;
+  }
 }
@@ -16,36 +16,49 @@
 
 package net.media.adscert.cache;
 
+import net.media.adscert.crypto.VerifierKey;
 import net.media.adscert.exceptions.ProcessException;
+import net.media.adscert.fetch.SingleFlight;
 import net.media.adscert.metrics.MetricsManager;
 
 import javax.cache.Cache;
+import javax.cache.integration.CacheLoader;
+import javax.cache.integration.CacheLoaderException;
+import javax.cache.processor.EntryProcessor;
 import java.security.PublicKey;
+import java.util.concurrent.TimeoutException;
 
 public class VerificationServiceJCache extends VerificationServiceWithCache {
 
+  /** Reads an entry without triggering the loader of a read-through cache. */
+  private static final EntryProcessor<String, PublicKey, PublicKey> PEEK =
+      (entry, arguments) -> entry.exists() ? entry.getValue() : null;
+
   private Cache<String, PublicKey> publicKeyCache;
+  private DefaultJCacheBuilder.KeyRefresher refresher;
+  private CacheLoader<String, PublicKey> loader;
+  private boolean peek;
 
   public VerificationServiceJCache(Cache<String, PublicKey> publicKeyCache) {
     super();
-    this.publicKeyCache = publicKeyCache;
+    setPublicKeyCache(publicKeyCache);
   }
 
   public VerificationServiceJCache(Cache<String, PublicKey> publicKeyCache, int samplingRate) {
     super(samplingRate, 1000l);
-    this.publicKeyCache = publicKeyCache;
+    setPublicKeyCache(publicKeyCache);
   }
 
   public VerificationServiceJCache(
       Cache<String, PublicKey> publicKeyCache, int samplingRate, long messageExpiryTimeInMillis) {
     super(samplingRate, messageExpiryTimeInMillis);
-    this.publicKeyCache = publicKeyCache;
+    setPublicKeyCache(publicKeyCache);
   }
 
   public VerificationServiceJCache(
       Cache<String, PublicKey> publicKeyCache, MetricsManager metricsManager) {
     super();
-    this.publicKeyCache = publicKeyCache;
+    setPublicKeyCache(publicKeyCache);
     this.metricsManager = metricsManager;
   }
 
@@ -55,16 +68,114 @@ public class VerificationServiceJCache extends VerificationServiceWithCache {
       long messageExpiryTimeInMillis,
       MetricsManager metricsManager) {
     super(samplingRate, messageExpiryTimeInMillis);
-    this.publicKeyCache = publicKeyCache;
+    setPublicKeyCache(publicKeyCache);
     this.metricsManager = metricsManager;
   }
 
+  private void setPublicKeyCache(Cache<String, PublicKey> publicKeyCache) {
+    this.publicKeyCache = publicKeyCache;
+    this.refresher = DefaultJCacheBuilder.getRefresher(publicKeyCache);
+    this.loader = DefaultJCacheBuilder.getCacheLoader(publicKeyCache);
+    this.peek = this.loader != null && DefaultJCacheBuilder.isReadThrough(publicKeyCache);
+  }
+
+  /**
+   * Reads an entry without loading it. A cache built by {@link DefaultJCacheBuilder} does not read
+   * through, so a plain get suffices; the entry processor, which locks the entry, is used only for
+   * other read-through caches, whose get would load a missing key beyond the key load wait cap.
+   */
+  private PublicKey read(String url) {
+    return peek ? this.publicKeyCache.invoke(url, PEEK) : this.publicKeyCache.get(url);
+  }
+
   @Override
   public PublicKey getPublicKey(String url) throws ProcessException {
     try {
-      return this.publicKeyCache.get(url);
+      PublicKey publicKey = read(url);
+      if (publicKey == null) {
+        // Loaded outside of the cache, whose own per-key loads would hold the concurrent reads
+        // beyond the key load wait cap.
+        publicKey = loader == null ? readThrough(url) : load(url);
+      }
+      if (refresher != null && publicKey != null) {
+        refresher.refreshIfDue(url, publicKey);
+      }
+      return publicKey;
+    } catch (ProcessException e) {
+      throw e;
     } catch (Exception e) {
       throw new ProcessException(e);
     }
   }
+
+  /**
+   * Loads a key through the loader of the cache. The loads of a cache built by {@link
+   * DefaultJCacheBuilder} are shared by every service reading it, and capped by the wait cap of the
+   * service, else of the builder.
+   */
+  private PublicKey load(String url) throws Exception {
+    if (!(loader instanceof DefaultJCacheBuilder.VerifierKeyLoader)) {
+      return loadPublicKey(url, () -> loadAndCache(url));
+    }
+    DefaultJCacheBuilder.VerifierKeyLoader keyLoader =
+        (DefaultJCacheBuilder.VerifierKeyLoader) loader;
+    return loadPublicKey(
+        url,
+        () -> loadAndCache(url),
+        keyLoader.loads,
+        keyLoadWaitCapMillis != SingleFlight.NO_WAIT_CAP
+            ? keyLoadWaitCapMillis
+            : keyLoader.waitCapMillis);
+  }
+
+  private PublicKey loadAndCache(String url) throws Exception {
+    PublicKey publicKey;
+    try {
+      publicKey =
+          loader instanceof DefaultJCacheBuilder.VerifierKeyLoader
+              ? ((DefaultJCacheBuilder.VerifierKeyLoader) loader).loadKey(url)
+              : VerifierKey.of(loader.load(url));
+    } catch (CacheLoaderException e) {
+      throw unwrap(e);
+    }
+    if (publicKey != null) {
+      this.publicKeyCache.put(url, publicKey);
+    }
+    return publicKey;
+  }
+
+  /** Reads a key from a cache which does not expose its loader. */
+  private PublicKey readThrough(String url) throws Exception {
+    checkKeyFailure(url);
+    try {
+      PublicKey publicKey = this.publicKeyCache.get(url);
+      recordKeySuccess(url);
+      return publicKey;
+    } catch (CacheLoaderException e) {
+      Exception cause = unwrap(e);
+      // A load given up at the wait cap goes on; it is not a failure of the url.
+      if (!(cause instanceof TimeoutException || cause instanceof InterruptedException)) {
+        recordKeyFailure(url, cause);
+      }
+      throw new ProcessException(e);
+    }
+  }
+
+  private static Exception unwrap(CacheLoaderException e) {
+    Throwable cause = e;
+    while (cause instanceof CacheLoaderException && cause.getCause() != null) {
+      cause = cause.getCause();
+    }
+    return cause instanceof Exception ? (Exception) cause : e;
+  }
+
+  @Override
+  protected PublicKey getPublicKeyIfPresent(String url) {
+    // Never loads, so that a missing key does not block beyond the key resolution budget.
+    PublicKey publicKey = read(url);
+    if (refresher != null && publicKey != null) {
+      refresher.refreshIfDue(url, publicKey);
+    }
+    return publicKey;
+  }
 }
@@ -0,0 +1,140 @@
+/*
+ * Copyright  2019 - present. IAB Tech Lab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.media.adscert.crypto;
+
+import java.security.Provider;
+import java.security.Security;
+
+/**
+ * JCA providers a {@link SignatureEngine} can be backed by.
+ *
+ * @since 1.2
+ */
+public enum CryptoProvider {
+  /** Highest priority installed provider supporting {@link SignatureEngine#ALGORITHM}. */
+  DEFAULT,
+  /** The JDK's SunEC provider. */
+  SUN_EC,
+  /**
+   * BouncyCastle, either as installed under the name "BC" or instantiated from the classpath. The
+   * library is not a dependency of this project and has to be supplied by the application.
+   */
+  BOUNCY_CASTLE,
+  /**
+   * Whichever of the available providers verifies fastest on this JVM and CPU, as measured once per
+   * JVM by {@link ProviderBenchmark}.
+   */
+  AUTO,
+  /**
+   * An engine supplied by the application, e.g. through {@code
+   * VerificationService#setSignatureEngine}. Cannot be created from this enum.
+   */
+  CUSTOM;
+
+  private static final String BOUNCY_CASTLE_CLASS =
+      "org.bouncycastle.jce.provider.BouncyCastleProvider";
+
+  private static volatile ProviderBenchmark.Measurement autoSelection;
+
+  /**
+   * Looks up the provider.
+   *
+   * @return {@link Provider}, or null for {@link #DEFAULT}, {@link #CUSTOM} and if the provider is
+   *     not available
+   */
+  public Provider getProvider() {
+    switch (this) {
+      case SUN_EC:
+        return Security.getProvider("SunEC");
+      case BOUNCY_CASTLE:
+        Provider provider = Security.getProvider("BC");
+        return provider != null ? provider : BouncyCastleHolder.PROVIDER;
+      case AUTO:
+        return select().getEngine().getProvider();
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * Tells whether the provider can be used on this JVM.
+   *
+   * @return true if {@link #createEngine()} will succeed
+   */
+  public boolean isAvailable() {
+    return this == DEFAULT || this == AUTO || (this != CUSTOM && getProvider() != null);
+  }
+
+  /**
+   * Creates an engine backed by this provider. {@link #AUTO} runs the micro-benchmark the first
+   * time it is used and returns the engine of the fastest provider from then on.
+   *
+   * @return {@link SignatureEngine}
+   * @throws IllegalStateException if the provider is not available
+   */
+  public SignatureEngine createEngine() {
+    switch (this) {
+      case DEFAULT:
+        return SignatureEngine.getDefault();
+      case AUTO:
+        return select().getEngine();
+      default:
+        Provider provider = getProvider();
+        if (provider == null) {
+          throw new IllegalStateException("Crypto provider " + this + " is not available");
+        }
+        return new SignatureEngine(provider);
+    }
+  }
+
+  /**
+   * Returns the measurement the {@link #AUTO} selection was based on.
+   *
+   * @return {@link ProviderBenchmark.Measurement} of the selected provider, or null if {@link
+   *     #AUTO} has not been used yet
+   */
+  public static ProviderBenchmark.Measurement getAutoSelection() {
+    return autoSelection;
+  }
+
+  private static final class BouncyCastleHolder {
+
+    private static final Provider PROVIDER = load();
+
+    private static Provider load() {
+      try {
+        return (Provider) Class.forName(BOUNCY_CASTLE_CLASS).getDeclaredConstructor().newInstance();
+      } catch (ReflectiveOperationException | LinkageError e) {
+        return null;
+      }
+    }
+  }
+
+  private static ProviderBenchmark.Measurement select() {
+    ProviderBenchmark.Measurement selection = autoSelection;
+    if (selection == null) {
+      synchronized (CryptoProvider.class) {
+        selection = autoSelection;
+        if (selection == null) {
+          selection = new ProviderBenchmark().selectFastest(SUN_EC, BOUNCY_CASTLE, DEFAULT);
+          autoSelection = selection;
+        }
+      }
+    }
+    return selection;
+  }
+}
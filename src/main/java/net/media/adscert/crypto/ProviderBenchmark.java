@@ -0,0 +1,199 @@
+/*
+ * Copyright  2019 - present. IAB Tech Lab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.media.adscert.crypto;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.security.spec.ECGenParameterSpec;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the verification throughput of {@link SignatureEngine}s with a short timed loop over a
+ * freshly generated P-256 key.
+ *
+ * <p>The loop is meant to be run once at startup; it is not a replacement for a proper benchmark
+ * harness.
+ *
+ * @since 1.2
+ */
+public class ProviderBenchmark {
+
+  private static final byte[] MESSAGE =
+      "domain=newsite.com&ft=d&tid=ABC7E92FBD6A&ts=1545397200000"
+          .getBytes(StandardCharsets.UTF_8);
+
+  private final long warmupNanos;
+  private final long measurementNanos;
+
+  /** Constructs a benchmark warming up for 100 ms and measuring for 200 ms per provider. */
+  public ProviderBenchmark() {
+    this(100, 200, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Constructs a benchmark with the given durations per provider.
+   *
+   * @param warmup time spent verifying before measuring
+   * @param measurement time over which throughput is measured
+   * @param unit {@link TimeUnit} of both durations
+   */
+  public ProviderBenchmark(long warmup, long measurement, TimeUnit unit) {
+    if (warmup < 0 || measurement <= 0) {
+      throw new IllegalArgumentException("Durations should be greater than 0");
+    }
+    this.warmupNanos = unit.toNanos(warmup);
+    this.measurementNanos = unit.toNanos(measurement);
+  }
+
+  /**
+   * Measures every available provider and returns the fastest. Unavailable providers and providers
+   * failing to verify the test signature are skipped.
+   *
+   * @param candidates providers to measure, in order of preference on a tie
+   * @return {@link Measurement} of the fastest provider, falling back to {@link
+   *     CryptoProvider#DEFAULT} without a measurement if none could be measured
+   */
+  public Measurement selectFastest(CryptoProvider... candidates) {
+    Measurement fastest = null;
+    for (Measurement measurement : measureAll(candidates)) {
+      if (fastest == null || measurement.getOpsPerSecond() > fastest.getOpsPerSecond()) {
+        fastest = measurement;
+      }
+    }
+    return fastest != null
+        ? fastest
+        : new Measurement(CryptoProvider.DEFAULT, SignatureEngine.getDefault(), 0);
+  }
+
+  /**
+   * Measures every available provider.
+   *
+   * @param candidates providers to measure
+   * @return {@link Measurement}s of the providers that could be measured
+   */
+  public List<Measurement> measureAll(CryptoProvider... candidates) {
+    KeyPair keyPair;
+    byte[] signature;
+    try {
+      KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+      generator.initialize(new ECGenParameterSpec("secp256r1"));
+      keyPair = generator.generateKeyPair();
+      Signature signer = Signature.getInstance(SignatureEngine.ALGORITHM);
+      signer.initSign(keyPair.getPrivate());
+      signer.update(MESSAGE);
+      signature = signer.sign();
+    } catch (GeneralSecurityException e) {
+      return Collections.emptyList();
+    }
+
+    List<Measurement> measurements = new ArrayList<>();
+    for (CryptoProvider candidate : candidates) {
+      if (candidate == CryptoProvider.AUTO || !candidate.isAvailable()) {
+        continue;
+      }
+      SignatureEngine engine = candidate.createEngine();
+      try {
+        measurements.add(
+            new Measurement(candidate, engine, measure(engine, keyPair, signature)));
+      } catch (GeneralSecurityException | RuntimeException ignored) {
+        // Provider cannot handle the key or algorithm; not a candidate.
+      }
+    }
+    return measurements;
+  }
+
+  private double measure(SignatureEngine engine, KeyPair keyPair, byte[] signature)
+      throws GeneralSecurityException {
+    VerifierKey key = VerifierKey.of(keyPair.getPublic());
+    run(engine, key, signature, warmupNanos);
+    long start = System.nanoTime();
+    long operations = run(engine, key, signature, measurementNanos);
+    long elapsed = System.nanoTime() - start;
+    return operations * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+  }
+
+  private static long run(SignatureEngine engine, VerifierKey key, byte[] signature, long nanos)
+      throws GeneralSecurityException {
+    long deadline = System.nanoTime() + nanos;
+    long operations = 0;
+    do {
+      if (!engine.verify(key, MESSAGE, signature)) {
+        throw new GeneralSecurityException("Provider failed to verify the test signature");
+      }
+      operations++;
+    } while (System.nanoTime() < deadline);
+    return operations;
+  }
+
+  /** Verification throughput of a provider. */
+  public static class Measurement {
+
+    private final CryptoProvider cryptoProvider;
+    private final SignatureEngine engine;
+    private final double opsPerSecond;
+
+    Measurement(CryptoProvider cryptoProvider, SignatureEngine engine, double opsPerSecond) {
+      this.cryptoProvider = cryptoProvider;
+      this.engine = engine;
+      this.opsPerSecond = opsPerSecond;
+    }
+
+    public CryptoProvider getCryptoProvider() {
+      return cryptoProvider;
+    }
+
+    public SignatureEngine getEngine() {
+      return engine;
+    }
+
+    /**
+     * Returns the name of the JCA provider measured.
+     *
+     * @return provider name, e.g. "SunEC" or "BC"
+     */
+    public String getProviderName() {
+      if (engine.getProvider() != null) {
+        return engine.getProvider().getName();
+      }
+      try {
+        return engine.newSignature().getProvider().getName();
+      } catch (GeneralSecurityException e) {
+        return cryptoProvider.name();
+      }
+    }
+
+    /**
+     * Returns the measured throughput.
+     *
+     * @return signature verifications per second on a single thread
+     */
+    public double getOpsPerSecond() {
+      return opsPerSecond;
+    }
+
+    @Override
+    public String toString() {
+      return getProviderName() + " (" + Math.round(opsPerSecond) + " verifications/s)";
+    }
+  }
+}
@@ -0,0 +1,438 @@
+/*
+ * Copyright  2019 - present. IAB Tech Lab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.media.adscert.crypto;
+
+import java.nio.ByteBuffer;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+
+/**
+ * Hands out warmed {@link Signature} instances for verifying ECDSA signatures.
+ *
+ * <p>Looking up the JCA provider and constructing a new engine for every request is expensive, so
+ * every thread keeps one engine per {@link SignatureEngine} and re-initialises it with {@link
+ * Signature#initVerify(PublicKey)} before each use. A {@link Signature} returned by this class is
+ * bound to the calling thread and must not be handed over to other threads.
+ *
+ * <p>For a {@link VerifierKey} every thread instead keeps engines that are already initialised with
+ * the key, for the last {@link #PREPARED_KEYS} keys it verified with. Keys used less often fall out
+ * of that list and are prepared again on their next use, so the prepared engines stay bounded by
+ * the number of threads whatever the number of cached keys.
+ *
+ * <p>Signatures are accepted both DER encoded and as raw r||s ({@link SignatureFormat#P1363}). Raw
+ * signatures are handed to the provider as they are if it supports them; otherwise they are
+ * re-encoded into a buffer reused by the calling thread.
+ *
+ * @since 1.2
+ */
+public class SignatureEngine {
+
+  public static final String ALGORITHM = "SHA256withECDSA";
+
+  /** Number of {@link VerifierKey}s every thread keeps initialised engines for. */
+  public static final int PREPARED_KEYS = 16;
+
+  /** Names under which SunEC and BouncyCastle offer ECDSA over raw r||s signatures. */
+  private static final String[] P1363_ALGORITHMS = {
+    "SHA256withECDSAinP1363Format", "SHA256withPLAIN-ECDSA"
+  };
+
+  private static final SignatureEngine DEFAULT = new SignatureEngine(null);
+
+  private final Provider provider;
+  private final ThreadLocal<Signature[]> verifiers = new ThreadLocal<>();
+  private final ThreadLocal<PreparedVerifiers> preparedVerifiers = new ThreadLocal<>();
+  private final ThreadLocal<byte[]> derBuffers = new ThreadLocal<>();
+  private volatile String p1363Algorithm;
+
+  /**
+   * Constructs an engine backed by the given provider.
+   *
+   * @param provider {@link Provider} to use, or null to use the highest priority provider
+   *     supporting {@link #ALGORITHM}
+   */
+  public SignatureEngine(Provider provider) {
+    this.provider = provider;
+  }
+
+  /**
+   * Returns the engine backed by the default JCA provider lookup.
+   *
+   * @return {@link SignatureEngine}
+   */
+  public static SignatureEngine getDefault() {
+    return DEFAULT;
+  }
+
+  public Provider getProvider() {
+    return provider;
+  }
+
+  /**
+   * Creates a new, uninitialised {@link Signature} for DER encoded signatures. The returned object
+   * is not cached.
+   *
+   * @return {@link Signature} for {@link #ALGORITHM}
+   * @throws NoSuchAlgorithmException if the provider does not support {@link #ALGORITHM}
+   */
+  public Signature newSignature() throws NoSuchAlgorithmException {
+    return newSignature(SignatureFormat.DER);
+  }
+
+  /**
+   * Creates a new, uninitialised {@link Signature} for the given signature format. The returned
+   * object is not cached.
+   *
+   * @param format see {@link SignatureFormat}
+   * @return {@link Signature}
+   * @throws NoSuchAlgorithmException if the provider does not support the format
+   */
+  public Signature newSignature(SignatureFormat format) throws NoSuchAlgorithmException {
+    String algorithm = ALGORITHM;
+    if (format == SignatureFormat.P1363) {
+      if (!supportsP1363()) {
+        throw new NoSuchAlgorithmException("Provider does not support raw ECDSA signatures");
+      }
+      algorithm = p1363Algorithm;
+    }
+    return provider == null
+        ? Signature.getInstance(algorithm)
+        : Signature.getInstance(algorithm, provider);
+  }
+
+  /**
+   * Tells whether the provider verifies raw r||s signatures natively.
+   *
+   * @return true if {@link SignatureFormat#P1363} signatures need not be re-encoded
+   */
+  public boolean supportsP1363() {
+    String algorithm = p1363Algorithm;
+    if (algorithm == null) {
+      algorithm = "";
+      for (String candidate : P1363_ALGORITHMS) {
+        try {
+          if (provider == null) {
+            Signature.getInstance(candidate);
+          } else {
+            Signature.getInstance(candidate, provider);
+          }
+          algorithm = candidate;
+          break;
+        } catch (NoSuchAlgorithmException ignored) {
+        }
+      }
+      p1363Algorithm = algorithm;
+    }
+    return !algorithm.isEmpty();
+  }
+
+  /**
+   * Returns the engine of the calling thread for DER encoded signatures, initialised for
+   * verification with the given key.
+   *
+   * @param publicKey {@link PublicKey} of the signing authority
+   * @return {@link Signature} ready to be updated with the signed data
+   * @throws NoSuchAlgorithmException if the provider does not support {@link #ALGORITHM}
+   * @throws InvalidKeyException if the key cannot be used by the provider
+   */
+  public Signature getVerifier(PublicKey publicKey)
+      throws NoSuchAlgorithmException, InvalidKeyException {
+    return getVerifier(publicKey, SignatureFormat.DER);
+  }
+
+  /**
+   * Returns the engine of the calling thread for the given signature format, initialised for
+   * verification with the given key.
+   *
+   * @param publicKey {@link PublicKey} of the signing authority
+   * @param format see {@link SignatureFormat}
+   * @return {@link Signature} ready to be updated with the signed data
+   * @throws NoSuchAlgorithmException if the provider does not support the format
+   * @throws InvalidKeyException if the key cannot be used by the provider
+   */
+  public Signature getVerifier(PublicKey publicKey, SignatureFormat format)
+      throws NoSuchAlgorithmException, InvalidKeyException {
+    Signature[] threadVerifiers = verifiers.get();
+    if (threadVerifiers == null) {
+      threadVerifiers = new Signature[SignatureFormat.values().length];
+      verifiers.set(threadVerifiers);
+    }
+    Signature verifier = threadVerifiers[format.ordinal()];
+    if (verifier == null) {
+      verifier = newSignature(format);
+      threadVerifiers[format.ordinal()] = verifier;
+    }
+    verifier.initVerify(publicKey);
+    return verifier;
+  }
+
+  /**
+   * Verifies a signature over the given data.
+   *
+   * @param publicKey {@link PublicKey} of the signing authority
+   * @param data the signed data
+   * @param signature DER encoded or raw r||s signature
+   * @return true if the signature is valid
+   * @throws NoSuchAlgorithmException if the provider does not support {@link #ALGORITHM}
+   * @throws InvalidKeyException if the key cannot be used by the provider
+   * @throws SignatureException if the signature cannot be processed
+   */
+  public boolean verify(PublicKey publicKey, byte[] data, byte[] signature)
+      throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+    return verify(publicKey, data, 0, data.length, signature, 0, signature.length);
+  }
+
+  /**
+   * Verifies a signature over a slice of a buffer without copying either of them.
+   *
+   * @param publicKey {@link PublicKey} of the signing authority
+   * @param data buffer holding the signed data
+   * @param dataOffset offset of the signed data
+   * @param dataLength length of the signed data
+   * @param signature buffer holding the DER encoded or raw r||s signature
+   * @param offset offset of the signature
+   * @param length length of the signature
+   * @return true if the signature is valid
+   * @throws NoSuchAlgorithmException if the provider does not support {@link #ALGORITHM}
+   * @throws InvalidKeyException if the key cannot be used by the provider
+   * @throws SignatureException if the signature cannot be processed
+   */
+  public boolean verify(
+      PublicKey publicKey,
+      byte[] data,
+      int dataOffset,
+      int dataLength,
+      byte[] signature,
+      int offset,
+      int length)
+      throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+    Signature verifier = null;
+    if (SignatureFormat.detect(signature, offset, length) == SignatureFormat.P1363) {
+      verifier = prepareP1363(publicKey);
+      if (verifier == null) {
+        signature = toDer(signature, offset, length);
+        length = derLength(signature);
+        offset = 0;
+      }
+    }
+    if (verifier == null) {
+      verifier = prepare(publicKey, SignatureFormat.DER);
+    }
+    try {
+      verifier.update(data, dataOffset, dataLength);
+      return verifier.verify(signature, offset, length);
+    } catch (SignatureException e) {
+      release(publicKey);
+      throw e;
+    }
+  }
+
+  /**
+   * Verifies a signature over the remaining bytes of a buffer, which are consumed.
+   *
+   * @param publicKey {@link PublicKey} of the signing authority
+   * @param data buffer holding the signed data between its position and limit
+   * @param signature buffer holding the DER encoded or raw r||s signature
+   * @param offset offset of the signature
+   * @param length length of the signature
+   * @return true if the signature is valid
+   * @throws NoSuchAlgorithmException if the provider does not support {@link #ALGORITHM}
+   * @throws InvalidKeyException if the key cannot be used by the provider
+   * @throws SignatureException if the signature cannot be processed
+   */
+  public boolean verify(
+      PublicKey publicKey, ByteBuffer data, byte[] signature, int offset, int length)
+      throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+    Signature verifier = null;
+    if (SignatureFormat.detect(signature, offset, length) == SignatureFormat.P1363) {
+      verifier = prepareP1363(publicKey);
+      if (verifier == null) {
+        signature = toDer(signature, offset, length);
+        length = derLength(signature);
+        offset = 0;
+      }
+    }
+    if (verifier == null) {
+      verifier = prepare(publicKey, SignatureFormat.DER);
+    }
+    try {
+      verifier.update(data);
+      return verifier.verify(signature, offset, length);
+    } catch (SignatureException e) {
+      release(publicKey);
+      throw e;
+    }
+  }
+
+  private Signature prepare(PublicKey publicKey, SignatureFormat format)
+      throws NoSuchAlgorithmException, InvalidKeyException {
+    if (publicKey instanceof VerifierKey) {
+      return getPreparedVerifier((VerifierKey) publicKey, format);
+    }
+    return getVerifier(publicKey, format);
+  }
+
+  /**
+   * Returns the engine of the calling thread for the format which is initialised with the key once
+   * and reused while the key stays among the thread's most recently used ones.
+   */
+  private Signature getPreparedVerifier(VerifierKey key, SignatureFormat format)
+      throws NoSuchAlgorithmException, InvalidKeyException {
+    PreparedVerifiers threadVerifiers = preparedVerifiers.get();
+    if (threadVerifiers == null) {
+      threadVerifiers = new PreparedVerifiers();
+      preparedVerifiers.set(threadVerifiers);
+    }
+    Signature[] keyVerifiers = threadVerifiers.get(key);
+    Signature verifier = keyVerifiers[format.ordinal()];
+    if (verifier == null) {
+      verifier = newSignature(format);
+      verifier.initVerify(key.getNativeKey(this));
+      keyVerifiers[format.ordinal()] = verifier;
+    }
+    return verifier;
+  }
+
+  /**
+   * Returns a verifier for raw signatures, or null if those have to be re-encoded as DER because
+   * the provider does not support them, or not for this key.
+   */
+  private Signature prepareP1363(PublicKey publicKey) throws NoSuchAlgorithmException {
+    if (!supportsP1363()) {
+      return null;
+    }
+    try {
+      return prepare(publicKey, SignatureFormat.P1363);
+    } catch (InvalidKeyException e) {
+      return null;
+    }
+  }
+
+  private void release(PublicKey publicKey) {
+    // A prepared verifier is not guaranteed to be reset when verification fails midway. Plain
+    // keys need nothing, as their engine is re-initialised before every use.
+    if (publicKey instanceof VerifierKey) {
+      PreparedVerifiers threadVerifiers = preparedVerifiers.get();
+      if (threadVerifiers != null) {
+        threadVerifiers.remove((VerifierKey) publicKey);
+      }
+    }
+  }
+
+  /**
+   * Re-encodes a raw r||s signature as DER into the buffer of the calling thread. The first two
+   * bytes of the returned buffer hold the SEQUENCE header, see {@link #derLength(byte[])}.
+   */
+  private byte[] toDer(byte[] signature, int offset, int length) {
+    int half = length / 2;
+    int required = length + 9;
+    byte[] der = derBuffers.get();
+    if (der == null || der.length < required) {
+      der = new byte[Math.max(required, 80)];
+      derBuffers.set(der);
+    }
+    int position = 4;
+    position = writeInteger(signature, offset, half, der, position);
+    position = writeInteger(signature, offset + half, half, der, position);
+    int contentLength = position - 4;
+    if (contentLength < 128) {
+      der[2] = 0x30;
+      der[3] = (byte) contentLength;
+      // Shift the header next to the content so that the encoding starts at index 0.
+      System.arraycopy(der, 2, der, 0, 2);
+      System.arraycopy(der, 4, der, 2, contentLength);
+    } else {
+      der[0] = 0x30;
+      der[1] = (byte) 0x81;
+      der[2] = (byte) contentLength;
+      System.arraycopy(der, 4, der, 3, contentLength);
+    }
+    return der;
+  }
+
+  private static int derLength(byte[] der) {
+    return der[1] == (byte) 0x81 ? (der[2] & 0xff) + 3 : (der[1] & 0xff) + 2;
+  }
+
+  private static int writeInteger(byte[] source, int offset, int length, byte[] der, int position) {
+    int start = offset;
+    int end = offset + length;
+    while (start < end - 1 && source[start] == 0) {
+      start++;
+    }
+    boolean pad = (source[start] & 0x80) != 0;
+    int integerLength = end - start + (pad ? 1 : 0);
+    der[position++] = 0x02;
+    der[position++] = (byte) integerLength;
+    if (pad) {
+      der[position++] = 0;
+    }
+    System.arraycopy(source, start, der, position, end - start);
+    return position + end - start;
+  }
+
+  /**
+   * The engines of a thread initialised with its most recently used keys, most recent first. The
+   * list is short, so it is scanned by identity rather than hashing the encoded key.
+   */
+  private static final class PreparedVerifiers {
+    private final VerifierKey[] keys = new VerifierKey[PREPARED_KEYS];
+    private final Signature[][] verifiers = new Signature[PREPARED_KEYS][];
+    private int size;
+
+    /** Returns the engines of the key by format, evicting the least recently used key if new. */
+    private Signature[] get(VerifierKey key) {
+      for (int i = 0; i < size; i++) {
+        if (keys[i] == key) {
+          Signature[] found = verifiers[i];
+          moveToFront(i, key, found);
+          return found;
+        }
+      }
+      if (size < PREPARED_KEYS) {
+        size++;
+      }
+      Signature[] added = new Signature[SignatureFormat.values().length];
+      moveToFront(size - 1, key, added);
+      return added;
+    }
+
+    private void remove(VerifierKey key) {
+      for (int i = 0; i < size; i++) {
+        if (keys[i] == key) {
+          size--;
+          System.arraycopy(keys, i + 1, keys, i, size - i);
+          System.arraycopy(verifiers, i + 1, verifiers, i, size - i);
+          keys[size] = null;
+          verifiers[size] = null;
+          return;
+        }
+      }
+    }
+
+    private void moveToFront(int index, VerifierKey key, Signature[] keyVerifiers) {
+      System.arraycopy(keys, 0, keys, 1, index);
+      System.arraycopy(verifiers, 0, verifiers, 1, index);
+      keys[0] = key;
+      verifiers[0] = keyVerifiers;
+    }
+  }
+}
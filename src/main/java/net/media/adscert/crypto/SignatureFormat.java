@@ -0,0 +1,64 @@
+/*
+ * Copyright  2019 - present. IAB Tech Lab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.media.adscert.crypto;
+
+/**
+ * Encodings of an ECDSA signature.
+ *
+ * @since 1.2
+ */
+public enum SignatureFormat {
+  /** ASN.1 DER encoded SEQUENCE of the two integers r and s. */
+  DER,
+  /** Raw concatenation r||s of the two integers, each padded to the size of the curve order. */
+  P1363;
+
+  /**
+   * Detects the encoding of a signature. A signature which is a well-formed DER SEQUENCE is taken
+   * as {@link #DER}; any other non-empty signature of even length as {@link #P1363}.
+   *
+   * @param signature buffer holding the signature
+   * @param offset offset of the signature in the buffer
+   * @param length length of the signature
+   * @return {@link SignatureFormat}
+   */
+  public static SignatureFormat detect(byte[] signature, int offset, int length) {
+    if (length < 2 || (length & 1) == 1 || isDer(signature, offset, length)) {
+      return DER;
+    }
+    return P1363;
+  }
+
+  private static boolean isDer(byte[] signature, int offset, int length) {
+    // SEQUENCE { INTEGER r, INTEGER s } with short form lengths, which covers every curve up to
+    // P-384.
+    if (length < 8 || signature[offset] != 0x30 || (signature[offset + 1] & 0xff) != length - 2) {
+      return false;
+    }
+    int rOffset = offset + 2;
+    if (signature[rOffset] != 0x02) {
+      return false;
+    }
+    int rLength = signature[rOffset + 1] & 0xff;
+    int sOffset = rOffset + 2 + rLength;
+    if (sOffset + 2 > offset + length || signature[sOffset] != 0x02) {
+      return false;
+    }
+    int sLength = signature[sOffset + 1] & 0xff;
+    return sOffset + 2 + sLength == offset + length;
+  }
+}
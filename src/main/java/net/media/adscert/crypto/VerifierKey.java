@@ -0,0 +1,154 @@
+/*
+ * Copyright  2019 - present. IAB Tech Lab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.media.adscert.crypto;
+
+import java.security.InvalidKeyException;
+import java.security.KeyFactory;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.util.Arrays;
+
+/**
+ * A verification handle for a frequently used {@link PublicKey}.
+ *
+ * <p>The handle translates the key into the native key object of the {@link SignatureEngine}'s
+ * provider once. Every thread of the engine keeps a {@link Signature} already initialised with the
+ * handle for the {@link SignatureEngine#PREPARED_KEYS} handles it verified with most recently. A
+ * {@link Signature} is reset to its initialised state after every {@link
+ * Signature#verify(byte[])}, so subsequent verifications with a hot key skip key translation,
+ * validation and {@link Signature#initVerify(PublicKey)} altogether. Providers that attach
+ * precomputed multiples of the public point to their key objects (BouncyCastle caches its wNAF
+ * tables on the point) reuse them for every verification with this handle.
+ *
+ * <p>A {@link VerifierKey} is itself a {@link PublicKey}, so it can be stored in the key caches in
+ * place of the plain key.
+ *
+ * @since 1.2
+ */
+public final class VerifierKey implements PublicKey {
+
+  private static final long serialVersionUID = 1L;
+  private static final String KEY_ALGORITHM = "EC";
+
+  private final PublicKey publicKey;
+  private transient volatile NativeKey nativeKey;
+
+  private VerifierKey(PublicKey publicKey) {
+    this.publicKey = publicKey;
+  }
+
+  /**
+   * Wraps the key into a {@link VerifierKey}. A key which is already a {@link VerifierKey} is
+   * returned as is.
+   *
+   * @param publicKey {@link PublicKey} of the signing authority
+   * @return {@link VerifierKey}, or null if the key is null
+   */
+  public static VerifierKey of(PublicKey publicKey) {
+    if (publicKey == null || publicKey instanceof VerifierKey) {
+      return (VerifierKey) publicKey;
+    }
+    return new VerifierKey(publicKey);
+  }
+
+  /**
+   * Returns the wrapped key.
+   *
+   * @return {@link PublicKey}
+   */
+  public PublicKey getPublicKey() {
+    return publicKey;
+  }
+
+  /**
+   * Verifies a signature over the given data, reusing the engine's {@link Signature} of the
+   * calling thread initialised with this key if there is one. Same as {@link
+   * SignatureEngine#verify(PublicKey, byte[], byte[])} with this key.
+   *
+   * @param engine see {@link SignatureEngine}
+   * @param data the signed data
+   * @param signature DER encoded or raw r||s signature
+   * @return true if the signature is valid
+   * @throws NoSuchAlgorithmException if the provider does not support {@link
+   *     SignatureEngine#ALGORITHM}
+   * @throws InvalidKeyException if the key cannot be used by the provider
+   * @throws SignatureException if the signature cannot be processed
+   */
+  public boolean verify(SignatureEngine engine, byte[] data, byte[] signature)
+      throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+    return engine.verify(this, data, signature);
+  }
+
+  /** Returns the key translated for the engine's provider, translating it on first use. */
+  PublicKey getNativeKey(SignatureEngine engine)
+      throws NoSuchAlgorithmException, InvalidKeyException {
+    NativeKey current = nativeKey;
+    if (current != null && current.engine == engine) {
+      return current.key;
+    }
+    KeyFactory keyFactory =
+        engine.getProvider() == null
+            ? KeyFactory.getInstance(KEY_ALGORITHM)
+            : KeyFactory.getInstance(KEY_ALGORITHM, engine.getProvider());
+    PublicKey translated = (PublicKey) keyFactory.translateKey(publicKey);
+    nativeKey = new NativeKey(engine, translated);
+    return translated;
+  }
+
+  @Override
+  public String getAlgorithm() {
+    return publicKey.getAlgorithm();
+  }
+
+  @Override
+  public String getFormat() {
+    return publicKey.getFormat();
+  }
+
+  @Override
+  public byte[] getEncoded() {
+    return publicKey.getEncoded();
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof VerifierKey)) {
+      return false;
+    }
+    return Arrays.equals(getEncoded(), ((VerifierKey) o).getEncoded());
+  }
+
+  @Override
+  public int hashCode() {
+    return Arrays.hashCode(getEncoded());
+  }
+
+  private static final class NativeKey {
+    private final SignatureEngine engine;
+    private final PublicKey key;
+
+    private NativeKey(SignatureEngine engine, PublicKey key) {
+      this.engine = engine;
+      this.key = key;
+    }
+  }
+}
@@ -17,55 +17,152 @@
 package net.media.adscert.enums;
 
 /**
- * Stores the output of a verification.
+ * Stores the output of a verification. Results are immutable, so outcomes without details are
+ * shared: {@link #SUCCESS}, {@link #SAMPLED}, {@link #KEY_PENDING} and one result per {@link
+ * FailureReason}, see {@link #failure(FailureReason)}.
  *
  * @author anupam verma
  * @since 1.0
  */
 public class Result {
 
-  private Status status;
-  private String message;
-  private Exception exception;
+  /** @since 1.2 */
+  public static final Result SUCCESS = new Result(Status.SUCCESS, null);
+  /** @since 1.2 */
+  public static final Result SAMPLED = new Result(Status.SAMPLED, null);
+  /** @since 1.2 */
+  public static final Result KEY_PENDING =
+      new Result(Status.KEY_PENDING, "Public key is being fetched");
+
+  private static final Result[] FAILURES = new Result[FailureReason.values().length];
+
+  static {
+    for (FailureReason reason : FailureReason.values()) {
+      FAILURES[reason.ordinal()] = new Result(reason);
+    }
+  }
+
+  private final Status status;
+  private final String message;
+  private final Exception exception;
+  private final FailureReason failureReason;
 
   public Result(Status status, String message) {
-    this.status = status;
-    this.message = message;
+    this(status, message, null);
   }
 
   public Result(Status status, String message, Exception exception) {
+    this(status, message, exception, null);
+  }
+
+  /**
+   * Creates a result with status {@link Status#FAILURE} and the message of the reason.
+   *
+   * @param failureReason see {@link FailureReason}
+   * @since 1.2
+   */
+  public Result(FailureReason failureReason) {
+    this(failureReason, null);
+  }
+
+  /**
+   * Creates a result with status {@link Status#FAILURE} and the message of the reason.
+   *
+   * @param failureReason see {@link FailureReason}
+   * @param exception exception describing the failure in detail, may be null
+   * @since 1.2
+   */
+  public Result(FailureReason failureReason, Exception exception) {
+    this(Status.FAILURE, failureReason.getMessage(), exception, failureReason);
+  }
+
+  private Result(
+      Status status, String message, Exception exception, FailureReason failureReason) {
     this.status = status;
     this.message = message;
     this.exception = exception;
+    this.failureReason = failureReason;
   }
 
-  public Status getStatus() {
-    return status;
+  /**
+   * Returns the shared result of a failure without details.
+   *
+   * @param failureReason see {@link FailureReason}
+   * @return {@link Result} with status {@link Status#FAILURE}
+   * @since 1.2
+   */
+  public static Result failure(FailureReason failureReason) {
+    return FAILURES[failureReason.ordinal()];
   }
 
-  public void setStatus(Status status) {
-    this.status = status;
+  public Status getStatus() {
+    return status;
   }
 
   public String getMessage() {
     return message;
   }
 
-  public void setMessage(String message) {
-    this.message = message;
-  }
-
   public Exception getException() {
     return exception;
   }
 
-  public void setException(Exception exception) {
-    this.exception = exception;
+  /**
+   * Returns why the verification failed.
+   *
+   * @return {@link FailureReason}, or null if the status is not {@link Status#FAILURE} or the
+   *     result was created without a reason
+   * @since 1.2
+   */
+  public FailureReason getFailureReason() {
+    return failureReason;
   }
 
   public enum Status {
     SUCCESS,
     FAILURE,
-    SAMPLED
+    SAMPLED,
+    /**
+     * The public key could not be resolved within the key resolution budget. It is still being
+     * fetched in the background, so a later request for the same key is likely to be verified.
+     *
+     * @since 1.2
+     */
+    KEY_PENDING
+  }
+
+  /**
+   * Reasons for which a verification fails. Failures are reported by reason alone, without an
+   * exception, unless detailed failures are enabled on the service.
+   *
+   * @since 1.2
+   */
+  public enum FailureReason {
+    /** The signature does not match the digest. */
+    SIGNATURE_MISMATCH("Processing Failure"),
+    MISSING_SIGNATURE("Digital Signature is empty"),
+    MISSING_DIGEST("Digest is empty"),
+    MISSING_DIGEST_FIELDS("digestFieldMap is empty"),
+    MISSING_CERTIFICATE("Filename of certificate is empty"),
+    /** The dsmap is missing or malformed, or refers to a field without a value. */
+    BAD_DSMAP("Bad dsmap provided"),
+    MESSAGE_EXPIRED("Message has expired"),
+    /** The signature is not a well-formed ECDSA signature. */
+    MALFORMED_SIGNATURE("Malformed signature"),
+    /** The public key could not be fetched or used. */
+    KEY_UNAVAILABLE("Public key is unavailable"),
+    /** The request lacks objects required for verification. */
+    INVALID_DATA("Invalid data"),
+    PROCESSING_ERROR("Processing Failure");
+
+    private final String message;
+
+    FailureReason(String message) {
+      this.message = message;
+    }
+
+    public String getMessage() {
+      return message;
+    }
   }
 }
@@ -29,4 +29,23 @@ public class InvalidDataException extends VerificationServiceException {
   public InvalidDataException(Throwable cause) {
     super(cause);
   }
+
+  /**
+   * See {@link VerificationServiceException#VerificationServiceException(String, boolean)}.
+   *
+   * @since 1.2
+   */
+  public InvalidDataException(String message, boolean writableStackTrace) {
+    super(message, writableStackTrace);
+  }
+
+  /**
+   * See {@link VerificationServiceException#VerificationServiceException(String, Throwable,
+   * boolean)}.
+   *
+   * @since 1.2
+   */
+  public InvalidDataException(String message, Throwable cause, boolean writableStackTrace) {
+    super(message, cause, writableStackTrace);
+  }
 }
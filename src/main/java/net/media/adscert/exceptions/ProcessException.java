@@ -28,4 +28,23 @@ public class ProcessException extends VerificationServiceException {
   public ProcessException(Throwable cause) {
     super(cause);
   }
+
+  /**
+   * See {@link VerificationServiceException#VerificationServiceException(String, boolean)}.
+   *
+   * @since 1.2
+   */
+  public ProcessException(String message, boolean writableStackTrace) {
+    super(message, writableStackTrace);
+  }
+
+  /**
+   * See {@link VerificationServiceException#VerificationServiceException(String, Throwable,
+   * boolean)}.
+   *
+   * @since 1.2
+   */
+  public ProcessException(String message, Throwable cause, boolean writableStackTrace) {
+    super(message, cause, writableStackTrace);
+  }
 }
@@ -29,4 +29,30 @@ public class VerificationServiceException extends RuntimeException {
   public VerificationServiceException(Throwable cause) {
     super(cause);
   }
+
+  /**
+   * Creates an exception which does not record a stack trace, for failures that are expected in
+   * volume and fully described by their message.
+   *
+   * @param message detail message
+   * @param writableStackTrace whether the stack trace should be recorded
+   * @since 1.2
+   */
+  public VerificationServiceException(String message, boolean writableStackTrace) {
+    super(message, null, false, writableStackTrace);
+  }
+
+  /**
+   * Creates an exception which does not record a stack trace, e.g. one wrapping a cause whose own
+   * stack trace says all there is to say.
+   *
+   * @param message detail message
+   * @param cause cause of the exception
+   * @param writableStackTrace whether the stack trace should be recorded
+   * @since 1.2
+   */
+  public VerificationServiceException(
+      String message, Throwable cause, boolean writableStackTrace) {
+    super(message, cause, false, writableStackTrace);
+  }
 }
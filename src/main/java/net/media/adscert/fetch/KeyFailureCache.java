@@ -0,0 +1,245 @@
+/*
+ * Copyright  2019 - present. IAB Tech Lab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.media.adscert.fetch;
+
+import com.google.common.base.Ticker;
+import net.media.adscert.exceptions.ProcessException;
+
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Remembers failed fetches of public keys, so that a url which serves no valid key is not fetched
+ * again on every request.
+ *
+ * <p>A failure is kept for a backoff which starts at {@link Builder#setInitialBackoff(Duration)}
+ * and doubles with every further failure of the url, up to {@link
+ * Builder#setMaxBackoff(Duration)}. Each backoff is shortened by a random fraction of up to
+ * {@link Builder#setJitter(double)}, so that urls failing together are not retried together.
+ * Once its backoff has elapsed the url is fetched again; a success resets it, while a url that
+ * does not fail again for {@link Builder#setMaxBackoff(Duration)} is forgotten.
+ *
+ * @since 1.2
+ */
+public class KeyFailureCache {
+
+  private final long initialBackoffNanos;
+  private final long maxBackoffNanos;
+  private final double jitter;
+  private final int maximumSize;
+  private final Ticker ticker;
+
+  private final ConcurrentMap<String, Failure> failures = new ConcurrentHashMap<>();
+
+  private KeyFailureCache(Builder builder) {
+    this.initialBackoffNanos = builder.initialBackoff.toNanos();
+    this.maxBackoffNanos = builder.maxBackoff.toNanos();
+    this.jitter = builder.jitter;
+    this.maximumSize = builder.maximumSize;
+    this.ticker = builder.ticker;
+  }
+
+  /**
+   * Constructs a {@link Builder} for creating a {@link KeyFailureCache}.
+   *
+   * @return {@link Builder}
+   */
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  /**
+   * Returns the failure of the last fetch of the url, if the url is still backing off.
+   *
+   * @param url url of the public key
+   * @return the recorded failure, or null if the url may be fetched
+   */
+  public Exception getFailure(String url) {
+    if (failures.isEmpty()) {
+      return null;
+    }
+    Failure failure = failures.get(url);
+    return failure != null && ticker.read() - failure.retryAt < 0 ? failure.cause : null;
+  }
+
+  /**
+   * Returns the time until the url may be fetched again.
+   *
+   * @param url url of the public key
+   * @return remaining backoff, zero if the url may be fetched
+   */
+  public Duration getRemainingBackoff(String url) {
+    Failure failure = failures.get(url);
+    long remaining = failure == null ? 0 : failure.retryAt - ticker.read();
+    return Duration.ofNanos(Math.max(remaining, 0));
+  }
+
+  /**
+   * Records a failed fetch of the url. Callers sharing one failed fetch may all record it; while
+   * the url is backing off, further records do not extend the backoff.
+   *
+   * @param url url of the public key
+   * @param cause why the fetch failed
+   */
+  public void recordFailure(String url, Exception cause) {
+    long now = ticker.read();
+    if (failures.size() >= maximumSize) {
+      failures.values().removeIf(failure -> now - failure.forgetAt >= 0);
+      if (failures.size() >= maximumSize && !failures.containsKey(url)) {
+        return;
+      }
+    }
+    failures.compute(
+        url,
+        (key, previous) -> {
+          if (previous != null && now - previous.retryAt < 0) {
+            return previous;
+          }
+          int attempts =
+              previous == null || now - previous.forgetAt >= 0 ? 1 : previous.attempts + 1;
+          long backoff = backoffNanos(attempts);
+          return new Failure(cause, attempts, now + backoff, now + backoff + maxBackoffNanos);
+        });
+  }
+
+  /**
+   * Records a successful fetch of the url, which resets its backoff.
+   *
+   * @param url url of the public key
+   */
+  public void recordSuccess(String url) {
+    if (!failures.isEmpty()) {
+      failures.remove(url);
+    }
+  }
+
+  /** Forgets all failures. */
+  public void clear() {
+    failures.clear();
+  }
+
+  /** Returns the number of urls whose failures are remembered. */
+  public int size() {
+    return failures.size();
+  }
+
+  private long backoffNanos(int attempts) {
+    long backoff = initialBackoffNanos;
+    for (int i = 1; i < attempts && backoff < maxBackoffNanos; i++) {
+      backoff = backoff > maxBackoffNanos / 2 ? maxBackoffNanos : backoff * 2;
+    }
+    return backoff - (long) (backoff * jitter * ThreadLocalRandom.current().nextDouble());
+  }
+
+  private static final class Failure {
+
+    private final Exception cause;
+    private final int attempts;
+    private final long retryAt;
+    private final long forgetAt;
+
+    private Failure(Exception cause, int attempts, long retryAt, long forgetAt) {
+      this.cause = cause;
+      this.attempts = attempts;
+      this.retryAt = retryAt;
+      this.forgetAt = forgetAt;
+    }
+  }
+
+  public static class Builder {
+
+    private Duration initialBackoff = Duration.ofSeconds(30);
+    private Duration maxBackoff = Duration.ofMinutes(30);
+    private double jitter = 0.2;
+    private int maximumSize = 10000;
+    private Ticker ticker = Ticker.systemTicker();
+
+    private Builder() {}
+
+    /**
+     * @param initialBackoff backoff after the first failure of a url, 30 seconds by default
+     * @return {@link Builder}
+     */
+    public Builder setInitialBackoff(Duration initialBackoff) {
+      this.initialBackoff = checkBackoff(initialBackoff);
+      return this;
+    }
+
+    /**
+     * @param maxBackoff longest backoff, 30 minutes by default
+     * @return {@link Builder}
+     */
+    public Builder setMaxBackoff(Duration maxBackoff) {
+      this.maxBackoff = checkBackoff(maxBackoff);
+      return this;
+    }
+
+    /**
+     * @param jitter largest fraction by which a backoff is shortened, between 0 and 1; 0.2 by
+     *     default
+     * @return {@link Builder}
+     */
+    public Builder setJitter(double jitter) {
+      if (!(jitter >= 0 && jitter <= 1)) {
+        throw new ProcessException("Jitter should be between 0 and 1");
+      }
+      this.jitter = jitter;
+      return this;
+    }
+
+    /**
+     * @param maximumSize number of urls whose failures are remembered, 10000 by default; failures
+     *     of further urls are not recorded
+     * @return {@link Builder}
+     */
+    public Builder setMaximumSize(int maximumSize) {
+      if (maximumSize < 1) {
+        throw new ProcessException("Maximum size should be greater than 0");
+      }
+      this.maximumSize = maximumSize;
+      return this;
+    }
+
+    /**
+     * @param ticker source of time, {@link Ticker#systemTicker()} by default
+     * @return {@link Builder}
+     */
+    public Builder setTicker(Ticker ticker) {
+      if (ticker == null) {
+        throw new ProcessException("Ticker cannot be null");
+      }
+      this.ticker = ticker;
+      return this;
+    }
+
+    public KeyFailureCache build() {
+      if (initialBackoff.compareTo(maxBackoff) > 0) {
+        throw new ProcessException("Initial backoff should not exceed the maximum backoff");
+      }
+      return new KeyFailureCache(this);
+    }
+
+    private static Duration checkBackoff(Duration backoff) {
+      if (backoff == null || backoff.isNegative() || backoff.isZero()) {
+        throw new ProcessException("Backoff should be positive");
+      }
+      return backoff;
+    }
+  }
+}
@@ -0,0 +1,870 @@
+/*
+ * Copyright  2019 - present. IAB Tech Lab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.media.adscert.fetch;
+
+import com.google.common.net.InternetDomainName;
+import net.media.adscert.exceptions.ProcessException;
+import net.media.adscert.metrics.BlackholeMetricsManager;
+import net.media.adscert.metrics.MetricsManager;
+import net.media.adscert.utils.CommonConstants;
+import net.media.adscert.utils.DaemonThreadFactory;
+import net.media.adscert.utils.SignatureUtil;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fetches public keys of signing authorities over https.
+ *
+ * <p>Fetches run asynchronously on an executor, at most {@link
+ * Builder#setMaxConcurrentFetches(int)} at a time and at most {@link
+ * Builder#setMaxConcurrentFetchesPerHost(int)} per host; further fetches wait in a queue without
+ * holding a thread. Connections are kept alive and reused for further fetches from the same host.
+ * Every hop is bounded by the connect and read timeouts.
+ *
+ * <p>Redirects are followed up to {@link CommonConstants#MAX_REDIRECTS} times, over https only
+ * and within the registrable domain of the key url.
+ *
+ * <p>Each registrable domain has a circuit breaker. After {@link
+ * Builder#setCircuitBreakerThreshold(int)} consecutive failed fetches from a domain, fetches from
+ * it fail at once with a {@link CircuitOpenException} for {@link
+ * Builder#setCircuitBreakerOpenDuration(Duration)}. Then one fetch is let through, whose outcome
+ * closes the circuit or opens it again.
+ *
+ * <p>Fetches can be hedged, see {@link Builder#setHedgePercentile(double)}: a fetch running for
+ * longer than the given percentile of the latencies observed so far is raced by a second one, and
+ * the first success completes both.
+ *
+ * @since 1.2
+ */
+public class KeyFetcher {
+
+  /** Key files are a few hundred bytes; larger bodies are not read. */
+  private static final int MAX_KEY_FILE_SIZE = 1 << 16;
+
+  /** Number of latencies from which the hedging delay is taken. */
+  private static final int LATENCY_SAMPLES = 128;
+
+  /** Fetches are not hedged until this many latencies were observed. */
+  private static final int MIN_LATENCY_SAMPLES = 16;
+
+  /** Circuits beyond this number are dropped unless they are open. */
+  private static final int MAX_IDLE_CIRCUITS = 1024;
+
+  private static final Set<Integer> REDIRECTION_CODES =
+      new HashSet<>(Arrays.asList(301, 302, 303, 307, 308));
+
+  private final int connectTimeoutMillis;
+  private final int readTimeoutMillis;
+  private final int maxConcurrentFetches;
+  private final int maxConcurrentFetchesPerHost;
+  private final Executor executor;
+  private final Connector connector;
+  private final int circuitBreakerThreshold;
+  private final long circuitBreakerOpenNanos;
+  private final double hedgePercentile;
+  private final MetricsManager metricsManager;
+
+  private final ConcurrentMap<String, Circuit> circuits = new ConcurrentHashMap<>();
+  private final AtomicInteger openCircuits = new AtomicInteger();
+  /** Latencies of the last successful fetch attempts, in nanoseconds, for hedging. */
+  private final long[] latencies = new long[LATENCY_SAMPLES];
+  /** The same latencies in ascending order. */
+  private final long[] sortedLatencies = new long[LATENCY_SAMPLES];
+  private int latencyCount;
+  /** Delay after which fetches are hedged, or -1; updated as latencies are recorded. */
+  private volatile long hedgeDelayNanos = -1;
+
+  private final ArrayDeque<Fetch> waiting = new ArrayDeque<>();
+  private final Map<String, Integer> activePerHost = new HashMap<>();
+  private int active;
+
+  private KeyFetcher(Builder builder) {
+    this.connectTimeoutMillis = (int) builder.connectTimeout.toMillis();
+    this.readTimeoutMillis = (int) builder.readTimeout.toMillis();
+    this.maxConcurrentFetches = builder.maxConcurrentFetches;
+    this.maxConcurrentFetchesPerHost = builder.maxConcurrentFetchesPerHost;
+    this.executor = builder.executor != null ? builder.executor : DefaultExecutor.EXECUTOR;
+    this.connector = builder.connector;
+    this.circuitBreakerThreshold = builder.circuitBreakerThreshold;
+    this.circuitBreakerOpenNanos = builder.circuitBreakerOpenDuration.toNanos();
+    this.hedgePercentile = builder.hedgePercentile;
+    this.metricsManager = builder.metricsManager;
+  }
+
+  /**
+   * Returns the fetcher with default settings, which is shared by all services that are not given
+   * a fetcher of their own.
+   *
+   * @return {@link KeyFetcher}
+   */
+  public static KeyFetcher getDefault() {
+    return DefaultFetcher.INSTANCE;
+  }
+
+  /**
+   * Constructs a {@link Builder} for creating a {@link KeyFetcher}.
+   *
+   * @return {@link Builder}
+   */
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  /**
+   * Fetches the base64 encoded key data from the url, i.e. the key file without its comment and
+   * armour lines.
+   *
+   * @param url https url of the key file
+   * @return future of the key data, completed exceptionally with an {@link IOException} if the
+   *     file cannot be fetched, or a {@link ProcessException} if the url or a redirect breaks the
+   *     rules
+   */
+  public CompletableFuture<String> fetchKeyDataAsync(String url) {
+    Request request;
+    try {
+      request = new Request(new URL(url));
+    } catch (MalformedURLException e) {
+      CompletableFuture<String> failed = new CompletableFuture<>();
+      failed.completeExceptionally(e);
+      return failed;
+    }
+    Circuit circuit = circuits.get(request.domain);
+    if (circuit != null && !circuit.tryAcquire()) {
+      metricsManager.incrementCounter(MetricsManager.KEY_FETCH_SHED, 1);
+      request.result.completeExceptionally(new CircuitOpenException(request.domain));
+      return request.result;
+    }
+    submit(new Fetch(request, false));
+    return request.result;
+  }
+
+  /**
+   * Fetches the public key from the url.
+   *
+   * @param url https url of the key file
+   * @return future of the key, completed exceptionally as {@link #fetchKeyDataAsync(String)} or
+   *     with a {@link GeneralSecurityException} if the file holds no valid key
+   */
+  public CompletableFuture<PublicKey> fetchAsync(String url) {
+    return fetchKeyDataAsync(url)
+        .thenApply(
+            keyData -> {
+              try {
+                return SignatureUtil.getPublicKeyFromString(keyData);
+              } catch (GeneralSecurityException e) {
+                throw new CompletionException(e);
+              }
+            });
+  }
+
+  /**
+   * Fetches the base64 encoded key data from the url, waiting for it.
+   *
+   * @param url https url of the key file
+   * @return key data, see {@link #fetchKeyDataAsync(String)}
+   * @throws IOException if the key file cannot be fetched
+   */
+  public String fetchKeyData(String url) throws IOException {
+    try {
+      return await(fetchKeyDataAsync(url));
+    } catch (GeneralSecurityException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * Fetches the public key from the url, waiting for it.
+   *
+   * @param url https url of the key file
+   * @return {@link PublicKey}
+   * @throws IOException if the key file cannot be fetched, or an {@link InterruptedIOException}
+   *     caused by an {@link InterruptedException} if the caller is interrupted while waiting
+   * @throws GeneralSecurityException if the key file holds no valid key
+   */
+  public PublicKey fetch(String url) throws IOException, GeneralSecurityException {
+    return await(fetchAsync(url));
+  }
+
+  private static <T> T await(CompletableFuture<T> future)
+      throws IOException, GeneralSecurityException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      InterruptedIOException interrupted =
+          new InterruptedIOException("Interrupted while fetching key");
+      interrupted.initCause(e);
+      throw interrupted;
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof GeneralSecurityException) {
+        throw (GeneralSecurityException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IOException(cause);
+    }
+  }
+
+  /**
+   * Returns whether fetches from the registrable domain of the url currently fail at once.
+   *
+   * @param url url of a key file
+   * @return true if the circuit of the domain is open
+   */
+  public boolean isCircuitOpen(String url) {
+    try {
+      Circuit circuit = circuits.get(getCircuitDomain(new URL(url)));
+      return circuit != null && circuit.isOpen();
+    } catch (MalformedURLException e) {
+      return false;
+    }
+  }
+
+  /** Returns the number of registrable domains whose circuit is open or probed. */
+  public int getOpenCircuitCount() {
+    return openCircuits.get();
+  }
+
+  private void submit(Fetch fetch) {
+    synchronized (this) {
+      waiting.addLast(fetch);
+    }
+    dispatch();
+  }
+
+  /** Starts the waiting fetches that the concurrency limits allow. */
+  private void dispatch() {
+    List<Fetch> started = new ArrayList<>();
+    synchronized (this) {
+      Iterator<Fetch> iterator = waiting.iterator();
+      while (active < maxConcurrentFetches && iterator.hasNext()) {
+        Fetch fetch = iterator.next();
+        int hostActive = activePerHost.getOrDefault(fetch.host, 0);
+        if (hostActive < maxConcurrentFetchesPerHost) {
+          iterator.remove();
+          active++;
+          activePerHost.put(fetch.host, hostActive + 1);
+          started.add(fetch);
+        }
+      }
+    }
+    for (Fetch fetch : started) {
+      try {
+        executor.execute(fetch);
+      } catch (RuntimeException e) {
+        fetch.request.failed(e, false);
+        finished(fetch);
+      }
+    }
+  }
+
+  private void finished(Fetch fetch) {
+    synchronized (this) {
+      active--;
+      int hostActive = activePerHost.get(fetch.host) - 1;
+      if (hostActive == 0) {
+        activePerHost.remove(fetch.host);
+      } else {
+        activePerHost.put(fetch.host, hostActive);
+      }
+    }
+    dispatch();
+  }
+
+  private String fetchKeyData(URL url) throws IOException {
+    String rootDomain = getRootDomain(url);
+    for (int remainingRedirects = CommonConstants.MAX_REDIRECTS; ; remainingRedirects--) {
+      if (!getRootDomain(url).equals(rootDomain)) {
+        throw new ProcessException("Redirection to a new domain");
+      }
+      if (remainingRedirects < 0) {
+        throw new ProcessException("Redirection limit is exceeded");
+      }
+      if (!url.getProtocol().equals("https")) {
+        throw new ProcessException("Protocol is not https");
+      }
+
+      HttpURLConnection connection = connector.open(url);
+      connection.setConnectTimeout(connectTimeoutMillis);
+      connection.setReadTimeout(readTimeoutMillis);
+      connection.setInstanceFollowRedirects(false);
+      connection.setRequestMethod("GET");
+      int responseCode = connection.getResponseCode();
+
+      if (REDIRECTION_CODES.contains(responseCode)) {
+        String location = connection.getHeaderField("Location");
+        discardBody(connection);
+        if (location == null) {
+          throw new ProcessException("Redirection without location");
+        }
+        URL next;
+        try {
+          next = new URL(location);
+          if (!url.getProtocol().equalsIgnoreCase(next.getProtocol())) {
+            throw new ProcessException("Redirection to a different protocol");
+          }
+        } catch (MalformedURLException e) {
+          next = new URL(url, location);
+        }
+        url = next;
+        continue;
+      }
+      if (responseCode != HttpURLConnection.HTTP_OK) {
+        discardBody(connection);
+        throw new ProcessException("Invalid Response");
+      }
+      return parseKeyData(readBody(connection.getInputStream()));
+    }
+  }
+
+  private static String getRootDomain(URL url) {
+    return InternetDomainName.from(url.getHost()).topPrivateDomain().toString();
+  }
+
+  /** Registrable domain of the url, or its host if it has none, e.g. an ip address. */
+  private static String getCircuitDomain(URL url) {
+    String host = url.getHost().toLowerCase();
+    try {
+      return InternetDomainName.from(host).topPrivateDomain().toString();
+    } catch (IllegalArgumentException | IllegalStateException e) {
+      return host;
+    }
+  }
+
+  private synchronized void recordLatency(long nanos) {
+    int size = Math.min(latencyCount, LATENCY_SAMPLES);
+    int slot = latencyCount++ % LATENCY_SAMPLES;
+    if (size == LATENCY_SAMPLES) {
+      // The latency overwritten in the window leaves the sorted copy too.
+      int evicted = Arrays.binarySearch(sortedLatencies, 0, size, latencies[slot]);
+      System.arraycopy(sortedLatencies, evicted + 1, sortedLatencies, evicted, --size - evicted);
+    }
+    latencies[slot] = nanos;
+    int inserted = Arrays.binarySearch(sortedLatencies, 0, size, nanos);
+    if (inserted < 0) {
+      inserted = -inserted - 1;
+    }
+    System.arraycopy(sortedLatencies, inserted, sortedLatencies, inserted + 1, size++ - inserted);
+    sortedLatencies[inserted] = nanos;
+    if (size >= MIN_LATENCY_SAMPLES) {
+      hedgeDelayNanos = sortedLatencies[Math.min((int) (size * hedgePercentile), size - 1)];
+    }
+  }
+
+  /** Returns the delay after which a fetch is hedged, or -1 if it is not hedged. */
+  private long getHedgeDelayNanos() {
+    return hedgeDelayNanos;
+  }
+
+  /** Reads the body to its end and closes it, which hands the connection back for reuse. */
+  private static byte[] readBody(InputStream input) throws IOException {
+    try (InputStream body = input) {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+      byte[] buffer = new byte[4096];
+      int read;
+      while ((read = body.read(buffer)) >= 0) {
+        bytes.write(buffer, 0, read);
+        if (bytes.size() > MAX_KEY_FILE_SIZE) {
+          throw new ProcessException("Key file is too large");
+        }
+      }
+      return bytes.toByteArray();
+    }
+  }
+
+  private static void discardBody(HttpURLConnection connection) throws IOException {
+    InputStream body = connection.getErrorStream();
+    if (body == null) {
+      try {
+        body = connection.getInputStream();
+      } catch (IOException e) {
+        return;
+      }
+    }
+    readBody(body);
+  }
+
+  /** Joins the lines of the key file, skipping empty, comment and armour lines. */
+  private static String parseKeyData(byte[] body) {
+    StringBuilder result = new StringBuilder();
+    for (String line : new String(body, StandardCharsets.UTF_8).split("\r?\n")) {
+      if (!line.isEmpty() && line.charAt(0) != '#' && line.charAt(0) != '-') {
+        result.append(line);
+      }
+    }
+    return result.toString();
+  }
+
+  /** A fetch of a key url, made by one attempt, or by two once it is hedged. */
+  private final class Request {
+
+    private final URL url;
+    private final String host;
+    private final String domain;
+    private final CompletableFuture<String> result = new CompletableFuture<>();
+    private int runningAttempts = 1;
+    private boolean completed;
+    private ScheduledFuture<?> hedge;
+
+    private Request(URL url) {
+      this.url = url;
+      this.host = url.getHost().toLowerCase();
+      this.domain = getCircuitDomain(url);
+    }
+
+    private void succeeded(Fetch fetch, String keyData, long nanos) {
+      recordLatency(nanos);
+      synchronized (this) {
+        if (completed) {
+          return;
+        }
+        completed = true;
+      }
+      cancelHedge();
+      // Outcomes are recorded before the callers are woken up.
+      Circuit circuit = circuits.get(domain);
+      if (circuit != null) {
+        circuit.succeeded();
+      }
+      if (fetch.hedge) {
+        metricsManager.incrementCounter(MetricsManager.KEY_FETCH_HEDGE_WINS, 1);
+      }
+      result.complete(keyData);
+    }
+
+    /**
+     * The request fails once none of its attempts may still succeed.
+     *
+     * @param failure why the attempt failed
+     * @param byDomain whether the failure counts against the circuit of the domain, which it does
+     *     not if the attempt could not be started
+     */
+    private void failed(Throwable failure, boolean byDomain) {
+      synchronized (this) {
+        if (--runningAttempts > 0 || completed) {
+          return;
+        }
+        completed = true;
+      }
+      cancelHedge();
+      if (!byDomain) {
+        Circuit circuit = circuits.get(domain);
+        if (circuit != null) {
+          circuit.abandoned();
+        }
+      } else if (circuitBreakerThreshold > 0) {
+        if (circuits.size() >= MAX_IDLE_CIRCUITS) {
+          circuits.values().removeIf(Circuit::isIdle);
+        }
+        circuits.computeIfAbsent(domain, Circuit::new).failed();
+      }
+      result.completeExceptionally(failure);
+    }
+
+    private void scheduleHedge() {
+      long delay = getHedgeDelayNanos();
+      if (delay < 0) {
+        return;
+      }
+      ScheduledFuture<?> scheduled =
+          HedgeTimer.EXECUTOR.schedule(this::startHedge, delay, TimeUnit.NANOSECONDS);
+      boolean cancel;
+      synchronized (this) {
+        hedge = scheduled;
+        cancel = completed;
+      }
+      if (cancel) {
+        scheduled.cancel(false);
+      }
+    }
+
+    private void startHedge() {
+      synchronized (this) {
+        if (completed) {
+          return;
+        }
+        runningAttempts++;
+      }
+      metricsManager.incrementCounter(MetricsManager.KEY_FETCH_HEDGES, 1);
+      submit(new Fetch(this, true));
+    }
+
+    private synchronized boolean isCompleted() {
+      return completed;
+    }
+
+    private void cancelHedge() {
+      ScheduledFuture<?> scheduled;
+      synchronized (this) {
+        scheduled = hedge;
+      }
+      if (scheduled != null) {
+        scheduled.cancel(false);
+      }
+    }
+  }
+
+  /** An attempt of a request, waiting for, or holding, its share of the concurrency limits. */
+  private final class Fetch implements Runnable {
+
+    private final Request request;
+    private final String host;
+    private final boolean hedge;
+
+    private Fetch(Request request, boolean hedge) {
+      this.request = request;
+      this.host = request.host;
+      this.hedge = hedge;
+    }
+
+    @Override
+    public void run() {
+      try {
+        if (request.isCompleted()) {
+          return;
+        }
+        if (!hedge && hedgePercentile > 0) {
+          request.scheduleHedge();
+        }
+        long start = System.nanoTime();
+        String keyData;
+        try {
+          keyData = fetchKeyData(request.url);
+        } catch (Throwable e) {
+          request.failed(e, true);
+          return;
+        }
+        request.succeeded(this, keyData, System.nanoTime() - start);
+      } finally {
+        finished(this);
+      }
+    }
+  }
+
+  /**
+   * Circuit breaker of a registrable domain. Closed, it counts consecutive failed fetches; open,
+   * it sheds fetches until its open duration has elapsed, and then lets one probe through. Only
+   * domains with failed fetches have one.
+   */
+  private final class Circuit {
+
+    private final String domain;
+    private int consecutiveFailures;
+    private boolean open;
+    private boolean probing;
+    private long openUntil;
+
+    private Circuit(String domain) {
+      this.domain = domain;
+    }
+
+    private synchronized boolean tryAcquire() {
+      if (!open) {
+        return true;
+      }
+      if (probing || System.nanoTime() - openUntil < 0) {
+        return false;
+      }
+      probing = true;
+      return true;
+    }
+
+    private synchronized boolean isOpen() {
+      return open;
+    }
+
+    private synchronized boolean isIdle() {
+      return !open && !probing;
+    }
+
+    /** Lets another fetch probe the domain, as the probe could not be started. */
+    private synchronized void abandoned() {
+      probing = false;
+    }
+
+    private void succeeded() {
+      boolean wasOpen;
+      synchronized (this) {
+        wasOpen = open;
+        consecutiveFailures = 0;
+        probing = false;
+        open = false;
+      }
+      circuits.remove(domain, this);
+      if (!wasOpen) {
+        return;
+      }
+      metricsManager.recordGauge(
+          MetricsManager.KEY_FETCH_OPEN_CIRCUITS, openCircuits.decrementAndGet());
+    }
+
+    private void failed() {
+      synchronized (this) {
+        boolean wasOpen = open;
+        if (!probing && !wasOpen && ++consecutiveFailures < circuitBreakerThreshold) {
+          return;
+        }
+        probing = false;
+        open = true;
+        openUntil = System.nanoTime() + circuitBreakerOpenNanos;
+        if (wasOpen) {
+          return;
+        }
+      }
+      metricsManager.incrementCounter(MetricsManager.KEY_FETCH_CIRCUITS_OPENED, 1);
+      metricsManager.recordGauge(
+          MetricsManager.KEY_FETCH_OPEN_CIRCUITS, openCircuits.incrementAndGet());
+    }
+  }
+
+  /** Signals that a fetch was shed because the circuit of its domain is open. */
+  public static class CircuitOpenException extends IOException {
+
+    public CircuitOpenException(String domain) {
+      super("Circuit of " + domain + " is open");
+    }
+  }
+
+  /** Opens the connection for one hop of a fetch. */
+  @FunctionalInterface
+  public interface Connector {
+
+    /**
+     * @param url url of the hop, which is always https
+     * @return unconnected {@link HttpURLConnection}
+     * @throws IOException if the connection cannot be opened
+     */
+    HttpURLConnection open(URL url) throws IOException;
+  }
+
+  /** Builder of {@link KeyFetcher}. */
+  public static class Builder {
+
+    private Duration connectTimeout = Duration.ofSeconds(2);
+    private Duration readTimeout = Duration.ofSeconds(5);
+    private int maxConcurrentFetches = 64;
+    private int maxConcurrentFetchesPerHost = 4;
+    private Executor executor;
+    private Connector connector = url -> (HttpURLConnection) url.openConnection();
+    private int circuitBreakerThreshold = 5;
+    private Duration circuitBreakerOpenDuration = Duration.ofSeconds(30);
+    private double hedgePercentile;
+    private MetricsManager metricsManager = new BlackholeMetricsManager();
+
+    private Builder() {}
+
+    /**
+     * @param connectTimeout time allowed to connect, 2 seconds by default
+     * @return {@link Builder}
+     */
+    public Builder setConnectTimeout(Duration connectTimeout) {
+      this.connectTimeout = checkTimeout(connectTimeout);
+      return this;
+    }
+
+    /**
+     * @param readTimeout time allowed between two reads of a response, 5 seconds by default
+     * @return {@link Builder}
+     */
+    public Builder setReadTimeout(Duration readTimeout) {
+      this.readTimeout = checkTimeout(readTimeout);
+      return this;
+    }
+
+    /**
+     * @param maxConcurrentFetches number of fetches running at a time, 64 by default
+     * @return {@link Builder}
+     */
+    public Builder setMaxConcurrentFetches(int maxConcurrentFetches) {
+      if (maxConcurrentFetches < 1) {
+        throw new ProcessException("Maximum concurrent fetches should be greater than 0");
+      }
+      this.maxConcurrentFetches = maxConcurrentFetches;
+      return this;
+    }
+
+    /**
+     * @param maxConcurrentFetchesPerHost number of fetches running at a time against one host, 4
+     *     by default
+     * @return {@link Builder}
+     */
+    public Builder setMaxConcurrentFetchesPerHost(int maxConcurrentFetchesPerHost) {
+      if (maxConcurrentFetchesPerHost < 1) {
+        throw new ProcessException("Maximum concurrent fetches per host should be greater than 0");
+      }
+      this.maxConcurrentFetchesPerHost = maxConcurrentFetchesPerHost;
+      return this;
+    }
+
+    /**
+     * @param executor {@link Executor} running the fetches, a shared pool of daemon threads by
+     *     default
+     * @return {@link Builder}
+     */
+    public Builder setExecutor(Executor executor) {
+      this.executor = executor;
+      return this;
+    }
+
+    /**
+     * Sets how connections are opened, e.g. to use a custom {@link javax.net.ssl.SSLSocketFactory}
+     * or to direct fetches to a local stand-in of the publishers' servers.
+     *
+     * @param connector {@link Connector}, {@link URL#openConnection()} by default
+     * @return {@link Builder}
+     */
+    public Builder setConnector(Connector connector) {
+      if (connector == null) {
+        throw new ProcessException("Connector cannot be null");
+      }
+      this.connector = connector;
+      return this;
+    }
+
+    /**
+     * @param circuitBreakerThreshold consecutive failed fetches from a registrable domain after
+     *     which its circuit opens, 5 by default; 0 disables the circuit breakers
+     * @return {@link Builder}
+     */
+    public Builder setCircuitBreakerThreshold(int circuitBreakerThreshold) {
+      if (circuitBreakerThreshold < 0) {
+        throw new ProcessException("Circuit breaker threshold should not be negative");
+      }
+      this.circuitBreakerThreshold = circuitBreakerThreshold;
+      return this;
+    }
+
+    /**
+     * @param circuitBreakerOpenDuration time for which an open circuit sheds fetches before
+     *     letting one through, 30 seconds by default
+     * @return {@link Builder}
+     */
+    public Builder setCircuitBreakerOpenDuration(Duration circuitBreakerOpenDuration) {
+      if (circuitBreakerOpenDuration == null
+          || circuitBreakerOpenDuration.isNegative()
+          || circuitBreakerOpenDuration.isZero()) {
+        throw new ProcessException("Circuit breaker open duration should be positive");
+      }
+      this.circuitBreakerOpenDuration = circuitBreakerOpenDuration;
+      return this;
+    }
+
+    /**
+     * Enables hedging. A fetch still running after the given percentile of the latencies of the
+     * last successful fetches is raced by a second fetch of the same url, which counts against
+     * the concurrency limits too. Fetches are hedged once enough latencies were observed.
+     *
+     * @param hedgePercentile percentile between 0 and 1, e.g. 0.95; 0 disables hedging (default)
+     * @return {@link Builder}
+     */
+    public Builder setHedgePercentile(double hedgePercentile) {
+      if (!(hedgePercentile >= 0 && hedgePercentile < 1)) {
+        throw new ProcessException("Hedge percentile should be at least 0 and less than 1");
+      }
+      this.hedgePercentile = hedgePercentile;
+      return this;
+    }
+
+    /**
+     * Sets where the state of the circuit breakers and the hedged fetches are reported, see the
+     * {@code KEY_FETCH_} metrics of {@link MetricsManager}.
+     *
+     * @param metricsManager {@link MetricsManager}, a {@link BlackholeMetricsManager} by default
+     * @return {@link Builder}
+     */
+    public Builder setMetricsManager(MetricsManager metricsManager) {
+      if (metricsManager == null) {
+        throw new ProcessException("Metrics manager cannot be null");
+      }
+      this.metricsManager = metricsManager;
+      return this;
+    }
+
+    public KeyFetcher build() {
+      return new KeyFetcher(this);
+    }
+
+    private static Duration checkTimeout(Duration timeout) {
+      if (timeout == null
+          || timeout.isNegative()
+          || timeout.isZero()
+          || timeout.toMillis() > Integer.MAX_VALUE) {
+        throw new ProcessException("Timeout should be positive");
+      }
+      return timeout;
+    }
+  }
+
+  private static final class DefaultFetcher {
+
+    private static final KeyFetcher INSTANCE = newBuilder().build();
+  }
+
+  /** Schedules the hedges of fetches, created only once hedging is used. */
+  private static final class HedgeTimer {
+
+    private static final ScheduledThreadPoolExecutor EXECUTOR = newExecutor();
+
+    private static ScheduledThreadPoolExecutor newExecutor() {
+      ScheduledThreadPoolExecutor executor =
+          new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory("adscert-key-hedge"));
+      executor.setRemoveOnCancelPolicy(true);
+      return executor;
+    }
+  }
+
+  private static final class DefaultExecutor {
+
+    private static final Executor EXECUTOR =
+        Executors.newCachedThreadPool(new DaemonThreadFactory("adscert-key-fetch"));
+  }
+}
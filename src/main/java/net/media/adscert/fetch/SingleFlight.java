@@ -0,0 +1,157 @@
+/*
+ * Copyright  2019 - present. IAB Tech Lab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.media.adscert.fetch;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces concurrent loads of the same key: while a load of a key is in flight, further callers
+ * share its outcome instead of starting loads of their own. Once the load completes, the next
+ * caller starts a new one; outcomes are not cached.
+ *
+ * @param <K> type of the keys, e.g. key urls
+ * @param <V> type of the loaded values
+ * @since 1.2
+ */
+public class SingleFlight<K, V> {
+
+  /** Wait cap meaning that callers wait for a shared load for as long as it takes. */
+  public static final long NO_WAIT_CAP = -1;
+
+  private final ConcurrentMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+  /**
+   * Loads the value on the calling thread, or waits for the load of the key in flight.
+   *
+   * @param key key of the load
+   * @param loader loader of the value, called only if no load of the key is in flight
+   * @param waitCapMillis time to wait for a load started by another caller, or {@link
+   *     #NO_WAIT_CAP}
+   * @return the loaded value
+   * @throws TimeoutException if the load of another caller did not complete within the wait cap;
+   *     the load goes on and its outcome is shared with the callers still waiting
+   * @throws Exception the exception thrown by the loader, for every caller sharing the load
+   */
+  public V load(K key, Callable<? extends V> loader, long waitCapMillis) throws Exception {
+    CompletableFuture<V> load = new CompletableFuture<>();
+    CompletableFuture<V> shared = inFlight.putIfAbsent(key, load);
+    if (shared == null) {
+      run(key, loader, load);
+      shared = load;
+    }
+    try {
+      return waitCapMillis == NO_WAIT_CAP
+          ? shared.get()
+          : shared.get(waitCapMillis, TimeUnit.MILLISECONDS);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw (Exception) cause;
+    }
+  }
+
+  /**
+   * Starts loading the value on the executor, unless a load of the key is in flight.
+   *
+   * @param key key of the load
+   * @param loader loader of the value, called only if no load of the key is in flight
+   * @param executor {@link Executor} running the loader
+   * @return future of the load in flight, shared by every caller
+   */
+  public CompletableFuture<V> loadAsync(K key, Callable<? extends V> loader, Executor executor) {
+    CompletableFuture<V> load = new CompletableFuture<>();
+    CompletableFuture<V> shared = inFlight.putIfAbsent(key, load);
+    if (shared != null) {
+      return shared;
+    }
+    try {
+      executor.execute(() -> run(key, loader, load));
+    } catch (RuntimeException e) {
+      inFlight.remove(key, load);
+      load.completeExceptionally(e);
+    }
+    return load;
+  }
+
+  /**
+   * Starts a load which completes asynchronously, e.g. a fetch, unless a load of the key is in
+   * flight.
+   *
+   * @param key key of the load
+   * @param loader starts the load, called only if no load of the key is in flight
+   * @return future of the load in flight, shared by every caller
+   */
+  public CompletableFuture<V> loadAsync(
+      K key, Supplier<? extends CompletionStage<? extends V>> loader) {
+    CompletableFuture<V> load = new CompletableFuture<>();
+    CompletableFuture<V> shared = inFlight.putIfAbsent(key, load);
+    if (shared != null) {
+      return shared;
+    }
+    try {
+      loader
+          .get()
+          .whenComplete(
+              (value, failure) -> {
+                inFlight.remove(key, load);
+                if (failure == null) {
+                  load.complete(value);
+                } else {
+                  load.completeExceptionally(
+                      failure instanceof CompletionException && failure.getCause() != null
+                          ? failure.getCause()
+                          : failure);
+                }
+              });
+    } catch (RuntimeException e) {
+      inFlight.remove(key, load);
+      load.completeExceptionally(e);
+    }
+    return load;
+  }
+
+  /** Returns the number of keys whose load is in flight. */
+  public int getInFlightCount() {
+    return inFlight.size();
+  }
+
+  private void run(K key, Callable<? extends V> loader, CompletableFuture<V> load) {
+    V value;
+    try {
+      value = loader.call();
+    } catch (Throwable e) {
+      // Removed first, so that a caller seeing the outcome starts a new load afterwards.
+      inFlight.remove(key, load);
+      load.completeExceptionally(e);
+      return;
+    }
+    inFlight.remove(key, load);
+    load.complete(value);
+  }
+}
@@ -30,4 +30,9 @@ public class BlackholeMetricsManager extends MetricsManager {
 
   @Override
   public void pushMetrics(Map<String, Object> metricsMap, Result result) {}
+
+  @Override
+  public boolean recordsDigestFields() {
+    return false;
+  }
 }
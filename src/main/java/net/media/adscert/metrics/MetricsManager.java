@@ -28,6 +28,23 @@ import java.util.Map;
  */
 public abstract class MetricsManager {
 
+  /** Verifications answered from the signature result cache. */
+  public static final String RESULT_CACHE_HITS = "adscert.resultCache.hits";
+  /** Verifications that had to run because the signature result cache had no entry. */
+  public static final String RESULT_CACHE_MISSES = "adscert.resultCache.misses";
+  /** Single thread verification rate of the provider picked by {@code CryptoProvider.AUTO}. */
+  public static final String CRYPTO_PROVIDER_THROUGHPUT = "adscert.cryptoProvider.opsPerSecond";
+  /** Registrable domains whose key fetch circuit is open. */
+  public static final String KEY_FETCH_OPEN_CIRCUITS = "adscert.keyFetch.openCircuits";
+  /** Key fetch circuits that opened after consecutive failures. */
+  public static final String KEY_FETCH_CIRCUITS_OPENED = "adscert.keyFetch.circuitsOpened";
+  /** Key fetches failed at once because the circuit of their domain is open. */
+  public static final String KEY_FETCH_SHED = "adscert.keyFetch.shed";
+  /** Key fetches raced by a hedged fetch. */
+  public static final String KEY_FETCH_HEDGES = "adscert.keyFetch.hedges";
+  /** Key fetches completed by their hedged fetch. */
+  public static final String KEY_FETCH_HEDGE_WINS = "adscert.keyFetch.hedgeWins";
+
   /**
    * Handles metric names and their values.
    *
@@ -35,4 +52,33 @@ public abstract class MetricsManager {
    * @param result see {@link Result}
    */
   public abstract void pushMetrics(Map<String, Object> metricsMap, Result result);
+
+  /**
+   * Tells whether {@link #pushMetrics(Map, Result)} uses the digest fields of verified requests.
+   * If not, verifications skip collecting them, and do not call {@link #pushMetrics(Map, Result)}.
+   * True by default.
+   *
+   * @return whether the digest fields of verified requests are pushed
+   * @since 1.2
+   */
+  public boolean recordsDigestFields() {
+    return true;
+  }
+
+  /**
+   * Handles an increment of a counter, e.g. {@link #RESULT_CACHE_HITS}. Does nothing by default.
+   *
+   * @param counterName name of the counter
+   * @param delta value by which the counter is incremented
+   */
+  public void incrementCounter(String counterName, long delta) {}
+
+  /**
+   * Handles the current value of a gauge, e.g. {@link #CRYPTO_PROVIDER_THROUGHPUT}. Does nothing by
+   * default.
+   *
+   * @param gaugeName name of the gauge
+   * @param value current value
+   */
+  public void recordGauge(String gaugeName, double value) {}
 }
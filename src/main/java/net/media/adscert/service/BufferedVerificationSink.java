@@ -0,0 +1,162 @@
+/*
+ * Copyright  2019 - present. IAB Tech Lab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.media.adscert.service;
+
+import net.media.adscert.enums.Result;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes records as lines of text into a buffer, which is written out in large batches.
+ *
+ * @since 1.2
+ */
+public class BufferedVerificationSink implements VerificationSink {
+
+  /** Size of the batches in which lines are written out. */
+  public static final int DEFAULT_BUFFER_SIZE = 1 << 16;
+
+  private static final byte[] LINE_SEPARATOR =
+      System.getProperty("line.separator").getBytes(StandardCharsets.UTF_8);
+
+  private final OutputStream output;
+  private final Format format;
+  private final byte[] buffer;
+  private int length;
+
+  /**
+   * @param outputFile path of the file to write
+   * @param format see {@link Format}
+   * @throws IOException if the file cannot be created
+   */
+  public BufferedVerificationSink(String outputFile, Format format) throws IOException {
+    this(new FileOutputStream(outputFile), format, DEFAULT_BUFFER_SIZE);
+  }
+
+  /**
+   * @param output stream to write to, closed with the sink
+   * @param format see {@link Format}
+   * @param bufferSize size of the batches in which lines are written out
+   */
+  public BufferedVerificationSink(OutputStream output, Format format, int bufferSize) {
+    this.output = output;
+    this.format = format;
+    this.buffer = new byte[bufferSize];
+  }
+
+  @Override
+  public void write(VerificationRecord record) throws IOException {
+    if (format == Format.COMPACT) {
+      writeNumber(record.getLineNumber());
+      write((byte) '\t');
+      write(record.getResult().getStatus().name());
+      write((byte) '\t');
+      Result.FailureReason reason = record.getResult().getFailureReason();
+      write(reason == null ? "-" : reason.name());
+      write((byte) '\t');
+      write(record.getDomain() == null ? "-" : record.getDomain());
+      write((byte) '\t');
+      writeNumber(record.getVerifyNanos() / 1000);
+      write((byte) '\n');
+      return;
+    }
+    if (record.getError() != null) {
+      write("Failed: ");
+      write(record.getError());
+    } else {
+      write(record.getResult().getStatus().name());
+    }
+    write(LINE_SEPARATOR);
+  }
+
+  /** Writes out the lines buffered so far. */
+  public void flush() throws IOException {
+    if (length > 0) {
+      output.write(buffer, 0, length);
+      length = 0;
+    }
+    output.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      flush();
+    } finally {
+      output.close();
+    }
+  }
+
+  private void write(byte b) throws IOException {
+    if (length == buffer.length) {
+      output.write(buffer, 0, length);
+      length = 0;
+    }
+    buffer[length++] = b;
+  }
+
+  private void write(byte[] bytes) throws IOException {
+    for (byte b : bytes) {
+      write(b);
+    }
+  }
+
+  /** Writes text as UTF-8, with line breaks and tabs replaced so that a record stays one line. */
+  private void write(String text) throws IOException {
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (c < 0x20) {
+        write((byte) ' ');
+      } else if (c < 0x80) {
+        write((byte) c);
+      } else {
+        // Bytes of multi-byte sequences are all negative, only ASCII controls are replaced.
+        for (byte b : text.substring(i).getBytes(StandardCharsets.UTF_8)) {
+          write(b >= 0 && b < 0x20 ? (byte) ' ' : b);
+        }
+        return;
+      }
+    }
+  }
+
+  private void writeNumber(long value) throws IOException {
+    if (value < 10) {
+      write((byte) ('0' + value));
+      return;
+    }
+    writeNumber(value / 10);
+    write((byte) ('0' + value % 10));
+  }
+
+  /** Formats of the lines written for each record. */
+  public enum Format {
+    /**
+     * The status of the result, e.g. {@code SUCCESS}, or {@code Failed: } and the error for a line
+     * which could not be processed; the format of {@link FileVerificationService#verify(String,
+     * String, java.security.PublicKey)}.
+     */
+    LEGACY,
+    /**
+     * Tab separated line number, status, failure reason, domain and verify latency in microseconds,
+     * with {@code -} for absent values, e.g. {@code 42\tFAILURE\tBAD_DSMAP\tnewsite.com\t87}.
+     */
+    COMPACT
+  }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright  2019 - present. IAB Tech Lab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.media.adscert.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+
+/**
+ * Progress of an offline verification run: the input offset and line number up to which records
+ * were written, and the length of the output file holding them. Stored as a properties file,
+ * which is replaced atomically.
+ */
+final class Checkpoint {
+
+  private static final String INPUT_OFFSET = "input.offset";
+  private static final String INPUT_SIZE = "input.size";
+  private static final String INPUT_MODIFIED = "input.modified";
+  private static final String LINE_NUMBER = "line.number";
+  private static final String OUTPUT_POSITION = "output.position";
+  private static final String OUTPUT_FORMAT = "output.format";
+
+  final long inputOffset;
+  final long lineNumber;
+  final long outputPosition;
+  final long inputSize;
+  final long inputModified;
+  final BufferedVerificationSink.Format format;
+
+  Checkpoint(
+      long inputOffset,
+      long lineNumber,
+      long outputPosition,
+      long inputSize,
+      long inputModified,
+      BufferedVerificationSink.Format format) {
+    this.inputOffset = inputOffset;
+    this.lineNumber = lineNumber;
+    this.outputPosition = outputPosition;
+    this.inputSize = inputSize;
+    this.inputModified = inputModified;
+    this.format = format;
+  }
+
+  /** Returns the start of a run over the input, before any record was written. */
+  static Checkpoint start(Path input, BufferedVerificationSink.Format format) throws IOException {
+    return new Checkpoint(
+        0, 0, 0, Files.size(input), Files.getLastModifiedTime(input).toMillis(), format);
+  }
+
+  /** Returns a checkpoint of the same run after more records were written. */
+  Checkpoint advance(long inputOffset, long lineNumber, long outputPosition) {
+    return new Checkpoint(
+        inputOffset, lineNumber, outputPosition, inputSize, inputModified, format);
+  }
+
+  /** Returns whether a run resumed from this checkpoint would read the same input and format. */
+  boolean isResumableBy(Checkpoint start) {
+    return inputSize == start.inputSize
+        && inputModified == start.inputModified
+        && format == start.format;
+  }
+
+  /**
+   * Reads a checkpoint.
+   *
+   * @return {@link Checkpoint}, or null if the file does not exist
+   * @throws IOException if the file cannot be read or is not a checkpoint
+   */
+  static Checkpoint read(Path file) throws IOException {
+    Properties properties = new Properties();
+    try (InputStream input = Files.newInputStream(file)) {
+      properties.load(input);
+    } catch (NoSuchFileException e) {
+      return null;
+    }
+    try {
+      return new Checkpoint(
+          Long.parseLong(properties.getProperty(INPUT_OFFSET)),
+          Long.parseLong(properties.getProperty(LINE_NUMBER)),
+          Long.parseLong(properties.getProperty(OUTPUT_POSITION)),
+          Long.parseLong(properties.getProperty(INPUT_SIZE)),
+          Long.parseLong(properties.getProperty(INPUT_MODIFIED)),
+          BufferedVerificationSink.Format.valueOf(properties.getProperty(OUTPUT_FORMAT)));
+    } catch (RuntimeException e) {
+      throw new IOException("Not a checkpoint: " + file, e);
+    }
+  }
+
+  /**
+   * Writes the checkpoint to a temporary file, forces it to disk and moves it over the file, so
+   * that the file always holds a complete checkpoint.
+   */
+  void write(Path file) throws IOException {
+    Properties properties = new Properties();
+    properties.setProperty(INPUT_OFFSET, String.valueOf(inputOffset));
+    properties.setProperty(LINE_NUMBER, String.valueOf(lineNumber));
+    properties.setProperty(OUTPUT_POSITION, String.valueOf(outputPosition));
+    properties.setProperty(INPUT_SIZE, String.valueOf(inputSize));
+    properties.setProperty(INPUT_MODIFIED, String.valueOf(inputModified));
+    properties.setProperty(OUTPUT_FORMAT, format.name());
+    Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+    try (FileChannel channel =
+        FileChannel.open(
+            temporary,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+      OutputStream output = Channels.newOutputStream(channel);
+      properties.store(output, "adscert offline verification checkpoint");
+      channel.force(true);
+    }
+    Files.move(
+        temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+}
@@ -17,28 +17,180 @@
 package net.media.adscert.service;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import net.media.adscert.enums.Result;
+import net.media.adscert.exceptions.InvalidDataException;
 import net.media.adscert.exceptions.VerificationServiceException;
+import net.media.adscert.utils.DaemonThreadFactory;
+import net.media.adscert.utils.JacksonObjectMapper;
+import net.media.adscert.utils.OpenRtbFieldReader;
 import net.media.openrtb3.OpenRTB3_X;
 
-import java.io.FileOutputStream;
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.security.PublicKey;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
 
 /**
  * This class is used to perform bulk verification of requests stored in a file.
  *
+ * <p>Besides the static single threaded methods, an instance verifies large files in parallel, see
+ * {@link #verifyParallel(String, String)}.
+ *
  * @author anupam.v
  * @since 1.0
  */
 public class FileVerificationService {
 
+  /** Default size of the chunks in which files are read by {@link #verifyParallel}. */
+  public static final int DEFAULT_CHUNK_SIZE = 4 << 20;
+
+  /** Default number of chunks written between two checkpoints. */
+  public static final int DEFAULT_CHECKPOINT_INTERVAL = 16;
+
+  private final VerificationService service;
+  private PublicKey publicKey;
+  private int parallelism = Runtime.getRuntime().availableProcessors();
+  private int chunkSize = DEFAULT_CHUNK_SIZE;
+  private BufferedVerificationSink.Format outputFormat = BufferedVerificationSink.Format.LEGACY;
+  private String checkpointFile;
+  private int checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+
+  public FileVerificationService() {
+    this(new VerificationService());
+  }
+
+  /**
+   * @param service {@link VerificationService} verifying the requests read from files
+   * @since 1.2
+   */
+  public FileVerificationService(VerificationService service) {
+    if (service == null) {
+      throw new VerificationServiceException("VerificationService cannot be null");
+    }
+    this.service = service;
+  }
+
+  public VerificationService getService() {
+    return service;
+  }
+
+  public PublicKey getPublicKey() {
+    return publicKey;
+  }
+
+  /**
+   * Sets the public key with which all requests are verified.
+   *
+   * @param publicKey {@link PublicKey} of the signing authority, or null to resolve the key of each
+   *     request from the request
+   */
+  public void setPublicKey(PublicKey publicKey) {
+    this.publicKey = publicKey;
+  }
+
+  public int getParallelism() {
+    return parallelism;
+  }
+
+  /**
+   * Sets the number of threads parsing and verifying requests. Defaults to the number of available
+   * processors.
+   *
+   * @param parallelism number of worker threads
+   */
+  public void setParallelism(int parallelism) {
+    if (parallelism < 1) {
+      throw new VerificationServiceException("Parallelism should be greater than 0");
+    }
+    this.parallelism = parallelism;
+  }
+
+  public int getChunkSize() {
+    return chunkSize;
+  }
+
+  /**
+   * Sets the size of the chunks of whole lines in which files are read. At most two chunks per
+   * worker thread are held in memory at a time.
+   *
+   * @param chunkSize size in bytes, see {@link #DEFAULT_CHUNK_SIZE}
+   */
+  public void setChunkSize(int chunkSize) {
+    if (chunkSize < 1) {
+      throw new VerificationServiceException("Chunk size should be greater than 0");
+    }
+    this.chunkSize = chunkSize;
+  }
+
+  public BufferedVerificationSink.Format getOutputFormat() {
+    return outputFormat;
+  }
+
+  /**
+   * Sets the format of the output files written by {@link #verifyParallel(String, String)}.
+   *
+   * @param outputFormat see {@link BufferedVerificationSink.Format}, defaults to {@code LEGACY}
+   */
+  public void setOutputFormat(BufferedVerificationSink.Format outputFormat) {
+    if (outputFormat == null) {
+      throw new VerificationServiceException("Output format cannot be null");
+    }
+    this.outputFormat = outputFormat;
+  }
+
+  public String getCheckpointFile() {
+    return checkpointFile;
+  }
+
+  /**
+   * Sets the file in which {@link #verifyParallel(String, String)} records its progress, so that
+   * an interrupted run can be continued by {@link #resumeParallel(String, String)}. The file is
+   * deleted once a run completes.
+   *
+   * @param checkpointFile path of the checkpoint file, or null to not record progress
+   */
+  public void setCheckpointFile(String checkpointFile) {
+    this.checkpointFile = checkpointFile;
+  }
+
+  public int getCheckpointInterval() {
+    return checkpointInterval;
+  }
+
+  /**
+   * Sets how often progress is recorded in the checkpoint file. Each checkpoint forces the output
+   * written so far to disk.
+   *
+   * @param checkpointInterval number of chunks, see {@link #DEFAULT_CHECKPOINT_INTERVAL}
+   */
+  public void setCheckpointInterval(int checkpointInterval) {
+    if (checkpointInterval < 1) {
+      throw new VerificationServiceException("Checkpoint interval should be greater than 0");
+    }
+    this.checkpointInterval = checkpointInterval;
+  }
+
   /**
    * Performs verification of jsons stored in the file. Note that each line of the file should
    * correspond to the complete json, i.e. a json requested spanning multiple lines is not
-   * supported. There should be no empty lines.
+   * supported. There should be no empty lines. A gzip compressed file is decompressed while it is
+   * read.
    *
    * @param inputFile path to the input file
    * @param outputFile path to the file in which output of verification is intended to be stored
@@ -51,27 +203,28 @@ public class FileVerificationService {
       ObjectMapper mapper,
       VerificationService service,
       PublicKey publicKey) {
-    try (Stream<String> stream = Files.lines(Paths.get(inputFile));
-        FileOutputStream outputStream = new FileOutputStream(outputFile)) {
+    VerificationRecord record = new VerificationRecord();
+    long[] lineNumber = new long[1];
+    try (BufferedReader reader = openLines(Paths.get(inputFile));
+        Stream<String> stream = reader.lines();
+        BufferedVerificationSink sink =
+            new BufferedVerificationSink(outputFile, BufferedVerificationSink.Format.LEGACY)) {
       stream.forEach(
           line -> {
+            lineNumber[0]++;
             try {
-              outputStream.write(
-                  ((service
-                              .verifyRequest(
-                                  mapper.readValue(line, OpenRTB3_X.class), false, publicKey, false)
-                              .getStatus()
-                              .name())
-                          + System.getProperty("line.separator"))
-                      .getBytes());
+              OpenRTB3_X openRTB = mapper.readValue(line, OpenRTB3_X.class);
+              long start = System.nanoTime();
+              Result result = service.verifyRequest(openRTB, false, publicKey, false);
+              record.set(
+                  lineNumber[0], result, getDomain(openRTB), System.nanoTime() - start, null);
             } catch (Exception e) {
-              try {
-                outputStream.write(
-                    ("Failed: " + e.getMessage() + System.getProperty("line.separator"))
-                        .getBytes());
-              } catch (IOException e1) {
-                throw new VerificationServiceException(e1);
-              }
+              record.set(lineNumber[0], failureOf(e), null, 0, errorOf(e));
+            }
+            try {
+              sink.write(record);
+            } catch (IOException e) {
+              throw new VerificationServiceException(e);
             }
           });
     } catch (IOException e) {
@@ -79,6 +232,15 @@ public class FileVerificationService {
     }
   }
 
+  private static BufferedReader openLines(Path file) throws IOException {
+    if (!ParallelGzipInputStream.isGzip(file)) {
+      return Files.newBufferedReader(file, StandardCharsets.UTF_8);
+    }
+    return new BufferedReader(
+        new InputStreamReader(
+            new GZIPInputStream(Files.newInputStream(file), 1 << 16), StandardCharsets.UTF_8));
+  }
+
   /**
    * Performs verification of jsons stored in the file. Note that each line of the file should
    * correspond to the complete json, i.e. a json requested spanning multiple lines is not
@@ -88,6 +250,311 @@ public class FileVerificationService {
    * @param outputFile path to the file in which output of verification is intended to be stored
    */
   public static void verify(String inputFile, String outputFile, PublicKey publicKey) {
-    verify(inputFile, outputFile, new ObjectMapper(), new VerificationService(), publicKey);
+    verify(
+        inputFile,
+        outputFile,
+        JacksonObjectMapper.getMapper(),
+        new VerificationService(),
+        publicKey);
+  }
+
+  /**
+   * Performs verification of jsons stored in the file on {@link #getParallelism()} threads, see
+   * {@link #verifyParallel(String, VerificationSink)}. The output is written in the format set by
+   * {@link #setOutputFormat(BufferedVerificationSink.Format)}; in the default format it is that of
+   * {@link #verify(String, String, PublicKey)}, except that messages of failures are kept on a
+   * single line.
+   *
+   * <p>If a checkpoint file is set, the input offset, line number and output length reached are
+   * recorded in it every {@link #getCheckpointInterval()} chunks, see {@link
+   * #resumeParallel(String, String)}.
+   *
+   * @param inputFile path to the input file
+   * @param outputFile path to the file in which output of verification is intended to be stored
+   * @since 1.2
+   */
+  public void verifyParallel(String inputFile, String outputFile) {
+    verifyToFile(inputFile, outputFile, false);
+  }
+
+  /**
+   * Continues a run of {@link #verifyParallel(String, String)} from the last checkpoint recorded
+   * in the checkpoint file. Output written after that checkpoint is truncated and reading starts
+   * at the recorded input offset, so that the output holds every line exactly once. Without a
+   * checkpoint, e.g. if the run completed, the whole file is verified again.
+   *
+   * <p>Plain files are read from the recorded offset; gzip compressed files are decompressed up to
+   * it, without parsing or verifying the lines before it.
+   *
+   * @param inputFile path to the input file of the run
+   * @param outputFile path to the output file of the run
+   * @throws VerificationServiceException if no checkpoint file is set, or the checkpoint was
+   *     recorded for another input, another output format or a longer output file
+   * @since 1.2
+   */
+  public void resumeParallel(String inputFile, String outputFile) {
+    if (checkpointFile == null) {
+      throw new VerificationServiceException("Checkpoint file is not set");
+    }
+    verifyToFile(inputFile, outputFile, true);
+  }
+
+  private void verifyToFile(String inputFile, String outputFile, boolean resume) {
+    Path input = Paths.get(inputFile);
+    Path checkpoints = checkpointFile == null ? null : Paths.get(checkpointFile);
+    try (FileChannel output =
+        FileChannel.open(
+            Paths.get(outputFile), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+      Checkpoint start = Checkpoint.start(input, outputFormat);
+      Checkpoint last = resume ? Checkpoint.read(checkpoints) : null;
+      if (last != null) {
+        if (!last.isResumableBy(start) || output.size() < last.outputPosition) {
+          throw new VerificationServiceException(
+              "Checkpoint " + checkpointFile + " does not belong to " + inputFile);
+        }
+        start = last;
+      }
+      // Records written after the checkpoint are written again.
+      output.truncate(start.outputPosition);
+      output.position(start.outputPosition);
+      try (BufferedVerificationSink sink =
+          new BufferedVerificationSink(
+              Channels.newOutputStream(output),
+              outputFormat,
+              BufferedVerificationSink.DEFAULT_BUFFER_SIZE)) {
+        Checkpointer checkpointer =
+            checkpoints == null ? null : new Checkpointer(checkpoints, start, sink, output);
+        verifyParallel(input, sink, start.inputOffset, start.lineNumber, checkpointer);
+      }
+      if (checkpoints != null) {
+        Files.deleteIfExists(checkpoints);
+      }
+    } catch (IOException e) {
+      throw new VerificationServiceException(e);
+    }
+  }
+
+  /**
+   * Performs verification of jsons stored in the file on {@link #getParallelism()} threads. The
+   * sink receives one record per input line, in input order.
+   *
+   * <p>The file is split into chunks of whole lines with positional reads, see {@link
+   * #setChunkSize(int)}. Worker threads parse the lines of a chunk with {@link
+   * OpenRtbFieldReader}, which only reads the fields needed for verification, and verify them. The
+   * calling thread reads chunks and hands their records to the sink in order; it stops reading
+   * while the oldest chunk in flight is not verified yet, so that memory stays bounded whatever the
+   * size of the file.
+   *
+   * <p>A gzip compressed file, recognized by its magic bytes, is decompressed while it is read.
+   * Members of files made of many gzip members, such as concatenated or block-gzip (BGZF) files,
+   * are decompressed on further threads while earlier chunks are verified; a file with a single
+   * member is decompressed by the calling thread.
+   *
+   * @param inputFile path to the input file
+   * @param sink {@link VerificationSink} receiving the outcomes, which is not closed
+   * @since 1.2
+   */
+  public void verifyParallel(String inputFile, VerificationSink sink) {
+    try {
+      verifyParallel(Paths.get(inputFile), sink, 0, 0, null);
+    } catch (IOException e) {
+      throw new VerificationServiceException(e);
+    }
+  }
+
+  private void verifyParallel(
+      Path input,
+      VerificationSink sink,
+      long inputOffset,
+      long lineNumber,
+      Checkpointer checkpointer)
+      throws IOException {
+    ExecutorService workers =
+        Executors.newFixedThreadPool(
+            parallelism, new DaemonThreadFactory("adscert-file-verification"));
+    try (LineChunkSource reader = openChunks(input, inputOffset)) {
+      Deque<Future<ChunkOutcome>> inFlight = new ArrayDeque<>();
+      VerificationRecord record = new VerificationRecord();
+      LineChunkSource.LineChunk chunk;
+      while ((chunk = reader.next()) != null) {
+        if (inFlight.size() >= 2 * parallelism) {
+          lineNumber = write(inFlight.removeFirst(), sink, record, lineNumber, checkpointer);
+        }
+        final LineChunkSource.LineChunk lines = chunk;
+        inFlight.addLast(workers.submit(() -> verifyChunk(lines)));
+      }
+      while (!inFlight.isEmpty()) {
+        lineNumber = write(inFlight.removeFirst(), sink, record, lineNumber, checkpointer);
+      }
+    } finally {
+      workers.shutdownNow();
+    }
+  }
+
+  private static long write(
+      Future<ChunkOutcome> output,
+      VerificationSink sink,
+      VerificationRecord record,
+      long lineNumber,
+      Checkpointer checkpointer)
+      throws IOException {
+    ChunkOutcome outcome = await(output);
+    lineNumber = outcome.writeTo(sink, record, lineNumber);
+    if (checkpointer != null) {
+      checkpointer.chunkWritten(outcome.end, lineNumber);
+    }
+    return lineNumber;
+  }
+
+  private LineChunkSource openChunks(Path file, long position) throws IOException {
+    if (!ParallelGzipInputStream.isGzip(file)) {
+      return new LineChunkReader(file, chunkSize, position);
+    }
+    ParallelGzipInputStream input =
+        new ParallelGzipInputStream(
+            file, parallelism, Math.max(chunkSize / 8, 1 << 10), Math.max(4 * chunkSize, 1 << 16));
+    try {
+      return new StreamLineChunkReader(input, chunkSize, position);
+    } catch (IOException e) {
+      input.close();
+      throw e;
+    }
+  }
+
+  private ChunkOutcome verifyChunk(LineChunkSource.LineChunk chunk) {
+    try {
+      ChunkOutcome outcome = new ChunkOutcome(chunk.end, chunk.length / 512 + 16);
+      byte[] data = chunk.data;
+      int start = 0;
+      while (start < chunk.length) {
+        int end = start;
+        while (end < chunk.length && data[end] != '\n') {
+          end++;
+        }
+        int lineEnd = end > start && data[end - 1] == '\r' ? end - 1 : end;
+        verifyLine(data, start, lineEnd - start, outcome);
+        start = end + 1;
+      }
+      return outcome;
+    } finally {
+      chunk.release();
+    }
+  }
+
+  private void verifyLine(byte[] data, int offset, int length, ChunkOutcome outcome) {
+    try {
+      OpenRTB3_X openRTB = OpenRtbFieldReader.read(data, offset, length);
+      long start = System.nanoTime();
+      Result result = service.verifyRequest(openRTB, false, publicKey, false);
+      outcome.add(result, getDomain(openRTB), System.nanoTime() - start, null);
+    } catch (Exception e) {
+      outcome.add(failureOf(e), null, 0, errorOf(e));
+    }
+  }
+
+  private static Result failureOf(Exception e) {
+    return e instanceof IOException || e instanceof InvalidDataException
+        ? Result.failure(Result.FailureReason.INVALID_DATA)
+        : Result.failure(Result.FailureReason.PROCESSING_ERROR);
+  }
+
+  /** Returns the message written for a line which failed, "null" if the exception has none. */
+  private static String errorOf(Exception e) {
+    return String.valueOf(e.getMessage());
+  }
+
+  private static String getDomain(OpenRTB3_X openRTB) {
+    if (openRTB == null
+        || openRTB.getRequest() == null
+        || openRTB.getRequest().getContext() == null
+        || openRTB.getRequest().getContext().getSite() == null) {
+      return null;
+    }
+    return openRTB.getRequest().getContext().getSite().getDomain();
+  }
+
+  private static ChunkOutcome await(Future<ChunkOutcome> output) {
+    try {
+      return output.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new VerificationServiceException(e);
+    } catch (ExecutionException e) {
+      throw new VerificationServiceException(e.getCause());
+    }
+  }
+
+  /** Outcomes of the lines of a chunk, in order. */
+  private static final class ChunkOutcome {
+
+    private final long end;
+    private Result[] results;
+    private String[] domains;
+    private long[] verifyNanos;
+    private String[] errors;
+    private int count;
+
+    private ChunkOutcome(long end, int capacity) {
+      this.end = end;
+      results = new Result[capacity];
+      domains = new String[capacity];
+      verifyNanos = new long[capacity];
+      errors = new String[capacity];
+    }
+
+    private void add(Result result, String domain, long nanos, String error) {
+      if (count == results.length) {
+        int capacity = count * 2;
+        results = Arrays.copyOf(results, capacity);
+        domains = Arrays.copyOf(domains, capacity);
+        verifyNanos = Arrays.copyOf(verifyNanos, capacity);
+        errors = Arrays.copyOf(errors, capacity);
+      }
+      results[count] = result;
+      domains[count] = domain;
+      verifyNanos[count] = nanos;
+      errors[count] = error;
+      count++;
+    }
+
+    /** Returns the number of the last line written. */
+    private long writeTo(VerificationSink sink, VerificationRecord record, long lineNumber)
+        throws IOException {
+      for (int i = 0; i < count; i++) {
+        record.set(++lineNumber, results[i], domains[i], verifyNanos[i], errors[i]);
+        sink.write(record);
+      }
+      return lineNumber;
+    }
+  }
+
+  /** Records a checkpoint after every {@link #checkpointInterval} chunks written. */
+  private final class Checkpointer {
+
+    private final Path file;
+    private final BufferedVerificationSink sink;
+    private final FileChannel output;
+    private Checkpoint checkpoint;
+    private int chunks;
+
+    private Checkpointer(
+        Path file, Checkpoint checkpoint, BufferedVerificationSink sink, FileChannel output) {
+      this.file = file;
+      this.checkpoint = checkpoint;
+      this.sink = sink;
+      this.output = output;
+    }
+
+    private void chunkWritten(long inputOffset, long lineNumber) throws IOException {
+      if (++chunks < checkpointInterval) {
+        return;
+      }
+      chunks = 0;
+      // The records must be on disk before a checkpoint claims them.
+      sink.flush();
+      output.force(false);
+      checkpoint = checkpoint.advance(inputOffset, lineNumber, output.position());
+      checkpoint.write(file);
+    }
   }
 }
@@ -0,0 +1,92 @@
+/*
+ * Copyright  2019 - present. IAB Tech Lab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.media.adscert.service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Splits a file of newline separated records into chunks holding whole lines, read with
+ * positional reads. A chunk ends after the last newline that fits into the chunk size; the partial
+ * line after it is read again as the start of the next chunk. A line longer than the chunk size
+ * gets a chunk of its own.
+ */
+class LineChunkReader extends LineChunkSource {
+
+  private final FileChannel channel;
+  private final long size;
+  private long position;
+
+  /**
+   * @param file file to read
+   * @param chunkSize size of the chunks, which only lines longer than it exceed
+   * @param position offset at which to start reading, which must start a line
+   */
+  LineChunkReader(Path file, int chunkSize, long position) throws IOException {
+    super(chunkSize);
+    this.channel = FileChannel.open(file, StandardOpenOption.READ);
+    this.size = channel.size();
+    this.position = position;
+  }
+
+  @Override
+  LineChunk next() throws IOException {
+    if (position >= size) {
+      return null;
+    }
+    byte[] buffer = takeBuffer();
+    int length = fill(buffer, 0);
+    int end;
+    while (true) {
+      if (position + length >= size) {
+        end = length;
+        break;
+      }
+      int newline = lastIndexOf(buffer, length, (byte) '\n');
+      if (newline >= 0) {
+        end = newline + 1;
+        break;
+      }
+      buffer = Arrays.copyOf(buffer, buffer.length * 2);
+      length += fill(buffer, length);
+    }
+    position += end;
+    return new LineChunk(this, buffer, end, position);
+  }
+
+  private int fill(byte[] buffer, int offset) throws IOException {
+    ByteBuffer target = ByteBuffer.wrap(buffer, offset, buffer.length - offset);
+    long readPosition = position + offset;
+    while (target.hasRemaining() && readPosition < size) {
+      int read = channel.read(target, readPosition);
+      if (read < 0) {
+        break;
+      }
+      readPosition += read;
+    }
+    return target.position() - offset;
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright  2019 - present. IAB Tech Lab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.media.adscert.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Hands out the lines of an input in chunks of whole lines, in input order. Buffers of released
+ * chunks are reused, so that memory is bounded by the number of chunks in flight.
+ */
+abstract class LineChunkSource implements Closeable {
+
+  final int chunkSize;
+  private final Queue<byte[]> freeBuffers = new ConcurrentLinkedQueue<>();
+
+  LineChunkSource(int chunkSize) {
+    this.chunkSize = chunkSize;
+  }
+
+  /**
+   * Reads the next chunk.
+   *
+   * @return {@link LineChunk}, or null at the end of the input
+   * @throws IOException if the input cannot be read
+   */
+  abstract LineChunk next() throws IOException;
+
+  /** Returns a buffer of the chunk size, reused if one was released. */
+  byte[] takeBuffer() {
+    byte[] buffer = freeBuffers.poll();
+    return buffer != null ? buffer : new byte[chunkSize];
+  }
+
+  private void release(byte[] buffer) {
+    if (buffer.length == chunkSize) {
+      freeBuffers.offer(buffer);
+    }
+  }
+
+  static int lastIndexOf(byte[] buffer, int length, byte value) {
+    for (int i = length - 1; i >= 0; i--) {
+      if (buffer[i] == value) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /** Whole lines of the input, between offset 0 and the length of the data. */
+  static final class LineChunk {
+
+    private final LineChunkSource source;
+    final byte[] data;
+    final int length;
+    /** Offset in the input after the last line of the chunk. */
+    final long end;
+
+    LineChunk(LineChunkSource source, byte[] data, int length, long end) {
+      this.source = source;
+      this.data = data;
+      this.length = length;
+      this.end = end;
+    }
+
+    /** Hands the buffer back for reuse; the chunk must not be used afterwards. */
+    void release() {
+      source.release(data);
+    }
+  }
+}
@@ -0,0 +1,437 @@
+/*
+ * Copyright  2019 - present. IAB Tech Lab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.media.adscert.service;
+
+import net.media.adscert.utils.DaemonThreadFactory;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Decompresses a gzip file, decoding its members in parallel where the file has many of them, as
+ * concatenated gzip files and block-gzip (BGZF) files do.
+ *
+ * <p>Member boundaries are not recorded in a gzip file, so they are guessed: the file is divided
+ * into segments, and each segment is searched for the first bytes that look like a member header.
+ * Decoder threads decode the members from such a candidate until one ends past the segment. A
+ * decoded segment is only used if it starts exactly where the members handed out so far end, which
+ * rules out candidates that merely looked like headers. Any part of the file not covered that way,
+ * e.g. a single member spanning many segments, is decoded on the reading thread instead, so the
+ * output is always that of a sequential decoder.
+ */
+class ParallelGzipInputStream extends InputStream {
+
+  private static final int HEADER_SLACK = 1 << 10;
+
+  private final FileChannel channel;
+  private final long size;
+  private final ExecutorService decoders;
+  private final int prefetch;
+  private final int segmentSize;
+  private final int maxSegmentOutput;
+  private final Deque<Segment> segments = new ArrayDeque<>();
+  private final MemberDecoder decoder;
+  private final byte[] scanBuffer;
+  private long nextSegment;
+  private long expected;
+  private boolean streaming;
+  private boolean ended;
+  private byte[] current = new byte[0];
+  private int currentPosition;
+  private int currentLength;
+
+  /**
+   * @param file gzip file to read
+   * @param parallelism number of decoder threads
+   * @param segmentSize number of compressed bytes per segment
+   * @param maxSegmentOutput number of decompressed bytes above which a segment is left to the
+   *     reading thread, bounding the memory used by segments decoded ahead
+   */
+  ParallelGzipInputStream(Path file, int parallelism, int segmentSize, int maxSegmentOutput)
+      throws IOException {
+    this.channel = FileChannel.open(file, StandardOpenOption.READ);
+    this.size = channel.size();
+    this.decoders =
+        Executors.newFixedThreadPool(
+            parallelism, new DaemonThreadFactory("adscert-gzip"));
+    this.prefetch = 2 * parallelism;
+    this.segmentSize = segmentSize;
+    this.maxSegmentOutput = maxSegmentOutput;
+    this.decoder = new MemberDecoder(channel);
+    this.scanBuffer = new byte[segmentSize + HEADER_SLACK];
+  }
+
+  /** Returns whether the file starts with the gzip magic bytes. */
+  static boolean isGzip(Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      ByteBuffer magic = ByteBuffer.allocate(2);
+      while (magic.hasRemaining() && channel.read(magic) >= 0) {}
+      return magic.position() == 2 && magic.get(0) == (byte) 0x1f && magic.get(1) == (byte) 0x8b;
+    }
+  }
+
+  @Override
+  public int read() throws IOException {
+    byte[] single = new byte[1];
+    return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int length) throws IOException {
+    if (length == 0) {
+      return 0;
+    }
+    while (true) {
+      if (currentPosition < currentLength) {
+        int count = Math.min(length, currentLength - currentPosition);
+        System.arraycopy(current, currentPosition, buffer, offset, count);
+        currentPosition += count;
+        return count;
+      }
+      if (streaming) {
+        int count = decoder.inflate(buffer, offset, length);
+        if (decoder.isFinished()) {
+          streaming = false;
+          expected = decoder.getEnd();
+        }
+        if (count > 0) {
+          return count;
+        }
+        continue;
+      }
+      if (ended) {
+        return -1;
+      }
+      schedule();
+      Decoded decoded = takeSegment();
+      if (decoded != null) {
+        current = decoded.data;
+        currentPosition = 0;
+        currentLength = decoded.length;
+        expected = decoded.end;
+        continue;
+      }
+      if (expected >= size || !decoder.start(expected)) {
+        if (expected == 0) {
+          throw new ZipException("Not in GZIP format");
+        }
+        // Like GZIPInputStream, bytes after the last member which are no member are ignored.
+        ended = true;
+        return -1;
+      }
+      streaming = true;
+    }
+  }
+
+  @Override
+  public long skip(long count) throws IOException {
+    byte[] discard = new byte[(int) Math.min(count, 1 << 16)];
+    long skipped = 0;
+    while (skipped < count) {
+      int read = read(discard, 0, (int) Math.min(discard.length, count - skipped));
+      if (read < 0) {
+        break;
+      }
+      skipped += read;
+    }
+    return skipped;
+  }
+
+  /** Searches the segments ahead of the reading position and submits their candidates. */
+  private void schedule() throws IOException {
+    long horizon = expected + (long) prefetch * segmentSize;
+    while (segments.size() < prefetch && nextSegment < size && nextSegment < horizon) {
+      final long limit = Math.min(nextSegment + segmentSize, size);
+      final long candidate = findCandidate(nextSegment, limit);
+      nextSegment = limit;
+      if (candidate >= expected) {
+        segments.addLast(
+            new Segment(candidate, decoders.submit(() -> decodeSegment(candidate, limit))));
+      }
+    }
+  }
+
+  /** Returns the decoded segment starting at the expected offset, if there is a usable one. */
+  private Decoded takeSegment() throws IOException {
+    while (!segments.isEmpty() && segments.peekFirst().start < expected) {
+      segments.removeFirst().output.cancel(false);
+    }
+    if (segments.isEmpty() || segments.peekFirst().start != expected) {
+      return null;
+    }
+    try {
+      return segments.removeFirst().output.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while decompressing");
+    } catch (ExecutionException e) {
+      return null;
+    }
+  }
+
+  private long findCandidate(long from, long to) throws IOException {
+    int length = read(channel, from, scanBuffer, (int) Math.min(scanBuffer.length, size - from));
+    int last = (int) (to - from);
+    for (int i = 0; i < last && i < length - 1; i++) {
+      if (scanBuffer[i] == (byte) 0x1f
+          && scanBuffer[i + 1] == (byte) 0x8b
+          && isLikelyHeader(scanBuffer, i, length - i)) {
+        return from + i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Decodes the members from the offset until one ends at or past the limit.
+   *
+   * @return {@link Decoded}, or null if the offset does not start a member or the output would
+   *     exceed the maximum
+   */
+  private Decoded decodeSegment(long start, long limit) {
+    MemberDecoder segmentDecoder = new MemberDecoder(channel);
+    try {
+      byte[] data = new byte[Math.min(maxSegmentOutput, Math.max(4 * segmentSize, 1 << 12))];
+      int length = 0;
+      long position = start;
+      do {
+        if (!segmentDecoder.start(position)) {
+          return null;
+        }
+        while (!segmentDecoder.isFinished()) {
+          if (length == data.length) {
+            if (length >= maxSegmentOutput) {
+              return null;
+            }
+            data = Arrays.copyOf(data, (int) Math.min(maxSegmentOutput, 2L * length));
+          }
+          length += segmentDecoder.inflate(data, length, data.length - length);
+        }
+        position = segmentDecoder.getEnd();
+      } while (position < limit);
+      return new Decoded(data, length, position);
+    } catch (IOException e) {
+      return null;
+    } finally {
+      segmentDecoder.close();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    for (Segment segment : segments) {
+      segment.output.cancel(false);
+    }
+    segments.clear();
+    decoders.shutdownNow();
+    decoder.close();
+    channel.close();
+  }
+
+  /** Reads up to the length of bytes at the offset, returning fewer only at the end of file. */
+  private static int read(FileChannel channel, long offset, byte[] buffer, int length)
+      throws IOException {
+    ByteBuffer target = ByteBuffer.wrap(buffer, 0, length);
+    while (target.hasRemaining()) {
+      if (channel.read(target, offset + target.position()) < 0) {
+        break;
+      }
+    }
+    return target.position();
+  }
+
+  /**
+   * Returns the length of the gzip header at the offset, or -1 if there is none which fits into
+   * the given number of bytes.
+   */
+  static int headerLength(byte[] buffer, int offset, int length) {
+    if (length < 10
+        || buffer[offset] != (byte) 0x1f
+        || buffer[offset + 1] != (byte) 0x8b
+        || buffer[offset + 2] != 8
+        || (buffer[offset + 3] & 0xe0) != 0) {
+      return -1;
+    }
+    int flags = buffer[offset + 3];
+    int position = 10;
+    if ((flags & 4) != 0) {
+      if (position + 2 > length) {
+        return -1;
+      }
+      int extraLength =
+          buffer[offset + position] & 0xff | (buffer[offset + position + 1] & 0xff) << 8;
+      position += 2 + extraLength;
+    }
+    for (int flag : new int[] {8, 16}) {
+      if ((flags & flag) != 0) {
+        while (position < length && buffer[offset + position] != 0) {
+          position++;
+        }
+        position++;
+      }
+    }
+    if ((flags & 2) != 0) {
+      position += 2;
+    }
+    return position <= length ? position : -1;
+  }
+
+  /** Header check for candidates, which also requires the values tools actually write. */
+  private static boolean isLikelyHeader(byte[] buffer, int offset, int length) {
+    if (headerLength(buffer, offset, length) < 0) {
+      return false;
+    }
+    int extraFlags = buffer[offset + 8] & 0xff;
+    int os = buffer[offset + 9] & 0xff;
+    return (extraFlags == 0 || extraFlags == 2 || extraFlags == 4) && (os <= 13 || os == 255);
+  }
+
+  private static final class Segment {
+
+    private final long start;
+    private final Future<Decoded> output;
+
+    private Segment(long start, Future<Decoded> output) {
+      this.start = start;
+      this.output = output;
+    }
+  }
+
+  /** Decompressed bytes of the members between the start of a segment and the end offset. */
+  private static final class Decoded {
+
+    private final byte[] data;
+    private final int length;
+    private final long end;
+
+    private Decoded(byte[] data, int length, long end) {
+      this.data = data;
+      this.length = length;
+      this.end = end;
+    }
+  }
+
+  /** Decodes single gzip members with positional reads, checking their trailers. */
+  private static final class MemberDecoder {
+
+    private final FileChannel channel;
+    private final Inflater inflater = new Inflater(true);
+    private final CRC32 crc = new CRC32();
+    private final byte[] input = new byte[1 << 16];
+    private long inputPosition;
+    private long end = -1;
+
+    private MemberDecoder(FileChannel channel) {
+      this.channel = channel;
+    }
+
+    /** Starts decoding the member at the offset; returns false if no gzip header is there. */
+    private boolean start(long offset) throws IOException {
+      int length = read(channel, offset, input, input.length);
+      int headerLength = headerLength(input, 0, length);
+      if (headerLength < 0) {
+        return false;
+      }
+      inflater.reset();
+      crc.reset();
+      inflater.setInput(input, headerLength, length - headerLength);
+      inputPosition = offset + length;
+      end = -1;
+      return true;
+    }
+
+    private boolean isFinished() {
+      return end >= 0;
+    }
+
+    /** Returns the offset after the trailer of the finished member. */
+    private long getEnd() {
+      return end;
+    }
+
+    /** Decompresses at least one byte unless the member ends. */
+    private int inflate(byte[] buffer, int offset, int length) throws IOException {
+      while (true) {
+        int count;
+        try {
+          count = inflater.inflate(buffer, offset, length);
+        } catch (DataFormatException e) {
+          throw new ZipException(e.getMessage());
+        }
+        crc.update(buffer, offset, count);
+        if (inflater.finished()) {
+          readTrailer();
+          return count;
+        }
+        if (count > 0) {
+          return count;
+        }
+        if (inflater.needsDictionary()) {
+          throw new ZipException("Unsupported preset dictionary");
+        }
+        if (inflater.needsInput()) {
+          int read = read(channel, inputPosition, input, input.length);
+          if (read == 0) {
+            throw new EOFException("Unexpected end of gzip input");
+          }
+          inflater.setInput(input, 0, read);
+          inputPosition += read;
+        }
+      }
+    }
+
+    private void readTrailer() throws IOException {
+      long trailer = inputPosition - inflater.getRemaining();
+      if (read(channel, trailer, input, 8) < 8) {
+        throw new EOFException("Unexpected end of gzip input");
+      }
+      if (readInt(0) != crc.getValue()
+          || readInt(4) != (inflater.getBytesWritten() & 0xffffffffL)) {
+        throw new ZipException("Corrupt gzip trailer");
+      }
+      end = trailer + 8;
+    }
+
+    private long readInt(int offset) {
+      return (input[offset] & 0xffL)
+          | (input[offset + 1] & 0xffL) << 8
+          | (input[offset + 2] & 0xffL) << 16
+          | (input[offset + 3] & 0xffL) << 24;
+    }
+
+    private void close() {
+      inflater.end();
+    }
+  }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright  2019 - present. IAB Tech Lab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.media.adscert.service;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Splits a stream of newline separated records into chunks holding whole lines, for inputs which
+ * cannot be read at arbitrary positions, e.g. decompressed ones. The partial line at the end of a
+ * chunk is carried over to the start of the next one.
+ */
+class StreamLineChunkReader extends LineChunkSource {
+
+  private final InputStream input;
+  private byte[] carry = new byte[0];
+  private int carryLength;
+  private long position;
+  private boolean ended;
+
+  /**
+   * @param input stream to read, closed with the reader
+   * @param chunkSize size of the chunks, which only lines longer than it exceed
+   * @param position number of bytes of the stream to skip, which must end a line
+   * @throws IOException if the stream cannot be read
+   */
+  StreamLineChunkReader(InputStream input, int chunkSize, long position) throws IOException {
+    super(chunkSize);
+    this.input = input;
+    this.position = position;
+    long remaining = position;
+    while (remaining > 0) {
+      long skipped = input.skip(remaining);
+      if (skipped <= 0) {
+        throw new EOFException("Input ends before offset " + position);
+      }
+      remaining -= skipped;
+    }
+  }
+
+  @Override
+  LineChunk next() throws IOException {
+    if (ended && carryLength == 0) {
+      return null;
+    }
+    byte[] buffer = takeBuffer();
+    if (carryLength > buffer.length) {
+      buffer = new byte[carryLength * 2];
+    }
+    System.arraycopy(carry, 0, buffer, 0, carryLength);
+    int length = carryLength;
+    carryLength = 0;
+    while (true) {
+      length += fill(buffer, length);
+      if (ended) {
+        if (length == 0) {
+          return null;
+        }
+        position += length;
+        return new LineChunk(this, buffer, length, position);
+      }
+      int newline = lastIndexOf(buffer, length, (byte) '\n');
+      if (newline >= 0) {
+        int end = newline + 1;
+        carryLength = length - end;
+        if (carry.length < carryLength) {
+          carry = new byte[Math.max(carryLength, chunkSize)];
+        }
+        System.arraycopy(buffer, end, carry, 0, carryLength);
+        position += end;
+        return new LineChunk(this, buffer, end, position);
+      }
+      buffer = Arrays.copyOf(buffer, buffer.length * 2);
+    }
+  }
+
+  private int fill(byte[] buffer, int offset) throws IOException {
+    int length = offset;
+    while (length < buffer.length) {
+      int read = input.read(buffer, length, buffer.length - length);
+      if (read < 0) {
+        ended = true;
+        break;
+      }
+      length += read;
+    }
+    return length - offset;
+  }
+
+  @Override
+  public void close() throws IOException {
+    input.close();
+  }
+}
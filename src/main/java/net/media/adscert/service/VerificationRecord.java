@@ -0,0 +1,73 @@
+/*
+ * Copyright  2019 - present. IAB Tech Lab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.media.adscert.service;
+
+import net.media.adscert.enums.Result;
+
+/**
+ * Outcome of the verification of one line of a file, handed to a {@link VerificationSink}. A
+ * record is reused from line to line; its values are only valid during {@link
+ * VerificationSink#write(VerificationRecord)}.
+ *
+ * @since 1.2
+ */
+public class VerificationRecord {
+
+  private long lineNumber;
+  private Result result;
+  private String domain;
+  private long verifyNanos;
+  private String error;
+
+  VerificationRecord() {}
+
+  void set(long lineNumber, Result result, String domain, long verifyNanos, String error) {
+    this.lineNumber = lineNumber;
+    this.result = result;
+    this.domain = domain;
+    this.verifyNanos = verifyNanos;
+    this.error = error;
+  }
+
+  /** @return number of the line in the input, starting at 1 */
+  public long getLineNumber() {
+    return lineNumber;
+  }
+
+  /** @return {@link Result} of the verification */
+  public Result getResult() {
+    return result;
+  }
+
+  /** @return domain of the site of the request, or null if the request has none */
+  public String getDomain() {
+    return domain;
+  }
+
+  /** @return time spent verifying the parsed request, in nanoseconds */
+  public long getVerifyNanos() {
+    return verifyNanos;
+  }
+
+  /**
+   * @return message of the exception raised while processing the line, e.g. because it is not
+   *     json, "null" if the exception has no message, or null if the line was verified
+   */
+  public String getError() {
+    return error;
+  }
+}
@@ -16,24 +16,55 @@
 
 package net.media.adscert.service;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.google.common.hash.HashCode;
+import net.media.adscert.cache.SignatureResultCache;
+import net.media.adscert.crypto.CryptoProvider;
+import net.media.adscert.crypto.ProviderBenchmark;
+import net.media.adscert.crypto.SignatureEngine;
 import net.media.adscert.enums.Result;
 import net.media.adscert.exceptions.InvalidDataException;
 import net.media.adscert.exceptions.ProcessException;
 import net.media.adscert.exceptions.VerificationServiceException;
+import net.media.adscert.fetch.KeyFailureCache;
+import net.media.adscert.fetch.KeyFetcher;
+import net.media.adscert.fetch.SingleFlight;
 import net.media.adscert.metrics.MetricsManager;
+import net.media.adscert.utils.DaemonThreadFactory;
 import net.media.adscert.utils.DigestUtil;
+import net.media.adscert.utils.OpenRtbFieldReader;
 import net.media.adscert.utils.SignatureUtil;
 import net.media.adscert.metrics.BlackholeMetricsManager;
 import net.media.openrtb3.OpenRTB3_X;
 import net.media.openrtb3.Source;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
 import java.security.PublicKey;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.ThreadLocalRandom;
-import java.util.function.Function;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.function.Supplier;
+import java.util.stream.IntStream;
 
 /**
  * A {@link VerificationService} provides means to verify digital signature.
@@ -47,15 +78,27 @@ import java.util.function.Supplier;
  */
 public class VerificationService {
 
-  private static final Supplier<Result> FAILURE_RESULT =
-      () -> new Result(Result.Status.FAILURE, "Processing Failure");
-  private static final Function<Exception, Result> FAILURE_WITH_EXCEPTION_RESULT =
-      e -> new Result(Result.Status.FAILURE, "Processing Failure", e);
-  private static final Supplier<Result> SUCCESS_RESULT = () -> new Result(Result.Status.SUCCESS, null);
-  private static final Supplier<Result> SAMPLED_RESULT = () -> new Result(Result.Status.SAMPLED, null);
+  /** Budget meaning that key resolution is awaited for as long as it takes. */
+  public static final long NO_KEY_RESOLUTION_BUDGET = -1;
   protected int samplingPercentage = 100;
   protected long messageExpiryTimeInMillis = 1000l;
   protected MetricsManager metricsManager = new BlackholeMetricsManager();
+  protected CryptoProvider cryptoProvider = CryptoProvider.DEFAULT;
+  protected SignatureEngine signatureEngine = SignatureEngine.getDefault();
+  protected ForkJoinPool batchPool = ForkJoinPool.commonPool();
+  protected SignatureResultCache resultCache;
+  protected long keyResolutionBudgetMillis = NO_KEY_RESOLUTION_BUDGET;
+  protected Executor keyResolutionExecutor;
+  protected boolean detailedFailures;
+  protected KeyFetcher keyFetcher = KeyFetcher.getDefault();
+  protected long keyLoadWaitCapMillis = SingleFlight.NO_WAIT_CAP;
+  protected KeyFailureCache keyFailureCache = KeyFailureCache.newBuilder().build();
+  /** Loads of keys missing in the cache, see {@link #loadPublicKey(String, Callable)}. */
+  protected final SingleFlight<String, PublicKey> keyLoads = new SingleFlight<>();
+  /** Background resolutions of keys exceeding the key resolution budget. */
+  private final SingleFlight<String, PublicKey> pendingKeys = new SingleFlight<>();
+  /** Resolves keys within the key resolution budget of the service. */
+  private final KeyResolver serviceKeys = url -> resolvePublicKey(url, keyResolutionBudgetMillis);
 
   public VerificationService() {}
 
@@ -92,8 +135,378 @@ public class VerificationService {
     return ThreadLocalRandom.current().nextInt(1, 101) <= samplingPercentage;
   }
 
+  public SignatureEngine getSignatureEngine() {
+    return signatureEngine;
+  }
+
+  public CryptoProvider getCryptoProvider() {
+    return cryptoProvider;
+  }
+
+  /**
+   * Selects the JCA provider used for signature verification. {@link CryptoProvider#AUTO} measures
+   * the available providers once per JVM and picks the fastest; the measured throughput is
+   * reported as {@link MetricsManager#CRYPTO_PROVIDER_THROUGHPUT}.
+   *
+   * <p>To plug in any other provider, use {@link #setSignatureEngine(SignatureEngine)}.
+   *
+   * @param cryptoProvider see {@link CryptoProvider}
+   */
+  public void setCryptoProvider(CryptoProvider cryptoProvider) {
+    if (cryptoProvider == null) {
+      throw new VerificationServiceException("CryptoProvider cannot be null");
+    }
+    if (!cryptoProvider.isAvailable()) {
+      throw new VerificationServiceException(
+          "Crypto provider " + cryptoProvider + " is not available");
+    }
+    this.signatureEngine = cryptoProvider.createEngine();
+    this.cryptoProvider = cryptoProvider;
+    if (cryptoProvider == CryptoProvider.AUTO) {
+      metricsManager.recordGauge(
+          MetricsManager.CRYPTO_PROVIDER_THROUGHPUT,
+          CryptoProvider.getAutoSelection().getOpsPerSecond());
+    }
+  }
+
+  /**
+   * Returns the measurement behind the provider chosen by {@link CryptoProvider#AUTO}.
+   *
+   * @return {@link ProviderBenchmark.Measurement}, or null if another provider is in use
+   */
+  public ProviderBenchmark.Measurement getCryptoProviderMeasurement() {
+    return cryptoProvider == CryptoProvider.AUTO ? CryptoProvider.getAutoSelection() : null;
+  }
+
+  /**
+   * Sets the engine used for every signature verification performed by this service. Use this to
+   * plug in a custom provider.
+   *
+   * @param signatureEngine see {@link SignatureEngine}
+   */
+  public void setSignatureEngine(SignatureEngine signatureEngine) {
+    if (signatureEngine == null) {
+      throw new VerificationServiceException("SignatureEngine cannot be null");
+    }
+    this.signatureEngine = signatureEngine;
+    this.cryptoProvider = CryptoProvider.CUSTOM;
+  }
+
+  public ForkJoinPool getBatchPool() {
+    return batchPool;
+  }
+
+  /**
+   * Sets the pool on which the signatures of batches are verified. Defaults to {@link
+   * ForkJoinPool#commonPool()}. The keys of batches are resolved on the key resolution executor
+   * instead, see {@link #setKeyResolutionExecutor(Executor)}.
+   *
+   * @param batchPool {@link ForkJoinPool} used by {@link #verifyBatch(List)}
+   */
+  public void setBatchPool(ForkJoinPool batchPool) {
+    if (batchPool == null) {
+      throw new VerificationServiceException("Batch pool cannot be null");
+    }
+    this.batchPool = batchPool;
+  }
+
+  public SignatureResultCache getResultCache() {
+    return resultCache;
+  }
+
+  /**
+   * Enables memoization of verification outcomes, so that duplicates of an already verified
+   * request are answered without running the signature verification again. Disabled by default.
+   *
+   * @param resultCache see {@link SignatureResultCache}, or null to disable memoization
+   */
+  public void setResultCache(SignatureResultCache resultCache) {
+    this.resultCache = resultCache;
+  }
+
+  public long getKeyResolutionBudgetMillis() {
+    return keyResolutionBudgetMillis;
+  }
+
+  /**
+   * Bounds the time a verification waits for a public key which is not cached. If the key cannot
+   * be resolved within the budget, a result with status {@link Result.Status#KEY_PENDING} is
+   * returned at once and the fetch goes on in the background to fill the cache. The budget only
+   * applies to keys resolved from a url, and it pays off only for services caching their keys,
+   * such as {@link net.media.adscert.cache.VerificationServiceGuavaCache}.
+   *
+   * @param keyResolutionBudgetMillis budget in milliseconds, or {@link #NO_KEY_RESOLUTION_BUDGET}
+   *     to wait for the key as long as it takes (default)
+   */
+  public void setKeyResolutionBudgetMillis(long keyResolutionBudgetMillis) {
+    if (keyResolutionBudgetMillis < 0 && keyResolutionBudgetMillis != NO_KEY_RESOLUTION_BUDGET) {
+      throw new VerificationServiceException("Key resolution budget should be greater than 0");
+    }
+    this.keyResolutionBudgetMillis = keyResolutionBudgetMillis;
+  }
+
+  /**
+   * Sets the executor on which keys exceeding the key resolution budget, and keys of batches
+   * missing in the cache, are fetched. Defaults to a shared pool of 64 daemon threads, queueing up
+   * to 1024 keys; a key rejected by the executor fails with {@link
+   * Result.FailureReason#KEY_UNAVAILABLE}.
+   *
+   * @param keyResolutionExecutor {@link Executor} for background key fetches
+   */
+  public void setKeyResolutionExecutor(Executor keyResolutionExecutor) {
+    if (keyResolutionExecutor == null) {
+      throw new VerificationServiceException("Key resolution executor cannot be null");
+    }
+    this.keyResolutionExecutor = keyResolutionExecutor;
+  }
+
+  public boolean isDetailedFailures() {
+    return detailedFailures;
+  }
+
+  /**
+   * Decides whether failed results carry an exception describing the failure. By default a failed
+   * result only carries its {@link Result.FailureReason}, so that rejecting malformed requests
+   * builds no exception, whose stack trace would dominate the cost of a flood of such requests.
+   *
+   * @param detailedFailures true to attach exceptions to failed results, e.g. while debugging
+   */
+  public void setDetailedFailures(boolean detailedFailures) {
+    this.detailedFailures = detailedFailures;
+  }
+
+  public KeyFetcher getKeyFetcher() {
+    return keyFetcher;
+  }
+
+  /**
+   * Sets the fetcher through which public keys are fetched from their urls. Defaults to {@link
+   * KeyFetcher#getDefault()}.
+   *
+   * @param keyFetcher {@link KeyFetcher} with the timeouts and concurrency limits to apply
+   */
+  public void setKeyFetcher(KeyFetcher keyFetcher) {
+    if (keyFetcher == null) {
+      throw new VerificationServiceException("Key fetcher cannot be null");
+    }
+    this.keyFetcher = keyFetcher;
+  }
+
+  public long getKeyLoadWaitCapMillis() {
+    return keyLoadWaitCapMillis;
+  }
+
+  /**
+   * Bounds the time a verification waits for a key which another thread is loading already. Only
+   * one load per key url is in flight at a time, whichever variant of the service and cache is
+   * used; concurrent verifications needing the same key share its outcome. A verification giving
+   * up fails with {@link Result.FailureReason#KEY_UNAVAILABLE} while the load goes on.
+   *
+   * @param keyLoadWaitCapMillis cap in milliseconds, or {@link SingleFlight#NO_WAIT_CAP} to wait
+   *     as long as the load takes (default)
+   */
+  public void setKeyLoadWaitCapMillis(long keyLoadWaitCapMillis) {
+    if (keyLoadWaitCapMillis < 0 && keyLoadWaitCapMillis != SingleFlight.NO_WAIT_CAP) {
+      throw new VerificationServiceException("Key load wait cap should be greater than 0");
+    }
+    this.keyLoadWaitCapMillis = keyLoadWaitCapMillis;
+  }
+
+  public KeyFailureCache getKeyFailureCache() {
+    return keyFailureCache;
+  }
+
+  /**
+   * Sets where failed key fetches are remembered. While a url is backing off after a failure,
+   * verifications needing its key fail with {@link Result.FailureReason#KEY_UNAVAILABLE} at once
+   * instead of fetching it again. Enabled with default settings of {@link KeyFailureCache}.
+   *
+   * @param keyFailureCache {@link KeyFailureCache}, or null to fetch failing urls on every request
+   */
+  public void setKeyFailureCache(KeyFailureCache keyFailureCache) {
+    this.keyFailureCache = keyFailureCache;
+  }
+
+  /**
+   * Builds the url from which the public key of the signing authority is fetched.
+   *
+   * @param domain domain of the site
+   * @param cert filename of the certificate
+   * @return url of the public key
+   */
+  protected static String getPublicKeyUrl(String domain, String cert) {
+    return "https://www." + domain + "/" + cert;
+  }
+
   public PublicKey getPublicKey(String url) throws IOException, GeneralSecurityException {
-    return SignatureUtil.getPublicKeyFromUrl(url);
+    return loadPublicKey(url, () -> keyFetcher.fetch(url));
+  }
+
+  /**
+   * Loads a key which is not cached, sharing the load with concurrent callers needing the same
+   * key, see {@link #setKeyLoadWaitCapMillis(long)}.
+   *
+   * @param url url of the public key
+   * @param loader loader of the key, called only if no load of the url is in flight
+   * @return {@link PublicKey}
+   * @throws IOException if the key cannot be fetched, the url is backing off after a failed fetch,
+   *     or the wait cap is exceeded
+   * @throws GeneralSecurityException if the key is not valid
+   */
+  protected PublicKey loadPublicKey(String url, Callable<? extends PublicKey> loader)
+      throws IOException, GeneralSecurityException {
+    return loadPublicKey(url, loader, keyLoads, keyLoadWaitCapMillis);
+  }
+
+  /**
+   * Loads a key which is not cached, sharing the load with the callers of the given {@link
+   * SingleFlight}.
+   *
+   * @param url url of the public key
+   * @param loader loader of the key, called only if no load of the url is in flight
+   * @param loads {@link SingleFlight} coalescing the loads
+   * @param waitCapMillis wait cap, or {@link SingleFlight#NO_WAIT_CAP}
+   * @return {@link PublicKey}
+   * @throws IOException if the key cannot be fetched, the url is backing off after a failed fetch,
+   *     or the wait cap is exceeded
+   * @throws GeneralSecurityException if the key is not valid
+   */
+  protected PublicKey loadPublicKey(
+      String url,
+      Callable<? extends PublicKey> loader,
+      SingleFlight<String, PublicKey> loads,
+      long waitCapMillis)
+      throws IOException, GeneralSecurityException {
+    checkKeyFailure(url);
+    try {
+      return loads.load(
+          url,
+          () -> {
+            PublicKey publicKey;
+            try {
+              publicKey = loader.call();
+            } catch (InterruptedException | TimeoutException e) {
+              // A load given up at a wait cap goes on; it is not a failure of the url.
+              throw e;
+            } catch (Exception e) {
+              recordKeyFailure(url, e);
+              throw e;
+            }
+            recordKeySuccess(url);
+            return publicKey;
+          },
+          waitCapMillis);
+    } catch (IOException | GeneralSecurityException | RuntimeException e) {
+      throw e;
+    } catch (TimeoutException e) {
+      throw new IOException("Timed out waiting for the key load of " + url, e);
+    } catch (Exception e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * Fails if the url is backing off after a failed fetch, see {@link
+   * #setKeyFailureCache(KeyFailureCache)}.
+   *
+   * @param url url of the public key
+   * @throws IOException caused by the failure of the last fetch
+   */
+  protected void checkKeyFailure(String url) throws IOException {
+    KeyFailureCache failures = keyFailureCache;
+    Exception failure = failures == null ? null : failures.getFailure(url);
+    if (failure != null) {
+      throw new IOException(
+          "Fetch of "
+              + url
+              + " failed, retrying in "
+              + failures.getRemainingBackoff(url).toMillis()
+              + " ms",
+          failure);
+    }
+  }
+
+  /**
+   * Records a failed fetch of a key, unless failures are not remembered. A fetch failing because
+   * its caller was interrupted is not a failure of the url, and is not recorded.
+   *
+   * @param url url of the public key
+   * @param cause why the fetch failed
+   */
+  protected void recordKeyFailure(String url, Exception cause) {
+    KeyFailureCache failures = keyFailureCache;
+    if (failures == null) {
+      return;
+    }
+    for (Throwable e = cause; e != null; e = e.getCause()) {
+      if (e instanceof InterruptedException) {
+        return;
+      }
+    }
+    failures.recordFailure(url, cause);
+  }
+
+  /**
+   * Records a successful fetch of a key, unless failures are not remembered.
+   *
+   * @param url url of the public key
+   */
+  protected void recordKeySuccess(String url) {
+    KeyFailureCache failures = keyFailureCache;
+    if (failures != null) {
+      failures.recordSuccess(url);
+    }
+  }
+
+  /**
+   * Returns the public key if it can be had without fetching it, e.g. from a cache. The base
+   * service does not cache keys and always returns null.
+   *
+   * @param url url of the public key
+   * @return {@link PublicKey}, or null if resolving the key requires a fetch
+   */
+  protected PublicKey getPublicKeyIfPresent(String url) {
+    return null;
+  }
+
+  /**
+   * Resolves a public key within the given budget. A key that cannot be resolved in time keeps
+   * being fetched in the background, where concurrent requests for the same url share one fetch.
+   *
+   * @param url url of the public key
+   * @param budgetMillis see {@link #setKeyResolutionBudgetMillis(long)}
+   * @return {@link PublicKey}
+   * @throws Exception {@link KeyUnavailableException} if the key cannot be resolved, {@link
+   *     KeyPendingException} if it was not resolved within the budget
+   */
+  private PublicKey resolvePublicKey(String url, long budgetMillis) throws Exception {
+    if (budgetMillis == NO_KEY_RESOLUTION_BUDGET) {
+      try {
+        return getPublicKey(url);
+      } catch (Exception e) {
+        throw new KeyUnavailableException(e);
+      }
+    }
+    PublicKey publicKey = getPublicKeyIfPresent(url);
+    if (publicKey != null) {
+      return publicKey;
+    }
+    try {
+      checkKeyFailure(url);
+    } catch (IOException e) {
+      throw new KeyUnavailableException(e);
+    }
+    Executor executor =
+        keyResolutionExecutor != null ? keyResolutionExecutor : KeyResolutionPool.EXECUTOR;
+    CompletableFuture<PublicKey> pending =
+        pendingKeys.loadAsync(url, () -> getPublicKey(url), executor);
+    try {
+      return pending.get(budgetMillis, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      throw KeyPendingException.INSTANCE;
+    } catch (ExecutionException e) {
+      throw new KeyUnavailableException(e.getCause());
+    }
   }
 
   /**
@@ -102,30 +515,37 @@ public class VerificationService {
    * @param publicKeyURL url of the public key of the signing authority
    * @param ds digital signature in the request
    * @param digest a string with concatenated field and value pairs (f1=v1&f2=v2)
+   * @param keys resolves the public key from its url
    * @return see {@link Result}
    * @throws InvalidDataException if the parameters are null or empty
    * @throws ProcessException if an exception is thrown during the verification process
    */
-  private Result verifyRequest(String publicKeyURL, String ds, String digest)
+  private Result verifyRequest(String publicKeyURL, String ds, String digest, KeyResolver keys)
       throws InvalidDataException, ProcessException {
     if (ds == null || ds.length() == 0) {
-      return new Result(Result.Status.FAILURE, "Digital Signature is empty");
+      return failure(Result.FailureReason.MISSING_SIGNATURE);
     }
     if (digest == null || digest.length() == 0) {
-      return new Result(Result.Status.FAILURE, "Digest is empty");
+      return failure(Result.FailureReason.MISSING_DIGEST);
     }
     try {
       if (publicKeyURL == null || publicKeyURL.isEmpty()) {
-        return new Result(Result.Status.FAILURE, "Filename of certificate is empty");
+        return failure(Result.FailureReason.MISSING_CERTIFICATE);
       }
-      PublicKey publicKey = getPublicKey(publicKeyURL);
-      final boolean status = SignatureUtil.verifySign(publicKey, digest, ds);
+      final boolean status =
+          verifySign(
+              () -> SignatureResultCache.key(publicKeyURL, digest, ds),
+              () ->
+                  SignatureUtil.verifySign(
+                      signatureEngine, keys.resolve(publicKeyURL), digest, ds));
       if (status) {
-        return SUCCESS_RESULT.get();
+        return Result.SUCCESS;
       }
-      return FAILURE_RESULT.get();
+      return failure(Result.FailureReason.SIGNATURE_MISMATCH);
+    } catch (KeyPendingException e) {
+      return Result.KEY_PENDING;
     } catch (Exception e) {
-      return FAILURE_WITH_EXCEPTION_RESULT.apply(e);
+      return failure(e);
     }
   }
 
@@ -144,23 +564,27 @@ public class VerificationService {
   public Result verifyRequest(
       String publicKeyURL, String dsMap, String ds, Map<String, Object> digestFieldMap)
       throws InvalidDataException, ProcessException {
-    Result result = FAILURE_RESULT.get();
+    Result result = null;
     if (digestFieldMap == null || digestFieldMap.size() == 0) {
-      return new Result(Result.Status.FAILURE, "digestFieldMap is empty");
+      return failure(Result.FailureReason.MISSING_DIGEST_FIELDS);
     }
     try {
       if (publicKeyURL == null || publicKeyURL.isEmpty()) {
-        return new Result(Result.Status.FAILURE, "Filename of certificate is empty");
+        return failure(Result.FailureReason.MISSING_CERTIFICATE);
       }
       if (!toConsider()) {
-        result = SAMPLED_RESULT.get();
+        result = Result.SAMPLED;
+        return result;
+      }
+      String digest = DigestUtil.tryGetDigestFromDsMap(dsMap, digestFieldMap);
+      if (digest == null) {
+        result = badDsMap(dsMap, digestFieldMap);
         return result;
       }
-      String digest = DigestUtil.getDigestFromDsMap(dsMap, digestFieldMap);
-      result = verifyRequest(publicKeyURL, ds, digest);
+      result = verifyRequest(publicKeyURL, ds, digest, serviceKeys);
       return result;
     } catch (Exception e) {
-      result = FAILURE_WITH_EXCEPTION_RESULT.apply(e);
+      result = failure(e);
       return result;
     } finally {
       if (digestFieldMap != null && result != null) {
@@ -184,31 +608,35 @@ public class VerificationService {
   public Result verifyRequest(
       PublicKey publicKey, String dsMap, String ds, Map<String, Object> digestFieldMap)
       throws InvalidDataException, ProcessException {
-    Result result = FAILURE_RESULT.get();
+    Result result = null;
 
     if (dsMap == null || dsMap.isEmpty()) {
       throw new InvalidDataException("DsMap cannot be empty");
     }
     try {
       if (ds == null || ds.length() == 0) {
-        result.setMessage("Digital Signature is empty");
+        result = failure(Result.FailureReason.MISSING_SIGNATURE);
         return result;
       }
 
       if (publicKey == null) {
-        result.setMessage("Filename of certificate is empty");
+        result = failure(Result.FailureReason.MISSING_CERTIFICATE);
         return result;
       }
 
       if (!toConsider()) {
-        result = SAMPLED_RESULT.get();
+        result = Result.SAMPLED;
+        return result;
+      }
+      String digest = DigestUtil.tryGetDigestFromDsMap(dsMap, digestFieldMap);
+      if (digest == null) {
+        result = badDsMap(dsMap, digestFieldMap);
         return result;
       }
-      String digest = DigestUtil.getDigestFromDsMap(dsMap, digestFieldMap);
       result = verifyRequest(publicKey, ds, digest);
       return result;
     } catch (Exception e) {
-      result = FAILURE_WITH_EXCEPTION_RESULT.apply(e);
+      result = failure(e);
       return result;
     } finally {
       if (digestFieldMap != null && result != null) {
@@ -229,20 +657,178 @@ public class VerificationService {
    */
   private Result verifyRequest(PublicKey publicKey, String ds, String digest)
       throws InvalidDataException, ProcessException {
+    if (ds == null || ds.length() == 0) {
+      return failure(Result.FailureReason.MISSING_SIGNATURE);
+    }
     if (digest == null || digest.length() == 0) {
-      throw new InvalidDataException("Digest is empty");
+      return failure(Result.FailureReason.MISSING_DIGEST);
     }
     try {
-      boolean status = SignatureUtil.verifySign(publicKey, digest, ds);
+      boolean status =
+          verifySign(
+              () -> SignatureResultCache.key(publicKey, digest, ds),
+              () -> SignatureUtil.verifySign(signatureEngine, publicKey, digest, ds));
       if (status) {
-        return SUCCESS_RESULT.get();
+        return Result.SUCCESS;
+      }
+      return failure(Result.FailureReason.SIGNATURE_MISMATCH);
+    } catch (Exception e) {
+      return failure(e);
+    }
+  }
+
+  /**
+   * Verifies the digital signature using public key url and the digest as bytes. See {@link
+   * #verifyRequest(PublicKey, ByteBuffer, ByteBuffer)}.
+   *
+   * @param publicKeyURL url of the public key of the signing authority
+   * @param ds base64 encoded digital signature (DER or raw r||s) between position and limit
+   * @param digest UTF-8 bytes of the digest (f1=v1&amp;f2=v2) between position and limit
+   * @return see {@link Result}
+   */
+  public Result verifyRequest(String publicKeyURL, ByteBuffer ds, ByteBuffer digest) {
+    if (publicKeyURL == null || publicKeyURL.isEmpty()) {
+      return failure(Result.FailureReason.MISSING_CERTIFICATE);
+    }
+    if (ds == null || !ds.hasRemaining()) {
+      return failure(Result.FailureReason.MISSING_SIGNATURE);
+    }
+    if (digest == null || !digest.hasRemaining()) {
+      return failure(Result.FailureReason.MISSING_DIGEST);
+    }
+    if (!toConsider()) {
+      return Result.SAMPLED;
+    }
+    try {
+      if (verifySign(
+          () -> SignatureResultCache.key(publicKeyURL, digest, ds),
+          () ->
+              SignatureUtil.verifySign(
+                  signatureEngine,
+                  resolvePublicKey(publicKeyURL, keyResolutionBudgetMillis),
+                  digest,
+                  ds))) {
+        return Result.SUCCESS;
+      }
+      return failure(Result.FailureReason.SIGNATURE_MISMATCH);
+    } catch (KeyPendingException e) {
+      return Result.KEY_PENDING;
+    } catch (Exception e) {
+      return failure(e);
+    } finally {
+      consume(ds, digest);
+    }
+  }
+
+  /**
+   * Verifies the digital signature using {@link PublicKey} and the digest as bytes.
+   *
+   * <p>Neither buffer is copied and both are consumed. The signature is base64 decoded into a
+   * buffer reused by the calling thread and may be DER encoded or raw r||s (IEEE P1363), so that
+   * no garbage is created per request.
+   *
+   * @param publicKey {@link PublicKey} of the signing authority
+   * @param ds base64 encoded digital signature (DER or raw r||s) between position and limit
+   * @param digest UTF-8 bytes of the digest (f1=v1&amp;f2=v2) between position and limit
+   * @return see {@link Result}
+   */
+  public Result verifyRequest(PublicKey publicKey, ByteBuffer ds, ByteBuffer digest) {
+    if (publicKey == null) {
+      return failure(Result.FailureReason.MISSING_CERTIFICATE);
+    }
+    if (ds == null || !ds.hasRemaining()) {
+      return failure(Result.FailureReason.MISSING_SIGNATURE);
+    }
+    if (digest == null || !digest.hasRemaining()) {
+      return failure(Result.FailureReason.MISSING_DIGEST);
+    }
+    if (!toConsider()) {
+      return Result.SAMPLED;
+    }
+    try {
+      if (verifySign(
+          () -> SignatureResultCache.key(publicKey, digest, ds),
+          () -> SignatureUtil.verifySign(signatureEngine, publicKey, digest, ds))) {
+        return Result.SUCCESS;
+      }
+      return failure(Result.FailureReason.SIGNATURE_MISMATCH);
+    } catch (Exception e) {
+      return failure(e);
+    } finally {
+      consume(ds, digest);
+    }
+  }
+
+  /**
+   * Runs a signature verification, memoized by the result cache if enabled.
+   *
+   * @param cacheKey key of the verification in the result cache, computed only if enabled
+   * @param verification verification of the signature
+   * @return whether the signature is valid
+   * @throws Exception thrown by the verification
+   */
+  private boolean verifySign(Supplier<HashCode> cacheKey, Callable<Boolean> verification)
+      throws Exception {
+    if (resultCache == null) {
+      return verification.call();
+    }
+    return resultCache.verify(cacheKey.get(), verification, metricsManager);
+  }
+
+  /** Same as {@link #verifyRequest(String, String, String, KeyResolver)}, on an encoded digest. */
+  private Result verifyEncodedDigest(
+      String publicKeyURL, String ds, ByteBuffer digest, KeyResolver keys) {
+    if (ds == null || ds.length() == 0) {
+      return failure(Result.FailureReason.MISSING_SIGNATURE);
+    }
+    if (!digest.hasRemaining()) {
+      return failure(Result.FailureReason.MISSING_DIGEST);
+    }
+    try {
+      if (publicKeyURL == null || publicKeyURL.isEmpty()) {
+        return failure(Result.FailureReason.MISSING_CERTIFICATE);
+      }
+      if (verifySign(
+          () -> SignatureResultCache.key(publicKeyURL, digest, ds),
+          () ->
+              SignatureUtil.verifySign(
+                  signatureEngine, keys.resolve(publicKeyURL), digest, ds))) {
+        return Result.SUCCESS;
+      }
+      return failure(Result.FailureReason.SIGNATURE_MISMATCH);
+    } catch (KeyPendingException e) {
+      return Result.KEY_PENDING;
+    } catch (Exception e) {
+      return failure(e);
+    }
+  }
+
+  /** Same as {@link #verifyRequest(PublicKey, String, String)}, on an encoded digest. */
+  private Result verifyEncodedDigest(PublicKey publicKey, String ds, ByteBuffer digest) {
+    if (ds == null || ds.length() == 0) {
+      return failure(Result.FailureReason.MISSING_SIGNATURE);
+    }
+    if (!digest.hasRemaining()) {
+      return failure(Result.FailureReason.MISSING_DIGEST);
+    }
+    try {
+      if (verifySign(
+          () -> SignatureResultCache.key(publicKey, digest, ds),
+          () -> SignatureUtil.verifySign(signatureEngine, publicKey, digest, ds))) {
+        return Result.SUCCESS;
       }
-      return FAILURE_RESULT.get();
+      return failure(Result.FailureReason.SIGNATURE_MISMATCH);
     } catch (Exception e) {
-      return FAILURE_WITH_EXCEPTION_RESULT.apply(e);
+      return failure(e);
     }
   }
 
+  /** Buffers are consumed whether their outcome came from the result cache or not. */
+  private static void consume(ByteBuffer ds, ByteBuffer digest) {
+    ds.position(ds.limit());
+    digest.position(digest.limit());
+  }
+
   /**
    * Verifies an {@link OpenRTB3_X} request.
    *
@@ -307,8 +893,62 @@ public class VerificationService {
   public Result verifyRequest(
       OpenRTB3_X openRTB, Boolean debug, PublicKey publicKey, boolean checkMessageExpiry)
       throws InvalidDataException, ProcessException {
-    Result result = new Result(Result.Status.FAILURE, "Processing Failure");
+    return verifyRequest(openRTB, debug, publicKey, checkMessageExpiry, serviceKeys);
+  }
+
+  /**
+   * Verifies an {@link OpenRTB3_X} request, waiting at most the given budget for its public key.
+   * See {@link #setKeyResolutionBudgetMillis(long)}.
+   *
+   * @param openRTB {@link OpenRTB3_X} request
+   * @param debug a boolean used to decide whether the digest from {@link OpenRTB3_X} should be used
+   *     or not
+   * @param checkMessageExpiry flag to decide whether message expiry checks be performed or not
+   * @param keyResolutionBudgetMillis budget for resolving the public key of this request,
+   *     overriding the budget of the service
+   * @return see {@link Result}, with status {@link Result.Status#KEY_PENDING} if the key could not
+   *     be resolved within the budget
+   * @throws InvalidDataException if the parameters are null or empty
+   * @throws ProcessException if an exception is thrown during the verification process
+   */
+  public Result verifyRequest(
+      OpenRTB3_X openRTB, Boolean debug, boolean checkMessageExpiry, long keyResolutionBudgetMillis)
+      throws InvalidDataException, ProcessException {
+    if (keyResolutionBudgetMillis < 0 && keyResolutionBudgetMillis != NO_KEY_RESOLUTION_BUDGET) {
+      throw new InvalidDataException("Key resolution budget should be greater than 0");
+    }
+    return verifyRequest(
+        openRTB,
+        debug,
+        null,
+        checkMessageExpiry,
+        keyResolutionBudgetMillis == this.keyResolutionBudgetMillis
+            ? serviceKeys
+            : url -> resolvePublicKey(url, keyResolutionBudgetMillis));
+  }
 
+  private Result verifyRequest(
+      OpenRTB3_X openRTB,
+      Boolean debug,
+      PublicKey publicKey,
+      boolean checkMessageExpiry,
+      KeyResolver keys)
+      throws InvalidDataException, ProcessException {
+    Result result = screen(openRTB, checkMessageExpiry);
+    return result != null ? result : verifySignature(openRTB, debug, publicKey, keys);
+  }
+
+  /**
+   * Answers a request which is not verified: sampled out, expired or without a timestamp to check
+   * the expiry with.
+   *
+   * @param openRTB {@link OpenRTB3_X} request
+   * @param checkMessageExpiry flag to decide whether message expiry checks be performed or not
+   * @return see {@link Result}, or null if the signature of the request is to be verified
+   * @throws InvalidDataException if the request lacks required objects
+   */
+  private Result screen(OpenRTB3_X openRTB, boolean checkMessageExpiry)
+      throws InvalidDataException {
     if (openRTB == null) {
       throw new InvalidDataException("OpenRTB3_X object is null");
     }
@@ -323,43 +963,73 @@ public class VerificationService {
       throw new InvalidDataException("OpenRTB3_X.Request.Source is null");
     }
 
-    Map<String, Object> map = null;
-    try {
-      if (!toConsider()) {
-        result.setMessage(null);
-        result.setStatus(Result.Status.SAMPLED);
-        return result;
+    if (!toConsider()) {
+      return Result.SAMPLED;
+    }
+    if (checkMessageExpiry) {
+      if (source.getTs() == null) {
+        return failure(Result.FailureReason.INVALID_DATA);
       }
-      if (checkMessageExpiry) {
-        long diff = System.currentTimeMillis() - openRTB.getRequest().getSource().getTs();
-        if (diff > messageExpiryTimeInMillis) {
-          result =
-              new Result(
-                  Result.Status.FAILURE,
-                  "Message has expired",
-                  new ProcessException("Message has expired. Time Difference (in millis):" + diff));
-          return result;
-        }
+      long diff = System.currentTimeMillis() - source.getTs();
+      if (diff > messageExpiryTimeInMillis) {
+        return detailedFailures
+            ? new Result(
+                Result.FailureReason.MESSAGE_EXPIRED,
+                new ProcessException("Message has expired. Time Difference (in millis):" + diff))
+            : failure(Result.FailureReason.MESSAGE_EXPIRED);
       }
+    }
+    return null;
+  }
 
-      String cert = source.getCert();
-      String domain = openRTB.getRequest().getContext().getSite().getDomain();
+  /**
+   * Verifies the signature of a request which passed {@link #screen(OpenRTB3_X, boolean)}.
+   *
+   * @param openRTB {@link OpenRTB3_X} request
+   * @param debug a boolean used to decide whether the digest from {@link OpenRTB3_X} should be used
+   *     or not
+   * @param publicKey {@link PublicKey} of the signing authority, or null to resolve it from its url
+   * @param keys resolves the public key from its url
+   * @return see {@link Result}
+   */
+  private Result verifySignature(
+      OpenRTB3_X openRTB, Boolean debug, PublicKey publicKey, KeyResolver keys) {
+    Source source = openRTB.getRequest().getSource();
+    Result result = null;
+    Map<String, Object> map = null;
+    try {
       String ds = source.getDs();
       String dsMap = source.getDsmap();
 
+      if (!debug && !metricsManager.recordsDigestFields()) {
+        // Nobody looks at the digest fields, so the digest is encoded without collecting them.
+        ByteBuffer digest = DigestUtil.tryEncodeDigest(openRTB);
+        if (digest == null) {
+          result = badDsMap(openRTB);
+        } else if (publicKey != null) {
+          result = verifyEncodedDigest(publicKey, ds, digest);
+        } else {
+          result = verifyEncodedDigest(getPublicKeyUrl(openRTB), ds, digest, keys);
+        }
+        return result;
+      }
+
       String digest;
       if (debug) {
-        digest = DigestUtil.getDigest(openRTB);
+        digest = source.getDigest();
       } else {
-        map = DigestUtil.getDigestFromDsMap(openRTB);
+        map = DigestUtil.tryGetDigestFromDsMap(openRTB);
+        if (map == null) {
+          result = badDsMap(openRTB);
+          return result;
+        }
         digest = DigestUtil.getDigestFromDsMap(dsMap, map);
       }
 
       if (publicKey != null) {
         result = verifyRequest(publicKey, ds, digest);
       } else {
-        String publicKeyUrlToUse = "https://www." + domain + "/" + cert;
-        result = verifyRequest(publicKeyUrlToUse, ds, digest);
+        result = verifyRequest(getPublicKeyUrl(openRTB), ds, digest, keys);
       }
       return result;
     } finally {
@@ -368,4 +1038,468 @@ public class VerificationService {
       }
     }
   }
+
+  /**
+   * Verifies an {@link OpenRTB3_X} request given as raw json. See {@link #verifyRequest(byte[],
+   * Boolean, boolean)}.
+   *
+   * @param json UTF-8 encoded json of an {@link OpenRTB3_X} object
+   * @return see {@link Result}
+   * @throws InvalidDataException if the json is malformed or lacks required objects
+   * @throws ProcessException if an exception is thrown during the verification process
+   */
+  public Result verifyRequest(byte[] json) throws InvalidDataException, ProcessException {
+    return verifyRequest(json, false, false);
+  }
+
+  /**
+   * Verifies an {@link OpenRTB3_X} request given as raw json, without binding the whole request.
+   * Only the fields needed for verification are read, see {@link OpenRtbFieldReader}.
+   *
+   * @param json UTF-8 encoded json of an {@link OpenRTB3_X} object
+   * @param debug a boolean used to decide whether the digest from {@link OpenRTB3_X} should be used
+   *     or not
+   * @param checkMessageExpiry flag to decide whether message expiry checks be performed or not
+   * @return see {@link Result}
+   * @throws InvalidDataException if the json is malformed or lacks required objects
+   * @throws ProcessException if an exception is thrown during the verification process
+   */
+  public Result verifyRequest(byte[] json, Boolean debug, boolean checkMessageExpiry)
+      throws InvalidDataException, ProcessException {
+    if (json == null) {
+      throw new InvalidDataException("OpenRTB3_X json is null");
+    }
+    OpenRTB3_X openRTB;
+    try {
+      openRTB = OpenRtbFieldReader.read(json);
+    } catch (IOException e) {
+      throw new InvalidDataException("Unable to parse OpenRTB3_X json", e);
+    }
+    return verifyRequest(openRTB, debug, null, checkMessageExpiry);
+  }
+
+  /**
+   * Verifies an {@link OpenRTB3_X} request read from a stream. See {@link #verifyRequest(byte[],
+   * Boolean, boolean)}.
+   *
+   * @param json stream of the UTF-8 encoded json of an {@link OpenRTB3_X} object, read up to the end
+   *     of the object and not closed
+   * @return see {@link Result}
+   * @throws InvalidDataException if the json is malformed or lacks required objects
+   * @throws ProcessException if the stream cannot be read or an exception is thrown during the
+   *     verification process
+   */
+  public Result verifyRequest(InputStream json) throws InvalidDataException, ProcessException {
+    return verifyRequest(json, false, false);
+  }
+
+  /**
+   * Verifies an {@link OpenRTB3_X} request read from a stream. See {@link #verifyRequest(byte[],
+   * Boolean, boolean)}.
+   *
+   * @param json stream of the UTF-8 encoded json of an {@link OpenRTB3_X} object, read up to the end
+   *     of the object and not closed
+   * @param debug a boolean used to decide whether the digest from {@link OpenRTB3_X} should be used
+   *     or not
+   * @param checkMessageExpiry flag to decide whether message expiry checks be performed or not
+   * @return see {@link Result}
+   * @throws InvalidDataException if the json is malformed or lacks required objects
+   * @throws ProcessException if the stream cannot be read or an exception is thrown during the
+   *     verification process
+   */
+  public Result verifyRequest(InputStream json, Boolean debug, boolean checkMessageExpiry)
+      throws InvalidDataException, ProcessException {
+    if (json == null) {
+      throw new InvalidDataException("OpenRTB3_X json is null");
+    }
+    OpenRTB3_X openRTB;
+    try {
+      openRTB = OpenRtbFieldReader.read(json);
+    } catch (JsonProcessingException e) {
+      throw new InvalidDataException("Unable to parse OpenRTB3_X json", e);
+    } catch (IOException e) {
+      throw new ProcessException("Unable to read OpenRTB3_X json", e);
+    }
+    return verifyRequest(openRTB, debug, null, checkMessageExpiry);
+  }
+
+  /**
+   * Verifies a batch of {@link OpenRTB3_X} requests. See {@link #verifyBatch(List, Boolean,
+   * boolean)}.
+   *
+   * @param openRTBs list of {@link OpenRTB3_X} requests
+   * @return results in the order of the requests
+   */
+  public List<Result> verifyBatch(List<OpenRTB3_X> openRTBs) {
+    return verifyBatch(openRTBs, false, false);
+  }
+
+  /**
+   * Verifies a batch of {@link OpenRTB3_X} requests.
+   *
+   * <p>Requests are sampled and checked for expiry first. The remaining signed requests are grouped
+   * by the url of their public key, each distinct key is resolved once, in parallel on the key
+   * resolution executor (see {@link #setKeyResolutionExecutor(Executor)}), and the signatures are
+   * then verified in parallel on the batch pool (see {@link #setBatchPool(ForkJoinPool)}). The
+   * batch waits for the keys at most the key resolution budget (see {@link
+   * #setKeyResolutionBudgetMillis(long)}); requests whose key is not resolved in time have status
+   * {@link Result.Status#KEY_PENDING}. Unlike {@link #verifyRequest(OpenRTB3_X, Boolean, PublicKey,
+   * boolean)}, a request which cannot be processed does not fail the batch; its result has status
+   * {@link Result.Status#FAILURE} and a {@link Result.FailureReason}, as if it was verified alone.
+   *
+   * @param openRTBs list of {@link OpenRTB3_X} requests
+   * @param debug a boolean used to decide whether the digest from {@link OpenRTB3_X} should be used
+   *     or not
+   * @param checkMessageExpiry flag to decide whether message expiry checks be performed or not
+   * @return results in the order of the requests
+   */
+  public List<Result> verifyBatch(
+      List<OpenRTB3_X> openRTBs, Boolean debug, boolean checkMessageExpiry) {
+    if (openRTBs == null) {
+      throw new InvalidDataException("List of OpenRTB3_X objects is null");
+    }
+    final OpenRTB3_X[] requests = openRTBs.toArray(new OpenRTB3_X[0]);
+    final Result[] results = new Result[requests.length];
+    final Set<String> urls = new HashSet<>();
+    for (int i = 0; i < requests.length; i++) {
+      // Sampled out, expired and unsigned requests are answered without resolving their key.
+      try {
+        results[i] = screen(requests[i], checkMessageExpiry);
+      } catch (Exception e) {
+        results[i] = failure(e);
+      }
+      String ds = results[i] == null ? requests[i].getRequest().getSource().getDs() : null;
+      if (ds != null && !ds.isEmpty()) {
+        urls.add(getPublicKeyUrl(requests[i]));
+      }
+    }
+    urls.remove(null);
+
+    // Keys missing in the cache may be fetched over the network, which must not block the
+    // threads of the batch pool; they are resolved on the key resolution executor.
+    final Map<String, PublicKey> keys = new HashMap<>();
+    final Map<String, Exception> keyFailures = new HashMap<>();
+    Map<String, CompletableFuture<PublicKey>> resolutions = new HashMap<>();
+    for (String url : urls) {
+      PublicKey publicKey = getPublicKeyIfPresent(url);
+      if (publicKey != null) {
+        keys.put(url, publicKey);
+      } else {
+        resolutions.put(url, resolveInBackground(url));
+      }
+    }
+    long budgetMillis = keyResolutionBudgetMillis;
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(budgetMillis, 0));
+    resolutions.forEach(
+        (url, resolution) -> {
+          try {
+            keys.put(
+                url,
+                budgetMillis == NO_KEY_RESOLUTION_BUDGET
+                    ? resolution.get()
+                    : resolution.get(
+                        Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS));
+          } catch (TimeoutException e) {
+            keyFailures.put(url, KeyPendingException.INSTANCE);
+          } catch (ExecutionException e) {
+            keyFailures.put(url, new KeyUnavailableException(e.getCause()));
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            keyFailures.put(url, new KeyUnavailableException(e));
+          }
+        });
+    // The outcomes are classified as those of single requests.
+    final KeyResolver batchKeys =
+        url -> {
+          Exception keyFailure = keyFailures.get(url);
+          if (keyFailure != null) {
+            throw keyFailure;
+          }
+          return keys.get(url);
+        };
+
+    batchPool
+        .submit(
+            () -> {
+              IntStream.range(0, requests.length)
+                  .parallel()
+                  .filter(i -> results[i] == null)
+                  .forEach(
+                      i -> {
+                        try {
+                          results[i] = verifySignature(requests[i], debug, null, batchKeys);
+                        } catch (Exception e) {
+                          results[i] = failure(e);
+                        }
+                      });
+            })
+        .join();
+    return Arrays.asList(results);
+  }
+
+  private CompletableFuture<PublicKey> resolveInBackground(String url) {
+    Executor executor =
+        keyResolutionExecutor != null ? keyResolutionExecutor : KeyResolutionPool.EXECUTOR;
+    return pendingKeys.loadAsync(url, () -> getPublicKey(url), executor);
+  }
+
+  /**
+   * Verifies a batch of {@link OpenRTB3_X} requests identified by keys, e.g. request ids. See
+   * {@link #verifyBatch(List, Boolean, boolean)}.
+   *
+   * @param openRTBs map of identifiers to {@link OpenRTB3_X} requests
+   * @param <K> type of the identifier
+   * @return map of identifiers to results, iterating in the order of the input map
+   */
+  public <K> Map<K, Result> verifyBatch(Map<K, OpenRTB3_X> openRTBs) {
+    return verifyBatch(openRTBs, false, false);
+  }
+
+  /**
+   * Verifies a batch of {@link OpenRTB3_X} requests identified by keys, e.g. request ids. See
+   * {@link #verifyBatch(List, Boolean, boolean)}.
+   *
+   * @param openRTBs map of identifiers to {@link OpenRTB3_X} requests
+   * @param debug a boolean used to decide whether the digest from {@link OpenRTB3_X} should be used
+   *     or not
+   * @param checkMessageExpiry flag to decide whether message expiry checks be performed or not
+   * @param <K> type of the identifier
+   * @return map of identifiers to results, iterating in the order of the input map
+   */
+  public <K> Map<K, Result> verifyBatch(
+      Map<K, OpenRTB3_X> openRTBs, Boolean debug, boolean checkMessageExpiry) {
+    if (openRTBs == null) {
+      throw new InvalidDataException("Map of OpenRTB3_X objects is null");
+    }
+    List<K> ids = new ArrayList<>(openRTBs.size());
+    List<OpenRTB3_X> requests = new ArrayList<>(openRTBs.size());
+    openRTBs.forEach(
+        (id, openRTB) -> {
+          ids.add(id);
+          requests.add(openRTB);
+        });
+    List<Result> results = verifyBatch(requests, debug, checkMessageExpiry);
+    Map<K, Result> resultMap = new LinkedHashMap<>();
+    for (int i = 0; i < ids.size(); i++) {
+      resultMap.put(ids.get(i), results.get(i));
+    }
+    return resultMap;
+  }
+
+  /**
+   * Verifies an {@link OpenRTB3_X} request on the given executor. See {@link
+   * #verifyRequestAsync(OpenRTB3_X, Boolean, PublicKey, boolean, Executor)}.
+   *
+   * @param openRTB {@link OpenRTB3_X} request
+   * @param executor {@link Executor} on which the request is verified
+   * @return future completed with the {@link Result}
+   */
+  public CompletableFuture<Result> verifyRequestAsync(OpenRTB3_X openRTB, Executor executor) {
+    return verifyRequestAsync(openRTB, false, null, false, executor);
+  }
+
+  /**
+   * Verifies an {@link OpenRTB3_X} request on the given executor. See {@link
+   * #verifyRequestAsync(OpenRTB3_X, Boolean, PublicKey, boolean, Executor)}.
+   *
+   * @param openRTB {@link OpenRTB3_X} request
+   * @param debug a boolean used to decide whether the digest from {@link OpenRTB3_X} should be used
+   *     or not
+   * @param checkMessageExpiry flag to decide whether message expiry checks be performed or not
+   * @param executor {@link Executor} on which the request is verified
+   * @return future completed with the {@link Result}
+   */
+  public CompletableFuture<Result> verifyRequestAsync(
+      OpenRTB3_X openRTB, Boolean debug, boolean checkMessageExpiry, Executor executor) {
+    return verifyRequestAsync(openRTB, debug, null, checkMessageExpiry, executor);
+  }
+
+  /**
+   * Verifies an {@link OpenRTB3_X} request on the given executor.
+   *
+   * <p>Fetching the public key, building the digest and verifying the signature all happen on the
+   * executor, so that the calling thread, e.g. an event loop, is never blocked. This works with
+   * every subclass, including {@link net.media.adscert.cache.VerificationServiceGuavaCache} and
+   * {@link net.media.adscert.cache.VerificationServiceJCache}, as keys are resolved through {@link
+   * #getPublicKey(String)}. The exceptions thrown by {@link #verifyRequest(OpenRTB3_X, Boolean,
+   * PublicKey, boolean)} complete the future exceptionally.
+   *
+   * @param openRTB {@link OpenRTB3_X} request
+   * @param debug a boolean used to decide whether the digest from {@link OpenRTB3_X} should be used
+   *     or not
+   * @param publicKey {@link PublicKey} of the signing authority, or null to resolve it from the
+   *     request
+   * @param checkMessageExpiry flag to decide whether message expiry checks be performed or not
+   * @param executor {@link Executor} on which the request is verified
+   * @return future completed with the {@link Result}
+   */
+  public CompletableFuture<Result> verifyRequestAsync(
+      OpenRTB3_X openRTB,
+      Boolean debug,
+      PublicKey publicKey,
+      boolean checkMessageExpiry,
+      Executor executor) {
+    return supplyAsync(
+        () -> verifyRequest(openRTB, debug, publicKey, checkMessageExpiry), executor);
+  }
+
+  /**
+   * Verifies the digital signature using public key url and digest fields on the given executor.
+   * See {@link #verifyRequest(String, String, String, Map)}.
+   *
+   * @param publicKeyURL full url of the public key of the signing authority
+   * @param dsMap the fields that were used for signing the request
+   * @param ds digital signature in the request
+   * @param digestFieldMap map of fields that were used for generating the signature and their
+   *     values
+   * @param executor {@link Executor} on which the request is verified
+   * @return future completed with the {@link Result}
+   */
+  public CompletableFuture<Result> verifyRequestAsync(
+      String publicKeyURL,
+      String dsMap,
+      String ds,
+      Map<String, Object> digestFieldMap,
+      Executor executor) {
+    return supplyAsync(() -> verifyRequest(publicKeyURL, dsMap, ds, digestFieldMap), executor);
+  }
+
+  /**
+   * Verifies the digital signature using public key url and the digest as bytes on the given
+   * executor. See {@link #verifyRequest(String, ByteBuffer, ByteBuffer)}. The buffers must not be
+   * touched by the caller until the future is complete.
+   *
+   * @param publicKeyURL url of the public key of the signing authority
+   * @param ds base64 encoded digital signature (DER or raw r||s) between position and limit
+   * @param digest UTF-8 bytes of the digest (f1=v1&amp;f2=v2) between position and limit
+   * @param executor {@link Executor} on which the request is verified
+   * @return future completed with the {@link Result}
+   */
+  public CompletableFuture<Result> verifyRequestAsync(
+      String publicKeyURL, ByteBuffer ds, ByteBuffer digest, Executor executor) {
+    return supplyAsync(() -> verifyRequest(publicKeyURL, ds, digest), executor);
+  }
+
+  private static Result failure(Result.FailureReason reason) {
+    return Result.failure(reason);
+  }
+
+  /** Only on the opt-in path of detailed failures is a result allocated per failure. */
+  private Result failure(Result.FailureReason reason, Exception exception) {
+    return detailedFailures ? new Result(reason, exception) : Result.failure(reason);
+  }
+
+  /** Classifies an exception caught while verifying a request. */
+  private Result failure(Exception exception) {
+    if (exception instanceof KeyUnavailableException) {
+      Throwable cause = exception.getCause();
+      return failure(
+          Result.FailureReason.KEY_UNAVAILABLE,
+          cause instanceof Exception ? (Exception) cause : exception);
+    }
+    if (exception instanceof SignatureException) {
+      return failure(Result.FailureReason.MALFORMED_SIGNATURE, exception);
+    }
+    if (exception instanceof InvalidKeyException) {
+      return failure(Result.FailureReason.KEY_UNAVAILABLE, exception);
+    }
+    if (exception instanceof InvalidDataException) {
+      return failure(Result.FailureReason.INVALID_DATA, exception);
+    }
+    return failure(Result.FailureReason.PROCESSING_ERROR, exception);
+  }
+
+  /** Only with detailed failures is the rejection of the dsmap explained by an exception. */
+  private Result badDsMap(OpenRTB3_X openRTB) {
+    if (detailedFailures) {
+      try {
+        DigestUtil.getDigestFromDsMap(openRTB);
+      } catch (InvalidDataException e) {
+        return new Result(Result.FailureReason.BAD_DSMAP, e);
+      }
+    }
+    return failure(Result.FailureReason.BAD_DSMAP);
+  }
+
+  private Result badDsMap(String dsMap, Map<String, Object> digestFieldMap) {
+    if (detailedFailures) {
+      try {
+        DigestUtil.getDigestFromDsMap(dsMap, digestFieldMap);
+      } catch (InvalidDataException e) {
+        return new Result(Result.FailureReason.BAD_DSMAP, e);
+      }
+    }
+    return failure(Result.FailureReason.BAD_DSMAP);
+  }
+
+  private static CompletableFuture<Result> supplyAsync(
+      Supplier<Result> verification, Executor executor) {
+    if (executor == null) {
+      throw new VerificationServiceException("Executor cannot be null");
+    }
+    return CompletableFuture.supplyAsync(verification, executor);
+  }
+
+  private static String getPublicKeyUrl(OpenRTB3_X openRTB) {
+    if (openRTB == null
+        || openRTB.getRequest() == null
+        || openRTB.getRequest().getSource() == null
+        || openRTB.getRequest().getContext() == null
+        || openRTB.getRequest().getContext().getSite() == null) {
+      return null;
+    }
+    return getPublicKeyUrl(
+        openRTB.getRequest().getContext().getSite().getDomain(),
+        openRTB.getRequest().getSource().getCert());
+  }
+
+  /** Resolves the public key of a request from its url. */
+  private interface KeyResolver {
+
+    PublicKey resolve(String url) throws Exception;
+  }
+
+  /** Signals that a public key was not resolved within the key resolution budget. */
+  private static final class KeyPendingException extends ProcessException {
+
+    private static final KeyPendingException INSTANCE = new KeyPendingException();
+
+    private KeyPendingException() {
+      super("Public key is being fetched", false);
+    }
+  }
+
+  /** Signals that a public key could not be resolved; the cause tells why. */
+  private static final class KeyUnavailableException extends ProcessException {
+
+    private KeyUnavailableException(Throwable cause) {
+      super("Public key is unavailable", cause, false);
+    }
+  }
+
+  /**
+   * Daemon threads fetching keys in the background, created only once a budget is used. The pool
+   * and its queue are bounded, so that requests naming many distinct urls cannot pile up threads;
+   * a key which finds the pool full is unavailable.
+   */
+  private static final class KeyResolutionPool {
+
+    private static final int THREADS = 64;
+    private static final int QUEUE_CAPACITY = 1024;
+
+    private static final Executor EXECUTOR = newExecutor();
+
+    private static Executor newExecutor() {
+      ThreadPoolExecutor executor =
+          new ThreadPoolExecutor(
+              THREADS,
+              THREADS,
+              60,
+              TimeUnit.SECONDS,
+              new ArrayBlockingQueue<>(QUEUE_CAPACITY),
+              new DaemonThreadFactory("adscert-key-resolution"));
+      executor.allowCoreThreadTimeOut(true);
+      return executor;
+    }
+  }
 }
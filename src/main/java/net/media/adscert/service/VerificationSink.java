@@ -0,0 +1,47 @@
+/*
+ * Copyright  2019 - present. IAB Tech Lab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.media.adscert.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Receives the outcome of every line verified by {@link FileVerificationService}, in input order
+ * and on a single thread.
+ *
+ * @since 1.2
+ */
+public interface VerificationSink extends Closeable {
+
+  /**
+   * Writes the outcome of a line.
+   *
+   * @param record {@link VerificationRecord}, which is reused for the next line once this method
+   *     returns and must not be retained
+   * @throws IOException if the outcome cannot be written
+   */
+  void write(VerificationRecord record) throws IOException;
+
+  /**
+   * Releases the resources of the sink. Sinks are not closed by {@link FileVerificationService}
+   * unless it created them.
+   *
+   * @throws IOException if buffered outcomes cannot be written
+   */
+  @Override
+  default void close() throws IOException {}
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright  2019 - present. IAB Tech Lab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.media.adscert.utils;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Decodes base64 into caller supplied buffers.
+ *
+ * <p>Decoding is as lenient as {@link org.apache.commons.codec.binary.Base64}: both the standard
+ * and the url-safe alphabet are accepted, characters outside of them are skipped and decoding stops
+ * at the first padding character.
+ *
+ * @since 1.2
+ */
+public class Base64Util {
+
+  private static final byte[] DECODE_TABLE = new byte[128];
+
+  static {
+    Arrays.fill(DECODE_TABLE, (byte) -1);
+    String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789";
+    for (int i = 0; i < alphabet.length(); i++) {
+      DECODE_TABLE[alphabet.charAt(i)] = (byte) i;
+    }
+    DECODE_TABLE['+'] = 62;
+    DECODE_TABLE['-'] = 62;
+    DECODE_TABLE['/'] = 63;
+    DECODE_TABLE['_'] = 63;
+  }
+
+  /**
+   * Returns a buffer size sufficient to hold the decoded form of the given number of characters.
+   *
+   * @param encodedLength number of encoded characters
+   * @return maximum decoded length
+   */
+  public static int maxDecodedLength(int encodedLength) {
+    return (int) ((encodedLength * 6L) / 8);
+  }
+
+  /**
+   * Decodes base64 characters.
+   *
+   * @param source encoded characters
+   * @param destination buffer of at least {@link #maxDecodedLength(int)} bytes
+   * @return number of decoded bytes written at the start of the buffer
+   */
+  public static int decode(CharSequence source, byte[] destination) {
+    return decode(source, null, null, 0, source.length(), destination);
+  }
+
+  /**
+   * Decodes base64 characters held as ASCII bytes.
+   *
+   * @param source buffer holding the encoded bytes
+   * @param offset offset of the encoded bytes
+   * @param count number of encoded bytes
+   * @param destination buffer of at least {@link #maxDecodedLength(int)} bytes
+   * @return number of decoded bytes written at the start of the buffer
+   */
+  public static int decode(byte[] source, int offset, int count, byte[] destination) {
+    return decode(null, source, null, offset, offset + count, destination);
+  }
+
+  /**
+   * Decodes the remaining base64 bytes of a buffer, which are consumed.
+   *
+   * @param source buffer holding the encoded bytes between its position and limit
+   * @param destination buffer of at least {@link #maxDecodedLength(int)} bytes
+   * @return number of decoded bytes written at the start of the buffer
+   */
+  public static int decode(ByteBuffer source, byte[] destination) {
+    int length =
+        source.hasArray()
+            ? decode(
+                source.array(),
+                source.arrayOffset() + source.position(),
+                source.remaining(),
+                destination)
+            : decode(null, null, source, source.position(), source.limit(), destination);
+    source.position(source.limit());
+    return length;
+  }
+
+  /**
+   * Decodes the characters between two indices of whichever source is not null. The source is
+   * picked by a branch rather than through an interface, so that the loop stays free of calls.
+   */
+  private static int decode(
+      CharSequence chars, byte[] bytes, ByteBuffer buffer, int from, int to, byte[] destination) {
+    int accumulator = 0;
+    int bits = 0;
+    int length = 0;
+    for (int i = from; i < to; i++) {
+      int c =
+          chars != null ? chars.charAt(i) : bytes != null ? bytes[i] & 0xff : buffer.get(i) & 0xff;
+      if (c == '=') {
+        break;
+      }
+      int value = c < 128 ? DECODE_TABLE[c] : -1;
+      if (value < 0) {
+        continue;
+      }
+      accumulator = (accumulator << 6) | value;
+      bits += 6;
+      if (bits >= 8) {
+        bits -= 8;
+        destination[length++] = (byte) (accumulator >> bits);
+        accumulator &= (1 << bits) - 1;
+      }
+    }
+    return length;
+  }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright  2019 - present. IAB Tech Lab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.media.adscert.utils;
+
+import net.media.openrtb3.Context;
+import net.media.openrtb3.Device;
+import net.media.openrtb3.Item;
+import net.media.openrtb3.OpenRTB3_X;
+import net.media.openrtb3.Placement;
+import net.media.openrtb3.Request;
+import net.media.openrtb3.Source;
+import net.media.openrtb3.VideoPlacement;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Fields of a request which can be named in a dsmap, with their extractors. Fields derived from
+ * the items of a request are all read in a single pass over the items, see {@link RequestFields}.
+ */
+enum DigestField {
+  BUNDLE("bundle") {
+    @Override
+    Object extract(RequestFields request) {
+      Context context = request.context();
+      return context == null || context.getApp() == null ? null : context.getApp().getBundle();
+    }
+  },
+  CERT("cert") {
+    @Override
+    Object extract(RequestFields request) {
+      Source source = request.source();
+      return source == null ? null : source.getCert();
+    }
+  },
+  DOMAIN("domain") {
+    @Override
+    Object extract(RequestFields request) {
+      Context context = request.context();
+      return context == null || context.getSite() == null ? null : context.getSite().getDomain();
+    }
+  },
+  FT("ft") {
+    @Override
+    Object extract(RequestFields request) {
+      return request.formatTypes();
+    }
+  },
+  /** Holds the width of the first video placement, as it always has; kept for compatibility. */
+  H("h") {
+    @Override
+    Object extract(RequestFields request) {
+      return request.videoWidth();
+    }
+  },
+  IFA("ifa") {
+    @Override
+    Object extract(RequestFields request) {
+      Device device = request.device();
+      return device == null ? null : device.getIfa();
+    }
+  },
+  IP("ip") {
+    @Override
+    Object extract(RequestFields request) {
+      Device device = request.device();
+      return device == null ? null : device.getIp();
+    }
+  },
+  IPV6("ipv6") {
+    @Override
+    Object extract(RequestFields request) {
+      Device device = request.device();
+      return device == null ? null : device.getIpv6();
+    }
+  },
+  TID("tid") {
+    @Override
+    Object extract(RequestFields request) {
+      Source source = request.source();
+      return source == null ? null : source.getTid();
+    }
+  },
+  TS("ts") {
+    @Override
+    Object extract(RequestFields request) {
+      Source source = request.source();
+      return source == null || source.getTs() == null ? null : source.getTs().toString();
+    }
+  },
+  UA("ua") {
+    @Override
+    Object extract(RequestFields request) {
+      Device device = request.device();
+      return device == null ? null : device.getUa();
+    }
+  },
+  W("w") {
+    @Override
+    Object extract(RequestFields request) {
+      return request.videoWidth();
+    }
+  };
+
+  private static final Map<String, DigestField> byKey = new HashMap<>();
+
+  static {
+    for (DigestField field : values()) {
+      byKey.put(field.key, field);
+    }
+  }
+
+  private final String key;
+
+  DigestField(String key) {
+    this.key = key;
+  }
+
+  /**
+   * Looks up a field by its name in a dsmap.
+   *
+   * @param key name of the field, e.g. "domain"
+   * @return {@link DigestField}, or null if the name is unknown
+   */
+  static DigestField forKey(String key) {
+    return byKey.get(key);
+  }
+
+  String getKey() {
+    return key;
+  }
+
+  /**
+   * Extracts the value of this field.
+   *
+   * @param request the request, with its items scanned at most once
+   * @return value of the field, or null if it has none or the request lacks an object it is read
+   *     from
+   */
+  abstract Object extract(RequestFields request);
+
+  /** A request whose items are scanned once, on first use by an item derived field. */
+  static final class RequestFields {
+
+    private static final int VIDEO = 1;
+    private static final int DISPLAY = 2;
+    private static final int AUDIO = 4;
+    /** Format types by bitmask of the formats present, in the order v, d, a. */
+    private static final String[] FORMAT_TYPES = {"", "v", "d", "vd", "a", "va", "da", "vda"};
+
+    private final OpenRTB3_X openRtb;
+    private boolean scanned;
+    private int formats;
+    private VideoPlacement firstVideo;
+    /** An item without placement spoils every item derived field... */
+    private boolean malformedItem;
+    /** ...except the video width, if the first video placement comes before it. */
+    private boolean malformedBeforeVideo;
+
+    RequestFields(OpenRTB3_X openRtb) {
+      this.openRtb = openRtb;
+    }
+
+    private Request request() {
+      return openRtb == null ? null : openRtb.getRequest();
+    }
+
+    private Source source() {
+      Request request = request();
+      return request == null ? null : request.getSource();
+    }
+
+    private Context context() {
+      Request request = request();
+      return request == null ? null : request.getContext();
+    }
+
+    private Device device() {
+      Context context = context();
+      return context == null ? null : context.getDevice();
+    }
+
+    private void scan() {
+      if (scanned) {
+        return;
+      }
+      scanned = true;
+      Request request = request();
+      Collection<Item> items = request == null ? null : request.getItem();
+      if (items == null) {
+        malformedItem = true;
+        malformedBeforeVideo = true;
+        return;
+      }
+      for (Item item : items) {
+        Placement placement =
+            item == null || item.getSpec() == null ? null : item.getSpec().getPlacement();
+        if (placement == null) {
+          malformedItem = true;
+          malformedBeforeVideo = firstVideo == null;
+          return;
+        }
+        if (placement.getVideo() != null) {
+          formats |= VIDEO;
+          if (firstVideo == null) {
+            firstVideo = placement.getVideo();
+          }
+        } else if (placement.getAudio() != null) {
+          formats |= AUDIO;
+        } else {
+          formats |= DISPLAY;
+        }
+      }
+    }
+
+    private String formatTypes() {
+      scan();
+      return malformedItem ? null : FORMAT_TYPES[formats];
+    }
+
+    private String videoWidth() {
+      scan();
+      if (malformedBeforeVideo) {
+        return null;
+      }
+      if (firstVideo == null) {
+        return "";
+      }
+      return firstVideo.getW() == null ? null : firstVideo.getW().toString();
+    }
+  }
+}
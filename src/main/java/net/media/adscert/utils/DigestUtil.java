@@ -16,90 +16,36 @@
 
 package net.media.adscert.utils;
 
-import com.google.common.base.Joiner;
 import com.google.common.base.Splitter;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import net.media.adscert.exceptions.InvalidDataException;
 import net.media.openrtb3.OpenRTB3_X;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Objects;
 import java.util.Set;
 import java.util.function.Function;
-import java.util.stream.Collectors;
 
 public class DigestUtil {
-  private static final LinkedHashMap<String, Function<OpenRTB3_X, Object>> digestMap =
-      new LinkedHashMap<>();
   private static final Splitter queryParamSplitter =
       Splitter.on(CommonConstants.QUERY_PARAM_SEPERATOR).trimResults().omitEmptyStrings();
-  private static final Splitter keyValueSplitter =
-      Splitter.on(CommonConstants.KEY_VALUE_SEPERATOR).trimResults().omitEmptyStrings();
-  private static final Joiner queryParamJoiner =
-      Joiner.on(CommonConstants.QUERY_PARAM_SEPERATOR).skipNulls();
-
-  static {
-    digestMap.put("bundle", t -> t.getRequest().getContext().getApp().getBundle());
-    digestMap.put("cert", t -> t.getRequest().getSource().getCert());
-    digestMap.put("domain", t -> t.getRequest().getContext().getSite().getDomain());
-
-    digestMap.put(
-        "ft",
-        t -> {
-          Set<String> fts =
-              t.getRequest()
-                  .getItem()
-                  .stream()
-                  .map(i -> i.getSpec().getPlacement())
-                  .map(
-                      p -> {
-                        if (p.getVideo() != null) {
-                          return "v";
-                        }
-                        if (p.getAudio() != null) {
-                          return "a";
-                        }
-                        return "d";
-                      })
-                  .collect(Collectors.toSet());
-          String res = "";
-          if (fts.contains("v")) res += "v";
-          if (fts.contains("d")) res += "d";
-          if (fts.contains("a")) res += "a";
-          return res;
-        });
-
-    digestMap.put(
-        "h",
-        t ->
-            t.getRequest()
-                .getItem()
-                .stream()
-                .map(i -> i.getSpec().getPlacement().getVideo())
-                .filter(Objects::nonNull)
-                .findFirst()
-                .map(videoPlacement -> videoPlacement.getW().toString())
-                .orElse(""));
-
-    digestMap.put("ifa", t -> t.getRequest().getContext().getDevice().getIfa());
-    digestMap.put("ip", t -> t.getRequest().getContext().getDevice().getIp());
-    digestMap.put("ipv6", t -> t.getRequest().getContext().getDevice().getIpv6());
-
-    digestMap.put("tid", t -> t.getRequest().getSource().getTid());
-    digestMap.put("ts", t -> t.getRequest().getSource().getTs().toString());
-    digestMap.put("ua", t -> t.getRequest().getContext().getDevice().getUa());
-    digestMap.put(
-        "w",
-        t ->
-            t.getRequest()
-                .getItem()
-                .stream()
-                .map(i -> i.getSpec().getPlacement().getVideo())
-                .filter(Objects::nonNull)
-                .findFirst()
-                .map(videoPlacement -> videoPlacement.getW().toString())
-                .orElse(""));
-  }
+  private static final String BAD_OPENRTB_DSMAP = "OpenRtb.source.dsmap: bad dsmap provided";
+  private static final int MAX_RETAINED_BUILDER_CAPACITY = 4096;
+  private static final byte SEPARATOR = '&';
+  /** Only a handful of distinct dsmaps are in use, so few plans are ever compiled. */
+  private static final Cache<String, DsMapPlan> plans =
+      CacheBuilder.newBuilder().maximumSize(1024).build();
+  private static final ThreadLocal<StringBuilder> digestBuilders =
+      ThreadLocal.withInitial(() -> new StringBuilder(256));
+  private static final ThreadLocal<DigestBuffer> digestBuffers =
+      ThreadLocal.withInitial(DigestBuffer::new);
 
   public static String getDigest(OpenRTB3_X openRtb) throws InvalidDataException {
     if (openRtb.getRequest().getSource().getDigest() == null) {
@@ -110,46 +56,369 @@ public class DigestUtil {
 
   public static Map<String, Object> getDigestFromDsMap(OpenRTB3_X openRtb)
       throws InvalidDataException {
-    return getDigestFromDsMap(openRtb, digestMap);
+    Map<String, Object> fields = tryGetDigestFromDsMap(openRtb);
+    if (fields == null) {
+      throw explainBadDsMap(openRtb);
+    }
+    return fields;
+  }
+
+  /**
+   * Same as {@link #getDigestFromDsMap(OpenRTB3_X)}, except that a malformed dsmap is reported by
+   * returning null instead of building an exception.
+   *
+   * @param openRtb {@link OpenRTB3_X} request
+   * @return map of the fields named in the dsmap to their values, or null if the dsmap is missing
+   *     or malformed or a field cannot be extracted
+   * @since 1.2
+   */
+  public static Map<String, Object> tryGetDigestFromDsMap(OpenRTB3_X openRtb) {
+    DsMapPlan plan = findPlan(openRtb);
+    if (plan == null || !plan.isExtractable()) {
+      return null;
+    }
+    DigestField.RequestFields request = new DigestField.RequestFields(openRtb);
+    Map<String, Object> fields = new HashMap<>(plan.keys.length * 2);
+    for (int i = 0; i < plan.keys.length; i++) {
+      Object value = plan.fields[i].extract(request);
+      if (value == null) {
+        return null;
+      }
+      fields.put(plan.keys[i], value);
+    }
+    return fields;
   }
 
   public static Map<String, Object> getDigestFromDsMap(
     OpenRTB3_X openRtb, LinkedHashMap<String, Function<OpenRTB3_X, Object>> digestMap)
       throws InvalidDataException {
     try {
-      return queryParamSplitter
-          .splitToList(openRtb.getRequest().getSource().getDsmap())
-          .stream()
-          .collect(
-              Collectors.toMap(
-                  key -> key.substring(0, key.length() - 1),
-                  key -> digestMap.get(key.substring(0, key.length() - 1)).apply(openRtb)));
-      /*return queryParamJoiner.join(queryParamSplitter.splitToList(openRtb.getRequest().getSource().getDsmap()).stream()
-      .map(key -> key + digestMap.get(key.substring(0, key.length()-1)).apply(openRtb))
-      .collect(Collectors.toList()));*/
+      DsMapPlan plan = getPlan(openRtb.getRequest().getSource().getDsmap());
+      plan.checkUniqueKeys();
+      Map<String, Object> fields = new HashMap<>(plan.keys.length * 2);
+      for (int i = 0; i < plan.keys.length; i++) {
+        fields.put(plan.keys[i], requireValue(digestMap.get(plan.keys[i]).apply(openRtb)));
+      }
+      return fields;
     } catch (Exception e) {
-      throw new InvalidDataException("OpenRtb.source.dsmap: bad dsmap provided", e);
+      throw new InvalidDataException(BAD_OPENRTB_DSMAP, e);
+    }
+  }
+
+  /**
+   * Builds the digest of a request from its dsmap in a single pass, without collecting the fields
+   * into a map first. Equivalent to {@code getDigestFromDsMap(dsmap,
+   * getDigestFromDsMap(openRtb))}.
+   *
+   * @param openRtb {@link OpenRTB3_X} request
+   * @return digest (f1=v1&amp;f2=v2)
+   * @throws InvalidDataException if the dsmap is malformed or a field cannot be extracted
+   * @since 1.2
+   */
+  public static String buildDigest(OpenRTB3_X openRtb) throws InvalidDataException {
+    DsMapPlan plan = findPlan(openRtb);
+    if (plan == null || !plan.isExtractable()) {
+      throw explainBadDsMap(openRtb);
+    }
+    DigestField.RequestFields request = new DigestField.RequestFields(openRtb);
+    StringBuilder digest = digestBuilder();
+    for (int i = 0; i < plan.keys.length; i++) {
+      Object value = plan.fields[i].extract(request);
+      if (value == null) {
+        throw explainBadDsMap(openRtb);
+      }
+      if (i > 0) {
+        digest.append(CommonConstants.QUERY_PARAM_SEPERATOR);
+      }
+      digest.append(plan.prefixes[i]).append(value);
+    }
+    return digest.toString();
+  }
+
+  /**
+   * Writes the UTF-8 bytes of the digest of a request, built from its dsmap, into a buffer reused
+   * by the calling thread. No intermediate map, list or string is created for the digest.
+   *
+   * <p>The returned buffer holds the digest between its position and limit. It is only valid until
+   * the next call on the same thread and must not be handed over to other threads.
+   *
+   * @param openRtb {@link OpenRTB3_X} request
+   * @return buffer holding the UTF-8 bytes of the digest (f1=v1&amp;f2=v2)
+   * @throws InvalidDataException if the dsmap is malformed or a field cannot be extracted
+   * @since 1.2
+   */
+  public static ByteBuffer encodeDigest(OpenRTB3_X openRtb) throws InvalidDataException {
+    ByteBuffer digest = tryEncodeDigest(openRtb);
+    if (digest == null) {
+      throw explainBadDsMap(openRtb);
+    }
+    return digest;
+  }
+
+  /**
+   * Same as {@link #encodeDigest(OpenRTB3_X)}, except that a malformed dsmap is reported by
+   * returning null instead of building an exception, which is what makes floods of malformed
+   * requests cheap to reject.
+   *
+   * @param openRtb {@link OpenRTB3_X} request
+   * @return buffer holding the UTF-8 bytes of the digest (f1=v1&amp;f2=v2), or null if the dsmap is
+   *     missing or malformed or a field cannot be extracted
+   * @since 1.2
+   */
+  public static ByteBuffer tryEncodeDigest(OpenRTB3_X openRtb) {
+    DsMapPlan plan = findPlan(openRtb);
+    if (plan == null || !plan.isExtractable()) {
+      return null;
+    }
+    DigestField.RequestFields request = new DigestField.RequestFields(openRtb);
+    DigestBuffer digest = digestBuffers.get();
+    digest.reset();
+    for (int i = 0; i < plan.keys.length; i++) {
+      Object value = plan.fields[i].extract(request);
+      if (value == null) {
+        return null;
+      }
+      if (i > 0) {
+        digest.write(SEPARATOR);
+      }
+      digest.write(plan.encodedPrefixes[i]);
+      digest.write(value instanceof CharSequence ? (CharSequence) value : value.toString());
     }
+    return digest.view();
   }
 
   public static String getDigestFromDsMap(String dsMap, Map<String, Object> digestFields)
       throws InvalidDataException {
     try {
-      return queryParamJoiner.join(
-          queryParamSplitter
-              .splitToList(dsMap)
-              .stream()
-              .filter(
-                  key -> {
-                    if (!digestFields.containsKey(key.substring(0, key.length() - 1))) {
-                      throw new InvalidDataException("Bad dsmap provided");
-                    }
-                    return true;
-                  })
-              .map(key -> key + digestFields.get(key.substring(0, key.length() - 1)))
-              .collect(Collectors.toList()));
+      DsMapPlan plan = getPlan(dsMap);
+      StringBuilder digest = digestBuilder();
+      for (int i = 0; i < plan.keys.length; i++) {
+        if (!digestFields.containsKey(plan.keys[i])) {
+          throw new InvalidDataException("Bad dsmap provided", false);
+        }
+        if (i > 0) {
+          digest.append(CommonConstants.QUERY_PARAM_SEPERATOR);
+        }
+        digest.append(plan.prefixes[i]).append(digestFields.get(plan.keys[i]));
+      }
+      return digest.toString();
     } catch (Exception e) {
       throw new InvalidDataException("Bad dsmap provided", e);
     }
   }
+
+  /**
+   * Same as {@link #getDigestFromDsMap(String, Map)}, except that a dsmap naming a field missing
+   * from the map is reported by returning null instead of building an exception.
+   *
+   * @param dsMap the fields that were used for signing the request
+   * @param digestFields map of the fields to their values
+   * @return digest (f1=v1&amp;f2=v2), or null if the dsmap or the map is null or a field is missing
+   * @since 1.2
+   */
+  public static String tryGetDigestFromDsMap(String dsMap, Map<String, Object> digestFields) {
+    if (dsMap == null || digestFields == null) {
+      return null;
+    }
+    DsMapPlan plan = getPlan(dsMap);
+    StringBuilder digest = digestBuilder();
+    for (int i = 0; i < plan.keys.length; i++) {
+      if (!digestFields.containsKey(plan.keys[i])) {
+        return null;
+      }
+      if (i > 0) {
+        digest.append(CommonConstants.QUERY_PARAM_SEPERATOR);
+      }
+      digest.append(plan.prefixes[i]).append(digestFields.get(plan.keys[i]));
+    }
+    return digest.toString();
+  }
+
+  /** Returns the plan of the dsmap of a request, or null if the request has no dsmap. */
+  private static DsMapPlan findPlan(OpenRTB3_X openRtb) {
+    if (openRtb == null
+        || openRtb.getRequest() == null
+        || openRtb.getRequest().getSource() == null
+        || openRtb.getRequest().getSource().getDsmap() == null) {
+      return null;
+    }
+    return getPlan(openRtb.getRequest().getSource().getDsmap());
+  }
+
+  private static DsMapPlan getPlan(String dsMap) {
+    if (dsMap == null) {
+      throw new InvalidDataException("dsmap is null", false);
+    }
+    DsMapPlan plan = plans.getIfPresent(dsMap);
+    if (plan == null) {
+      plan = new DsMapPlan(dsMap);
+      plans.put(dsMap, plan);
+    }
+    return plan;
+  }
+
+  /**
+   * Builds the exception describing why the dsmap of a request was rejected. Only called once a
+   * request is known to be rejected, by the methods reporting rejections as exceptions.
+   */
+  private static InvalidDataException explainBadDsMap(OpenRTB3_X openRtb) {
+    try {
+      DsMapPlan plan = getPlan(openRtb.getRequest().getSource().getDsmap());
+      plan.checkExtractable();
+      DigestField.RequestFields request = new DigestField.RequestFields(openRtb);
+      for (int i = 0; i < plan.keys.length; i++) {
+        requireValue(plan.fields[i].extract(request));
+      }
+      return new InvalidDataException(BAD_OPENRTB_DSMAP);
+    } catch (Exception e) {
+      return new InvalidDataException(BAD_OPENRTB_DSMAP, e);
+    }
+  }
+
+  private static StringBuilder digestBuilder() {
+    StringBuilder builder = digestBuilders.get();
+    if (builder.capacity() > MAX_RETAINED_BUILDER_CAPACITY) {
+      builder = new StringBuilder(256);
+      digestBuilders.set(builder);
+    }
+    builder.setLength(0);
+    return builder;
+  }
+
+  private static Object requireValue(Object value) {
+    if (value == null) {
+      throw new InvalidDataException("Field of dsmap has no value", false);
+    }
+    return value;
+  }
+
+  /**
+   * A dsmap compiled once: its tokens in order, the field names they refer to and the {@link
+   * DigestField}s they resolve to. A dsmap referring to unknown or repeated fields compiles into a
+   * plan that only records the problem, so that it is rejected without being parsed again.
+   */
+  private static final class DsMapPlan {
+
+    /** Tokens as they appear in the dsmap, e.g. "domain=", each prefixing the field's value. */
+    private final String[] prefixes;
+    /** The tokens encoded as UTF-8. */
+    private final byte[][] encodedPrefixes;
+    /** Field names: the tokens without their last character. */
+    private final String[] keys;
+    private final DigestField[] fields;
+    private final String unknownKey;
+    private final String duplicateKey;
+
+    private DsMapPlan(String dsMap) {
+      List<String> tokens = queryParamSplitter.splitToList(dsMap);
+      prefixes = tokens.toArray(new String[0]);
+      keys = new String[prefixes.length];
+      encodedPrefixes = new byte[prefixes.length][];
+      fields = new DigestField[prefixes.length];
+      Set<String> seen = new HashSet<>();
+      String unknown = null;
+      String duplicate = null;
+      for (int i = 0; i < prefixes.length; i++) {
+        keys[i] = prefixes[i].substring(0, prefixes[i].length() - 1);
+        encodedPrefixes[i] = prefixes[i].getBytes(StandardCharsets.UTF_8);
+        fields[i] = DigestField.forKey(keys[i]);
+        if (fields[i] == null && unknown == null) {
+          unknown = keys[i];
+        }
+        if (!seen.add(keys[i]) && duplicate == null) {
+          duplicate = keys[i];
+        }
+      }
+      unknownKey = unknown;
+      duplicateKey = duplicate;
+    }
+
+    private void checkUniqueKeys() {
+      if (duplicateKey != null) {
+        throw new InvalidDataException("Duplicate field in dsmap: " + duplicateKey, false);
+      }
+    }
+
+    private void checkExtractable() {
+      if (unknownKey != null) {
+        throw new InvalidDataException("Unknown field in dsmap: " + unknownKey, false);
+      }
+      checkUniqueKeys();
+    }
+
+    private boolean isExtractable() {
+      return unknownKey == null && duplicateKey == null;
+    }
+  }
+
+  /** Growable byte array into which digests are encoded as UTF-8. */
+  private static final class DigestBuffer {
+
+    private byte[] bytes = new byte[256];
+    private ByteBuffer view = ByteBuffer.wrap(bytes);
+    private int length;
+
+    private void reset() {
+      if (bytes.length > MAX_RETAINED_BUILDER_CAPACITY) {
+        bytes = new byte[256];
+        view = ByteBuffer.wrap(bytes);
+      }
+      length = 0;
+    }
+
+    private ByteBuffer view() {
+      view.clear();
+      view.limit(length);
+      return view;
+    }
+
+    private void ensureCapacity(int additional) {
+      if (length + additional > bytes.length) {
+        bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + additional));
+        view = ByteBuffer.wrap(bytes);
+      }
+    }
+
+    private void write(byte b) {
+      ensureCapacity(1);
+      bytes[length++] = b;
+    }
+
+    private void write(byte[] source) {
+      ensureCapacity(source.length);
+      System.arraycopy(source, 0, bytes, length, source.length);
+      length += source.length;
+    }
+
+    /** Encodes like {@code String.getBytes(UTF_8)}, lone surrogates becoming '?'. */
+    private void write(CharSequence chars) {
+      int count = chars.length();
+      ensureCapacity(count * 3);
+      for (int i = 0; i < count; i++) {
+        char c = chars.charAt(i);
+        if (c < 0x80) {
+          bytes[length++] = (byte) c;
+        } else if (c < 0x800) {
+          bytes[length++] = (byte) (0xc0 | (c >> 6));
+          bytes[length++] = (byte) (0x80 | (c & 0x3f));
+        } else if (Character.isSurrogate(c)) {
+          if (Character.isHighSurrogate(c)
+              && i + 1 < count
+              && Character.isLowSurrogate(chars.charAt(i + 1))) {
+            int codePoint = Character.toCodePoint(c, chars.charAt(++i));
+            bytes[length++] = (byte) (0xf0 | (codePoint >> 18));
+            bytes[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+            bytes[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+            bytes[length++] = (byte) (0x80 | (codePoint & 0x3f));
+          } else {
+            bytes[length++] = '?';
+          }
+        } else {
+          bytes[length++] = (byte) (0xe0 | (c >> 12));
+          bytes[length++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+          bytes[length++] = (byte) (0x80 | (c & 0x3f));
+        }
+      }
+    }
+  }
 }
@@ -0,0 +1,403 @@
+/*
+ * Copyright  2019 - present. IAB Tech Lab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.media.adscert.utils;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import net.media.openrtb3.App;
+import net.media.openrtb3.AudioPlacement;
+import net.media.openrtb3.Context;
+import net.media.openrtb3.Device;
+import net.media.openrtb3.Item;
+import net.media.openrtb3.OpenRTB3_X;
+import net.media.openrtb3.Placement;
+import net.media.openrtb3.Request;
+import net.media.openrtb3.Site;
+import net.media.openrtb3.Source;
+import net.media.openrtb3.Spec;
+import net.media.openrtb3.VideoPlacement;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the fields needed for verification out of an OpenRTB 3.0 json with the Jackson streaming
+ * parser, skipping everything else instead of binding the whole request.
+ *
+ * <p>The returned {@link OpenRTB3_X} only holds {@code request.source} (tid, ts, ds, dsmap, cert,
+ * digest), {@code request.context.site.domain}, {@code request.context.app.bundle}, {@code
+ * request.context.device} (ua, ifa, ip, ipv6) and, for every item, whether its placement is a video
+ * (with its width) or an audio placement. Values are coerced the way {@link
+ * JacksonObjectMapper#getMapper()} binds them.
+ *
+ * @since 1.2
+ */
+public class OpenRtbFieldReader {
+
+  private static final JsonFactory factory = JacksonObjectMapper.getMapper().getFactory();
+
+  /**
+   * Reads a json held in a byte array.
+   *
+   * @param json UTF-8 encoded json of an {@link OpenRTB3_X} object
+   * @return {@link OpenRTB3_X} holding the fields needed for verification
+   * @throws IOException if the json is malformed
+   */
+  public static OpenRTB3_X read(byte[] json) throws IOException {
+    return read(json, 0, json.length);
+  }
+
+  /**
+   * Reads a json held in a slice of a byte array.
+   *
+   * @param json buffer holding the UTF-8 encoded json of an {@link OpenRTB3_X} object
+   * @param offset offset of the json
+   * @param length length of the json
+   * @return {@link OpenRTB3_X} holding the fields needed for verification
+   * @throws IOException if the json is malformed
+   */
+  public static OpenRTB3_X read(byte[] json, int offset, int length) throws IOException {
+    try (JsonParser parser = factory.createParser(json, offset, length)) {
+      return readRoot(parser);
+    }
+  }
+
+  /**
+   * Reads a json from a stream, up to the end of its top level object. The stream is not closed.
+   *
+   * @param json stream of the json of an {@link OpenRTB3_X} object
+   * @return {@link OpenRTB3_X} holding the fields needed for verification
+   * @throws IOException if the json is malformed or the stream cannot be read
+   */
+  public static OpenRTB3_X read(InputStream json) throws IOException {
+    try (JsonParser parser = factory.createParser(json)) {
+      parser.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+      return readRoot(parser);
+    }
+  }
+
+  private static OpenRTB3_X readRoot(JsonParser parser) throws IOException {
+    parser.nextToken();
+    if (!startObject(parser)) {
+      return null;
+    }
+    OpenRTB3_X openRtb = new OpenRTB3_X();
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String name = parser.getCurrentName();
+      parser.nextToken();
+      if ("request".equals(name)) {
+        openRtb.setRequest(readRequest(parser));
+      } else {
+        parser.skipChildren();
+      }
+    }
+    return openRtb;
+  }
+
+  private static Request readRequest(JsonParser parser) throws IOException {
+    if (!startObject(parser)) {
+      return null;
+    }
+    Request request = new Request();
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String name = parser.getCurrentName();
+      parser.nextToken();
+      switch (name) {
+        case "source":
+          request.setSource(readSource(parser));
+          break;
+        case "context":
+          request.setContext(readContext(parser));
+          break;
+        case "item":
+          request.setItem(readItems(parser));
+          break;
+        default:
+          parser.skipChildren();
+      }
+    }
+    return request;
+  }
+
+  private static Source readSource(JsonParser parser) throws IOException {
+    if (!startObject(parser)) {
+      return null;
+    }
+    Source source = new Source();
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String name = parser.getCurrentName();
+      parser.nextToken();
+      switch (name) {
+        case "tid":
+          source.setTid(readString(parser));
+          break;
+        case "ts":
+          source.setTs(readInteger(parser));
+          break;
+        case "ds":
+          source.setDs(readString(parser));
+          break;
+        case "dsmap":
+          source.setDsmap(readString(parser));
+          break;
+        case "cert":
+          source.setCert(readString(parser));
+          break;
+        case "digest":
+          source.setDigest(readString(parser));
+          break;
+        default:
+          parser.skipChildren();
+      }
+    }
+    return source;
+  }
+
+  private static Context readContext(JsonParser parser) throws IOException {
+    if (!startObject(parser)) {
+      return null;
+    }
+    Context context = new Context();
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String name = parser.getCurrentName();
+      parser.nextToken();
+      switch (name) {
+        case "site":
+          context.setSite(readSite(parser));
+          break;
+        case "app":
+          context.setApp(readApp(parser));
+          break;
+        case "device":
+          context.setDevice(readDevice(parser));
+          break;
+        default:
+          parser.skipChildren();
+      }
+    }
+    return context;
+  }
+
+  private static Site readSite(JsonParser parser) throws IOException {
+    if (!startObject(parser)) {
+      return null;
+    }
+    Site site = new Site();
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String name = parser.getCurrentName();
+      parser.nextToken();
+      if ("domain".equals(name)) {
+        site.setDomain(readString(parser));
+      } else {
+        parser.skipChildren();
+      }
+    }
+    return site;
+  }
+
+  private static App readApp(JsonParser parser) throws IOException {
+    if (!startObject(parser)) {
+      return null;
+    }
+    App app = new App();
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String name = parser.getCurrentName();
+      parser.nextToken();
+      if ("bundle".equals(name)) {
+        app.setBundle(readString(parser));
+      } else {
+        parser.skipChildren();
+      }
+    }
+    return app;
+  }
+
+  private static Device readDevice(JsonParser parser) throws IOException {
+    if (!startObject(parser)) {
+      return null;
+    }
+    Device device = new Device();
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String name = parser.getCurrentName();
+      parser.nextToken();
+      switch (name) {
+        case "ua":
+          device.setUa(readString(parser));
+          break;
+        case "ifa":
+          device.setIfa(readString(parser));
+          break;
+        case "ip":
+          device.setIp(readString(parser));
+          break;
+        case "ipv6":
+          device.setIpv6(readString(parser));
+          break;
+        default:
+          parser.skipChildren();
+      }
+    }
+    return device;
+  }
+
+  private static List<Item> readItems(JsonParser parser) throws IOException {
+    if (parser.currentToken() == JsonToken.VALUE_NULL) {
+      return null;
+    }
+    if (parser.currentToken() != JsonToken.START_ARRAY) {
+      throw new JsonParseException(parser, "Expected an array of items");
+    }
+    List<Item> items = new ArrayList<>();
+    while (parser.nextToken() != JsonToken.END_ARRAY) {
+      items.add(readItem(parser));
+    }
+    return items;
+  }
+
+  private static Item readItem(JsonParser parser) throws IOException {
+    if (!startObject(parser)) {
+      return null;
+    }
+    Item item = new Item();
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String name = parser.getCurrentName();
+      parser.nextToken();
+      if ("spec".equals(name)) {
+        item.setSpec(readSpec(parser));
+      } else {
+        parser.skipChildren();
+      }
+    }
+    return item;
+  }
+
+  private static Spec readSpec(JsonParser parser) throws IOException {
+    if (!startObject(parser)) {
+      return null;
+    }
+    Spec spec = new Spec();
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String name = parser.getCurrentName();
+      parser.nextToken();
+      if ("placement".equals(name)) {
+        spec.setPlacement(readPlacement(parser));
+      } else {
+        parser.skipChildren();
+      }
+    }
+    return spec;
+  }
+
+  private static Placement readPlacement(JsonParser parser) throws IOException {
+    if (!startObject(parser)) {
+      return null;
+    }
+    Placement placement = new Placement();
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String name = parser.getCurrentName();
+      parser.nextToken();
+      switch (name) {
+        case "video":
+          placement.setVideo(readVideoPlacement(parser));
+          break;
+        case "audio":
+          if (startObject(parser)) {
+            parser.skipChildren();
+            placement.setAudio(new AudioPlacement());
+          } else {
+            placement.setAudio(null);
+          }
+          break;
+        default:
+          parser.skipChildren();
+      }
+    }
+    return placement;
+  }
+
+  private static VideoPlacement readVideoPlacement(JsonParser parser) throws IOException {
+    if (!startObject(parser)) {
+      return null;
+    }
+    VideoPlacement video = new VideoPlacement();
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String name = parser.getCurrentName();
+      parser.nextToken();
+      if ("w".equals(name)) {
+        video.setW(readInteger(parser));
+      } else {
+        parser.skipChildren();
+      }
+    }
+    return video;
+  }
+
+  /**
+   * Checks that the current token starts an object.
+   *
+   * @return false if the value is null
+   * @throws JsonParseException if the value is neither an object nor null
+   */
+  private static boolean startObject(JsonParser parser) throws IOException {
+    JsonToken token = parser.currentToken();
+    if (token == JsonToken.START_OBJECT) {
+      return true;
+    }
+    if (token == JsonToken.VALUE_NULL) {
+      return false;
+    }
+    throw new JsonParseException(parser, "Expected an object but found " + token);
+  }
+
+  private static String readString(JsonParser parser) throws IOException {
+    JsonToken token = parser.currentToken();
+    if (token == JsonToken.VALUE_NULL) {
+      return null;
+    }
+    if (!token.isScalarValue()) {
+      throw new JsonParseException(parser, "Expected a string but found " + token);
+    }
+    return parser.getValueAsString();
+  }
+
+  private static Integer readInteger(JsonParser parser) throws IOException {
+    JsonToken token = parser.currentToken();
+    switch (token) {
+      case VALUE_NULL:
+        return null;
+      case VALUE_NUMBER_INT:
+      case VALUE_NUMBER_FLOAT:
+        return parser.getIntValue();
+      case VALUE_STRING:
+        String text = parser.getText().trim();
+        if (text.isEmpty()) {
+          return null;
+        }
+        try {
+          return Integer.valueOf(text);
+        } catch (NumberFormatException e) {
+          throw new JsonParseException(parser, "Expected an integer but found " + text, e);
+        }
+      default:
+        throw new JsonParseException(parser, "Expected an integer but found " + token);
+    }
+  }
+}
@@ -16,10 +16,13 @@
 
 package net.media.adscert.utils;
 
+import net.media.adscert.crypto.SignatureEngine;
+import net.media.adscert.crypto.VerifierKey;
 import org.apache.commons.codec.binary.Base64;
 
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
 import java.security.KeyFactory;
@@ -37,6 +40,10 @@ import java.security.spec.X509EncodedKeySpec;
 import static java.nio.charset.StandardCharsets.UTF_8;
 
 public class SignatureUtil {
+  /** Decoded signatures of P-256 keys fit in 72 bytes. */
+  private static final ThreadLocal<byte[]> signatureBuffers =
+      ThreadLocal.withInitial(() -> new byte[128]);
+
   /** Store key */
   public static void saveKeyPair(String path, KeyPair keyPair) throws IOException {
     PrivateKey privateKey = keyPair.getPrivate();
@@ -70,10 +77,72 @@ public class SignatureUtil {
    */
   public static boolean verifySign(PublicKey pub, String digest, String signature)
       throws NoSuchAlgorithmException, InvalidKeyException, SignatureException, NoSuchProviderException {
-    Signature ecdsaVerify = Signature.getInstance("SHA256withECDSA");
-    ecdsaVerify.initVerify(pub);
-    ecdsaVerify.update(digest.getBytes(UTF_8));
-    return ecdsaVerify.verify(Base64.decodeBase64(signature.getBytes(UTF_8)));
+    return verifySign(SignatureEngine.getDefault(), pub, digest, signature);
+  }
+
+  /** Verify the signature using a thread-bound {@link Signature} obtained from the engine */
+  public static boolean verifySign(
+      SignatureEngine engine, PublicKey pub, String digest, String signature)
+      throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+    byte[] sign = signatureBuffer(signature.length());
+    int length = Base64Util.decode(signature, sign);
+    byte[] data = digest.getBytes(UTF_8);
+    return engine.verify(pub, data, 0, data.length, sign, 0, length);
+  }
+
+  /**
+   * Verify the base64 encoded signature (DER or raw r||s) held in a slice of a byte array against
+   * the digest held in another slice. Neither slice is copied; the signature is decoded into a
+   * buffer reused by the calling thread.
+   */
+  public static boolean verifySign(
+      SignatureEngine engine,
+      PublicKey pub,
+      byte[] digest,
+      int digestOffset,
+      int digestLength,
+      byte[] signature,
+      int signatureOffset,
+      int signatureLength)
+      throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+    byte[] sign = signatureBuffer(signatureLength);
+    int length = Base64Util.decode(signature, signatureOffset, signatureLength, sign);
+    return engine.verify(pub, digest, digestOffset, digestLength, sign, 0, length);
+  }
+
+  /**
+   * Verify the base64 encoded signature (DER or raw r||s) remaining in a buffer against the digest
+   * remaining in another buffer. Both buffers are consumed; the signature is decoded into a buffer
+   * reused by the calling thread.
+   */
+  public static boolean verifySign(
+      SignatureEngine engine, PublicKey pub, ByteBuffer digest, ByteBuffer signature)
+      throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+    byte[] sign = signatureBuffer(signature.remaining());
+    int length = Base64Util.decode(signature, sign);
+    return engine.verify(pub, digest, sign, 0, length);
+  }
+
+  /**
+   * Verify the base64 encoded signature (DER or raw r||s) against the digest remaining in a buffer,
+   * e.g. one written by {@link DigestUtil#encodeDigest}. The digest buffer is consumed.
+   */
+  public static boolean verifySign(
+      SignatureEngine engine, PublicKey pub, ByteBuffer digest, String signature)
+      throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+    byte[] sign = signatureBuffer(signature.length());
+    int length = Base64Util.decode(signature, sign);
+    return engine.verify(pub, digest, sign, 0, length);
+  }
+
+  private static byte[] signatureBuffer(int encodedLength) {
+    int required = Base64Util.maxDecodedLength(encodedLength);
+    byte[] buffer = signatureBuffers.get();
+    if (buffer.length < required) {
+      buffer = new byte[required];
+      signatureBuffers.set(buffer);
+    }
+    return buffer;
   }
 
   public static PublicKey getPublicKeyFromUrl(String urlName)
@@ -82,6 +151,12 @@ public class SignatureUtil {
     return getPublicKeyFromString(publicKeyPEM);
   }
 
+  /** Fetch the public key and wrap it into a {@link VerifierKey} suitable for caching */
+  public static VerifierKey getVerifierKeyFromUrl(String urlName)
+      throws IOException, GeneralSecurityException {
+    return VerifierKey.of(getPublicKeyFromUrl(urlName));
+  }
+
   public static PrivateKey getPrivateKey(String filename)
       throws IOException, GeneralSecurityException {
     String privateKeyPEM = Util.getKeyFromFile(filename);
@@ -103,7 +178,15 @@ public class SignatureUtil {
     return kf.generatePrivate(privKeySpec);
   }
 
-  private static PublicKey getPublicKeyFromString(String publicKeyPEM)
+  /**
+   * Decodes a public key from the base64 encoded data of a key file.
+   *
+   * @param publicKeyPEM key data without the armour lines, see {@link Util#getKeyFromUrl(String)}
+   * @return {@link PublicKey}
+   * @throws GeneralSecurityException if the data holds no valid EC key
+   * @since 1.2
+   */
+  public static PublicKey getPublicKeyFromString(String publicKeyPEM)
       throws GeneralSecurityException {
     byte[] encoded = Base64.decodeBase64(publicKeyPEM);
 
@@ -16,19 +16,9 @@
 
 package net.media.adscert.utils;
 
-import com.google.common.net.InternetDomainName;
-import net.media.adscert.exceptions.ProcessException;
+import net.media.adscert.fetch.KeyFetcher;
 
-import javax.net.ssl.HttpsURLConnection;
 import java.io.*;
-import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.util.Arrays;
-import java.util.HashSet;
-import java.util.Set;
-
-import static net.media.adscert.utils.CommonConstants.MAX_REDIRECTS;
 
 public class Util {
 
@@ -39,70 +29,15 @@ public class Util {
     return sw.toString();
   }
 
-  private static final Set<Integer> redirectionCodes = new HashSet<>(Arrays.asList(301, 302, 303, 307, 308));
-
-  private static String getKeyFromUrl(URL url, String rootDomain, int remainingRedirects) throws IOException {
-
-    String newRootDomain = InternetDomainName.from(url.getHost()).topPrivateDomain().toString();
-
-    if (!newRootDomain.equals(rootDomain)) {
-      throw new ProcessException("Redirection to a new domain");
-    }
-
-    if (remainingRedirects < 0) {
-      throw new ProcessException("Redirection limit is exceeded");
-    }
-
-    if (!url.getProtocol().equals("https")) {
-      throw new ProcessException("Protocol is not https");
-    }
-
-    HttpsURLConnection conn = (HttpsURLConnection) url.openConnection();
-    conn.setInstanceFollowRedirects(false);
-    conn.setRequestMethod("GET");
-
-    int responseCode = conn.getResponseCode();
-
-    if (redirectionCodes.contains(responseCode)) {
-      String newUrlToRead = conn.getHeaderField("Location");
-      conn.disconnect();
-
-      URL newUrl;
-	    try {
-		    newUrl = new URL(newUrlToRead);
-		    if (!url.getProtocol().equalsIgnoreCase(newUrl.getProtocol())) {
-			    throw new ProcessException("Redirection to a different protocol");
-		    }
-	    } catch (MalformedURLException mue) {
-		    newUrl = new URL(url, newUrlToRead);
-	    }
-      return getKeyFromUrl(newUrl, rootDomain, remainingRedirects - 1);
-    }
-
-    if (responseCode != HttpURLConnection.HTTP_OK) {
-      throw new ProcessException("Invalid Response");
-    }
-
-    StringBuilder result = new StringBuilder();
-
-    try(BufferedReader rd = new BufferedReader(new InputStreamReader(conn.getInputStream()))) {
-      String line;
-      while ((line = rd.readLine()) != null) {
-        if (!line.isEmpty() && line.charAt(0) != '#' && line.charAt(0) != '-') {
-          result.append(line);
-        }
-      }
-    } finally {
-      conn.disconnect();
-    }
-    return result.toString();
-  }
-
+  /**
+   * Fetches the base64 encoded key data from the url through {@link KeyFetcher#getDefault()}.
+   *
+   * @param urlToRead https url of the key file
+   * @return key data, without comment and armour lines
+   * @throws IOException if the key file cannot be fetched
+   */
   public static String getKeyFromUrl(String urlToRead) throws IOException {
-    // Read key from url
-    URL url = new URL(urlToRead);
-    String rootDomain = InternetDomainName.from(url.getHost()).topPrivateDomain().toString();
-    return getKeyFromUrl(url, rootDomain, MAX_REDIRECTS);
+    return KeyFetcher.getDefault().fetchKeyData(urlToRead);
   }
 
   public static String getKeyFromFile(String filename) throws IOException {
@@ -0,0 +1,158 @@
+/*
+ * Copyright  2019 - present. IAB Tech Lab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.media.adscert;
+
+import net.media.adscert.exceptions.InvalidDataException;
+import net.media.adscert.utils.DigestUtil;
+import net.media.openrtb3.AudioPlacement;
+import net.media.openrtb3.Device;
+import net.media.openrtb3.Item;
+import net.media.openrtb3.OpenRTB3_X;
+import net.media.openrtb3.Placement;
+import net.media.openrtb3.Spec;
+import net.media.openrtb3.VideoPlacement;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class DigestUtilTest {
+
+  @Test
+  public void buildsDigestFromCompiledPlans() {
+    OpenRTB3_X openRTB = TestUtil.getOpenRTBObject();
+    openRTB.getRequest().getSource().setDsmap(" domain= && ft=&tid=& ");
+    for (int i = 0; i < 3; i++) {
+      Map<String, Object> fields = DigestUtil.getDigestFromDsMap(openRTB);
+      Assert.assertEquals(TestUtil.getMapOfDigestFields(), fields);
+      Assert.assertEquals(
+          "domain=newsite.com&ft=d&tid=ABC7E92FBD6A",
+          DigestUtil.getDigestFromDsMap(openRTB.getRequest().getSource().getDsmap(), fields));
+      Assert.assertEquals(
+          "domain=newsite.com&ft=d&tid=ABC7E92FBD6A", DigestUtil.buildDigest(openRTB));
+    }
+
+    Map<String, Object> fields = new HashMap<>();
+    fields.put("domain", "newsite.com");
+    fields.put("tid", null);
+    Assert.assertEquals(
+        "tid=null&domain=newsite.com&domain=newsite.com",
+        DigestUtil.getDigestFromDsMap("tid=&domain=&domain=", fields));
+  }
+
+  @Test
+  public void rejectsMalformedDsMapsEveryTime() {
+    OpenRTB3_X openRTB = TestUtil.getOpenRTBObject();
+    String[] malformed = {"domain=&unknown=", "domain=&domain=", "bundle=", null};
+    for (String dsMap : malformed) {
+      openRTB.getRequest().getSource().setDsmap(dsMap);
+      for (int i = 0; i < 2; i++) {
+        try {
+          DigestUtil.getDigestFromDsMap(openRTB);
+          Assert.fail(dsMap);
+        } catch (InvalidDataException expected) {
+        }
+        try {
+          DigestUtil.buildDigest(openRTB);
+          Assert.fail(dsMap);
+        } catch (InvalidDataException expected) {
+        }
+      }
+    }
+    try {
+      DigestUtil.getDigestFromDsMap("domain=&ip=", TestUtil.getMapOfDigestFields());
+      Assert.fail();
+    } catch (InvalidDataException expected) {
+    }
+  }
+
+  @Test
+  public void encodesDigestAsUtf8() {
+    OpenRTB3_X openRTB = TestUtil.getOpenRTBObject();
+    Device device = new Device();
+    device.setUa("Mozilla/5.0 \u00e9\u20ac\ud83d\ude00 \ud800 end\udc00");
+    openRTB.getRequest().getContext().setDevice(device);
+    openRTB.getRequest().getSource().setDsmap("domain=&ua=&tid=");
+    for (int i = 0; i < 2; i++) {
+      ByteBuffer digest = DigestUtil.encodeDigest(openRTB);
+      byte[] bytes = new byte[digest.remaining()];
+      digest.get(bytes);
+      Assert.assertArrayEquals(
+          DigestUtil.buildDigest(openRTB).getBytes(StandardCharsets.UTF_8), bytes);
+    }
+  }
+
+  @Test
+  public void derivesItemFieldsInOnePass() {
+    OpenRTB3_X openRTB = TestUtil.getOpenRTBObject();
+    openRTB.getRequest().getSource().setDsmap("ft=&w=&h=");
+    List<Item> items = new ArrayList<>();
+    for (int i = 0; i < 50; i++) {
+      items.add(item(null, null));
+    }
+    openRTB.getRequest().setItem(items);
+    Assert.assertEquals("ft=d&w=&h=", DigestUtil.buildDigest(openRTB));
+
+    items.add(item(null, new AudioPlacement()));
+    items.add(item(video(300), null));
+    items.add(item(video(640), null));
+    Assert.assertEquals("ft=vda&w=300&h=300", DigestUtil.buildDigest(openRTB));
+
+    // An item without placement after the first video only breaks the format types.
+    items.add(new Item());
+    openRTB.getRequest().getSource().setDsmap("w=&h=");
+    Assert.assertEquals("w=300&h=300", DigestUtil.buildDigest(openRTB));
+    for (String dsMap : new String[] {"ft=", "w=&ft="}) {
+      openRTB.getRequest().getSource().setDsmap(dsMap);
+      try {
+        DigestUtil.buildDigest(openRTB);
+        Assert.fail(dsMap);
+      } catch (InvalidDataException expected) {
+      }
+    }
+
+    items.add(0, null);
+    openRTB.getRequest().getSource().setDsmap("w=");
+    try {
+      DigestUtil.buildDigest(openRTB);
+      Assert.fail();
+    } catch (InvalidDataException expected) {
+    }
+  }
+
+  private static Item item(VideoPlacement video, AudioPlacement audio) {
+    Placement placement = new Placement();
+    placement.setVideo(video);
+    placement.setAudio(audio);
+    Spec spec = new Spec();
+    spec.setPlacement(placement);
+    Item item = new Item();
+    item.setSpec(spec);
+    return item;
+  }
+
+  private static VideoPlacement video(int width) {
+    VideoPlacement video = new VideoPlacement();
+    video.setW(width);
+    return video;
+  }
+}
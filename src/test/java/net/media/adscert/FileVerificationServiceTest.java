@@ -0,0 +1,352 @@
+/*
+ * Copyright  2019 - present. IAB Tech Lab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.media.adscert;
+
+import net.media.adscert.enums.Result;
+import net.media.adscert.exceptions.InvalidDataException;
+import net.media.adscert.exceptions.ProcessException;
+import net.media.adscert.exceptions.VerificationServiceException;
+import net.media.adscert.service.BufferedVerificationSink;
+import net.media.adscert.service.FileVerificationService;
+import net.media.adscert.service.VerificationService;
+import net.media.adscert.service.VerificationSink;
+import net.media.adscert.utils.DigestUtil;
+import net.media.adscert.utils.JacksonObjectMapper;
+import net.media.adscert.utils.SignatureUtil;
+import net.media.openrtb3.OpenRTB3_X;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+public class FileVerificationServiceTest {
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void verifiesInParallelInInputOrder() throws Exception {
+    KeyPair keyPair = TestUtil.generateKeyPair();
+    File input = folder.newFile("requests.json");
+    List<String> lines = writeRequests(input, keyPair, 200);
+
+    // Chunks far smaller than a line as well as chunks holding many lines.
+    for (int chunkSize : new int[] {64, 1000, 1 << 20}) {
+      FileVerificationService service = new FileVerificationService(new VerificationService());
+      service.setPublicKey(keyPair.getPublic());
+      service.setParallelism(4);
+      service.setChunkSize(chunkSize);
+      File output = folder.newFile("output" + chunkSize + ".txt");
+      service.verifyParallel(input.getPath(), output.getPath());
+      assertOutcomes(Files.readAllLines(output.toPath()), lines.size());
+    }
+  }
+
+  @Test
+  public void writesCompactRecordsToAnySink() throws Exception {
+    KeyPair keyPair = TestUtil.generateKeyPair();
+    File input = folder.newFile("requests.json");
+    List<String> lines = writeRequests(input, keyPair, 50);
+
+    FileVerificationService service = new FileVerificationService(new VerificationService());
+    service.setPublicKey(keyPair.getPublic());
+    service.setParallelism(3);
+    service.setChunkSize(512);
+    service.setOutputFormat(BufferedVerificationSink.Format.COMPACT);
+    File output = folder.newFile("output.tsv");
+    service.verifyParallel(input.getPath(), output.getPath());
+    List<String> records = Files.readAllLines(output.toPath());
+    Assert.assertEquals(lines.size(), records.size());
+    for (int i = 0; i < records.size(); i++) {
+      String[] fields = records.get(i).split("\t");
+      Assert.assertEquals(5, fields.length);
+      Assert.assertEquals(String.valueOf(i + 1), fields[0]);
+      if (i % 11 == 10) {
+        Assert.assertEquals("FAILURE", fields[1]);
+        Assert.assertEquals("INVALID_DATA", fields[2]);
+        Assert.assertEquals("-", fields[3]);
+      } else if (i % 7 == 0 && i > 0) {
+        Assert.assertEquals("FAILURE", fields[1]);
+        Assert.assertEquals("SIGNATURE_MISMATCH", fields[2]);
+        Assert.assertEquals("newsite.com", fields[3]);
+      } else {
+        Assert.assertEquals("SUCCESS", fields[1]);
+        Assert.assertEquals("-", fields[2]);
+        Assert.assertEquals("newsite.com", fields[3]);
+      }
+      Assert.assertTrue(Long.parseLong(fields[4]) >= 0);
+    }
+
+    List<Long> lineNumbers = new ArrayList<>();
+    service.verifyParallel(
+        input.getPath(),
+        record -> {
+          lineNumbers.add(record.getLineNumber());
+          Assert.assertEquals(record.getLineNumber() % 11 == 0, record.getError() != null);
+        });
+    Assert.assertEquals(lines.size(), lineNumbers.size());
+    for (int i = 0; i < lineNumbers.size(); i++) {
+      Assert.assertEquals(i + 1, (long) lineNumbers.get(i));
+    }
+  }
+
+  @Test
+  public void writesLegacyFailuresWithoutMessage() throws Exception {
+    KeyPair keyPair = TestUtil.generateKeyPair();
+    File input = folder.newFile("requests.json");
+    List<String> lines = writeRequests(input, keyPair, 12);
+    VerificationService failing =
+        new VerificationService() {
+          @Override
+          public Result verifyRequest(
+              OpenRTB3_X openRTB, Boolean debug, PublicKey publicKey, boolean checkMessageExpiry) {
+            throw new IllegalStateException();
+          }
+        };
+
+    File output = folder.newFile("output.txt");
+    FileVerificationService.verify(
+        input.getPath(),
+        output.getPath(),
+        JacksonObjectMapper.getMapper(),
+        failing,
+        keyPair.getPublic());
+
+    FileVerificationService service = new FileVerificationService(failing);
+    service.setPublicKey(keyPair.getPublic());
+    service.setParallelism(2);
+    File parallelOutput = folder.newFile("parallel.txt");
+    service.verifyParallel(input.getPath(), parallelOutput.getPath());
+
+    for (File file : new File[] {output, parallelOutput}) {
+      List<String> records = Files.readAllLines(file.toPath());
+      Assert.assertEquals(lines.size(), records.size());
+      for (int i = 0; i < records.size(); i++) {
+        // Every 11th line is not json and fails with the parser's message.
+        if (i % 11 != 10) {
+          Assert.assertEquals("Failed: null", records.get(i));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void keepsRecordsOnOneLine() throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    VerificationSink sink =
+        new BufferedVerificationSink(bytes, BufferedVerificationSink.Format.COMPACT, 8);
+    List<String> expected = new ArrayList<>();
+    for (String domain : new String[] {"newsite.com", "bad\tsite\n.com", "n\u00e9site\r.com"}) {
+      FileVerificationService service = new FileVerificationService();
+      service.setPublicKey(TestUtil.generateKeyPair().getPublic());
+      File input = folder.newFile();
+      OpenRTB3_X openRTB = TestUtil.getOpenRTBObject();
+      openRTB.getRequest().getContext().getSite().setDomain(domain);
+      Files.write(input.toPath(), JacksonObjectMapper.getMapper().writeValueAsBytes(openRTB));
+      service.verifyParallel(input.getPath(), sink);
+      expected.add(domain.replace('\t', ' ').replace('\n', ' ').replace('\r', ' '));
+    }
+    sink.close();
+    String[] records = new String(bytes.toByteArray(), StandardCharsets.UTF_8).split("\n");
+    Assert.assertEquals(expected.size(), records.length);
+    for (int i = 0; i < records.length; i++) {
+      Assert.assertEquals(expected.get(i), records[i].split("\t")[3]);
+    }
+  }
+
+  @Test
+  public void readsGzipInput() throws Exception {
+    KeyPair keyPair = TestUtil.generateKeyPair();
+    File plain = folder.newFile("requests.json");
+    List<String> lines = writeRequests(plain, keyPair, 300);
+    byte[] data = Files.readAllBytes(plain.toPath());
+
+    // A single member, members of a few lines each and block-gzip blocks splitting lines.
+    File single = folder.newFile("single.json.gz");
+    Files.write(single.toPath(), gzip(data, 0, data.length));
+    File members = folder.newFile("members.json.gz");
+    ByteArrayOutputStream concatenated = new ByteArrayOutputStream();
+    int start = 0;
+    for (int i = 0; i < data.length; i++) {
+      if (data[i] == '\n' && (i % 3 == 0 || i == data.length - 1)) {
+        concatenated.write(gzip(data, start, i + 1 - start));
+        start = i + 1;
+      }
+    }
+    concatenated.write(gzip(data, start, data.length - start));
+    Files.write(members.toPath(), concatenated.toByteArray());
+    File blocks = folder.newFile("blocks.json.bgz");
+    ByteArrayOutputStream bgzf = new ByteArrayOutputStream();
+    for (int offset = 0; offset < data.length; offset += 700) {
+      bgzf.write(bgzfBlock(data, offset, Math.min(700, data.length - offset)));
+    }
+    bgzf.write(bgzfBlock(data, 0, 0));
+    Files.write(blocks.toPath(), bgzf.toByteArray());
+
+    for (File input : new File[] {single, members, blocks}) {
+      for (int chunkSize : new int[] {64, 4000, 1 << 20}) {
+        FileVerificationService service = new FileVerificationService(new VerificationService());
+        service.setPublicKey(keyPair.getPublic());
+        service.setParallelism(4);
+        service.setChunkSize(chunkSize);
+        File output = folder.newFile(input.getName() + chunkSize + ".txt");
+        service.verifyParallel(input.getPath(), output.getPath());
+        assertOutcomes(Files.readAllLines(output.toPath()), lines.size());
+      }
+      File output = folder.newFile(input.getName() + ".txt");
+      FileVerificationService.verify(input.getPath(), output.getPath(), keyPair.getPublic());
+      Assert.assertEquals(lines.size(), Files.readAllLines(output.toPath()).size());
+    }
+  }
+
+  @Test
+  public void resumesFromLastCheckpoint() throws Exception {
+    KeyPair keyPair = TestUtil.generateKeyPair();
+    File plain = folder.newFile("requests.json");
+    List<String> lines = writeRequests(plain, keyPair, 300);
+    byte[] data = Files.readAllBytes(plain.toPath());
+    File compressed = folder.newFile("requests.json.gz");
+    Files.write(compressed.toPath(), gzip(data, 0, data.length));
+
+    for (File input : new File[] {plain, compressed}) {
+      File output = folder.newFile(input.getName() + ".out");
+      File checkpoint = new File(folder.getRoot(), input.getName() + ".checkpoint");
+      // Dies after about half of the lines, once checkpoints were recorded.
+      AtomicInteger verified = new AtomicInteger();
+      VerificationService crashing =
+          new VerificationService() {
+            @Override
+            public Result verifyRequest(
+                OpenRTB3_X openRTB, Boolean debug, PublicKey publicKey, boolean checkExpiry)
+                throws InvalidDataException, ProcessException {
+              if (verified.incrementAndGet() > 140) {
+                throw new InternalError("crashed");
+              }
+              return super.verifyRequest(openRTB, debug, publicKey, checkExpiry);
+            }
+          };
+      FileVerificationService first = newCheckpointingService(crashing, keyPair, checkpoint);
+      try {
+        first.verifyParallel(input.getPath(), output.getPath());
+        Assert.fail();
+      } catch (VerificationServiceException e) {
+        Assert.assertTrue(checkpoint.exists());
+      }
+
+      AtomicInteger resumed = new AtomicInteger();
+      VerificationService counting =
+          new VerificationService() {
+            @Override
+            public Result verifyRequest(
+                OpenRTB3_X openRTB, Boolean debug, PublicKey publicKey, boolean checkExpiry)
+                throws InvalidDataException, ProcessException {
+              resumed.incrementAndGet();
+              return super.verifyRequest(openRTB, debug, publicKey, checkExpiry);
+            }
+          };
+      FileVerificationService second = newCheckpointingService(counting, keyPair, checkpoint);
+      second.resumeParallel(input.getPath(), output.getPath());
+      assertOutcomes(Files.readAllLines(output.toPath()), lines.size());
+      Assert.assertTrue(resumed.get() < lines.size() - 100);
+      Assert.assertFalse(checkpoint.exists());
+    }
+  }
+
+  private static FileVerificationService newCheckpointingService(
+      VerificationService service, KeyPair keyPair, File checkpoint) {
+    FileVerificationService files = new FileVerificationService(service);
+    files.setPublicKey(keyPair.getPublic());
+    files.setParallelism(2);
+    files.setChunkSize(2000);
+    files.setCheckpointFile(checkpoint.getPath());
+    files.setCheckpointInterval(2);
+    return files;
+  }
+
+  private static byte[] gzip(byte[] data, int offset, int length) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (GZIPOutputStream gzip = new GZIPOutputStream(bytes)) {
+      gzip.write(data, offset, length);
+    }
+    return bytes.toByteArray();
+  }
+
+  /** Writes a block-gzip member, whose extra field holds the size of the block. */
+  private static byte[] bgzfBlock(byte[] data, int offset, int length) {
+    Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    deflater.setInput(data, offset, length);
+    deflater.finish();
+    byte[] compressed = new byte[length + 1024];
+    int compressedLength = deflater.deflate(compressed);
+    deflater.end();
+    CRC32 crc = new CRC32();
+    crc.update(data, offset, length);
+    ByteBuffer block = ByteBuffer.allocate(26 + compressedLength).order(ByteOrder.LITTLE_ENDIAN);
+    block.put(new byte[] {0x1f, (byte) 0x8b, 8, 4, 0, 0, 0, 0, 0, (byte) 0xff});
+    block.putShort((short) 6).put((byte) 'B').put((byte) 'C').putShort((short) 2);
+    block.putShort((short) (block.capacity() - 1));
+    block.put(compressed, 0, compressedLength);
+    block.putInt((int) crc.getValue()).putInt(length);
+    return block.array();
+  }
+
+  static void assertOutcomes(List<String> output, int count) {
+    Assert.assertEquals(count, output.size());
+    for (int i = 0; i < count; i++) {
+      if (i % 11 == 10) {
+        Assert.assertTrue(output.get(i), output.get(i).startsWith("Failed: "));
+      } else {
+        Assert.assertEquals(i % 7 == 0 && i > 0 ? "FAILURE" : "SUCCESS", output.get(i));
+      }
+    }
+  }
+
+  /**
+   * Writes signed requests, one per line. Every 7th request has a bad signature and every 11th
+   * line is not json.
+   */
+  static List<String> writeRequests(File file, KeyPair keyPair, int count) throws Exception {
+    OpenRTB3_X openRTB = TestUtil.getOpenRTBObject();
+    String ds = SignatureUtil.signMessage(keyPair.getPrivate(), DigestUtil.getDigest(openRTB));
+    List<String> lines = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      if (i % 11 == 10) {
+        lines.add("{\"request\": [");
+        continue;
+      }
+      openRTB.getRequest().getSource().setDs(i % 7 == 0 && i > 0 ? "abcdef" : ds);
+      lines.add(JacksonObjectMapper.getMapper().writeValueAsString(openRTB));
+    }
+    Files.write(file.toPath(), lines, StandardCharsets.UTF_8);
+    return lines;
+  }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright  2019 - present. IAB Tech Lab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.media.adscert;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.CacheBuilder;
+import net.media.adscert.cache.DefaultJCacheBuilder;
+import net.media.adscert.cache.VerificationServiceGuavaCache;
+import net.media.adscert.cache.VerificationServiceJCache;
+import net.media.adscert.enums.Result;
+import net.media.adscert.fetch.KeyFailureCache;
+import net.media.adscert.fetch.KeyFetcher;
+import net.media.adscert.service.VerificationService;
+import net.media.openrtb3.OpenRTB3_X;
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.cache.Cache;
+import javax.cache.integration.CacheLoader;
+import javax.cache.integration.CacheLoaderException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.security.PublicKey;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class KeyFailureCacheTest {
+
+  private static final String URL = "https://www.newsite.com/ads.cert";
+
+  @Test
+  public void backsOffExponentially() {
+    AtomicLong now = new AtomicLong();
+    KeyFailureCache failures =
+        KeyFailureCache.newBuilder()
+            .setInitialBackoff(Duration.ofSeconds(10))
+            .setMaxBackoff(Duration.ofSeconds(60))
+            .setJitter(0.5)
+            .setTicker(ticker(now))
+            .build();
+    IOException notFound = new FileNotFoundException(URL);
+    Assert.assertNull(failures.getFailure(URL));
+
+    long[] backoffs = {10, 20, 40, 60, 60};
+    for (long backoff : backoffs) {
+      failures.recordFailure(URL, notFound);
+      // Further records of the same failure do not extend the backoff.
+      failures.recordFailure(URL, new IOException());
+      Assert.assertSame(notFound, failures.getFailure(URL));
+      long remaining = failures.getRemainingBackoff(URL).getSeconds();
+      Assert.assertTrue(remaining <= backoff && remaining >= backoff / 2 - 1);
+      now.addAndGet(TimeUnit.SECONDS.toNanos(remaining + 1));
+      Assert.assertNull(failures.getFailure(URL));
+    }
+
+    failures.recordSuccess(URL);
+    Assert.assertEquals(0, failures.size());
+    failures.recordFailure(URL, notFound);
+    Assert.assertTrue(failures.getRemainingBackoff(URL).getSeconds() <= 10);
+
+    // A url that does not fail again for the maximum backoff starts over.
+    now.addAndGet(TimeUnit.SECONDS.toNanos(10 + 60));
+    failures.recordFailure(URL, notFound);
+    Assert.assertTrue(failures.getRemainingBackoff(URL).getSeconds() <= 10);
+  }
+
+  @Test
+  public void failsFastWhileBackingOff() throws Exception {
+    OpenRTB3_X openRTB = TestUtil.getOpenRTBObject();
+    openRTB.getRequest().getSource().setCert("ads.cert");
+    openRTB.getRequest().getSource().setDs("MEUCIQ");
+
+    AtomicInteger fetches = new AtomicInteger();
+    VerificationService service = new VerificationService();
+    service.setKeyFetcher(
+        KeyFetcher.newBuilder()
+            .setConnector(
+                url -> {
+                  fetches.incrementAndGet();
+                  throw new IOException("Connection refused");
+                })
+            .build());
+    assertFailsFast(service, openRTB, fetches);
+
+    AtomicInteger loads = new AtomicInteger();
+    VerificationServiceGuavaCache guava =
+        new VerificationServiceGuavaCache(
+            CacheBuilder.newBuilder().<String, PublicKey>build(),
+            url ->
+                () -> {
+                  loads.incrementAndGet();
+                  throw new FileNotFoundException(url);
+                });
+    assertFailsFast(guava, openRTB, loads);
+
+    AtomicInteger jcacheLoads = new AtomicInteger();
+    Cache<String, PublicKey> cache =
+        DefaultJCacheBuilder.newBuilder()
+            .setCacheName("failingKeyCache")
+            .setCacheLoader(
+                new CacheLoader<String, PublicKey>() {
+                  @Override
+                  public PublicKey load(String key) throws CacheLoaderException {
+                    jcacheLoads.incrementAndGet();
+                    throw new CacheLoaderException(new FileNotFoundException(key));
+                  }
+
+                  @Override
+                  public Map<String, PublicKey> loadAll(Iterable<? extends String> keys) {
+                    return null;
+                  }
+                })
+            .build();
+    try {
+      assertFailsFast(new VerificationServiceJCache(cache), openRTB, jcacheLoads);
+    } finally {
+      cache.getCacheManager().destroyCache("failingKeyCache");
+    }
+  }
+
+  @Test
+  public void ignoresInterruptedFetches() throws Exception {
+    CountDownLatch connecting = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    VerificationService service = new VerificationService();
+    service.setKeyFetcher(
+        KeyFetcher.newBuilder()
+            .setConnector(
+                url -> {
+                  connecting.countDown();
+                  try {
+                    release.await(10, TimeUnit.SECONDS);
+                  } catch (InterruptedException e) {
+                    throw new IOException(e);
+                  }
+                  throw new IOException("Connection refused");
+                })
+            .build());
+    AtomicReference<Exception> thrown = new AtomicReference<>();
+    Thread caller =
+        new Thread(
+            () -> {
+              try {
+                service.getPublicKey(URL);
+              } catch (Exception e) {
+                thrown.set(e);
+              }
+            });
+    caller.start();
+    try {
+      Assert.assertTrue(connecting.await(5, TimeUnit.SECONDS));
+      // A cancelled caller does not put the url into backoff for every other caller.
+      caller.interrupt();
+      caller.join(5000);
+      Assert.assertTrue(thrown.get() instanceof InterruptedIOException);
+      Assert.assertNull(service.getKeyFailureCache().getFailure(URL));
+    } finally {
+      release.countDown();
+    }
+  }
+
+  private static void assertFailsFast(
+      VerificationService service, OpenRTB3_X openRTB, AtomicInteger fetches) {
+    service.setDetailedFailures(true);
+    for (long budget : new long[] {VerificationService.NO_KEY_RESOLUTION_BUDGET, 1000}) {
+      service.setKeyResolutionBudgetMillis(budget);
+      service.getKeyFailureCache().clear();
+      fetches.set(0);
+      for (int i = 0; i < 3; i++) {
+        Result result = service.verifyRequest(openRTB, false, false);
+        Assert.assertEquals(Result.FailureReason.KEY_UNAVAILABLE, result.getFailureReason());
+        Assert.assertNotNull(result.getException());
+      }
+      Assert.assertEquals(1, fetches.get());
+      Assert.assertNotNull(service.getKeyFailureCache().getFailure(URL));
+    }
+
+    service.setKeyFailureCache(null);
+    service.verifyRequest(openRTB, false, false);
+    Assert.assertEquals(2, fetches.get());
+    service.setKeyFailureCache(KeyFailureCache.newBuilder().build());
+  }
+
+  private static Ticker ticker(AtomicLong now) {
+    return new Ticker() {
+      @Override
+      public long read() {
+        return now.get();
+      }
+    };
+  }
+}
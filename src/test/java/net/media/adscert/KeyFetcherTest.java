@@ -0,0 +1,392 @@
+/*
+ * Copyright  2019 - present. IAB Tech Lab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.media.adscert;
+
+import com.google.common.cache.Cache;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+import net.media.adscert.cache.DefaultGuavaCacheBuilder;
+import net.media.adscert.cache.VerificationServiceGuavaCache;
+import net.media.adscert.enums.Result;
+import net.media.adscert.exceptions.ProcessException;
+import net.media.adscert.fetch.KeyFetcher;
+import net.media.adscert.metrics.MetricsManager;
+import org.apache.commons.codec.binary.Base64;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyStore;
+import java.security.PublicKey;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class KeyFetcherTest {
+
+  private static final char[] PASSWORD = "changeit".toCharArray();
+
+  @ClassRule public static TemporaryFolder keyStoreFolder = new TemporaryFolder();
+
+  private static KeyStore keyStore;
+
+  private final KeyPair keyPair;
+  private final Set<Integer> remotePorts = ConcurrentHashMap.newKeySet();
+  private final AtomicInteger requests = new AtomicInteger();
+  private final AtomicInteger hedgedRequests = new AtomicInteger();
+  private final AtomicInteger blocked = new AtomicInteger();
+  private final AtomicInteger maxBlocked = new AtomicInteger();
+  private final CountDownLatch release = new CountDownLatch(1);
+  private HttpsServer server;
+  private ExecutorService serverThreads;
+  private KeyFetcher.Connector connector;
+
+  public KeyFetcherTest() throws Exception {
+    keyPair = TestUtil.generateKeyPair();
+  }
+
+  @BeforeClass
+  public static void createKeyStore() throws Exception {
+    File keyStoreFile = new File(keyStoreFolder.getRoot(), "server.p12");
+    String keytoolPath =
+        System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool";
+    Process keytool =
+        new ProcessBuilder(
+                keytoolPath,
+                "-genkeypair", "-alias", "server", "-keyalg", "EC", "-groupname", "secp256r1",
+                "-dname", "CN=www.newsite.com", "-validity", "2", "-storetype", "PKCS12",
+                "-keystore", keyStoreFile.getPath(), "-storepass", new String(PASSWORD),
+                "-keypass", new String(PASSWORD))
+            .redirectErrorStream(true)
+            .start();
+    Assert.assertTrue(keytool.waitFor(60, TimeUnit.SECONDS));
+    Assert.assertEquals(0, keytool.exitValue());
+    keyStore = KeyStore.getInstance("PKCS12");
+    try (InputStream input = new FileInputStream(keyStoreFile)) {
+      keyStore.load(input, PASSWORD);
+    }
+  }
+
+  /** Serves keys over https on a local port, standing in for the publishers' web servers. */
+  @Before
+  public void startServer() throws Exception {
+    KeyManagerFactory keyManagers =
+        KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+    keyManagers.init(keyStore, PASSWORD);
+    SSLContext serverContext = SSLContext.getInstance("TLS");
+    serverContext.init(keyManagers.getKeyManagers(), null, null);
+    TrustManagerFactory trustManagers =
+        TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+    trustManagers.init(keyStore);
+    SSLContext clientContext = SSLContext.getInstance("TLS");
+    clientContext.init(null, trustManagers.getTrustManagers(), null);
+
+    server = HttpsServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.setHttpsConfigurator(new HttpsConfigurator(serverContext));
+    serverThreads = Executors.newCachedThreadPool();
+    server.setExecutor(serverThreads);
+    server.createContext("/", this::handle);
+    server.start();
+
+    // Every host is served by the local server; the urls keep their hosts for the domain rules.
+    int port = server.getAddress().getPort();
+    // Connections are only reused with the same socket factory and hostname verifier.
+    SSLSocketFactory socketFactory = clientContext.getSocketFactory();
+    HostnameVerifier anyHost = (host, session) -> true;
+    connector =
+        url -> {
+          URL local = new URL("https", "127.0.0.1", port, url.getFile());
+          HttpsURLConnection connection = (HttpsURLConnection) local.openConnection();
+          connection.setSSLSocketFactory(socketFactory);
+          connection.setHostnameVerifier(anyHost);
+          return connection;
+        };
+  }
+
+  @After
+  public void stopServer() {
+    release.countDown();
+    server.stop(0);
+    serverThreads.shutdownNow();
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    remotePorts.add(exchange.getRemoteAddress().getPort());
+    requests.incrementAndGet();
+    String path = exchange.getRequestURI().getPath();
+    try {
+      switch (path) {
+        case "/key.pem":
+          respond(exchange, 200, pem());
+          return;
+        case "/moved.pem":
+          exchange.getResponseHeaders().add("Location", "https://cdn.newsite.com/key.pem");
+          respond(exchange, 302, "");
+          return;
+        case "/offsite.pem":
+          exchange.getResponseHeaders().add("Location", "https://www.othersite.com/key.pem");
+          respond(exchange, 302, "");
+          return;
+        case "/slow.pem":
+          Thread.sleep(2000);
+          respond(exchange, 200, "");
+          return;
+        case "/hedged.pem":
+          // The first request hangs, a hedged one is answered.
+          if (hedgedRequests.incrementAndGet() == 1) {
+            release.await();
+          }
+          respond(exchange, 200, pem());
+          return;
+        case "/blocked.pem":
+          int now = blocked.incrementAndGet();
+          maxBlocked.accumulateAndGet(now, Math::max);
+          release.await();
+          blocked.decrementAndGet();
+          respond(exchange, 200, pem());
+          return;
+        default:
+          respond(exchange, 404, "not found");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private String pem() {
+    return "-----BEGIN PUBLIC KEY-----\n"
+        + Base64.encodeBase64String(keyPair.getPublic().getEncoded())
+        + "\n-----END PUBLIC KEY-----\n";
+  }
+
+  private static void respond(HttpExchange exchange, int code, String body) throws IOException {
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    exchange.sendResponseHeaders(code, bytes.length == 0 ? -1 : bytes.length);
+    try (OutputStream output = exchange.getResponseBody()) {
+      output.write(bytes);
+    }
+  }
+
+  private KeyFetcher.Builder newFetcher() {
+    return KeyFetcher.newBuilder().setConnector(connector);
+  }
+
+  @Test
+  public void fetchesKeysOverReusedConnections() throws Exception {
+    KeyFetcher fetcher = newFetcher().build();
+    for (int i = 0; i < 5; i++) {
+      PublicKey key = fetcher.fetch("https://www.newsite.com/key.pem");
+      Assert.assertArrayEquals(keyPair.getPublic().getEncoded(), key.getEncoded());
+    }
+    Assert.assertEquals(1, remotePorts.size());
+
+    Assert.assertArrayEquals(
+        keyPair.getPublic().getEncoded(),
+        fetcher.fetch("https://www.newsite.com/moved.pem").getEncoded());
+
+    Cache<String, PublicKey> cache = DefaultGuavaCacheBuilder.newBuilder().build();
+    VerificationServiceGuavaCache service = new VerificationServiceGuavaCache(cache, fetcher);
+    Assert.assertArrayEquals(
+        keyPair.getPublic().getEncoded(),
+        service.getPublicKey("https://www.newsite.com/key.pem").getEncoded());
+    Assert.assertNotNull(cache.getIfPresent("https://www.newsite.com/key.pem"));
+  }
+
+  @Test
+  public void enforcesRedirectAndProtocolRules() throws Exception {
+    KeyFetcher fetcher = newFetcher().build();
+    for (String url :
+        new String[] {
+          "https://www.newsite.com/offsite.pem",
+          "http://www.newsite.com/key.pem",
+          "https://www.newsite.com/missing.pem"
+        }) {
+      try {
+        fetcher.fetch(url);
+        Assert.fail(url);
+      } catch (ProcessException expected) {
+      }
+    }
+  }
+
+  @Test
+  public void timesOutSlowServers() throws Exception {
+    KeyFetcher fetcher = newFetcher().setReadTimeout(Duration.ofMillis(200)).build();
+    long start = System.nanoTime();
+    try {
+      fetcher.fetch("https://www.newsite.com/slow.pem");
+      Assert.fail();
+    } catch (SocketTimeoutException expected) {
+    }
+    Assert.assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(1500));
+  }
+
+  @Test
+  public void limitsConcurrentFetchesPerHost() throws Exception {
+    KeyFetcher fetcher =
+        newFetcher().setMaxConcurrentFetches(3).setMaxConcurrentFetchesPerHost(2).build();
+    List<CompletableFuture<PublicKey>> fetches = new ArrayList<>();
+    for (int i = 0; i < 6; i++) {
+      fetches.add(fetcher.fetchAsync("https://www.newsite.com/blocked.pem"));
+      fetches.add(fetcher.fetchAsync("https://cdn.newsite.com/blocked.pem"));
+    }
+    // Two hosts with two fetches each, capped at three in total.
+    long deadline = System.currentTimeMillis() + 5000;
+    while (blocked.get() < 3 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    Thread.sleep(200);
+    Assert.assertEquals(3, blocked.get());
+    release.countDown();
+    for (CompletableFuture<PublicKey> fetch : fetches) {
+      Assert.assertArrayEquals(
+          keyPair.getPublic().getEncoded(), fetch.get(10, TimeUnit.SECONDS).getEncoded());
+    }
+    Assert.assertEquals(3, maxBlocked.get());
+  }
+
+  @Test
+  public void opensCircuitsOfFailingDomains() throws Exception {
+    Map<String, Object> metrics = new ConcurrentHashMap<>();
+    KeyFetcher fetcher =
+        newFetcher()
+            .setCircuitBreakerThreshold(2)
+            .setCircuitBreakerOpenDuration(Duration.ofMillis(300))
+            .setMetricsManager(recordingMetrics(metrics))
+            .build();
+    String missing = "https://www.newsite.com/missing.pem";
+    String key = "https://cdn.newsite.com/key.pem";
+    for (int i = 0; i < 2; i++) {
+      Assert.assertFalse(fetcher.isCircuitOpen(key));
+      try {
+        fetcher.fetch(missing);
+        Assert.fail();
+      } catch (ProcessException expected) {
+      }
+    }
+    // The circuit covers the registrable domain, and sheds fetches without reaching the server.
+    Assert.assertTrue(fetcher.isCircuitOpen(key));
+    int served = requests.get();
+    try {
+      fetcher.fetch(key);
+      Assert.fail();
+    } catch (KeyFetcher.CircuitOpenException expected) {
+    }
+    Assert.assertEquals(served, requests.get());
+    fetcher.fetch("https://www.othersite.com/key.pem");
+    Assert.assertEquals(1, fetcher.getOpenCircuitCount());
+    Assert.assertEquals(1.0, metrics.get(MetricsManager.KEY_FETCH_OPEN_CIRCUITS));
+    Assert.assertEquals(1L, metrics.get(MetricsManager.KEY_FETCH_CIRCUITS_OPENED));
+    Assert.assertEquals(1L, metrics.get(MetricsManager.KEY_FETCH_SHED));
+
+    // After the open duration one fetch probes the domain; its failure opens the circuit again.
+    Thread.sleep(350);
+    try {
+      fetcher.fetch(missing);
+      Assert.fail();
+    } catch (ProcessException expected) {
+    }
+    try {
+      fetcher.fetch(key);
+      Assert.fail();
+    } catch (KeyFetcher.CircuitOpenException expected) {
+    }
+
+    // A successful probe closes it.
+    Thread.sleep(350);
+    fetcher.fetch(key);
+    Assert.assertFalse(fetcher.isCircuitOpen(key));
+    fetcher.fetch(key);
+    Assert.assertEquals(0, fetcher.getOpenCircuitCount());
+    Assert.assertEquals(0.0, metrics.get(MetricsManager.KEY_FETCH_OPEN_CIRCUITS));
+    Assert.assertEquals(1L, metrics.get(MetricsManager.KEY_FETCH_CIRCUITS_OPENED));
+  }
+
+  @Test
+  public void hedgesSlowFetches() throws Exception {
+    Map<String, Object> metrics = new ConcurrentHashMap<>();
+    KeyFetcher fetcher =
+        newFetcher().setHedgePercentile(0.9).setMetricsManager(recordingMetrics(metrics)).build();
+    // Latencies are observed before fetches are hedged.
+    for (int i = 0; i < 16; i++) {
+      fetcher.fetch("https://www.newsite.com/key.pem");
+    }
+    Assert.assertNull(metrics.get(MetricsManager.KEY_FETCH_HEDGES));
+    // Past the window of latencies, whose oldest ones make room for the new ones.
+    for (int i = 0; i < 128; i++) {
+      fetcher.fetch("https://www.newsite.com/key.pem");
+    }
+    long hedges = (Long) metrics.getOrDefault(MetricsManager.KEY_FETCH_HEDGES, 0L);
+    long hedgeWins = (Long) metrics.getOrDefault(MetricsManager.KEY_FETCH_HEDGE_WINS, 0L);
+
+    long start = System.nanoTime();
+    PublicKey key =
+        fetcher.fetchAsync("https://www.newsite.com/hedged.pem").get(5, TimeUnit.SECONDS);
+    Assert.assertArrayEquals(keyPair.getPublic().getEncoded(), key.getEncoded());
+    Assert.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(3));
+    Assert.assertEquals(2, hedgedRequests.get());
+    Assert.assertEquals(hedges + 1, metrics.get(MetricsManager.KEY_FETCH_HEDGES));
+    Assert.assertEquals(hedgeWins + 1, metrics.get(MetricsManager.KEY_FETCH_HEDGE_WINS));
+  }
+
+  private static MetricsManager recordingMetrics(Map<String, Object> metrics) {
+    return new MetricsManager() {
+      @Override
+      public void pushMetrics(Map<String, Object> metricsMap, Result result) {}
+
+      @Override
+      public void incrementCounter(String counterName, long delta) {
+        metrics.merge(counterName, delta, (a, b) -> (Long) a + (Long) b);
+      }
+
+      @Override
+      public void recordGauge(String gaugeName, double value) {
+        metrics.put(gaugeName, value);
+      }
+    };
+  }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright  2019 - present. IAB Tech Lab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.media.adscert;
+
+import com.google.common.cache.Cache;
+import net.media.adscert.cache.DefaultGuavaCacheBuilder;
+import net.media.adscert.cache.DefaultJCacheBuilder;
+import net.media.adscert.cache.KeySnapshot;
+import net.media.adscert.cache.VerificationServiceGuavaCache;
+import net.media.adscert.cache.VerificationServiceJCache;
+import net.media.adscert.exceptions.ProcessException;
+import net.media.adscert.fetch.KeyFetcher;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.cache.integration.CacheLoader;
+import javax.cache.integration.CacheLoaderException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.PublicKey;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class KeySnapshotTest {
+
+  private static final String URL = "https://www.newsite.com/ads.cert";
+  private static final String OTHER_URL = "https://www.othersite.com/ads.cert";
+  private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void restoresGuavaCacheWithinTimeToLive() throws Exception {
+    Path file = folder.getRoot().toPath().resolve("keys.snapshot");
+    TestClock clock = new TestClock(System.currentTimeMillis());
+    PublicKey key = TestUtil.generateKeyPair().getPublic();
+
+    KeySnapshot snapshot = newSnapshot(file, clock);
+    Cache<String, PublicKey> cache = newGuavaCache(snapshot);
+    cache.put(URL, key);
+    clock.millis += HOUR;
+    Assert.assertEquals(1, snapshot.write());
+    snapshot.close();
+
+    // The key was cached after the snapshot was attached, and is restored until a day later.
+    clock.millis += 22 * HOUR;
+    KeySnapshot restoring = newSnapshot(file, clock);
+    Cache<String, PublicKey> restored = newGuavaCache(restoring);
+    Assert.assertEquals(1, restoring.getRestoredCount());
+    Assert.assertNull(restoring.getLastFailure());
+    AtomicInteger fetches = new AtomicInteger();
+    KeyFetcher fetcher =
+        KeyFetcher.newBuilder()
+            .setConnector(
+                url -> {
+                  fetches.incrementAndGet();
+                  throw new IOException("unreachable");
+                })
+            .build();
+    PublicKey served = new VerificationServiceGuavaCache(restored, fetcher).getPublicKey(URL);
+    Assert.assertArrayEquals(key.getEncoded(), served.getEncoded());
+    Assert.assertEquals(0, fetches.get());
+
+    // Past its time to live the restored key is evicted, and no longer snapshotted.
+    clock.millis += 2 * HOUR;
+    Assert.assertEquals(0, restoring.write());
+    Assert.assertNull(restored.getIfPresent(URL));
+    restoring.close();
+
+    cache.put(URL, key);
+    KeySnapshot expired = newSnapshot(file, clock);
+    newGuavaCache(expired);
+    Assert.assertEquals(0, expired.getRestoredCount());
+    expired.close();
+  }
+
+  @Test
+  public void restoresJCacheWithFetchTimes() throws Exception {
+    Path file = folder.getRoot().toPath().resolve("keys.snapshot");
+    TestClock clock = new TestClock(System.currentTimeMillis());
+    PublicKey key = TestUtil.generateKeyPair().getPublic();
+    PublicKey otherKey = TestUtil.generateKeyPair().getPublic();
+    AtomicInteger loads = new AtomicInteger();
+
+    KeySnapshot snapshot = newSnapshot(file, clock);
+    javax.cache.Cache<String, PublicKey> cache =
+        newJCache("snapshottedKeyCache", snapshot, loads, key);
+    try {
+      new VerificationServiceJCache(cache).getPublicKey(URL);
+      clock.millis += 12 * HOUR;
+      cache.put(OTHER_URL, otherKey);
+      Assert.assertEquals(2, snapshot.write());
+      snapshot.close();
+    } finally {
+      cache.getCacheManager().destroyCache("snapshottedKeyCache");
+    }
+
+    // Only the key fetched 12 hours later is still within its time to live.
+    clock.millis += 18 * HOUR;
+    KeySnapshot restoring = newSnapshot(file, clock);
+    javax.cache.Cache<String, PublicKey> restored =
+        newJCache("restoredKeyCache", restoring, loads, key);
+    try {
+      Assert.assertEquals(1, restoring.getRestoredCount());
+      Assert.assertFalse(restored.containsKey(URL));
+      PublicKey served = new VerificationServiceJCache(restored).getPublicKey(OTHER_URL);
+      Assert.assertArrayEquals(otherKey.getEncoded(), served.getEncoded());
+      Assert.assertEquals(1, loads.get());
+
+      // The restored key keeps its fetch time across snapshots.
+      Assert.assertEquals(1, restoring.write());
+      clock.millis += 6 * HOUR;
+      Assert.assertEquals(0, restoring.write());
+      Assert.assertFalse(restored.containsKey(OTHER_URL));
+      restoring.close();
+    } finally {
+      restored.getCacheManager().destroyCache("restoredKeyCache");
+    }
+  }
+
+  @Test
+  public void startsColdFromCorruptSnapshot() throws Exception {
+    Path file = folder.getRoot().toPath().resolve("keys.snapshot");
+    TestClock clock = new TestClock(System.currentTimeMillis());
+    Files.write(file, new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13});
+    KeySnapshot snapshot = newSnapshot(file, clock);
+    Cache<String, PublicKey> cache = newGuavaCache(snapshot);
+    Assert.assertEquals(0, snapshot.getRestoredCount());
+    Assert.assertTrue(snapshot.getLastFailure() instanceof IOException);
+    Assert.assertEquals(0, cache.size());
+
+    cache.put(URL, TestUtil.generateKeyPair().getPublic());
+    cache.put(OTHER_URL, TestUtil.generateKeyPair().getPublic());
+    Assert.assertEquals(2, snapshot.write());
+    Assert.assertNull(snapshot.getLastFailure());
+    snapshot.close();
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+      channel.truncate(channel.size() - 5);
+    }
+    KeySnapshot truncated = newSnapshot(file, clock);
+    newGuavaCache(truncated);
+    Assert.assertTrue(truncated.getLastFailure() instanceof IOException);
+    truncated.close();
+
+    try {
+      newGuavaCache(truncated);
+      Assert.fail();
+    } catch (ProcessException e) {
+      Assert.assertEquals("Snapshot is attached to a cache already", e.getMessage());
+    }
+  }
+
+  private static KeySnapshot newSnapshot(Path file, Clock clock) {
+    return KeySnapshot.newBuilder(file).setInterval(Duration.ofHours(1)).setClock(clock).build();
+  }
+
+  private static Cache<String, PublicKey> newGuavaCache(KeySnapshot snapshot) {
+    return DefaultGuavaCacheBuilder.newBuilder()
+        .setExpireAfterWrite(Duration.ofDays(1))
+        .setSnapshot(snapshot)
+        .build();
+  }
+
+  private static javax.cache.Cache<String, PublicKey> newJCache(
+      String name, KeySnapshot snapshot, AtomicInteger loads, PublicKey key) {
+    return DefaultJCacheBuilder.newBuilder()
+        .setCacheName(name)
+        .setExpiryForCreation(new javax.cache.expiry.Duration(TimeUnit.DAYS, 1))
+        .setSnapshot(snapshot)
+        .setCacheLoader(
+            new CacheLoader<String, PublicKey>() {
+              @Override
+              public PublicKey load(String url) throws CacheLoaderException {
+                loads.incrementAndGet();
+                return key;
+              }
+
+              @Override
+              public Map<String, PublicKey> loadAll(Iterable<? extends String> urls) {
+                return null;
+              }
+            })
+        .build();
+  }
+
+  private static final class TestClock extends Clock {
+    private volatile long millis;
+
+    private TestClock(long millis) {
+      this.millis = millis;
+    }
+
+    @Override
+    public ZoneId getZone() {
+      return ZoneOffset.UTC;
+    }
+
+    @Override
+    public Clock withZone(ZoneId zone) {
+      return this;
+    }
+
+    @Override
+    public Instant instant() {
+      return Instant.ofEpochMilli(millis);
+    }
+
+    @Override
+    public long millis() {
+      return millis;
+    }
+  }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright  2019 - present. IAB Tech Lab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.media.adscert;
+
+import com.google.common.cache.Cache;
+import net.media.adscert.cache.DefaultGuavaCacheBuilder;
+import net.media.adscert.cache.DefaultJCacheBuilder;
+import net.media.adscert.cache.VerificationServiceGuavaCache;
+import net.media.adscert.cache.VerificationServiceJCache;
+import net.media.adscert.exceptions.ProcessException;
+import net.media.adscert.fetch.KeyFailureCache;
+import net.media.adscert.fetch.KeyFetcher;
+import net.media.adscert.service.VerificationService;
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.cache.expiry.Duration;
+import javax.cache.integration.CacheLoader;
+import javax.cache.integration.CacheLoaderException;
+import java.io.IOException;
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class RefreshAheadTest {
+
+  private static final String URL = "https://www.newsite.com/ads.cert";
+  private static final long REFRESH_AFTER_MILLIS = 200;
+
+  @Test
+  public void refreshesGuavaCacheInBackground() throws Exception {
+    KeyServer server = new KeyServer();
+    KeyFetcher fetcher =
+        KeyFetcher.newBuilder()
+            .setConnector(url -> TestUtil.keyConnection(url, server.serve()))
+            .build();
+    Cache<String, PublicKey> cache =
+        DefaultGuavaCacheBuilder.newBuilder()
+            .setRefreshAfterWrite(java.time.Duration.ofMillis(REFRESH_AFTER_MILLIS))
+            .setKeyFetcher(fetcher)
+            .setKeyFailureCache(null)
+            .build();
+    assertRefreshesAhead(new VerificationServiceGuavaCache(cache, fetcher), server);
+  }
+
+  @Test
+  public void backsOffFailingGuavaRefreshes() throws Exception {
+    KeyServer server = new KeyServer();
+    KeyFetcher fetcher =
+        KeyFetcher.newBuilder()
+            .setConnector(url -> TestUtil.keyConnection(url, server.serve()))
+            .build();
+    KeyFailureCache failures =
+        KeyFailureCache.newBuilder().setInitialBackoff(java.time.Duration.ofMinutes(1)).build();
+    Cache<String, PublicKey> cache =
+        DefaultGuavaCacheBuilder.newBuilder()
+            .setRefreshAfterWrite(java.time.Duration.ofMillis(REFRESH_AFTER_MILLIS))
+            .setKeyFetcher(fetcher)
+            .setKeyFailureCache(failures)
+            .build();
+    VerificationService service = new VerificationServiceGuavaCache(cache, fetcher);
+    Assert.assertSame(failures, service.getKeyFailureCache());
+    server.key.set(TestUtil.generateKeyPair().getPublic());
+    PublicKey cached = service.getPublicKey(URL);
+
+    // A failed refresh is recorded, and the url is not fetched again while backing off.
+    server.failing = true;
+    Thread.sleep(REFRESH_AFTER_MILLIS + 50);
+    Assert.assertSame(cached, service.getPublicKey(URL));
+    Assert.assertSame(cached, awaitFetches(service, server, 2));
+    Assert.assertNotNull(failures.getFailure(URL));
+    server.failing = false;
+    Thread.sleep(REFRESH_AFTER_MILLIS + 50);
+    Assert.assertSame(cached, service.getPublicKey(URL));
+    Thread.sleep(50);
+    Assert.assertSame(cached, service.getPublicKey(URL));
+    Assert.assertEquals(2, server.fetches.get());
+
+    // Loads of the service back off from the same failure.
+    cache.invalidate(URL);
+    try {
+      service.getPublicKey(URL);
+      Assert.fail("Expected the url to back off");
+    } catch (ProcessException e) {
+      Assert.assertEquals(2, server.fetches.get());
+    }
+  }
+
+  @Test
+  public void refreshesJCacheInBackground() throws Exception {
+    KeyServer server = new KeyServer();
+    javax.cache.Cache<String, PublicKey> cache =
+        DefaultJCacheBuilder.newBuilder()
+            .setCacheName("refreshingKeyCache")
+            .setRefreshAfterWrite(new Duration(TimeUnit.MILLISECONDS, REFRESH_AFTER_MILLIS))
+            .setCacheLoader(
+                new CacheLoader<String, PublicKey>() {
+                  @Override
+                  public PublicKey load(String key) throws CacheLoaderException {
+                    try {
+                      return server.serve();
+                    } catch (IOException e) {
+                      throw new CacheLoaderException(e);
+                    }
+                  }
+
+                  @Override
+                  public Map<String, PublicKey> loadAll(Iterable<? extends String> keys) {
+                    return null;
+                  }
+                })
+            .build();
+    try {
+      assertRefreshesAhead(new VerificationServiceJCache(cache), server);
+    } finally {
+      cache.getCacheManager().destroyCache("refreshingKeyCache");
+    }
+  }
+
+  private static void assertRefreshesAhead(VerificationService service, KeyServer server)
+      throws Exception {
+    KeyPair first = TestUtil.generateKeyPair();
+    KeyPair rotated = TestUtil.generateKeyPair();
+    server.key.set(first.getPublic());
+    PublicKey cached = service.getPublicKey(URL);
+    Assert.assertArrayEquals(first.getPublic().getEncoded(), cached.getEncoded());
+    Assert.assertSame(cached, service.getPublicKey(URL));
+    Assert.assertEquals(1, server.fetches.get());
+
+    // A stale key is served while the rotated one is being fetched.
+    server.key.set(rotated.getPublic());
+    server.release = new CountDownLatch(1);
+    Thread.sleep(REFRESH_AFTER_MILLIS + 50);
+    Assert.assertSame(cached, service.getPublicKey(URL));
+    Assert.assertSame(cached, service.getPublicKey(URL));
+    server.release.countDown();
+    PublicKey refreshed = awaitFetches(service, server, 2);
+    Assert.assertArrayEquals(rotated.getPublic().getEncoded(), refreshed.getEncoded());
+    Assert.assertEquals(2, server.fetches.get());
+
+    // A failed refresh keeps the stale key, and retries after another period.
+    server.failing = true;
+    Thread.sleep(REFRESH_AFTER_MILLIS + 50);
+    Assert.assertSame(refreshed, service.getPublicKey(URL));
+    Assert.assertSame(refreshed, awaitFetches(service, server, 3));
+    Assert.assertSame(refreshed, service.getPublicKey(URL));
+    Assert.assertEquals(3, server.fetches.get());
+    server.failing = false;
+    Thread.sleep(REFRESH_AFTER_MILLIS + 50);
+    service.getPublicKey(URL);
+    awaitFetches(service, server, 4);
+  }
+
+  /** Reads the key until the given number of fetches completed and the cache settled. */
+  private static PublicKey awaitFetches(VerificationService service, KeyServer server, int fetches)
+      throws Exception {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (server.completed.get() < fetches) {
+      Assert.assertTrue(System.nanoTime() < deadline);
+      Thread.sleep(10);
+    }
+    Thread.sleep(50);
+    return service.getPublicKey(URL);
+  }
+
+  private static final class KeyServer {
+    private final AtomicReference<PublicKey> key = new AtomicReference<>();
+    private final AtomicInteger fetches = new AtomicInteger();
+    private final AtomicInteger completed = new AtomicInteger();
+    private volatile CountDownLatch release = new CountDownLatch(0);
+    private volatile boolean failing;
+
+    private PublicKey serve() throws IOException {
+      fetches.incrementAndGet();
+      try {
+        if (!release.await(10, TimeUnit.SECONDS)) {
+          throw new IOException("Not released");
+        }
+        if (failing) {
+          throw new IOException("Connection refused");
+        }
+        return key.get();
+      } catch (InterruptedException e) {
+        throw new IOException(e);
+      } finally {
+        completed.incrementAndGet();
+      }
+    }
+  }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright  2019 - present. IAB Tech Lab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.media.adscert;
+
+import net.media.adscert.crypto.CryptoProvider;
+import net.media.adscert.crypto.ProviderBenchmark;
+import net.media.adscert.crypto.SignatureEngine;
+import net.media.adscert.crypto.VerifierKey;
+import net.media.adscert.enums.Result;
+import net.media.adscert.metrics.MetricsManager;
+import net.media.adscert.service.VerificationService;
+import net.media.adscert.utils.Base64Util;
+import net.media.adscert.utils.SignatureUtil;
+import org.apache.commons.codec.binary.Base64;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertTrue;
+
+public class SignatureEngineTest {
+
+  @Test
+  public void reusesEnginePerThread() throws Exception {
+    SignatureEngine engine = new SignatureEngine(null);
+    KeyPair keyPair = TestUtil.generateKeyPair();
+    Signature first = engine.getVerifier(keyPair.getPublic());
+    Signature second = engine.getVerifier(keyPair.getPublic());
+    Assert.assertSame(first, second);
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Signature other = executor.submit(() -> engine.getVerifier(keyPair.getPublic())).get();
+      Assert.assertNotSame(first, other);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void noStateLeaksBetweenThreads() throws Exception {
+    final int threads = 8;
+    final int iterations = 200;
+    final SignatureEngine engine = new SignatureEngine(null);
+    final KeyPair[] keyPairs = new KeyPair[threads];
+    final String[] digests = new String[threads];
+    final String[] signatures = new String[threads];
+    for (int i = 0; i < threads; i++) {
+      keyPairs[i] = TestUtil.generateKeyPair();
+      digests[i] = "domain=newsite" + i + ".com&ft=d&tid=ABC7E92FBD6A";
+      signatures[i] = SignatureUtil.signMessage(keyPairs[i].getPrivate(), digests[i]);
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    CountDownLatch start = new CountDownLatch(1);
+    List<Future<Integer>> futures = new ArrayList<>();
+    try {
+      for (int t = 0; t < threads; t++) {
+        final int own = t;
+        final int other = (t + 1) % threads;
+        Callable<Integer> task =
+            () -> {
+              start.await();
+              int verified = 0;
+              for (int i = 0; i < iterations; i++) {
+                // A correct signature must always verify, whatever the other threads are doing.
+                assertTrue(
+                    SignatureUtil.verifySign(
+                        engine, keyPairs[own].getPublic(), digests[own], signatures[own]));
+                // Signature of another thread's key must never verify against this key.
+                Assert.assertFalse(
+                    SignatureUtil.verifySign(
+                        engine, keyPairs[own].getPublic(), digests[other], signatures[other]));
+                // A malformed signature leaves the engine in an undefined state; the next
+                // iteration must not be affected by it.
+                try {
+                  SignatureUtil.verifySign(
+                      engine, keyPairs[own].getPublic(), digests[own], "abcdef");
+                } catch (GeneralSecurityException ignored) {
+                }
+                verified++;
+              }
+              return verified;
+            };
+        futures.add(executor.submit(task));
+      }
+      start.countDown();
+      for (Future<Integer> future : futures) {
+        Assert.assertEquals(iterations, (int) future.get());
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void verifiesByteInputsInBothFormats() throws Exception {
+    KeyPair keyPair = TestUtil.generateKeyPair();
+    byte[] digest = "domain=newsite.com&ft=d&tid=ABC7E92FBD6A".getBytes(UTF_8);
+    Signature signer = Signature.getInstance("SHA256withPLAIN-ECDSA", "BC");
+    signer.initSign(keyPair.getPrivate());
+    signer.update(digest);
+    byte[] raw = signer.sign();
+    Assert.assertEquals(64, raw.length);
+    byte[] der =
+        Base64.decodeBase64(
+            SignatureUtil.signMessage(keyPair.getPrivate(), new String(digest, UTF_8)));
+
+    VerificationService service = new VerificationService();
+    SignatureEngine[] engines = {
+      SignatureEngine.getDefault(), new SignatureEngine(new BouncyCastleProvider())
+    };
+    PublicKey[] keys = {keyPair.getPublic(), VerifierKey.of(keyPair.getPublic())};
+    for (SignatureEngine engine : engines) {
+      service.setSignatureEngine(engine);
+      for (PublicKey key : keys) {
+        for (byte[] signature : new byte[][] {raw, der}) {
+          byte[] ds = Base64.encodeBase64(signature);
+          Assert.assertEquals(
+              Result.Status.SUCCESS,
+              service.verifyRequest(key, ByteBuffer.wrap(ds), ByteBuffer.wrap(digest)).getStatus());
+
+          ByteBuffer directDs = ByteBuffer.allocateDirect(ds.length);
+          directDs.put(ds).flip();
+          ByteBuffer directDigest = ByteBuffer.allocateDirect(digest.length);
+          directDigest.put(digest).flip();
+          Assert.assertEquals(
+              Result.Status.SUCCESS,
+              service.verifyRequest(key, directDs, directDigest).getStatus());
+          Assert.assertFalse(directDs.hasRemaining());
+
+          byte[] padded = new byte[digest.length + 4];
+          System.arraycopy(digest, 0, padded, 2, digest.length);
+          assertTrue(
+              SignatureUtil.verifySign(
+                  engine, key, padded, 2, digest.length, ds, 0, ds.length));
+          Assert.assertFalse(
+              SignatureUtil.verifySign(
+                  engine, key, padded, 1, digest.length, ds, 0, ds.length));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void decodesBase64LikeCommonsCodec() {
+    Random random = new Random(7);
+    byte[] buffer = new byte[256];
+    for (int i = 0; i < 500; i++) {
+      byte[] data = new byte[random.nextInt(100)];
+      random.nextBytes(data);
+      for (String encoded :
+          new String[] {
+            Base64.encodeBase64String(data), Base64.encodeBase64URLSafeString(data)
+          }) {
+        byte[] expected = Base64.decodeBase64(encoded);
+        int length = Base64Util.decode(encoded, buffer);
+        Assert.assertArrayEquals(expected, Arrays.copyOf(buffer, length));
+
+        byte[] ascii = ("  " + encoded).getBytes(UTF_8);
+        length = Base64Util.decode(ascii, 2, ascii.length - 2, buffer);
+        Assert.assertArrayEquals(expected, Arrays.copyOf(buffer, length));
+        ByteBuffer direct = ByteBuffer.allocateDirect(ascii.length);
+        direct.put(ascii).position(2);
+        length = Base64Util.decode(direct, buffer);
+        Assert.assertArrayEquals(expected, Arrays.copyOf(buffer, length));
+        Assert.assertFalse(direct.hasRemaining());
+      }
+    }
+  }
+
+  @Test
+  public void selectsCryptoProvider() throws Exception {
+    KeyPair keyPair = TestUtil.generateKeyPair();
+    String digest = "domain=newsite.com&ft=d&tid=ABC7E92FBD6A";
+    String signature = SignatureUtil.signMessage(keyPair.getPrivate(), digest);
+    Map<String, Double> gauges = new HashMap<>();
+    VerificationService service =
+        new VerificationService(
+            new MetricsManager() {
+              @Override
+              public void pushMetrics(Map<String, Object> metricsMap, Result result) {}
+
+              @Override
+              public void recordGauge(String gaugeName, double value) {
+                gauges.put(gaugeName, value);
+              }
+            });
+
+    service.setCryptoProvider(CryptoProvider.SUN_EC);
+    Assert.assertEquals("SunEC", service.getSignatureEngine().getProvider().getName());
+    service.setCryptoProvider(CryptoProvider.BOUNCY_CASTLE);
+    Assert.assertEquals("BC", service.getSignatureEngine().getProvider().getName());
+    assertTrue(
+        SignatureUtil.verifySign(
+            service.getSignatureEngine(), keyPair.getPublic(), digest, signature));
+    Assert.assertNull(service.getCryptoProviderMeasurement());
+
+    service.setCryptoProvider(CryptoProvider.AUTO);
+    ProviderBenchmark.Measurement measurement = service.getCryptoProviderMeasurement();
+    Assert.assertSame(measurement.getEngine(), service.getSignatureEngine());
+    assertTrue(measurement.getOpsPerSecond() > 0);
+    Assert.assertEquals(
+        measurement.getOpsPerSecond(),
+        gauges.get(MetricsManager.CRYPTO_PROVIDER_THROUGHPUT),
+        0);
+    assertTrue(
+        SignatureUtil.verifySign(
+            service.getSignatureEngine(), keyPair.getPublic(), digest, signature));
+
+    service.setSignatureEngine(new SignatureEngine(new BouncyCastleProvider()));
+    Assert.assertEquals(CryptoProvider.CUSTOM, service.getCryptoProvider());
+  }
+}
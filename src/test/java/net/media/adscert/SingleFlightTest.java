@@ -0,0 +1,297 @@
+/*
+ * Copyright  2019 - present. IAB Tech Lab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.media.adscert;
+
+import net.media.adscert.cache.DefaultGuavaCacheBuilder;
+import net.media.adscert.cache.DefaultJCacheBuilder;
+import net.media.adscert.cache.VerificationServiceGuavaCache;
+import net.media.adscert.cache.VerificationServiceJCache;
+import net.media.adscert.fetch.KeyFetcher;
+import net.media.adscert.fetch.SingleFlight;
+import net.media.adscert.metrics.BlackholeMetricsManager;
+import net.media.adscert.service.VerificationService;
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.cache.Cache;
+import javax.cache.integration.CacheLoader;
+import javax.cache.integration.CacheLoaderException;
+import java.io.IOException;
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SingleFlightTest {
+
+  private static final String URL = "https://www.newsite.com/ads.cert";
+
+  @Test
+  public void coalescesConcurrentLoads() throws Exception {
+    SingleFlight<String, String> loads = new SingleFlight<>();
+    AtomicInteger calls = new AtomicInteger();
+    Callable<String> loader =
+        () -> {
+          Thread.sleep(200);
+          return "key" + calls.incrementAndGet();
+        };
+    List<String> values = callConcurrently(8, () -> loads.load(URL, loader, 5000));
+    Assert.assertEquals(1, calls.get());
+    for (String value : values) {
+      Assert.assertEquals("key1", value);
+    }
+    Assert.assertEquals(0, loads.getInFlightCount());
+    // Outcomes are not cached.
+    Assert.assertEquals("key2", loads.load(URL, loader, SingleFlight.NO_WAIT_CAP));
+  }
+
+  @Test
+  public void sharesFailuresAndCapsWaits() throws Exception {
+    SingleFlight<String, String> loads = new SingleFlight<>();
+    CountDownLatch release = new CountDownLatch(1);
+    IOException failure = new IOException("unreachable");
+    Thread follower = Thread.currentThread();
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      Future<String> leader =
+          executor.submit(
+              () ->
+                  loads.load(
+                      URL,
+                      () -> {
+                        release.await();
+                        throw failure;
+                      },
+                      SingleFlight.NO_WAIT_CAP));
+      while (loads.getInFlightCount() == 0) {
+        Thread.sleep(1);
+      }
+      try {
+        loads.load(URL, () -> "other", 50);
+        Assert.fail();
+      } catch (TimeoutException expected) {
+      }
+      // The load is released once this thread waits for it.
+      executor.submit(
+          () -> {
+            while (follower.getState() != Thread.State.WAITING) {
+              Thread.sleep(1);
+            }
+            release.countDown();
+            return null;
+          });
+      try {
+        loads.load(URL, () -> "other", SingleFlight.NO_WAIT_CAP);
+        Assert.fail();
+      } catch (IOException e) {
+        Assert.assertSame(failure, e);
+      }
+      try {
+        leader.get();
+        Assert.fail();
+      } catch (ExecutionException e) {
+        Assert.assertSame(failure, e.getCause());
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void coalescesKeyLoadsOfServices() throws Exception {
+    KeyPair keyPair = TestUtil.generateKeyPair();
+
+    // The base service fetches through its KeyFetcher on every call.
+    AtomicInteger fetches = new AtomicInteger();
+    VerificationService service = new VerificationService();
+    service.setKeyFetcher(
+        KeyFetcher.newBuilder()
+            .setConnector(
+                url -> {
+                  // Slow enough for the concurrent calls to find the fetch in flight.
+                  fetches.incrementAndGet();
+                  try {
+                    Thread.sleep(200);
+                  } catch (InterruptedException e) {
+                    throw new IOException(e);
+                  }
+                  return TestUtil.keyConnection(url, keyPair.getPublic());
+                })
+            .build());
+    for (PublicKey key : callConcurrently(8, () -> service.getPublicKey(URL))) {
+      Assert.assertArrayEquals(keyPair.getPublic().getEncoded(), key.getEncoded());
+    }
+    Assert.assertEquals(1, fetches.get());
+
+    // A read-through JCache with any loader.
+    AtomicInteger loads = new AtomicInteger();
+    Cache<String, PublicKey> cache =
+        DefaultJCacheBuilder.newBuilder()
+            .setCacheName("singleFlightKeyCache")
+            .setCacheLoader(
+                new CacheLoader<String, PublicKey>() {
+                  @Override
+                  public PublicKey load(String key) throws CacheLoaderException {
+                    loads.incrementAndGet();
+                    try {
+                      Thread.sleep(200);
+                    } catch (InterruptedException e) {
+                      throw new CacheLoaderException(e);
+                    }
+                    return keyPair.getPublic();
+                  }
+
+                  @Override
+                  public Map<String, PublicKey> loadAll(Iterable<? extends String> keys) {
+                    return null;
+                  }
+                })
+            .build();
+    try {
+      VerificationServiceJCache cached = new VerificationServiceJCache(cache);
+      callConcurrently(8, () -> cached.getPublicKey(URL));
+      Assert.assertEquals(1, loads.get());
+    } finally {
+      cache.getCacheManager().destroyCache("singleFlightKeyCache");
+    }
+  }
+
+  @Test
+  public void capsWaitsOfCachedServices() throws Exception {
+    PublicKey key = TestUtil.generateKeyPair().getPublic();
+
+    BlockingLoader guavaLoader = new BlockingLoader(key);
+    VerificationService guava =
+        new VerificationServiceGuavaCache(
+            DefaultGuavaCacheBuilder.newBuilder().build(),
+            url -> () -> guavaLoader.load(url),
+            new BlackholeMetricsManager());
+    guava.setKeyLoadWaitCapMillis(100);
+    assertCapsWait(guava, guavaLoader);
+
+    // Capped by the service, then by the cache builder.
+    for (boolean capOfService : new boolean[] {true, false}) {
+      BlockingLoader loader = new BlockingLoader(key);
+      Cache<String, PublicKey> cache =
+          DefaultJCacheBuilder.newBuilder()
+              .setCacheName("cappedKeyCache")
+              .setCacheLoader(loader)
+              .setKeyLoadWaitCapMillis(capOfService ? SingleFlight.NO_WAIT_CAP : 100)
+              .build();
+      try {
+        VerificationService jcache = new VerificationServiceJCache(cache);
+        if (capOfService) {
+          jcache.setKeyLoadWaitCapMillis(100);
+        }
+        assertCapsWait(jcache, loader);
+      } finally {
+        cache.getCacheManager().destroyCache("cappedKeyCache");
+      }
+    }
+  }
+
+  /** Asserts that a read waiting for the load of another read gives up at the 100 ms cap. */
+  private static void assertCapsWait(VerificationService service, BlockingLoader loader)
+      throws Exception {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<PublicKey> leader = executor.submit(() -> service.getPublicKey(URL));
+      Assert.assertTrue(loader.started.await(5, TimeUnit.SECONDS));
+      long start = System.nanoTime();
+      try {
+        service.getPublicKey(URL);
+        Assert.fail();
+      } catch (Exception expected) {
+      }
+      long waitedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+      Assert.assertTrue("Waited " + waitedMillis + " ms", waitedMillis < 1000);
+
+      // Giving up is not a failure of the url.
+      loader.release.countDown();
+      Assert.assertArrayEquals(loader.key.getEncoded(), leader.get().getEncoded());
+      Assert.assertArrayEquals(loader.key.getEncoded(), service.getPublicKey(URL).getEncoded());
+      Assert.assertEquals(1, loader.loads.get());
+    } finally {
+      loader.release.countDown();
+      executor.shutdownNow();
+    }
+  }
+
+  private static <T> List<T> callConcurrently(int threads, Callable<T> call) throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    CountDownLatch start = new CountDownLatch(1);
+    try {
+      List<Future<T>> futures = new ArrayList<>();
+      for (int i = 0; i < threads; i++) {
+        futures.add(
+            executor.submit(
+                () -> {
+                  start.await();
+                  return call.call();
+                }));
+      }
+      start.countDown();
+      List<T> values = new ArrayList<>();
+      for (Future<T> future : futures) {
+        values.add(future.get());
+      }
+      return values;
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /** Loads the key once released, counting the loads. */
+  private static final class BlockingLoader implements CacheLoader<String, PublicKey> {
+
+    private final PublicKey key;
+    private final CountDownLatch started = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final AtomicInteger loads = new AtomicInteger();
+
+    private BlockingLoader(PublicKey key) {
+      this.key = key;
+    }
+
+    @Override
+    public PublicKey load(String url) throws CacheLoaderException {
+      loads.incrementAndGet();
+      started.countDown();
+      try {
+        release.await(10, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        throw new CacheLoaderException(e);
+      }
+      return key;
+    }
+
+    @Override
+    public Map<String, PublicKey> loadAll(Iterable<? extends String> keys) {
+      return null;
+    }
+  }
+}
@@ -18,10 +18,16 @@ package net.media.adscert;
 
 import net.media.adscert.utils.JacksonObjectMapper;
 import net.media.openrtb3.*;
+import org.apache.commons.codec.binary.Base64;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.security.*;
 import java.security.spec.ECGenParameterSpec;
@@ -85,4 +91,34 @@ public class TestUtil {
     keyPairGenerator.initialize(ecGenSpec, new SecureRandom());
     return keyPairGenerator.generateKeyPair();
   }
+
+  /** Connection answering a key fetch with the given key, for a stubbed KeyFetcher connector. */
+  public static HttpURLConnection keyConnection(URL url, PublicKey publicKey) {
+    String pem =
+        "-----BEGIN PUBLIC KEY-----\n"
+            + Base64.encodeBase64String(publicKey.getEncoded())
+            + "\n-----END PUBLIC KEY-----\n";
+    return new HttpURLConnection(url) {
+      @Override
+      public int getResponseCode() {
+        return HTTP_OK;
+      }
+
+      @Override
+      public InputStream getInputStream() {
+        return new ByteArrayInputStream(pem.getBytes(StandardCharsets.UTF_8));
+      }
+
+      @Override
+      public void connect() {}
+
+      @Override
+      public void disconnect() {}
+
+      @Override
+      public boolean usingProxy() {
+        return false;
+      }
+    };
+  }
 }
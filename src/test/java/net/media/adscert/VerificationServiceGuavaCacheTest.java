@@ -22,7 +22,9 @@ import net.media.adscert.utils.SignatureUtil;
 import net.media.adscert.cache.DefaultGuavaCacheBuilder;
 import net.media.adscert.cache.VerificationServiceGuavaCache;
 import net.media.adscert.enums.Result;
+import net.media.adscert.exceptions.InvalidDataException;
 import net.media.adscert.metrics.MetricsManager;
+import net.media.adscert.service.VerificationService;
 import net.media.openrtb3.OpenRTB3_X;
 import org.junit.Assert;
 import org.junit.Test;
@@ -30,7 +32,16 @@ import org.junit.Test;
 import java.security.*;
 import java.time.Duration;
 import java.time.temporal.ChronoUnit;
+import java.util.Collections;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertTrue;
@@ -110,4 +121,114 @@ public class VerificationServiceGuavaCacheTest {
     Assert.assertTrue(service.verifyRequest(openRTB, true).getStatus() == Result.Status.SUCCESS);
     Assert.assertTrue(service.verifyRequest(openRTB, false).getStatus() == Result.Status.SUCCESS);
   }
+
+  @Test
+  public void verifiesAsynchronously() throws Exception {
+    final KeyPair keyPair = TestUtil.generateKeyPair();
+    Set<String> loaderThreads = ConcurrentHashMap.newKeySet();
+    VerificationServiceGuavaCache service =
+        new VerificationServiceGuavaCache(
+            DefaultGuavaCacheBuilder.newBuilder().build(),
+            url ->
+                () -> {
+                  loaderThreads.add(Thread.currentThread().getName());
+                  return keyPair.getPublic();
+                });
+
+    OpenRTB3_X openRTB = TestUtil.getOpenRTBObject();
+    openRTB.getRequest().getSource().setCert("ads1.cert");
+    openRTB
+        .getRequest()
+        .getSource()
+        .setDs(SignatureUtil.signMessage(keyPair.getPrivate(), DigestUtil.getDigest(openRTB)));
+
+    ExecutorService executor = Executors.newSingleThreadExecutor(r -> new Thread(r, "verifier"));
+    try {
+      CompletableFuture<Result> result = service.verifyRequestAsync(openRTB, executor);
+      Assert.assertEquals(Result.Status.SUCCESS, result.get().getStatus());
+      Assert.assertEquals(Collections.singleton("verifier"), loaderThreads);
+
+      // Invalid data completes the future exceptionally instead of throwing on the caller
+      CompletableFuture<Result> invalid = service.verifyRequestAsync(null, executor);
+      try {
+        invalid.get();
+        Assert.fail();
+      } catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof InvalidDataException);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void returnsKeyPendingWhenBudgetIsExceeded() throws Exception {
+    final KeyPair keyPair = TestUtil.generateKeyPair();
+    CountDownLatch keyServer = new CountDownLatch(1);
+    AtomicInteger fetches = new AtomicInteger();
+    Cache<String, PublicKey> cache = DefaultGuavaCacheBuilder.newBuilder().build();
+    VerificationServiceGuavaCache service =
+        new VerificationServiceGuavaCache(
+            cache,
+            url ->
+                () -> {
+                  fetches.incrementAndGet();
+                  keyServer.await();
+                  return keyPair.getPublic();
+                });
+    service.setKeyResolutionBudgetMillis(20);
+
+    OpenRTB3_X openRTB = TestUtil.getOpenRTBObject();
+    openRTB.getRequest().getSource().setCert("ads1.cert");
+    openRTB
+        .getRequest()
+        .getSource()
+        .setDs(SignatureUtil.signMessage(keyPair.getPrivate(), DigestUtil.getDigest(openRTB)));
+
+    Assert.assertEquals(
+        Result.Status.KEY_PENDING, service.verifyRequest(openRTB, true).getStatus());
+    Assert.assertEquals(
+        Result.Status.KEY_PENDING, service.verifyRequest(openRTB, true).getStatus());
+
+    keyServer.countDown();
+    // A per call budget overrides the budget of the service
+    Assert.assertEquals(
+        Result.Status.SUCCESS,
+        service
+            .verifyRequest(openRTB, true, false, VerificationService.NO_KEY_RESOLUTION_BUDGET)
+            .getStatus());
+    Assert.assertEquals(Result.Status.SUCCESS, service.verifyRequest(openRTB, true).getStatus());
+    Assert.assertEquals(1, fetches.get());
+  }
+
+  @Test
+  public void returnsKeyUnavailableWhenResolutionIsRejected() throws Exception {
+    final KeyPair keyPair = TestUtil.generateKeyPair();
+    AtomicInteger fetches = new AtomicInteger();
+    VerificationServiceGuavaCache service =
+        new VerificationServiceGuavaCache(
+            DefaultGuavaCacheBuilder.newBuilder().build(),
+            url ->
+                () -> {
+                  fetches.incrementAndGet();
+                  return keyPair.getPublic();
+                });
+    service.setKeyResolutionBudgetMillis(20);
+    // A full executor, as the bounded default one is under a burst of distinct urls.
+    service.setKeyResolutionExecutor(
+        command -> {
+          throw new RejectedExecutionException("Key resolution pool is full");
+        });
+
+    OpenRTB3_X openRTB = TestUtil.getOpenRTBObject();
+    openRTB
+        .getRequest()
+        .getSource()
+        .setDs(SignatureUtil.signMessage(keyPair.getPrivate(), DigestUtil.getDigest(openRTB)));
+
+    Result result = service.verifyRequest(openRTB, true);
+    Assert.assertEquals(Result.Status.FAILURE, result.getStatus());
+    Assert.assertEquals(Result.FailureReason.KEY_UNAVAILABLE, result.getFailureReason());
+    Assert.assertEquals(0, fetches.get());
+  }
 }
@@ -27,12 +27,17 @@ import org.junit.Assert;
 import org.junit.Test;
 
 import javax.cache.Cache;
+import javax.cache.configuration.CompleteConfiguration;
 import javax.cache.expiry.Duration;
 import javax.cache.integration.CacheLoader;
 import javax.cache.integration.CacheLoaderException;
 import java.security.*;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertTrue;
 
@@ -40,7 +45,7 @@ public class VerificationServiceJCacheTest {
 
   @Test
   public void test()
-      throws GeneralSecurityException, InterruptedException {
+      throws GeneralSecurityException, InterruptedException, ExecutionException {
     final KeyPair keyPair1 = TestUtil.generateKeyPair();
     final KeyPair keyPair2 = TestUtil.generateKeyPair();
     final KeyPair keyPair3 = TestUtil.generateKeyPair();
@@ -118,6 +123,16 @@ public class VerificationServiceJCacheTest {
     Assert.assertTrue(service.verifyRequest(openRTB, true).getStatus() == Result.Status.SUCCESS);
     Assert.assertTrue(service.verifyRequest(openRTB, false).getStatus() == Result.Status.SUCCESS);
 
+    // Testing asynchronous verification
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Assert.assertEquals(
+          Result.Status.SUCCESS,
+          service.verifyRequestAsync(openRTB, true, false, executor).get().getStatus());
+    } finally {
+      executor.shutdownNow();
+    }
+
     // Testing message expiry
     openRTB.getRequest().getSource().setTs((int) System.currentTimeMillis());
     Thread.sleep(500l);
@@ -127,4 +142,42 @@ public class VerificationServiceJCacheTest {
     // Do not check message expiry
     Assert.assertTrue(service.verifyRequest(openRTB, false).getStatus() == Result.Status.SUCCESS);
   }
+
+  @Test
+  public void loadsKeysOutsideOfTheCache() throws Exception {
+    final KeyPair keyPair = TestUtil.generateKeyPair();
+    final AtomicInteger loads = new AtomicInteger();
+    final Cache<String, PublicKey> cache =
+        DefaultJCacheBuilder.newBuilder()
+            .setCacheName("plainReadKeyCache")
+            .setCacheLoader(
+                new CacheLoader<String, PublicKey>() {
+                  @Override
+                  public PublicKey load(String key) {
+                    loads.incrementAndGet();
+                    return keyPair.getPublic();
+                  }
+
+                  @Override
+                  public Map<String, PublicKey> loadAll(Iterable<? extends String> keys) {
+                    return null;
+                  }
+                })
+            .build();
+    try {
+      // Hits are plain reads, which never load.
+      Assert.assertFalse(cache.getConfiguration(CompleteConfiguration.class).isReadThrough());
+      Assert.assertNull(cache.get("https://www.newsite.com/ads.cert"));
+      Assert.assertEquals(0, loads.get());
+
+      VerificationServiceJCache service = new VerificationServiceJCache(cache);
+      PublicKey publicKey = service.getPublicKey("https://www.newsite.com/ads.cert");
+      Assert.assertArrayEquals(keyPair.getPublic().getEncoded(), publicKey.getEncoded());
+      Assert.assertSame(publicKey, service.getPublicKey("https://www.newsite.com/ads.cert"));
+      Assert.assertSame(publicKey, cache.get("https://www.newsite.com/ads.cert"));
+      Assert.assertEquals(1, loads.get());
+    } finally {
+      cache.getCacheManager().destroyCache("plainReadKeyCache");
+    }
+  }
 }
@@ -16,27 +16,50 @@
 
 package net.media.adscert;
 
+import net.media.adscert.cache.SignatureResultCache;
 import net.media.adscert.utils.DigestUtil;
 import net.media.adscert.utils.JacksonObjectMapper;
+import net.media.adscert.utils.OpenRtbFieldReader;
 import net.media.adscert.utils.SignatureUtil;
 import net.media.adscert.enums.Result;
+import net.media.adscert.exceptions.InvalidDataException;
+import net.media.adscert.exceptions.ProcessException;
 import net.media.adscert.metrics.MetricsManager;
 import net.media.adscert.service.FileVerificationService;
 import net.media.adscert.service.VerificationService;
+import net.media.openrtb3.Device;
 import net.media.openrtb3.OpenRTB3_X;
+import net.media.openrtb3.VideoPlacement;
 import org.junit.Assert;
 import org.junit.Test;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.security.*;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
 import static org.junit.Assert.assertTrue;
@@ -145,4 +168,377 @@ public class VerificationServiceTest {
             == Result.Status.SUCCESS);
     // assertEquals(true, verificationService.verifyRequest(publicKey, ds, digest));
   }
+
+  @Test
+  public void collectsDigestFieldsOnlyIfRecorded() throws GeneralSecurityException {
+    KeyPair keyPair = TestUtil.generateKeyPair();
+    OpenRTB3_X openRTB = TestUtil.getOpenRTBObject();
+    openRTB
+        .getRequest()
+        .getSource()
+        .setDs(SignatureUtil.signMessage(keyPair.getPrivate(), DigestUtil.getDigest(openRTB)));
+    AtomicInteger pushes = new AtomicInteger();
+    MetricsManager recording =
+        new MetricsManager() {
+          @Override
+          public void pushMetrics(Map<String, Object> metricsMap, Result result) {
+            pushes.incrementAndGet();
+          }
+        };
+    // Any manager not using the digest fields gets the verifications skipping them.
+    MetricsManager discarding =
+        new MetricsManager() {
+          @Override
+          public void pushMetrics(Map<String, Object> metricsMap, Result result) {
+            pushes.incrementAndGet();
+          }
+
+          @Override
+          public boolean recordsDigestFields() {
+            return false;
+          }
+        };
+    for (MetricsManager metricsManager : Arrays.asList(recording, discarding)) {
+      VerificationService service = new VerificationService(100, 1000l, metricsManager);
+      Assert.assertEquals(
+          Result.Status.SUCCESS,
+          service.verifyRequest(openRTB, keyPair.getPublic()).getStatus());
+    }
+    Assert.assertEquals(1, pushes.get());
+  }
+
+  @Test
+  public void verifyBatchResolvesEachKeyOnce() throws GeneralSecurityException {
+    KeyPair keyPair1 = TestUtil.generateKeyPair();
+    KeyPair keyPair2 = TestUtil.generateKeyPair();
+    Map<String, PublicKey> keys = new HashMap<>();
+    keys.put("https://www.newsite.com/ads1.cert", keyPair1.getPublic());
+    keys.put("https://www.othersite.com/ads2.cert", keyPair2.getPublic());
+    Map<String, AtomicInteger> lookups = new ConcurrentHashMap<>();
+    AtomicInteger lookupsOnForkJoinPool = new AtomicInteger();
+
+    VerificationService verificationService =
+        new VerificationService() {
+          @Override
+          public PublicKey getPublicKey(String url) {
+            lookups.computeIfAbsent(url, u -> new AtomicInteger()).incrementAndGet();
+            if (Thread.currentThread() instanceof ForkJoinWorkerThread) {
+              lookupsOnForkJoinPool.incrementAndGet();
+            }
+            return keys.get(url);
+          }
+        };
+    verificationService.setBatchPool(new ForkJoinPool(4));
+
+    List<OpenRTB3_X> requests = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      OpenRTB3_X openRTB = TestUtil.getOpenRTBObject();
+      boolean first = i % 2 == 0;
+      openRTB.getRequest().getSource().setCert(first ? "ads1.cert" : "ads2.cert");
+      String domain = first ? "newsite.com" : "othersite.com";
+      openRTB.getRequest().getContext().getSite().setDomain(domain);
+      String digest = "domain=" + domain + "&ft=d&tid=ABC7E92FBD6A";
+      // Request 7 belongs to othersite.com but is signed with the key of newsite.com.
+      KeyPair signer = i == 7 || first ? keyPair1 : keyPair2;
+      openRTB
+          .getRequest()
+          .getSource()
+          .setDs(SignatureUtil.signMessage(signer.getPrivate(), digest));
+      requests.add(openRTB);
+    }
+    requests.add(null);
+
+    List<Result> results = verificationService.verifyBatch(requests);
+    Assert.assertEquals(requests.size(), results.size());
+    for (int i = 0; i < 20; i++) {
+      Result.Status expected = i == 7 ? Result.Status.FAILURE : Result.Status.SUCCESS;
+      Assert.assertEquals(expected, results.get(i).getStatus());
+    }
+    Assert.assertEquals(Result.Status.FAILURE, results.get(20).getStatus());
+    Assert.assertEquals(2, lookups.size());
+    lookups.values().forEach(count -> Assert.assertEquals(1, count.get()));
+    // Key fetches may block, and are kept off the fork-join pools.
+    Assert.assertEquals(0, lookupsOnForkJoinPool.get());
+
+    Map<String, OpenRTB3_X> keyed = new LinkedHashMap<>();
+    keyed.put("b", requests.get(7));
+    keyed.put("a", requests.get(0));
+    Map<String, Result> keyedResults = verificationService.verifyBatch(keyed);
+    Assert.assertEquals(Arrays.asList("b", "a"), new ArrayList<>(keyedResults.keySet()));
+    Assert.assertEquals(Result.Status.FAILURE, keyedResults.get("b").getStatus());
+    Assert.assertEquals(Result.Status.SUCCESS, keyedResults.get("a").getStatus());
+  }
+
+  @Test
+  public void verifyBatchScreensRequestsBeforeResolvingKeys() throws Exception {
+    KeyPair keyPair = TestUtil.generateKeyPair();
+    Map<String, AtomicInteger> lookups = new ConcurrentHashMap<>();
+    CountDownLatch slowKey = new CountDownLatch(1);
+    VerificationService verificationService =
+        new VerificationService(100, 1000L) {
+          @Override
+          public PublicKey getPublicKey(String url) {
+            lookups.computeIfAbsent(url, u -> new AtomicInteger()).incrementAndGet();
+            if (url.contains("slow")) {
+              try {
+                slowKey.await();
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+              }
+            }
+            if (url.contains("failing")) {
+              throw new ProcessException("Connection refused");
+            }
+            return keyPair.getPublic();
+          }
+        };
+    verificationService.setKeyResolutionBudgetMillis(50);
+
+    String[] domains = {"unsigned.com", "slow.com", "failing.com", "newsite.com"};
+    List<OpenRTB3_X> requests = new ArrayList<>();
+    for (String domain : domains) {
+      OpenRTB3_X openRTB = TestUtil.getOpenRTBObject();
+      openRTB.getRequest().getContext().getSite().setDomain(domain);
+      openRTB.getRequest().getSource().setCert("ads.cert");
+      String digest = "domain=" + domain + "&ft=d&tid=ABC7E92FBD6A";
+      openRTB
+          .getRequest()
+          .getSource()
+          .setDs(
+              domain.equals("unsigned.com")
+                  ? null
+                  : SignatureUtil.signMessage(keyPair.getPrivate(), digest));
+      requests.add(openRTB);
+    }
+
+    try {
+      // Expired requests are answered without resolving their keys.
+      for (Result result : verificationService.verifyBatch(requests, false, true)) {
+        Assert.assertEquals(Result.FailureReason.MESSAGE_EXPIRED, result.getFailureReason());
+      }
+      Assert.assertTrue(lookups.isEmpty());
+
+      long start = System.nanoTime();
+      List<Result> results = verificationService.verifyBatch(requests, false, false);
+      Assert.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+      Assert.assertEquals(
+          Result.FailureReason.MISSING_SIGNATURE, results.get(0).getFailureReason());
+      Assert.assertEquals(Result.Status.KEY_PENDING, results.get(1).getStatus());
+      Assert.assertEquals(Result.FailureReason.KEY_UNAVAILABLE, results.get(2).getFailureReason());
+      Assert.assertEquals(Result.Status.SUCCESS, results.get(3).getStatus());
+      // Keys are resolved only for the signed requests.
+      Assert.assertEquals(
+          new HashSet<>(
+              Arrays.asList(
+                  "https://www.slow.com/ads.cert",
+                  "https://www.failing.com/ads.cert",
+                  "https://www.newsite.com/ads.cert")),
+          lookups.keySet());
+    } finally {
+      slowKey.countDown();
+    }
+  }
+
+  @Test
+  public void resultCacheCoalescesDuplicates() throws Exception {
+    KeyPair keyPair = TestUtil.generateKeyPair();
+    AtomicInteger lookups = new AtomicInteger();
+    Map<String, AtomicLong> counters = new ConcurrentHashMap<>();
+    MetricsManager metricsManager =
+        new MetricsManager() {
+          @Override
+          public void pushMetrics(Map<String, Object> metricsMap, Result result) {}
+
+          @Override
+          public void incrementCounter(String counterName, long delta) {
+            counters.computeIfAbsent(counterName, c -> new AtomicLong()).addAndGet(delta);
+          }
+        };
+    VerificationService verificationService =
+        new VerificationService(metricsManager) {
+          @Override
+          public PublicKey getPublicKey(String url) {
+            lookups.incrementAndGet();
+            try {
+              Thread.sleep(200);
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+            return keyPair.getPublic();
+          }
+        };
+    verificationService.setResultCache(new SignatureResultCache(100, Duration.ofMinutes(1)));
+
+    OpenRTB3_X openRTB = TestUtil.getOpenRTBObject();
+    openRTB.getRequest().getSource().setCert("ads1.cert");
+    String digest = "domain=newsite.com&ft=d&tid=ABC7E92FBD6A";
+    openRTB
+        .getRequest()
+        .getSource()
+        .setDs(SignatureUtil.signMessage(keyPair.getPrivate(), digest));
+
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<Result>> futures = new ArrayList<>();
+      for (int i = 0; i < 8; i++) {
+        futures.add(executor.submit(() -> verificationService.verifyRequest(openRTB)));
+      }
+      for (Future<Result> future : futures) {
+        Assert.assertEquals(Result.Status.SUCCESS, future.get().getStatus());
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    Assert.assertEquals(
+        Result.Status.SUCCESS, verificationService.verifyRequest(openRTB).getStatus());
+    Assert.assertEquals(1, lookups.get());
+    Assert.assertEquals(1, counters.get(MetricsManager.RESULT_CACHE_MISSES).get());
+    Assert.assertEquals(8, counters.get(MetricsManager.RESULT_CACHE_HITS).get());
+
+    // A different signature over the same digest is verified on its own.
+    openRTB.getRequest().getSource().setDs("abcdef");
+    Assert.assertEquals(
+        Result.Status.FAILURE, verificationService.verifyRequest(openRTB).getStatus());
+    Assert.assertEquals(2, lookups.get());
+  }
+
+  @Test
+  public void verifiesRawJson() throws Exception {
+    KeyPair keyPair = TestUtil.generateKeyPair();
+    VerificationService service = new VerificationService();
+    OpenRTB3_X openRTB = TestUtil.getOpenRTBObject();
+    Device device = new Device();
+    device.setIp("192.168.1.1");
+    device.setUa("Mozilla/5.0");
+    openRTB.getRequest().getContext().setDevice(device);
+    VideoPlacement video = new VideoPlacement();
+    video.setW(640);
+    openRTB.getRequest().getItem().iterator().next().getSpec().getPlacement().setVideo(video);
+    openRTB.getRequest().getSource().setDsmap("domain=&ft=&h=&ip=&tid=&ts=&ua=&w=");
+    String digest = DigestUtil.buildDigest(openRTB);
+    openRTB
+        .getRequest()
+        .getSource()
+        .setDs(SignatureUtil.signMessage(keyPair.getPrivate(), digest));
+    byte[] json = JacksonObjectMapper.getMapper().writeValueAsBytes(openRTB);
+
+    OpenRTB3_X streamed = OpenRtbFieldReader.read(json);
+    OpenRTB3_X bound = JacksonObjectMapper.getMapper().readValue(json, OpenRTB3_X.class);
+    Assert.assertEquals(
+        DigestUtil.getDigestFromDsMap(bound), DigestUtil.getDigestFromDsMap(streamed));
+    Assert.assertEquals(digest, DigestUtil.buildDigest(streamed));
+
+    VerificationService verificationService =
+        new VerificationService() {
+          @Override
+          public PublicKey getPublicKey(String url) {
+            Assert.assertEquals("https://www.newsite.com/ads1.cert", url);
+            return keyPair.getPublic();
+          }
+        };
+    openRTB.getRequest().getSource().setCert("ads1.cert");
+    json = JacksonObjectMapper.getMapper().writeValueAsBytes(openRTB);
+    Assert.assertEquals(Result.Status.SUCCESS, verificationService.verifyRequest(json).getStatus());
+    Assert.assertEquals(
+        Result.Status.SUCCESS,
+        verificationService.verifyRequest(new ByteArrayInputStream(json)).getStatus());
+
+    try {
+      service.verifyRequest("{\"request\": {\"source\": [".getBytes(StandardCharsets.UTF_8));
+      Assert.fail();
+    } catch (InvalidDataException expected) {
+    }
+  }
+
+  @Test
+  public void reportsFailureReasonsWithoutExceptions() throws Exception {
+    KeyPair keyPair = TestUtil.generateKeyPair();
+    VerificationService service = new VerificationService();
+    OpenRTB3_X openRTB = TestUtil.getOpenRTBObject();
+    openRTB
+        .getRequest()
+        .getSource()
+        .setDs(SignatureUtil.signMessage(keyPair.getPrivate(), DigestUtil.getDigest(openRTB)));
+
+    for (boolean detailed : new boolean[] {false, true}) {
+      service.setDetailedFailures(detailed);
+      openRTB.getRequest().getSource().setDsmap("domain=&unknown=");
+      Result result = service.verifyRequest(openRTB, false, keyPair.getPublic(), false);
+      Assert.assertEquals(Result.Status.FAILURE, result.getStatus());
+      Assert.assertEquals(Result.FailureReason.BAD_DSMAP, result.getFailureReason());
+      Assert.assertEquals(detailed, result.getException() instanceof InvalidDataException);
+
+      openRTB.getRequest().getSource().setDsmap("domain=&ft=&tid=");
+      result = service.verifyRequest(openRTB, false, keyPair.getPublic(), false);
+      Assert.assertEquals(Result.Status.SUCCESS, result.getStatus());
+      Assert.assertNull(result.getFailureReason());
+
+      result = service.verifyRequest(openRTB, false, TestUtil.generateKeyPair().getPublic(), false);
+      Assert.assertEquals(Result.FailureReason.SIGNATURE_MISMATCH, result.getFailureReason());
+      Assert.assertEquals(
+          Result.FailureReason.MISSING_DIGEST_FIELDS,
+          service.verifyRequest("https://www.newsite.com/ads.cert", "domain=", "ds", null)
+              .getFailureReason());
+      result =
+          service.verifyRequest(
+              keyPair.getPublic(), "domain=&ip=", "ds", TestUtil.getMapOfDigestFields());
+      Assert.assertEquals(Result.FailureReason.BAD_DSMAP, result.getFailureReason());
+      Assert.assertEquals(detailed, result.getException() != null);
+
+      // An unsigned request is rejected the same way whether its key is given or resolved.
+      String ds = openRTB.getRequest().getSource().getDs();
+      openRTB.getRequest().getSource().setDs(null);
+      for (boolean debug : new boolean[] {false, true}) {
+        result = service.verifyRequest(openRTB, debug, keyPair.getPublic(), false);
+        Assert.assertEquals(Result.FailureReason.MISSING_SIGNATURE, result.getFailureReason());
+        Assert.assertNull(result.getException());
+      }
+      openRTB.getRequest().getSource().setDs(ds);
+    }
+
+    VerificationService unavailable =
+        new VerificationService() {
+          @Override
+          public PublicKey getPublicKey(String url) throws IOException {
+            throw new IOException("unreachable");
+          }
+        };
+    Result result = unavailable.verifyRequest(openRTB);
+    Assert.assertEquals(Result.FailureReason.KEY_UNAVAILABLE, result.getFailureReason());
+    Assert.assertNull(result.getException());
+    unavailable.setDetailedFailures(true);
+    Assert.assertTrue(unavailable.verifyRequest(openRTB).getException() instanceof IOException);
+  }
+
+  @Test
+  public void sharesResultsWithoutDetails() throws Exception {
+    KeyPair keyPair = TestUtil.generateKeyPair();
+    VerificationService service = new VerificationService();
+    OpenRTB3_X openRTB = TestUtil.getOpenRTBObject();
+    openRTB
+        .getRequest()
+        .getSource()
+        .setDs(SignatureUtil.signMessage(keyPair.getPrivate(), DigestUtil.getDigest(openRTB)));
+    for (int i = 0; i < 3; i++) {
+      Assert.assertSame(
+          Result.SUCCESS, service.verifyRequest(openRTB, false, keyPair.getPublic(), false));
+    }
+
+    openRTB.getRequest().getSource().setDsmap("domain=&domain=");
+    Result failure = service.verifyRequest(openRTB, false, keyPair.getPublic(), false);
+    Assert.assertSame(Result.failure(Result.FailureReason.BAD_DSMAP), failure);
+    Assert.assertNull(failure.getException());
+
+    service.setDetailedFailures(true);
+    Result detailed = service.verifyRequest(openRTB, false, keyPair.getPublic(), false);
+    Assert.assertEquals(Result.FailureReason.BAD_DSMAP, detailed.getFailureReason());
+    Assert.assertNotNull(detailed.getException());
+    Assert.assertNotSame(
+        detailed, service.verifyRequest(openRTB, false, keyPair.getPublic(), false));
+
+    for (Result.FailureReason reason : Result.FailureReason.values()) {
+      Assert.assertEquals(Result.Status.FAILURE, Result.failure(reason).getStatus());
+      Assert.assertEquals(reason.getMessage(), Result.failure(reason).getMessage());
+    }
+  }
 }
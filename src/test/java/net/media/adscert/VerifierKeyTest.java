@@ -0,0 +1,119 @@
+/*
+ * Copyright  2019 - present. IAB Tech Lab
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.media.adscert;
+
+import net.media.adscert.crypto.SignatureEngine;
+import net.media.adscert.crypto.VerifierKey;
+import net.media.adscert.utils.SignatureUtil;
+import org.apache.commons.codec.binary.Base64;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.Random;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+public class VerifierKeyTest {
+
+  @Test
+  public void matchesJcaVerification() throws GeneralSecurityException {
+    Random random = new Random(42);
+    SignatureEngine[] engines = {
+      SignatureEngine.getDefault(), new SignatureEngine(new BouncyCastleProvider())
+    };
+    for (int k = 0; k < 4; k++) {
+      KeyPair keyPair = TestUtil.generateKeyPair();
+      VerifierKey verifierKey = VerifierKey.of(keyPair.getPublic());
+      for (int i = 0; i < 25; i++) {
+        String digest = "domain=newsite.com&ft=d&tid=" + Long.toHexString(random.nextLong());
+        byte[] signature =
+            Base64.decodeBase64(SignatureUtil.signMessage(keyPair.getPrivate(), digest));
+        byte[] tampered = signature.clone();
+        tampered[tampered.length - 1] ^= 0x01;
+        String otherDigest = digest + "0";
+
+        for (SignatureEngine engine : engines) {
+          assertSameAsJca(engine, verifierKey, digest, signature);
+          assertSameAsJca(engine, verifierKey, otherDigest, signature);
+          assertSameAsJca(engine, verifierKey, digest, tampered);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void verifiesWithMoreKeysThanArePrepared() throws GeneralSecurityException {
+    SignatureEngine engine = SignatureEngine.getDefault();
+    int count = SignatureEngine.PREPARED_KEYS + 4;
+    KeyPair[] keyPairs = new KeyPair[count];
+    VerifierKey[] verifierKeys = new VerifierKey[count];
+    byte[][] signatures = new byte[count][];
+    String digest = "domain=newsite.com&ft=d&tid=1";
+    for (int k = 0; k < count; k++) {
+      keyPairs[k] = TestUtil.generateKeyPair();
+      verifierKeys[k] = VerifierKey.of(keyPairs[k].getPublic());
+      signatures[k] =
+          Base64.decodeBase64(SignatureUtil.signMessage(keyPairs[k].getPrivate(), digest));
+    }
+    // Every round evicts the keys prepared first, which have to be prepared again.
+    for (int round = 0; round < 3; round++) {
+      for (int k = 0; k < count; k++) {
+        Assert.assertTrue(verifierKeys[k].verify(engine, digest.getBytes(UTF_8), signatures[k]));
+        Assert.assertFalse(
+            verifierKeys[k].verify(engine, digest.getBytes(UTF_8), signatures[(k + 1) % count]));
+      }
+    }
+  }
+
+  @Test
+  public void wrapsOnlyOnce() throws GeneralSecurityException {
+    PublicKey publicKey = TestUtil.generateKeyPair().getPublic();
+    VerifierKey verifierKey = VerifierKey.of(publicKey);
+    Assert.assertSame(verifierKey, VerifierKey.of(verifierKey));
+    Assert.assertSame(publicKey, verifierKey.getPublicKey());
+    Assert.assertArrayEquals(publicKey.getEncoded(), verifierKey.getEncoded());
+    Assert.assertEquals(VerifierKey.of(publicKey), verifierKey);
+    Assert.assertNull(VerifierKey.of(null));
+  }
+
+  private static void assertSameAsJca(
+      SignatureEngine engine, VerifierKey verifierKey, String digest, byte[] signature)
+      throws GeneralSecurityException {
+    byte[] data = digest.getBytes(UTF_8);
+    Signature jca = engine.newSignature();
+    jca.initVerify(verifierKey.getPublicKey());
+    jca.update(data);
+    boolean expected;
+    try {
+      expected = jca.verify(signature);
+    } catch (GeneralSecurityException e) {
+      expected = false;
+    }
+    boolean actual;
+    try {
+      actual = verifierKey.verify(engine, data, signature);
+    } catch (GeneralSecurityException e) {
+      actual = false;
+    }
+    Assert.assertEquals(expected, actual);
+  }
+}